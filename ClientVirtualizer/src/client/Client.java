@@ -7,6 +7,8 @@ import org.apache.commons.configuration2.XMLConfiguration;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
+import connectionUtils.ConnectionPool;
+import connectionUtils.UnixDomainSockets;
 import logging.ComponentLogger;
 import logging.LogMessageType;
 
@@ -29,6 +31,11 @@ public class Client {
 		int nameServicePort = 0;
 		int nodeMonitorPort = 0;
 		String nodeMonitorIP = "";
+		boolean clientSideBalancing = false;
+		int tokenBatchSize = 0;
+		int connectionPoolSize = 0;
+		int connectionIdleTimeoutMs = 0;
+		String unixSocketDirectory = null;
 		try {
 			XMLConfiguration config = configs.xml("clientConfig.xml");
 
@@ -43,19 +50,52 @@ public class Client {
 
 			nodeMonitorPort = config.getInt("nodeMonitorPort");
 			nodeMonitorIP = config.getString("nodeMonitorIP");
+
+			// Optionally pick servers from the load balancer's published
+			// server table instead of requesting a token for each connection
+			clientSideBalancing = config.getBoolean("clientSideBalancing", false);
+
+			// Optionally fetch server tokens in batches shared by all clients
+			tokenBatchSize = config.getInt("tokenBatchSize", 0);
+
+			// Optionally reuse connections to the load balancer and name
+			// service between requests
+			connectionPoolSize = config.getInt("connectionPoolSize", 0);
+			connectionIdleTimeoutMs = config.getInt("connectionIdleTimeoutMs", 30000);
+
+			// Optionally connect to servers on the same host over UNIX domain
+			// sockets
+			unixSocketDirectory = config.getString("unixSocketDirectory", null);
 		} catch (ConfigurationException cex) {
 			cex.printStackTrace();
 			return;
 		}
+		UnixDomainSockets.setSocketDirectory(unixSocketDirectory);
 		ComponentLogger.setMonitorAddress(new InetSocketAddress(nodeMonitorIP, nodeMonitorPort));
 		SocketChannel nodeMonitorSocketChannel = ComponentLogger.getInstance().registerWithNodeMonitor(
 				LogMessageType.CLIENT_REGISTER, maxClients, minSendFrequencyMs, maxSendFrequencyMs, minClientRequests,
 				maxClientRequests);
 
-		VirtualClientManager clientManager = new VirtualClientManager(maxClients, minSendFrequencyMs,
+		final VirtualClientManager clientManager = new VirtualClientManager(maxClients, minSendFrequencyMs,
 				maxSendFrequencyMs, minClientRequests, maxClientRequests,
 				new InetSocketAddress(nameServiceIP, nameServicePort));
+		clientManager.setClientSideBalancing(clientSideBalancing);
+		if (tokenBatchSize > 1) {
+			clientManager.setTokenBroker(new TokenBroker(tokenBatchSize));
+		}
+		if (connectionPoolSize > 0) {
+			clientManager.setConnectionPool(new ConnectionPool(connectionPoolSize, connectionIdleTimeoutMs));
+		}
 		clientManager.initialiseClientPool();
 		clientManager.listenForConfigurationUpdates(nodeMonitorSocketChannel);
+		// Report the response latencies seen over the whole run on exit
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				System.out.println(String.format("Response latency: mean %.2fms, p90 %.2fms, p99 %.2fms",
+						clientManager.getAverageResponseLatencyMillis(), clientManager.getResponseLatencyP90Millis(),
+						clientManager.getResponseLatencyP99Millis()));
+			}
+		}));
 	}
 }
@@ -4,16 +4,26 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 
+import connectionUtils.AddressCodec;
+import connectionUtils.BufferPool;
 import connectionUtils.ConnectNIO;
+import connectionUtils.ConnectionPool;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
+import connectionUtils.ServerTable;
+import connectionUtils.TimeSource;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Joachim
@@ -42,11 +52,12 @@ public class RunnableClientProcess implements Runnable {
 	private VirtualClientManager clientManager;
 
 	/**
-	 * All SocketChannels that have been or are in use by this client.
+	 * All SocketChannels that have been or are in use by this client, each
+	 * with the {@link FrameDecoder} for the responses received on it.
 	 * Previously used channels are stored here to ensure that any server
 	 * responses sent after the token expires can still be received.
 	 */
-	private List<SocketChannel> socketChannels = new ArrayList<>();
+	private Map<SocketChannel, FrameDecoder> socketChannels = new LinkedHashMap<>();
 
 	/**
 	 * The socket that this virtual client is currently using to send and
@@ -54,6 +65,13 @@ public class RunnableClientProcess implements Runnable {
 	 */
 	private SocketChannel currentSocketChannel;
 
+	/**
+	 * The address of the server that <code>currentSocketChannel</code> is
+	 * connected to. Kept separately because a channel connected over a UNIX
+	 * domain socket has no remote IP address.
+	 */
+	private InetSocketAddress currentServerAddress;
+
 	/**
 	 * The frequency that this client will send requests at in milliseconds.
 	 */
@@ -70,6 +88,19 @@ public class RunnableClientProcess implements Runnable {
 	 */
 	private int messagesReceived = 0;
 
+	/**
+	 * The ID that will be given to the next request sent by this client.
+	 */
+	private long nextRequestID = 1;
+
+	/**
+	 * The requests that have been sent but not yet answered, mapped from
+	 * their ID to the time (from <code>TimeSource.monotonicNanos()</code>) at
+	 * which they were first sent. Responses may arrive in any order, so each
+	 * is matched to its request by ID.
+	 */
+	private Map<Long, Long> pendingRequests = new HashMap<>();
+
 	/**
 	 * The token that is currently stored for this client. Contains the details
 	 * of the most recent remote server that was provided by the load balancer,
@@ -133,9 +164,10 @@ public class RunnableClientProcess implements Runnable {
 			clientManager.notifyThreadFinished();
 			return;
 		}
-		requestServerToken();
-		currentSocketChannel = ConnectNIO.getNonBlockingSocketChannel(currentServerToken.getServerAddress());
-		socketChannels.add(currentSocketChannel);
+		acquireServerToken();
+		currentServerAddress = currentServerToken.getServerAddress();
+		currentSocketChannel = ConnectNIO.getNonBlockingSocketChannel(currentServerAddress);
+		socketChannels.put(currentSocketChannel, new FrameDecoder());
 		int requestsSent = 0;
 		while (!Thread.currentThread().isInterrupted() && requestsSent < totalRequests) {
 			sendDataRequest();
@@ -150,17 +182,16 @@ public class RunnableClientProcess implements Runnable {
 				}
 			}
 
-			if (System.currentTimeMillis() / 1000 >= currentServerToken.getTokenExpiry()) {
+			if (TimeSource.hasPassed(currentServerToken.getTokenExpiry())) {
 				// Token has expired, get a new one.
 				// Keep old socket in memory to check there are no messages
 				// remaining
 
-				requestServerToken();
-				if (!currentSocketChannel.socket().getInetAddress().getHostAddress()
-						.equals(currentServerToken.getServerAddress().getAddress().getHostAddress())) {
-					currentSocketChannel = ConnectNIO
-							.getNonBlockingSocketChannel(currentServerToken.getServerAddress());
-					socketChannels.add(currentSocketChannel);
+				acquireServerToken();
+				if (!currentServerAddress.equals(currentServerToken.getServerAddress())) {
+					currentServerAddress = currentServerToken.getServerAddress();
+					currentSocketChannel = ConnectNIO.getNonBlockingSocketChannel(currentServerAddress);
+					socketChannels.put(currentSocketChannel, new FrameDecoder());
 				}
 			}
 		}
@@ -178,12 +209,15 @@ public class RunnableClientProcess implements Runnable {
 		}
 
 		try {
-			for (SocketChannel socketChannel : socketChannels) {
+			for (SocketChannel socketChannel : socketChannels.keySet()) {
 				socketChannel.close();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		for (FrameDecoder frameDecoder : socketChannels.values()) {
+			frameDecoder.release();
+		}
 	}
 
 	/**
@@ -196,37 +230,39 @@ public class RunnableClientProcess implements Runnable {
 		// balancer address...");
 		boolean receivedResponse = false;
 
-		try (SocketChannel socketChannel = ConnectNIO.getNonBlockingSocketChannel(nameServiceAddress);
-				Selector readSelector = Selector.open();) {
+		SocketChannel socketChannel = openConnection(nameServiceAddress, 5000);
+		if (socketChannel == null) {
+			System.out.println("Failed to contact name service, retrying...");
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		FrameDecoder frameDecoder = new FrameDecoder();
+		try (Selector readSelector = Selector.open();) {
 			socketChannel.register(readSelector, SelectionKey.OP_READ);
-			ByteBuffer buffer = ByteBuffer.allocate(50);
 			while (!receivedResponse && !Thread.currentThread().isInterrupted()) {
 				// Request load balancer address
+				ByteBuffer buffer = ByteBuffer.allocate(1);
 				buffer.put((byte) MessageType.HOST_ADDR_REQUEST.getValue());
 				buffer.flip();
-				while (buffer.hasRemaining()) {
-					socketChannel.write(buffer);
-				}
+				FrameEncoder.write(socketChannel, buffer);
 
 				// Listen for response
-				buffer.clear();
-				if (readSelector.select(1000) != 0) {
+				buffer = frameDecoder.readFrame(socketChannel, readSelector, 1000);
+				if (buffer != null) {
 					// System.out.println("Received response for host name
 					// resolution");
-					socketChannel.read(buffer);
-					buffer.flip();
-					MessageType messageType = MessageType.values()[buffer.get()];
+					MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
 
-					int loadBalancerPort = 0;
-					String loadBalancerIP = "";
-
-					loadBalancerPort = buffer.getInt();
-					CharBuffer charBuffer = Charset.forName("UTF-8").decode(buffer);
-					loadBalancerIP = charBuffer.toString();
-
-					if (messageType.equals(MessageType.HOST_ADDR_RESPONSE) && loadBalancerPort != 0
-							&& !loadBalancerIP.equals("")) {
-						loadBalancerAddress = new InetSocketAddress(loadBalancerIP, loadBalancerPort);
+					if (MessageType.HOST_ADDR_RESPONSE.equals(messageType)) {
+						InetSocketAddress address = AddressCodec.decode(buffer);
+						if (address != null) {
+							loadBalancerAddress = address;
+							receivedResponse = true;
+						}
 					}
 				} else {
 					System.out.println("Failed to contact name service, retrying...");
@@ -234,6 +270,147 @@ public class RunnableClientProcess implements Runnable {
 			}
 		} catch (IOException e) {
 			Thread.currentThread().interrupt();
+		} finally {
+			closeConnection(nameServiceAddress, socketChannel, receivedResponse && frameDecoder.getBufferedBytes() == 0);
+			frameDecoder.release();
+		}
+	}
+
+	/**
+	 * Obtains a token for the server that this client should use. With
+	 * client-side balancing, the server is picked locally from the server
+	 * table shared by all clients of the {@link VirtualClientManager}, which
+	 * is only fetched from the load balancer when it has expired, and the
+	 * token lasts until the table is next due to be refreshed. With a
+	 * {@link TokenBroker}, the token is taken from the broker, which is
+	 * refilled with a batch from the load balancer when it runs out.
+	 * Otherwise, or if neither provides a token, a token is requested from the
+	 * load balancer.
+	 */
+	private void acquireServerToken() {
+		if (clientManager.isClientSideBalancing()) {
+			ServerTable serverTable = clientManager.getServerTable();
+			if (serverTable == null || serverTable.isExpired()) {
+				requestServerTable(serverTable);
+				serverTable = clientManager.getServerTable();
+			}
+			if (serverTable != null && !serverTable.isEmpty()) {
+				currentServerToken = new ServerToken(
+						TimeSource.deadlineAfterMillis(serverTable.getRefreshSeconds() * 1000L),
+						serverTable.selectServer());
+				return;
+			}
+		}
+		TokenBroker tokenBroker = clientManager.getTokenBroker();
+		if (tokenBroker != null) {
+			// Only one client refills the broker at a time; the others wait
+			// for the batch rather than each requesting their own
+			synchronized (tokenBroker) {
+				ServerToken serverToken = tokenBroker.takeToken();
+				if (serverToken == null) {
+					tokenBroker.addTokens(requestServerTokens(tokenBroker.getBatchSize()));
+					serverToken = tokenBroker.takeToken();
+				}
+				if (serverToken != null) {
+					currentServerToken = serverToken;
+					return;
+				}
+			}
+		}
+		requestServerToken();
+	}
+
+	/**
+	 * Requests a batch of server tokens from the load balancer.
+	 * 
+	 * @param tokenCount
+	 *            the number of tokens to request
+	 * @return the tokens received, which is empty if the load balancer could
+	 *         not be contacted.
+	 */
+	private List<ServerToken> requestServerTokens(int tokenCount) {
+		List<ServerToken> serverTokens = new ArrayList<>();
+		SocketChannel socketChannel = openConnection(loadBalancerAddress, 50);
+		if (socketChannel == null) {
+			clientManager.incrementClientConnectFailures();
+			return serverTokens;
+		}
+		boolean reusable = false;
+		FrameDecoder frameDecoder = new FrameDecoder();
+		try (Selector readSelector = Selector.open();) {
+			socketChannel.register(readSelector, SelectionKey.OP_READ);
+			ByteBuffer buffer = ByteBuffer.allocate(3);
+			buffer.put((byte) MessageType.AVAILABLE_SERVER_REQUEST.getValue());
+			buffer.putShort((short) tokenCount);
+			buffer.flip();
+			FrameEncoder.write(socketChannel, buffer);
+
+			buffer = frameDecoder.readFrame(socketChannel, readSelector, 1000);
+			if (buffer == null || ProtocolRegistry.decodeMessageType(buffer) != MessageType.SERVER_TOKEN_BATCH) {
+				return serverTokens;
+			}
+			int receivedCount = buffer.getShort();
+			for (int i = 0; i < receivedCount; i++) {
+				long tokenLifetimeMillis = buffer.getLong();
+				InetSocketAddress serverAddress = AddressCodec.decode(buffer);
+				if (serverAddress != null) {
+					serverTokens.add(new ServerToken(TimeSource.deadlineAfterMillis(tokenLifetimeMillis), serverAddress));
+				}
+			}
+			clientManager.notifyConnectionSuccess();
+			reusable = frameDecoder.getBufferedBytes() == 0;
+		} catch (IOException | BufferUnderflowException e) {
+		} finally {
+			closeConnection(loadBalancerAddress, socketChannel, reusable);
+			frameDecoder.release();
+		}
+		return serverTokens;
+	}
+
+	/**
+	 * Requests the current server table from the load balancer, sending the
+	 * version of the given table so that the load balancer only sends the
+	 * whole table if it has changed. The table received is stored in the
+	 * {@link VirtualClientManager}; if the given table is still current it is
+	 * renewed instead. If the load balancer cannot be contacted, the stored
+	 * table is left as it is.
+	 * 
+	 * @param knownTable
+	 *            the table currently held, or null if none has been received
+	 */
+	private void requestServerTable(ServerTable knownTable) {
+		SocketChannel socketChannel = openConnection(loadBalancerAddress, 50);
+		if (socketChannel == null) {
+			clientManager.incrementClientConnectFailures();
+			return;
+		}
+		boolean reusable = false;
+		FrameDecoder frameDecoder = new FrameDecoder();
+		try (Selector readSelector = Selector.open();) {
+			socketChannel.register(readSelector, SelectionKey.OP_READ);
+			ByteBuffer buffer = ByteBuffer.allocate(9);
+			buffer.put((byte) MessageType.SERVER_TABLE_REQUEST.getValue());
+			buffer.putLong(knownTable == null ? 0 : knownTable.getVersion());
+			buffer.flip();
+			FrameEncoder.write(socketChannel, buffer);
+
+			buffer = frameDecoder.readFrame(socketChannel, readSelector, 1000);
+			if (buffer == null || ProtocolRegistry.decodeMessageType(buffer) != MessageType.SERVER_TABLE) {
+				return;
+			}
+			int refreshSeconds = ServerTable.decodeRefreshSeconds(buffer);
+			ServerTable serverTable = ServerTable.decode(buffer);
+			if (serverTable != null) {
+				clientManager.setServerTable(serverTable);
+			} else if (knownTable != null) {
+				knownTable.renew(refreshSeconds);
+			}
+			clientManager.notifyConnectionSuccess();
+			reusable = frameDecoder.getBufferedBytes() == 0;
+		} catch (IOException | BufferUnderflowException e) {
+		} finally {
+			closeConnection(loadBalancerAddress, socketChannel, reusable);
+			frameDecoder.release();
 		}
 	}
 
@@ -251,44 +428,35 @@ public class RunnableClientProcess implements Runnable {
 		int retryCount = 0;
 		
 		
-		ByteBuffer buffer = ByteBuffer.allocate(50);
+		FrameDecoder frameDecoder = new FrameDecoder();
 		while (!receivedResponse && !Thread.currentThread().isInterrupted()) {
-			try (Selector readSelector = Selector.open();
-					SocketChannel socketChannel = ConnectNIO.getNonBlockingSocketChannel(loadBalancerAddress, 50);) {
-				boolean connected = socketChannel != null && socketChannel.isConnected();
-				
-				if (connected) {
-					clientManager.notifyConnectionSuccess();
+			InetSocketAddress connectAddress = loadBalancerAddress;
+			SocketChannel socketChannel = openConnection(connectAddress, 50);
+			try (Selector readSelector = Selector.open();) {
+				if (socketChannel != null) {
 					socketChannel.register(readSelector, SelectionKey.OP_READ);
 					// Request available server details
+					ByteBuffer buffer = ByteBuffer.allocate(1);
 					buffer.put((byte) MessageType.AVAILABLE_SERVER_REQUEST.getValue());
 					buffer.flip();
-					while (buffer.hasRemaining()) {
-						socketChannel.write(buffer);
-					}
+					FrameEncoder.write(socketChannel, buffer);
 					
 					// Listen for response
-					buffer.clear();
-					if (readSelector.select(1000) != 0) {
+					buffer = frameDecoder.readFrame(socketChannel, readSelector, 1000);
+					if (buffer != null) {
 						// System.out.println("Received server token from load
 						// balancer");
-						socketChannel.read(buffer);
-						buffer.flip();
-						MessageType messageType = MessageType.values()[buffer.get()];
-
-						long tokenExpiry = 0;
-						int serverPort = 0;
-						String serverIP = "";
-
-						tokenExpiry = buffer.getLong();
-						serverPort = buffer.getInt();
-						CharBuffer charBuffer = Charset.forName("UTF-8").decode(buffer);
-						serverIP = charBuffer.toString();
-
-						if (messageType.equals(MessageType.SERVER_TOKEN) && tokenExpiry != 0 && serverPort != 0
-								&& !serverIP.equals("")) {
-							currentServerToken = new ServerToken(tokenExpiry, new InetSocketAddress(serverIP, serverPort));
-							receivedResponse = true;
+						MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
+
+						if (MessageType.SERVER_TOKEN.equals(messageType)) {
+							long tokenLifetimeMillis = buffer.getLong();
+							InetSocketAddress serverAddress = AddressCodec.decode(buffer);
+							if (tokenLifetimeMillis > 0 && serverAddress != null) {
+								currentServerToken = new ServerToken(TimeSource.deadlineAfterMillis(tokenLifetimeMillis),
+										serverAddress);
+								receivedResponse = true;
+								clientManager.notifyConnectionSuccess();
+							}
 						}
 					}
 				} else {
@@ -309,10 +477,64 @@ public class RunnableClientProcess implements Runnable {
 						//		.println("Failed to connect to load balancer 3 times, retrying address resolution...");
 						requestHostNameResolution();
 					}
-					buffer.clear();
 				}
 			} catch (IOException e) {
-			} 
+			} finally {
+				// Discard anything left over from this connection
+				closeConnection(connectAddress, socketChannel, receivedResponse && frameDecoder.getBufferedBytes() == 0);
+				frameDecoder.release();
+			}
+		}
+	}
+
+	/**
+	 * Opens a connection for a request-response exchange with the load
+	 * balancer or name service, taking an idle connection from the
+	 * {@link VirtualClientManager}'s {@link ConnectionPool} if it has one.
+	 * 
+	 * @param address
+	 *            the address to connect to
+	 * @param timeoutMillis
+	 *            the duration, in milliseconds, to wait for a new connection
+	 * @return a connected non-blocking channel, or null if the connection
+	 *         failed.
+	 */
+	private SocketChannel openConnection(InetSocketAddress address, int timeoutMillis) {
+		ConnectionPool connectionPool = clientManager.getConnectionPool();
+		if (connectionPool != null) {
+			return connectionPool.acquire(address, timeoutMillis);
+		}
+		SocketChannel socketChannel = ConnectNIO.getNonBlockingSocketChannel(address, timeoutMillis);
+		return socketChannel != null && socketChannel.isConnected() ? socketChannel : null;
+	}
+
+	/**
+	 * Finishes with a connection opened by
+	 * {@link #openConnection(InetSocketAddress, int)}, handing it back to the
+	 * {@link ConnectionPool} if there is one and the exchange on it completed
+	 * cleanly, or closing it otherwise. Any selector the channel was
+	 * registered with must already have been closed.
+	 * 
+	 * @param address
+	 *            the address the connection was opened to
+	 * @param socketChannel
+	 *            the connection, or null if it could not be opened
+	 * @param reusable
+	 *            true if a complete response was read and nothing else is
+	 *            waiting on the connection
+	 */
+	private void closeConnection(InetSocketAddress address, SocketChannel socketChannel, boolean reusable) {
+		if (socketChannel == null) {
+			return;
+		}
+		ConnectionPool connectionPool = clientManager.getConnectionPool();
+		if (connectionPool != null && reusable) {
+			connectionPool.release(address, socketChannel);
+		} else {
+			try {
+				socketChannel.close();
+			} catch (IOException e) {
+			}
 		}
 	}
 
@@ -323,52 +545,121 @@ public class RunnableClientProcess implements Runnable {
 	 * @throws IOException
 	 */
 	private void sendDataRequest() {
-		ByteBuffer buffer = ByteBuffer.allocate(81);
+		long requestID = nextRequestID++;
+		pendingRequests.put(requestID, TimeSource.monotonicNanos());
+		if (writeDataRequest(requestID)) {
+			clientManager.incrementTotalRequestsSent();
+		}
+	}
+
+	/**
+	 * Writes a request of 10 random long values to the current
+	 * <code>SocketChannel</code>.
+	 * 
+	 * @param requestID
+	 *            the ID of the request, which the server includes in its
+	 *            response
+	 * @return true if the request was written, or false if the channel failed
+	 *         (in which case this thread is interrupted).
+	 */
+	private boolean writeDataRequest(long requestID) {
+		ByteBuffer buffer = BufferPool.acquire(89);
 		// buffer.clear();
 		buffer.put((byte) MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(requestID);
 		for (int i = 0; i < 10; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
 		}
 		buffer.flip();
-		while (buffer.hasRemaining()) {
+		try {
+			FrameEncoder.write(currentSocketChannel, buffer);
+		} catch (IOException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			BufferPool.release(buffer);
+		}
+		return true;
+	}
+
+	/**
+	 * Switches to the server named in a <code>CLIENT_REDIRECT</code> and
+	 * resends the request that was redirected, with the same ID. The new
+	 * server is used until the current token expires; the previous channel is
+	 * kept so that any outstanding responses can still be received.
+	 * 
+	 * @param serverAddress
+	 *            the address of the server to switch to
+	 * @param requestID
+	 *            the ID of the request that was redirected
+	 */
+	private void followRedirect(InetSocketAddress serverAddress, long requestID) {
+		SocketChannel redirectSocketChannel = ConnectNIO.getNonBlockingSocketChannel(serverAddress);
+		if (redirectSocketChannel == null || !redirectSocketChannel.isConnected()) {
+			// Could not connect to the peer, so retry on the current server
 			try {
-				currentSocketChannel.write(buffer);
+				if (redirectSocketChannel != null) {
+					redirectSocketChannel.close();
+				}
 			} catch (IOException e) {
-				Thread.currentThread().interrupt();
-				return;
 			}
+			writeDataRequest(requestID);
+			return;
 		}
-		clientManager.incrementTotalRequestsSent();
+		currentSocketChannel = redirectSocketChannel;
+		currentServerAddress = serverAddress;
+		socketChannels.put(currentSocketChannel, new FrameDecoder());
+		writeDataRequest(requestID);
 	}
 
 	/**
 	 * Checks this virtual client's {@link SocketChannel}s for messages and
 	 * increments the {@link VirtualClientManager}'s
-	 * <code>totalResponsesReceived</code> value if a valid message is received.
+	 * <code>totalResponsesReceived</code> value if a valid response is
+	 * received for a request that is still waiting for one, recording the
+	 * request's latency.
 	 */
 	private void checkForMessages() {
-		for (SocketChannel socketChannel : socketChannels) {
-			ByteBuffer buffer = ByteBuffer.allocate(81);
+		// Redirects are followed after reading, as following one adds to
+		// socketChannels
+		List<InetSocketAddress> redirectAddresses = new ArrayList<>();
+		List<Long> redirectRequestIDs = new ArrayList<>();
+		for (Map.Entry<SocketChannel, FrameDecoder> channelEntry : socketChannels.entrySet()) {
+			FrameDecoder frameDecoder = channelEntry.getValue();
 			try {
-				while (socketChannel.read(buffer) > 0) {
-					buffer.flip();
-					MessageType messageType = MessageType.values()[buffer.get()];
-					if (messageType.equals(MessageType.SERVER_RESPONSE)) {
-						int i = 0;
-						for (; i < 10; i++) {
-							try {
-								buffer.getLong();
-							} catch (BufferUnderflowException e) {
-								// Bad/Incomplete message received
-								e.printStackTrace();
-								break;
+				while (frameDecoder.read(channelEntry.getKey()) > 0) {
+					ByteBuffer buffer;
+					while ((buffer = frameDecoder.nextFrame()) != null) {
+						MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
+						if (MessageType.SERVER_RESPONSE.equals(messageType) && buffer.remaining() >= 8) {
+							long requestID = buffer.getLong();
+							int i = 0;
+							for (; i < 10; i++) {
+								try {
+									buffer.getLong();
+								} catch (BufferUnderflowException e) {
+									// Bad/Incomplete message received
+									e.printStackTrace();
+									break;
+								}
 							}
-						}
 
-						if (i == 10) { // Messaged received
-							clientManager.incrementTotalResponsesReceived();
-							messagesReceived++;
+							Long sendTime = pendingRequests.get(requestID);
+							if (i == 10 && sendTime != null) { // Messaged received
+								pendingRequests.remove(requestID);
+								clientManager.recordResponseLatency(TimeSource.monotonicNanos() - sendTime);
+								clientManager.incrementTotalResponsesReceived();
+								messagesReceived++;
+							}
+						} else if (MessageType.CLIENT_REDIRECT.equals(messageType) && buffer.remaining() > 12) {
+							long requestID = buffer.getLong();
+							int serverPort = buffer.getInt();
+							String serverIP = Charset.forName("UTF-8").decode(buffer).toString();
+							if (pendingRequests.containsKey(requestID)) {
+								redirectAddresses.add(new InetSocketAddress(serverIP, serverPort));
+								redirectRequestIDs.add(requestID);
+							}
 						}
 					}
 				}
@@ -376,56 +667,8 @@ public class RunnableClientProcess implements Runnable {
 				// e.printStackTrace();
 			}
 		}
-	}
-
-	/**
-	 * @author Joachim
-	 *         <p>
-	 *         Class used to model a server token received from the load
-	 *         balancer so it can be handled more easily within a
-	 *         {@link RunnableClientProcess}.
-	 *         </p>
-	 *
-	 */
-	private class ServerToken {
-
-		/**
-		 * The expiration timestamp of this server token, represented in unix
-		 * seconds.
-		 */
-		private long tokenExpiry;
-
-		/**
-		 * The address representing the remote server to connect to.
-		 */
-		private InetSocketAddress serverAddress;
-
-		/**
-		 * Constructs a new ServerToken object with the specified expiry and
-		 * server address.
-		 * 
-		 * @param tokenExpiry
-		 *            the expiration of this token in unix seconds.
-		 * @param serverAddress
-		 *            the address of the remote server.
-		 */
-		public ServerToken(long tokenExpiry, InetSocketAddress serverAddress) {
-			this.tokenExpiry = tokenExpiry;
-			this.serverAddress = serverAddress;
-		}
-
-		/**
-		 * @return the expiration time of this server token.
-		 */
-		public long getTokenExpiry() {
-			return tokenExpiry;
-		}
-
-		/**
-		 * @return the address of the remote server.
-		 */
-		public InetSocketAddress getServerAddress() {
-			return serverAddress;
+		for (int i = 0; i < redirectAddresses.size(); i++) {
+			followRedirect(redirectAddresses.get(i), redirectRequestIDs.get(i));
 		}
 	}
 }
@@ -0,0 +1,59 @@
+package client;
+
+import java.net.InetSocketAddress;
+
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Class used to model a server token received from the load balancer
+ *         so it can be handled more easily within a
+ *         {@link RunnableClientProcess}, or held by a {@link TokenBroker}
+ *         until a client needs it.
+ *         </p>
+ *
+ */
+public class ServerToken {
+
+	/**
+	 * The expiration timestamp of this server token, as a {@link TimeSource}
+	 * timestamp in milliseconds.
+	 */
+	private long tokenExpiry;
+
+	/**
+	 * The address representing the remote server to connect to.
+	 */
+	private InetSocketAddress serverAddress;
+
+	/**
+	 * Constructs a new ServerToken object with the specified expiry and server
+	 * address.
+	 * 
+	 * @param tokenExpiry
+	 *            the expiration of this token as a {@link TimeSource}
+	 *            timestamp in milliseconds.
+	 * @param serverAddress
+	 *            the address of the remote server.
+	 */
+	public ServerToken(long tokenExpiry, InetSocketAddress serverAddress) {
+		this.tokenExpiry = tokenExpiry;
+		this.serverAddress = serverAddress;
+	}
+
+	/**
+	 * @return the expiration time of this server token, as a
+	 *         {@link TimeSource} timestamp in milliseconds.
+	 */
+	public long getTokenExpiry() {
+		return tokenExpiry;
+	}
+
+	/**
+	 * @return the address of the remote server.
+	 */
+	public InetSocketAddress getServerAddress() {
+		return serverAddress;
+	}
+}
@@ -0,0 +1,90 @@
+package client;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Holds server tokens fetched from the load balancer in batches and
+ *         hands them out one at a time to the {@link RunnableClientProcess}
+ *         instances of a {@link VirtualClientManager}, so that the load
+ *         balancer is contacted once per batch rather than once per client.
+ *         Each token is given to a single client, so that the spread of
+ *         clients across servers matches the spread of the batch. Tokens that
+ *         expire before they are handed out are discarded.
+ *         </p>
+ *
+ */
+public class TokenBroker {
+
+	/**
+	 * The number of tokens to request from the load balancer at a time.
+	 */
+	private int batchSize;
+
+	/**
+	 * The tokens that have not yet been handed out, in the order they were
+	 * received.
+	 */
+	private Deque<ServerToken> tokens = new ArrayDeque<>();
+
+	/**
+	 * Creates a new TokenBroker.
+	 * 
+	 * @param batchSize
+	 *            the number of tokens to request from the load balancer at a
+	 *            time
+	 * @throws IllegalArgumentException
+	 *             if the batch size is less than 2.
+	 */
+	public TokenBroker(int batchSize) {
+		if (batchSize < 2)
+			throw new IllegalArgumentException("Token batch size must be at least 2.");
+
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the number of tokens to request from the load balancer at a
+	 *         time.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the next unexpired token, or null if there are none left and a
+	 *         new batch should be requested.
+	 */
+	public synchronized ServerToken takeToken() {
+		while (!tokens.isEmpty()) {
+			ServerToken token = tokens.pollFirst();
+			if (!TimeSource.hasPassed(token.getTokenExpiry())) {
+				return token;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a batch of tokens received from the load balancer.
+	 * 
+	 * @param newTokens
+	 *            the tokens received
+	 */
+	public synchronized void addTokens(Collection<ServerToken> newTokens) {
+		tokens.addAll(newTokens);
+	}
+
+	/**
+	 * @return the number of tokens that have not yet been handed out,
+	 *         including any that have expired.
+	 */
+	public synchronized int getTokenCount() {
+		return tokens.size();
+	}
+}
@@ -7,9 +7,14 @@ import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import connectionUtils.ConnectionPool;
+import connectionUtils.ProtocolRegistry;
+import connectionUtils.ServerTable;
 import logging.ComponentLogger;
 import logging.LogMessageType;
+import statistics.P2Quantile;
 
 /**
  * @author Joachim
@@ -64,6 +69,30 @@ public class VirtualClientManager {
 	 * The number of server responses received by all virtual clients.
 	 */
 	private AtomicInteger totalResponsesReceived = new AtomicInteger(0);
+
+	/**
+	 * The sum of the latencies, in nanoseconds, of every response that has
+	 * been matched to its request by its request ID.
+	 */
+	private AtomicLong totalResponseLatencyNanos = new AtomicLong(0);
+
+	/**
+	 * The number of responses whose latency has been recorded.
+	 */
+	private AtomicInteger latencySampleCount = new AtomicInteger(0);
+
+	/**
+	 * The estimated 90th percentile of the latencies, in nanoseconds, of every
+	 * response recorded. Guarded by itself, as the estimator is not thread
+	 * safe.
+	 */
+	private final P2Quantile responseLatencyP90 = new P2Quantile(0.9);
+
+	/**
+	 * The estimated 99th percentile of the latencies, in nanoseconds, of every
+	 * response recorded. Guarded by <code>responseLatencyP90</code>.
+	 */
+	private final P2Quantile responseLatencyP99 = new P2Quantile(0.99);
 	
 	/**
 	 * The total number of failed attempts of clients attempting to connect
@@ -91,6 +120,31 @@ public class VirtualClientManager {
 	 */
 	private boolean serviceUnavailable = false;
 
+	/**
+	 * Flag indicating whether clients pick a server themselves from the
+	 * server table published by the load balancer, instead of requesting a
+	 * token for each connection.
+	 */
+	private boolean clientSideBalancing = false;
+
+	/**
+	 * The server table most recently received from the load balancer, shared
+	 * by all clients, or null if none has been received.
+	 */
+	private volatile ServerTable serverTable;
+
+	/**
+	 * Hands out server tokens fetched from the load balancer in batches, or
+	 * null if each client requests its own token.
+	 */
+	private TokenBroker tokenBroker;
+
+	/**
+	 * Holds idle connections to the load balancer and name service for reuse
+	 * by all clients, or null if each exchange uses a new connection.
+	 */
+	private ConnectionPool connectionPool;
+
 	/**
 	 * Creates a VirtualClientManager with encapsulated functionality for
 	 * initialising and handling a collection of {@link RunnableClientProcess}
@@ -178,7 +232,140 @@ public class VirtualClientManager {
 	public void incrementTotalResponsesReceived() {
 		totalResponsesReceived.incrementAndGet();
 	}
+
+	/**
+	 * Each {@link RunnableClientProcess} calls this method when a response is
+	 * matched to the request it answers.
+	 * 
+	 * @param latencyNanos
+	 *            the time between the request being sent and its response
+	 *            being received, in nanoseconds
+	 */
+	public void recordResponseLatency(long latencyNanos) {
+		totalResponseLatencyNanos.addAndGet(latencyNanos);
+		latencySampleCount.incrementAndGet();
+		synchronized (responseLatencyP90) {
+			responseLatencyP90.add(latencyNanos);
+			responseLatencyP99.add(latencyNanos);
+		}
+	}
+
+	/**
+	 * @return the mean time, in milliseconds, between a request being sent
+	 *         and its response being received, or 0 if no responses have been
+	 *         received.
+	 */
+	public double getAverageResponseLatencyMillis() {
+		int sampleCount = latencySampleCount.get();
+		if (sampleCount == 0) {
+			return 0;
+		}
+		return totalResponseLatencyNanos.get() / (sampleCount * 1000000.0);
+	}
+
+	/**
+	 * @return the estimated 90th percentile of the time, in milliseconds,
+	 *         between a request being sent and its response being received,
+	 *         or 0 if no responses have been received.
+	 */
+	public double getResponseLatencyP90Millis() {
+		synchronized (responseLatencyP90) {
+			return toMillis(responseLatencyP90.getQuantile());
+		}
+	}
+
+	/**
+	 * @return the estimated 99th percentile of the time, in milliseconds,
+	 *         between a request being sent and its response being received,
+	 *         or 0 if no responses have been received.
+	 */
+	public double getResponseLatencyP99Millis() {
+		synchronized (responseLatencyP90) {
+			return toMillis(responseLatencyP99.getQuantile());
+		}
+	}
+
+	/**
+	 * Converts a latency estimate in nanoseconds to milliseconds, treating no
+	 * estimate (NaN) as 0.
+	 */
+	private static double toMillis(double latencyNanos) {
+		return Double.isNaN(latencyNanos) ? 0 : latencyNanos / 1000000.0;
+	}
 	
+	/**
+	 * @param clientSideBalancing
+	 *            true if clients should pick a server themselves from the
+	 *            server table published by the load balancer, or false to
+	 *            request a token for each connection
+	 */
+	public void setClientSideBalancing(boolean clientSideBalancing) {
+		this.clientSideBalancing = clientSideBalancing;
+	}
+
+	/**
+	 * @return true if clients pick a server themselves from the server table
+	 *         published by the load balancer.
+	 */
+	public boolean isClientSideBalancing() {
+		return clientSideBalancing;
+	}
+
+	/**
+	 * @param tokenBroker
+	 *            the {@link TokenBroker} that clients take server tokens from,
+	 *            or null if each client should request its own token
+	 */
+	public void setTokenBroker(TokenBroker tokenBroker) {
+		this.tokenBroker = tokenBroker;
+	}
+
+	/**
+	 * @return the {@link TokenBroker} that clients take server tokens from,
+	 *         or null if each client requests its own token.
+	 */
+	public TokenBroker getTokenBroker() {
+		return tokenBroker;
+	}
+
+	/**
+	 * @param connectionPool
+	 *            the {@link ConnectionPool} that clients take connections to
+	 *            the load balancer and name service from, or null if each
+	 *            exchange should use a new connection
+	 */
+	public void setConnectionPool(ConnectionPool connectionPool) {
+		this.connectionPool = connectionPool;
+	}
+
+	/**
+	 * @return the {@link ConnectionPool} that clients take connections to the
+	 *         load balancer and name service from, or null if each exchange
+	 *         uses a new connection.
+	 */
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * @return the server table most recently received from the load balancer,
+	 *         or null if none has been received.
+	 */
+	public ServerTable getServerTable() {
+		return serverTable;
+	}
+
+	/**
+	 * Each {@link RunnableClientProcess} calls this method when it receives a
+	 * new version of the server table, so that other clients can use it.
+	 * 
+	 * @param serverTable
+	 *            the server table received from the load balancer
+	 */
+	public void setServerTable(ServerTable serverTable) {
+		this.serverTable = serverTable;
+	}
+
 	/**
 	 * Each {@link RunnableClientProcess} calls this method when they fail
 	 * to connect to the load balancer.
@@ -296,8 +483,8 @@ public class VirtualClientManager {
 					try {
 						while (nodeMonitorSocketChannel.read(buffer) > 0) {
 							buffer.flip();
-							LogMessageType messageType = LogMessageType.values()[buffer.get()];
-							if (messageType.equals(LogMessageType.CLIENT_UPDATE_SETTINGS)) {
+							LogMessageType messageType = ProtocolRegistry.decodeLogMessageType(buffer);
+							if (LogMessageType.CLIENT_UPDATE_SETTINGS.equals(messageType)) {
 								maxClients.set(buffer.getInt());
 								minSendFrequencyMs.set(buffer.getInt());
 								maxSendFrequencyMs.set(buffer.getInt());
@@ -336,8 +523,8 @@ public class VirtualClientManager {
 	}
 	
 	/**
-	 * Called by a client thread each time it successfully connects to a load balancer,
-	 * so downtime from a connection failure can be measured. 
+	 * Called by a client thread each time it successfully receives a server token
+	 * from a load balancer, so downtime from a connection failure can be measured. 
 	 */
 	public synchronized void notifyConnectionSuccess() {
 		if (serviceUnavailable) {
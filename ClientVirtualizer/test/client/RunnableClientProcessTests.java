@@ -10,19 +10,19 @@ import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import connectionUtils.AddressCodec;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
 
 /**
@@ -281,13 +281,12 @@ public class RunnableClientProcessTests {
 
 		SocketChannel acceptedClientSocket = mockServerSocketChannel.accept();
 
-		ByteBuffer buffer = ByteBuffer.allocate(81);
-		int bytesRead = acceptedClientSocket.read(buffer);
-		assertEquals(81, bytesRead);
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedClientSocket);
+		assertEquals(89, buffer.remaining());
 
-		buffer.flip();
 		MessageType messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.CLIENT_REQUEST, messageType);
+		assertEquals(1, buffer.getLong());
 
 		ArrayList<Long> clientRequest = new ArrayList<>();
 		while (buffer.hasRemaining()) {
@@ -340,18 +339,15 @@ public class RunnableClientProcessTests {
 			throw new SocketTimeoutException();
 		}
 		SocketChannel acceptedNameServiceSocketChannel = mockNameServiceSocketChannel.accept();
-		ByteBuffer buffer = ByteBuffer.allocate(1);
-
 		Selector readSelector = Selector.open();
 		acceptedNameServiceSocketChannel.configureBlocking(false);
 		acceptedNameServiceSocketChannel.register(readSelector, SelectionKey.OP_READ);
-		if (readSelector.select(1000) == 0) {
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedNameServiceSocketChannel, readSelector, 1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
-		int bytesRead = acceptedNameServiceSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
+		assertEquals(1, buffer.remaining());
 
-		buffer.flip();
 		MessageType messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.HOST_ADDR_REQUEST, messageType);
 
@@ -393,21 +389,16 @@ public class RunnableClientProcessTests {
 			throw new SocketTimeoutException();
 		}
 		SocketChannel acceptedNameServiceSocketChannel = mockNameServiceSocketChannel.accept();
-		ByteBuffer buffer = ByteBuffer.allocate(1);
+		FrameDecoder frameDecoder = new FrameDecoder();
+		ByteBuffer buffer = frameDecoder.readFrame(acceptedNameServiceSocketChannel);
+		assertEquals(1, buffer.remaining());
 
-		int bytesRead = acceptedNameServiceSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
-
-		buffer.flip();
 		MessageType messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.HOST_ADDR_REQUEST, messageType);
 
-		buffer.clear();
-
-		bytesRead = acceptedNameServiceSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
+		buffer = frameDecoder.readFrame(acceptedNameServiceSocketChannel);
+		assertEquals(1, buffer.remaining());
 
-		buffer.flip();
 		messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.HOST_ADDR_REQUEST, messageType);
 
@@ -441,29 +432,23 @@ public class RunnableClientProcessTests {
 			throw new SocketTimeoutException();
 		}
 		SocketChannel acceptedNameServiceSocketChannel = mockNameServiceSocketChannel.accept();
-		ByteBuffer buffer = ByteBuffer.allocate(17);
-
 		Selector nameServiceReadSelector = Selector.open();
 		acceptedNameServiceSocketChannel.configureBlocking(false);
 		acceptedNameServiceSocketChannel.register(nameServiceReadSelector, SelectionKey.OP_READ);
-		if (nameServiceReadSelector.select(1000) == 0) {
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedNameServiceSocketChannel, nameServiceReadSelector,
+				1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
-		acceptedNameServiceSocketChannel.read(buffer);
-		buffer.flip();
 		MessageType messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.HOST_ADDR_REQUEST, messageType);
 
 		// Send the client an address for the mocked load balancer
-		buffer.clear();
-		CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+		buffer = ByteBuffer.allocate(20);
 		buffer.put((byte) MessageType.HOST_ADDR_RESPONSE.getValue());
-		buffer.putInt(8002);
-		buffer.put(encoder.encode(CharBuffer.wrap("localhost")));
+		AddressCodec.encode(buffer, new InetSocketAddress("localhost", 8002));
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			acceptedNameServiceSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(acceptedNameServiceSocketChannel, buffer);
 		nameServiceAcceptSelector.close();
 		nameServiceReadSelector.close();
 		mockNameServiceSocketChannel.close();
@@ -481,30 +466,26 @@ public class RunnableClientProcessTests {
 			throw new SocketTimeoutException();
 		}
 		SocketChannel acceptedMockLoadBalancerSocketChannel = mockLoadBalancerSocketChannel.accept();
-		ByteBuffer loadBalancerBuffer = ByteBuffer.allocate(28);
-
 		acceptedMockLoadBalancerSocketChannel.configureBlocking(false);
 		Selector loadBalancerReadSelector = Selector.open();
 		acceptedMockLoadBalancerSocketChannel.register(loadBalancerReadSelector, SelectionKey.OP_READ);
-		if (loadBalancerReadSelector.select(1000) == 0) {
+		ByteBuffer loadBalancerBuffer = new FrameDecoder().readFrame(acceptedMockLoadBalancerSocketChannel,
+				loadBalancerReadSelector, 1000);
+		if (loadBalancerBuffer == null) {
 			throw new SocketTimeoutException();
 		}
-		int bytesRead = acceptedMockLoadBalancerSocketChannel.read(loadBalancerBuffer);
-		assertEquals(1, bytesRead);
+		assertEquals(1, loadBalancerBuffer.remaining());
 
-		loadBalancerBuffer.flip();
 		messageType = MessageType.values()[loadBalancerBuffer.get()];
 		assertEquals(MessageType.AVAILABLE_SERVER_REQUEST, messageType);
 
-		loadBalancerBuffer.clear();
+		loadBalancerBuffer = ByteBuffer.allocate(28);
 		loadBalancerBuffer.put((byte) MessageType.SERVER_TOKEN.getValue());
 		loadBalancerBuffer.putLong(System.currentTimeMillis() / 1000 + 50);
-		loadBalancerBuffer.putInt(mockServerSocketChannel.socket().getLocalPort());
-		loadBalancerBuffer.put(encoder.encode(CharBuffer.wrap("localhost")));
+		AddressCodec.encode(loadBalancerBuffer,
+				new InetSocketAddress("localhost", mockServerSocketChannel.socket().getLocalPort()));
 		loadBalancerBuffer.flip();
-		while (loadBalancerBuffer.hasRemaining()) {
-			acceptedMockLoadBalancerSocketChannel.write(loadBalancerBuffer);
-		}
+		FrameEncoder.write(acceptedMockLoadBalancerSocketChannel, loadBalancerBuffer);
 
 		try {
 			Thread.sleep(50);
@@ -550,7 +531,7 @@ public class RunnableClientProcessTests {
 			throw new SocketTimeoutException();
 		}
 		SocketChannel acceptedNameServiceSocketChannel = mockNameServiceSocketChannel.accept();
-		ByteBuffer buffer = ByteBuffer.allocate(17);
+		ByteBuffer buffer = ByteBuffer.allocate(20);
 
 		Selector nameServiceReadSelector = Selector.open();
 		acceptedNameServiceSocketChannel.configureBlocking(false);
@@ -561,14 +542,10 @@ public class RunnableClientProcessTests {
 
 		// Send the client an address for the mocked load balancer
 		buffer.clear();
-		CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
 		buffer.put((byte) MessageType.HOST_ADDR_RESPONSE.getValue());
-		buffer.putInt(loadBalancerPort);
-		buffer.put(encoder.encode(CharBuffer.wrap("localhost")));
+		AddressCodec.encode(buffer, new InetSocketAddress("localhost", loadBalancerPort));
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			acceptedNameServiceSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(acceptedNameServiceSocketChannel, buffer);
 		nameServiceAcceptSelector.close();
 		nameServiceReadSelector.close();
 		mockNameServiceSocketChannel.close();
@@ -599,12 +576,10 @@ public class RunnableClientProcessTests {
 		loadBalancerBuffer.clear();
 		loadBalancerBuffer.put((byte) MessageType.SERVER_TOKEN.getValue());
 		loadBalancerBuffer.putLong(System.currentTimeMillis() / 1000 + 50);
-		loadBalancerBuffer.putInt(mockServerSocketChannel.socket().getLocalPort());
-		loadBalancerBuffer.put(encoder.encode(CharBuffer.wrap("localhost")));
+		AddressCodec.encode(loadBalancerBuffer,
+				new InetSocketAddress("localhost", mockServerSocketChannel.socket().getLocalPort()));
 		loadBalancerBuffer.flip();
-		while (loadBalancerBuffer.hasRemaining()) {
-			acceptedMockLoadBalancerSocketChannel.write(loadBalancerBuffer);
-		}
+		FrameEncoder.write(acceptedMockLoadBalancerSocketChannel, loadBalancerBuffer);
 
 		loadBalancerAcceptSelector.close();
 		loadBalancerReadSelector.close();
@@ -0,0 +1,65 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link TokenBroker} class and its instance methods.
+ *         </p>
+ */
+public class TokenBrokerTests {
+
+	/**
+	 * Tests creating a {@link TokenBroker} with a batch size of 1. Should
+	 * throw an IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateTokenBroker_invalidBatchSize() {
+		new TokenBroker(1);
+	}
+
+	/**
+	 * Tests that the {@link TokenBroker} hands out each token once, in the
+	 * order they were added, and returns null once it is empty.
+	 */
+	@Test
+	public void testTokenBroker_takeToken() {
+		TokenBroker tokenBroker = new TokenBroker(10);
+		assertNull(tokenBroker.takeToken());
+
+		long tokenExpiry = TimeSource.deadlineAfterMillis(60000);
+		ServerToken token1 = new ServerToken(tokenExpiry, new InetSocketAddress("localhost", 8001));
+		ServerToken token2 = new ServerToken(tokenExpiry, new InetSocketAddress("localhost", 8002));
+		tokenBroker.addTokens(Arrays.asList(token1, token2));
+		assertEquals(2, tokenBroker.getTokenCount());
+		assertSame(token1, tokenBroker.takeToken());
+		assertSame(token2, tokenBroker.takeToken());
+		assertNull(tokenBroker.takeToken());
+	}
+
+	/**
+	 * Tests that the {@link TokenBroker} discards tokens that expired before
+	 * they were handed out.
+	 */
+	@Test
+	public void testTokenBroker_discardsExpiredTokens() {
+		TokenBroker tokenBroker = new TokenBroker(10);
+		ServerToken expiredToken = new ServerToken(TimeSource.deadlineAfterMillis(-1000),
+				new InetSocketAddress("localhost", 8001));
+		ServerToken validToken = new ServerToken(TimeSource.deadlineAfterMillis(60000),
+				new InetSocketAddress("localhost", 8002));
+		tokenBroker.addTokens(Arrays.asList(expiredToken, validToken));
+		assertSame(validToken, tokenBroker.takeToken());
+		assertEquals(0, tokenBroker.getTokenCount());
+	}
+}
@@ -8,16 +8,16 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 
 import org.junit.Test;
 
+import connectionUtils.AddressCodec;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
 
 /**
@@ -131,9 +131,9 @@ public class VirtualClientManagerTests {
 
 	/**
 	 * Tests that the {@link VirtualClientManager} is able to receive server
-	 * replies on its <code>SocketChannel</code>. Sends an arbitrary response to
-	 * the clientManager, then checks that its totalResponsesReceived has
-	 * incremented.
+	 * replies on its <code>SocketChannel</code>. Answers the first request sent
+	 * by the clientManager's client, then checks that its totalResponsesReceived
+	 * has incremented.
 	 * 
 	 * @throws IOException
 	 */
@@ -157,17 +157,19 @@ public class VirtualClientManagerTests {
 			e.printStackTrace();
 		}
 
-		ByteBuffer buffer = ByteBuffer.allocate(81);
-		buffer.clear();
+		// Answer the client's first request, echoing its request ID
+		ByteBuffer buffer = new FrameDecoder().readFrame(serverSideClientSocket);
+		buffer.get();
+		long requestID = buffer.getLong();
+		buffer = ByteBuffer.allocate(89);
 		buffer.put((byte) MessageType.SERVER_RESPONSE.getValue());
+		buffer.putLong(requestID);
 		for (int i = 0; i < 10; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
 		}
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			serverSideClientSocket.write(buffer);
-		}
+		FrameEncoder.write(serverSideClientSocket, buffer);
 
 		try {
 			Thread.sleep(500);
@@ -180,6 +182,36 @@ public class VirtualClientManagerTests {
 		mockServerSocketChannel.close();
 	}
 
+	/**
+	 * Tests that the {@link VirtualClientManager} averages the response
+	 * latencies recorded by its clients.
+	 */
+	@Test
+	public void testVirtualClientManager_getAverageResponseLatency() {
+		VirtualClientManager clientManager = new VirtualClientManager(1, 0, 0, 0, 0,
+				new InetSocketAddress("localhost", 8004));
+		assertEquals(0, clientManager.getAverageResponseLatencyMillis(), 0);
+		clientManager.recordResponseLatency(2000000);
+		clientManager.recordResponseLatency(4000000);
+		assertEquals(3, clientManager.getAverageResponseLatencyMillis(), 0.0001);
+	}
+
+	/**
+	 * Tests that the {@link VirtualClientManager} estimates the 90th and 99th
+	 * percentile response latencies recorded by its clients.
+	 */
+	@Test
+	public void testVirtualClientManager_getResponseLatencyPercentiles() {
+		VirtualClientManager clientManager = new VirtualClientManager(1, 0, 0, 0, 0,
+				new InetSocketAddress("localhost", 8004));
+		assertEquals(0, clientManager.getResponseLatencyP90Millis(), 0);
+		for (int i = 1; i <= 1000; i++) {
+			clientManager.recordResponseLatency((i * 7919 % 1000 + 1) * 1000000L);
+		}
+		assertEquals(900, clientManager.getResponseLatencyP90Millis(), 20);
+		assertEquals(990, clientManager.getResponseLatencyP99Millis(), 20);
+	}
+
 	/**
 	 * Tests the {@link VirtualClientManager}'s
 	 * <code>getTotalRequestsSent</code> method before client pool
@@ -329,7 +361,7 @@ public class VirtualClientManagerTests {
 			throw new SocketTimeoutException();
 		}
 		SocketChannel acceptedNameServiceSocketChannel = mockNameServiceSocketChannel.accept();
-		ByteBuffer buffer = ByteBuffer.allocate(17);
+		ByteBuffer buffer = ByteBuffer.allocate(20);
 
 		Selector nameServiceReadSelector = Selector.open();
 		acceptedNameServiceSocketChannel.configureBlocking(false);
@@ -340,14 +372,10 @@ public class VirtualClientManagerTests {
 
 		// Send the client an address for the mocked load balancer
 		buffer.clear();
-		CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
 		buffer.put((byte) MessageType.HOST_ADDR_RESPONSE.getValue());
-		buffer.putInt(loadBalancerPort);
-		buffer.put(encoder.encode(CharBuffer.wrap("localhost")));
+		AddressCodec.encode(buffer, new InetSocketAddress("localhost", loadBalancerPort));
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			acceptedNameServiceSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(acceptedNameServiceSocketChannel, buffer);
 		nameServiceAcceptSelector.close();
 		nameServiceReadSelector.close();
 		mockNameServiceSocketChannel.close();
@@ -378,12 +406,9 @@ public class VirtualClientManagerTests {
 		loadBalancerBuffer.clear();
 		loadBalancerBuffer.put((byte) MessageType.SERVER_TOKEN.getValue());
 		loadBalancerBuffer.putLong(System.currentTimeMillis() / 1000 + 50);
-		loadBalancerBuffer.putInt(serverPort);
-		loadBalancerBuffer.put(encoder.encode(CharBuffer.wrap("localhost")));
+		AddressCodec.encode(loadBalancerBuffer, new InetSocketAddress("localhost", serverPort));
 		loadBalancerBuffer.flip();
-		while (loadBalancerBuffer.hasRemaining()) {
-			acceptedMockLoadBalancerSocketChannel.write(loadBalancerBuffer);
-		}
+		FrameEncoder.write(acceptedMockLoadBalancerSocketChannel, loadBalancerBuffer);
 
 		loadBalancerAcceptSelector.close();
 		loadBalancerReadSelector.close();
@@ -0,0 +1,216 @@
+package connectionUtils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Writes socket addresses into messages in a compact binary form and
+ *         reads them back. Each address is a family byte, followed by the raw
+ *         address bytes (4 for IPv4, 16 for IPv6) and the port as an unsigned
+ *         short. An address that has not been resolved is sent as its host
+ *         name instead (a length byte followed by the UTF-8 bytes), and a
+ *         missing address is sent as {@link #FAMILY_NONE} with a port of 0.
+ *         </p>
+ *         <p>
+ *         Decoded addresses are built directly from the raw bytes, so no DNS
+ *         lookup is made, and are cached so that repeatedly receiving the same
+ *         server in a token returns the same InetSocketAddress instance.
+ *         </p>
+ *
+ */
+public class AddressCodec {
+
+	/**
+	 * The family byte for a missing address.
+	 */
+	public static final byte FAMILY_NONE = 0;
+
+	/**
+	 * The family byte for an unresolved host name.
+	 */
+	public static final byte FAMILY_HOSTNAME = 1;
+
+	/**
+	 * The family byte for an IPv4 address.
+	 */
+	public static final byte FAMILY_IPV4 = 4;
+
+	/**
+	 * The family byte for an IPv6 address.
+	 */
+	public static final byte FAMILY_IPV6 = 6;
+
+	/**
+	 * The largest number of bytes an encoded address can take, which is that
+	 * of an unresolved host name of 255 bytes.
+	 */
+	public static final int MAX_ENCODED_LENGTH = 1 + 1 + 255 + 2;
+
+	/**
+	 * The largest number of decoded addresses kept in the cache. The cache is
+	 * cleared when it fills up, as the set of servers a client sees is
+	 * normally far smaller than this.
+	 */
+	private static final int MAX_CACHED_ADDRESSES = 1024;
+
+	/**
+	 * Decoded addresses, keyed by the IPv4 address and port packed into a
+	 * Long, or by the encoded bytes (as a ByteBuffer) for other families.
+	 */
+	private static final ConcurrentHashMap<Object, InetSocketAddress> addressCache = new ConcurrentHashMap<>();
+
+	/**
+	 * @param address
+	 *            the address to encode, or null
+	 * @return the number of bytes {@link #encode(ByteBuffer, InetSocketAddress)}
+	 *         will write for the address.
+	 */
+	public static int getEncodedLength(InetSocketAddress address) {
+		if (address == null) {
+			return 3;
+		}
+		InetAddress inetAddress = address.getAddress();
+		if (inetAddress == null) {
+			return 4 + getHostNameBytes(address).length;
+		}
+		return 3 + inetAddress.getAddress().length;
+	}
+
+	/**
+	 * Writes the given address into the buffer at its current position.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param address
+	 *            the address to write, or null if there is no address
+	 */
+	public static void encode(ByteBuffer buffer, InetSocketAddress address) {
+		if (address == null) {
+			buffer.put(FAMILY_NONE);
+			buffer.putShort((short) 0);
+			return;
+		}
+		InetAddress inetAddress = address.getAddress();
+		if (inetAddress == null) {
+			byte[] hostName = getHostNameBytes(address);
+			buffer.put(FAMILY_HOSTNAME);
+			buffer.put((byte) hostName.length);
+			buffer.put(hostName);
+		} else {
+			byte[] addressBytes = inetAddress.getAddress();
+			buffer.put(addressBytes.length == 4 ? FAMILY_IPV4 : FAMILY_IPV6);
+			buffer.put(addressBytes);
+		}
+		buffer.putShort((short) address.getPort());
+	}
+
+	/**
+	 * Reads an address written by {@link #encode(ByteBuffer, InetSocketAddress)}
+	 * from the buffer's current position.
+	 *
+	 * @param buffer
+	 *            the buffer to read from
+	 * @return the decoded address, or null if no address was sent, the port
+	 *         is 0 or the family byte is not recognised.
+	 * @throws java.nio.BufferUnderflowException
+	 *             if the buffer does not hold a complete address.
+	 */
+	public static InetSocketAddress decode(ByteBuffer buffer) {
+		byte family = buffer.get();
+		switch (family) {
+		case FAMILY_IPV4:
+			long ipv4Address = buffer.getInt() & 0xFFFFFFFFL;
+			int ipv4Port = buffer.getShort() & 0xFFFF;
+			if (ipv4Port == 0) {
+				return null;
+			}
+			Long ipv4Key = (ipv4Address << 16) | ipv4Port;
+			InetSocketAddress cachedAddress = addressCache.get(ipv4Key);
+			if (cachedAddress == null) {
+				byte[] addressBytes = ByteBuffer.allocate(4).putInt((int) ipv4Address).array();
+				cachedAddress = cacheAddress(ipv4Key, createAddress(addressBytes, ipv4Port));
+			}
+			return cachedAddress;
+		case FAMILY_IPV6:
+		case FAMILY_HOSTNAME:
+			int start = buffer.position();
+			int length = family == FAMILY_IPV6 ? 16 : (buffer.get() & 0xFF);
+			byte[] addressBytes = new byte[length];
+			buffer.get(addressBytes);
+			int port = buffer.getShort() & 0xFFFF;
+			if (port == 0) {
+				return null;
+			}
+			ByteBuffer key = ByteBuffer.allocate(buffer.position() - start + 1);
+			key.put(family);
+			key.put((ByteBuffer) buffer.duplicate().position(start).limit(buffer.position()));
+			key.flip();
+			cachedAddress = addressCache.get(key);
+			if (cachedAddress == null) {
+				if (family == FAMILY_IPV6) {
+					cachedAddress = createAddress(addressBytes, port);
+				} else {
+					cachedAddress = new InetSocketAddress(new String(addressBytes, Charset.forName("UTF-8")), port);
+				}
+				cachedAddress = cacheAddress(key, cachedAddress);
+			}
+			return cachedAddress;
+		case FAMILY_NONE:
+			buffer.getShort();
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Removes every address from the cache.
+	 */
+	public static void clearCache() {
+		addressCache.clear();
+	}
+
+	/**
+	 * Adds a decoded address to the cache, clearing it first if it is full,
+	 * and returns the address.
+	 */
+	private static InetSocketAddress cacheAddress(Object key, InetSocketAddress address) {
+		if (addressCache.size() >= MAX_CACHED_ADDRESSES) {
+			addressCache.clear();
+		}
+		addressCache.put(key, address);
+		return address;
+	}
+
+	/**
+	 * Builds a socket address from raw address bytes without a DNS lookup.
+	 */
+	private static InetSocketAddress createAddress(byte[] addressBytes, int port) {
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(addressBytes), port);
+		} catch (UnknownHostException e) {
+			// Only thrown for an illegal address length
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * @return the UTF-8 bytes of an unresolved address's host name, truncated
+	 *         to fit in a length byte.
+	 */
+	private static byte[] getHostNameBytes(InetSocketAddress address) {
+		byte[] hostName = address.getHostString().getBytes(Charset.forName("UTF-8"));
+		if (hostName.length > 255) {
+			byte[] truncatedHostName = new byte[255];
+			System.arraycopy(hostName, 0, truncatedHostName, 0, 255);
+			return truncatedHostName;
+		}
+		return hostName;
+	}
+}
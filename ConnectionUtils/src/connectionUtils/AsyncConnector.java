@@ -0,0 +1,200 @@
+package connectionUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Completes non-blocking connects for {@link ConnectNIO}. Every
+ *         connecting channel in the process is registered for
+ *         <code>OP_CONNECT</code> with a single selector, serviced by one
+ *         daemon thread, so a thread waiting for a connection sleeps on its
+ *         future rather than spinning on <code>finishConnect()</code>.
+ *         </p>
+ *         <p>
+ *         Futures are completed on the connector thread, so callbacks attached
+ *         to them should not block. A channel that fails to connect or times
+ *         out is closed before its future is completed exceptionally.
+ *         </p>
+ *
+ */
+class AsyncConnector implements Runnable {
+
+	/**
+	 * The connector shared by the process, created when it is first used.
+	 */
+	private static AsyncConnector instance;
+
+	/**
+	 * The selector that connecting channels are registered with.
+	 */
+	private Selector selector;
+
+	/**
+	 * Connects that have been started but not yet registered with the
+	 * selector, which may only be done by the connector thread without
+	 * contending with a blocked <code>select()</code>.
+	 */
+	private ConcurrentLinkedQueue<PendingConnect> pendingConnects = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * A connect in progress, attached to its channel's selection key.
+	 */
+	private static class PendingConnect {
+		private final SocketChannel socketChannel;
+		private final CompletableFuture<SocketChannel> future;
+		private final long timeoutEpoch;
+
+		private PendingConnect(SocketChannel socketChannel, CompletableFuture<SocketChannel> future,
+				long timeoutEpoch) {
+			this.socketChannel = socketChannel;
+			this.future = future;
+			this.timeoutEpoch = timeoutEpoch;
+		}
+	}
+
+	/**
+	 * @return the connector shared by the process, starting its thread if
+	 *         this is the first use.
+	 * @throws IOException
+	 *             if the selector cannot be opened.
+	 */
+	static synchronized AsyncConnector getInstance() throws IOException {
+		if (instance == null) {
+			AsyncConnector connector = new AsyncConnector();
+			connector.selector = Selector.open();
+			Thread connectorThread = new Thread(connector, "ConnectNIO-connector");
+			connectorThread.setDaemon(true);
+			connectorThread.start();
+			instance = connector;
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts connecting the given non-blocking channel to the remote address.
+	 *
+	 * @param socketChannel
+	 *            an open, unconnected, non-blocking channel
+	 * @param connectAddress
+	 *            the remote address to connect to
+	 * @param timeoutMillis
+	 *            the duration, in milliseconds, after which to give up
+	 * @return a future that is completed with the channel once it is
+	 *         connected, or exceptionally if the connect fails or times out.
+	 */
+	CompletableFuture<SocketChannel> connect(SocketChannel socketChannel, InetSocketAddress connectAddress,
+			int timeoutMillis) {
+		CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+		try {
+			if (socketChannel.connect(connectAddress)) {
+				future.complete(socketChannel);
+				return future;
+			}
+		} catch (IOException e) {
+			fail(new PendingConnect(socketChannel, future, 0), e);
+			return future;
+		}
+		pendingConnects.add(new PendingConnect(socketChannel, future, TimeSource.monotonicMillis() + timeoutMillis));
+		selector.wakeup();
+		return future;
+	}
+
+	@Override
+	public void run() {
+		List<PendingConnect> connected = new ArrayList<>();
+		while (true) {
+			try {
+				PendingConnect pendingConnect;
+				while ((pendingConnect = pendingConnects.poll()) != null) {
+					try {
+						pendingConnect.socketChannel.register(selector, SelectionKey.OP_CONNECT, pendingConnect);
+					} catch (ClosedChannelException e) {
+						fail(pendingConnect, e);
+					}
+				}
+
+				selector.select(getSelectTimeout());
+
+				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					pendingConnect = (PendingConnect) key.attachment();
+					try {
+						if (key.isValid() && pendingConnect.socketChannel.finishConnect()) {
+							key.cancel();
+							connected.add(pendingConnect);
+						}
+					} catch (IOException e) {
+						key.cancel();
+						fail(pendingConnect, e);
+					}
+				}
+
+				long currentTime = TimeSource.monotonicMillis();
+				for (SelectionKey key : selector.keys()) {
+					pendingConnect = (PendingConnect) key.attachment();
+					if (key.isValid() && (pendingConnect.future.isDone() || currentTime >= pendingConnect.timeoutEpoch)) {
+						key.cancel();
+						fail(pendingConnect, new SocketTimeoutException("Connect timed out"));
+					}
+				}
+
+				if (!connected.isEmpty()) {
+					// Deregister the cancelled keys before handing the channels
+					// over, so they can be switched to blocking mode
+					selector.selectNow();
+					for (PendingConnect connectedChannel : connected) {
+						if (!connectedChannel.future.complete(connectedChannel.socketChannel)) {
+							connectedChannel.socketChannel.close();
+						}
+					}
+					connected.clear();
+				}
+			} catch (IOException e) {
+				// e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return the time, in milliseconds, until the earliest pending connect
+	 *         times out, or 0 to wait indefinitely if there are none.
+	 */
+	private long getSelectTimeout() {
+		long earliestTimeout = Long.MAX_VALUE;
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid()) {
+				earliestTimeout = Math.min(earliestTimeout, ((PendingConnect) key.attachment()).timeoutEpoch);
+			}
+		}
+		if (earliestTimeout == Long.MAX_VALUE) {
+			return 0;
+		}
+		return Math.max(1, earliestTimeout - TimeSource.monotonicMillis());
+	}
+
+	/**
+	 * Closes the channel of a failed connect and completes its future with
+	 * the cause.
+	 */
+	private static void fail(PendingConnect pendingConnect, IOException cause) {
+		try {
+			pendingConnect.socketChannel.close();
+		} catch (IOException e) {
+		}
+		pendingConnect.future.completeExceptionally(cause);
+	}
+}
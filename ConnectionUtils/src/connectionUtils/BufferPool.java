@@ -0,0 +1,300 @@
+package connectionUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         A pool of direct ByteBuffers shared by every component in the
+ *         process. Heap buffers are copied into a temporary direct buffer by
+ *         the JDK on every channel read or write, so the message buffers used
+ *         on hot paths are taken from here instead and handed back once the
+ *         message has been written or handled. Each buffer is sized to one of
+ *         a fixed set of power-of-two size classes, from
+ *         {@link #MIN_SIZE_CLASS} to {@link #MAX_SIZE_CLASS}; larger requests
+ *         are allocated directly and never pooled.
+ *         </p>
+ *         <p>
+ *         Released buffers are first kept in a small cache belonging to the
+ *         releasing thread, so a thread that handles one message at a time
+ *         reuses the same buffers without any synchronisation. When that cache
+ *         is full they overflow into a bounded queue shared by all threads,
+ *         and anything beyond that is left for the garbage collector.
+ *         </p>
+ *         <p>
+ *         Leak detection can be turned on for tests, either with
+ *         {@link #setLeakDetectionEnabled(boolean)} or by starting the JVM
+ *         with <code>-DbufferPool.leakDetection=true</code>. Every buffer
+ *         acquired while it is on is tracked (along with where it was
+ *         acquired) until it is released, and releasing a buffer twice is
+ *         reported instead of corrupting the pool.
+ *         </p>
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * The size in bytes of the smallest size class.
+	 */
+	public static final int MIN_SIZE_CLASS = 64;
+
+	/**
+	 * The size in bytes of the largest size class. Buffers larger than this
+	 * are not pooled.
+	 */
+	public static final int MAX_SIZE_CLASS = 64 * 1024;
+
+	/**
+	 * The number of size classes, one for each power of two from
+	 * {@link #MIN_SIZE_CLASS} to {@link #MAX_SIZE_CLASS}.
+	 */
+	private static final int SIZE_CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE_CLASS)
+			- Integer.numberOfTrailingZeros(MIN_SIZE_CLASS) + 1;
+
+	/**
+	 * The maximum number of buffers of each size class held in a single
+	 * thread's cache.
+	 */
+	private static final int THREAD_CACHE_SIZE = 8;
+
+	/**
+	 * The maximum number of buffers of each size class held in the shared
+	 * queue.
+	 */
+	private static final int SHARED_POOL_SIZE = 64;
+
+	/**
+	 * Each thread's cache of released buffers, indexed by size class.
+	 */
+	private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		protected ArrayDeque<ByteBuffer>[] initialValue() {
+			ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASS_COUNT];
+			for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+				caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+			}
+			return caches;
+		}
+	};
+
+	/**
+	 * The buffers shared between threads, indexed by size class.
+	 */
+	private static final ConcurrentLinkedQueue<ByteBuffer>[] sharedPools = createSharedPools();
+
+	/**
+	 * The number of buffers in each shared queue, since
+	 * <code>ConcurrentLinkedQueue.size()</code> is not constant time.
+	 */
+	private static final AtomicInteger[] sharedPoolSizes = new AtomicInteger[SIZE_CLASS_COUNT];
+
+	static {
+		for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+			sharedPoolSizes[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * The number of buffers that have been acquired.
+	 */
+	private static final AtomicLong acquiredCount = new AtomicLong();
+
+	/**
+	 * The number of acquired buffers that had to be newly allocated rather
+	 * than reused.
+	 */
+	private static final AtomicLong allocatedCount = new AtomicLong();
+
+	/**
+	 * True if acquired buffers should be tracked until they are released.
+	 */
+	private static volatile boolean leakDetectionEnabled = Boolean.getBoolean("bufferPool.leakDetection");
+
+	/**
+	 * The buffers that have been acquired but not yet released while leak
+	 * detection is on, mapped to the point at which they were acquired.
+	 * Buffers are compared by identity, as ByteBuffer's own equals compares
+	 * contents.
+	 */
+	private static final Map<ByteBuffer, Throwable> outstandingBuffers = new IdentityHashMap<>();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ConcurrentLinkedQueue<ByteBuffer>[] createSharedPools() {
+		ConcurrentLinkedQueue<ByteBuffer>[] pools = new ConcurrentLinkedQueue[SIZE_CLASS_COUNT];
+		for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+			pools[i] = new ConcurrentLinkedQueue<>();
+		}
+		return pools;
+	}
+
+	/**
+	 * Takes a direct buffer of at least the given size from the pool,
+	 * allocating a new one if none is free. The buffer is cleared and its
+	 * limit set to <code>size</code>, so it can be used exactly like
+	 * <code>ByteBuffer.allocate(size)</code>. It should be handed back with
+	 * {@link #release(ByteBuffer)} once it is no longer needed.
+	 *
+	 * @param size
+	 *            the number of bytes needed
+	 * @return a direct buffer with <code>size</code> bytes remaining.
+	 * @throws IllegalArgumentException
+	 *             if the size is negative.
+	 */
+	public static ByteBuffer acquire(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Buffer size must not be negative.");
+
+		acquiredCount.incrementAndGet();
+		ByteBuffer buffer = null;
+		int sizeClass = getSizeClass(size);
+		if (sizeClass != -1) {
+			buffer = threadCaches.get()[sizeClass].pollLast();
+			if (buffer == null) {
+				buffer = sharedPools[sizeClass].poll();
+				if (buffer != null) {
+					sharedPoolSizes[sizeClass].decrementAndGet();
+				}
+			}
+		}
+		if (buffer == null) {
+			allocatedCount.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(sizeClass == -1 ? size : MIN_SIZE_CLASS << sizeClass);
+		}
+		buffer.clear();
+		buffer.limit(size);
+
+		if (leakDetectionEnabled) {
+			synchronized (outstandingBuffers) {
+				outstandingBuffers.put(buffer, new Throwable("Buffer of " + size + " bytes acquired here"));
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Hands a buffer back to the pool so that it can be reused. The buffer
+	 * (and any slice or duplicate of it) must not be used again by the
+	 * caller. Heap buffers, buffers larger than the largest size class and
+	 * null are ignored, so it is safe to release any buffer that may have
+	 * come from {@link #acquire(int)}. A slice or duplicate must never be
+	 * released in place of the buffer it was created from.
+	 *
+	 * @param buffer
+	 *            the buffer to release
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		if (leakDetectionEnabled) {
+			synchronized (outstandingBuffers) {
+				if (outstandingBuffers.remove(buffer) == null) {
+					System.out.println("BufferPool: released a buffer that was not acquired or was already released.");
+					new Throwable("Buffer released here").printStackTrace(System.out);
+					return;
+				}
+			}
+		}
+		int capacity = buffer.capacity();
+		int sizeClass = getSizeClass(capacity);
+		if (sizeClass == -1 || MIN_SIZE_CLASS << sizeClass != capacity) {
+			return;
+		}
+		ArrayDeque<ByteBuffer> threadCache = threadCaches.get()[sizeClass];
+		if (threadCache.size() < THREAD_CACHE_SIZE) {
+			threadCache.addLast(buffer);
+		} else if (sharedPoolSizes[sizeClass].incrementAndGet() <= SHARED_POOL_SIZE) {
+			sharedPools[sizeClass].offer(buffer);
+		} else {
+			sharedPoolSizes[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the index of the smallest size class that can hold
+	 *         <code>size</code> bytes, or -1 if it is larger than
+	 *         {@link #MAX_SIZE_CLASS}.
+	 */
+	private static int getSizeClass(int size) {
+		if (size > MAX_SIZE_CLASS) {
+			return -1;
+		}
+		if (size <= MIN_SIZE_CLASS) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE_CLASS);
+	}
+
+	/**
+	 * Turns leak detection on or off. Turning it off (or on again) forgets
+	 * any buffers that were being tracked.
+	 *
+	 * @param enabled
+	 *            true to track acquired buffers until they are released
+	 */
+	public static void setLeakDetectionEnabled(boolean enabled) {
+		synchronized (outstandingBuffers) {
+			outstandingBuffers.clear();
+			leakDetectionEnabled = enabled;
+		}
+	}
+
+	/**
+	 * @return true if acquired buffers are being tracked until they are
+	 *         released.
+	 */
+	public static boolean isLeakDetectionEnabled() {
+		return leakDetectionEnabled;
+	}
+
+	/**
+	 * @return the number of buffers acquired since leak detection was turned
+	 *         on that have not yet been released, or 0 if it is off.
+	 */
+	public static int getOutstandingBufferCount() {
+		synchronized (outstandingBuffers) {
+			return outstandingBuffers.size();
+		}
+	}
+
+	/**
+	 * Prints where each buffer that has not been released was acquired.
+	 *
+	 * @return the points at which the unreleased buffers were acquired, or
+	 *         an empty list if leak detection is off.
+	 */
+	public static List<Throwable> reportLeaks() {
+		List<Throwable> leaks;
+		synchronized (outstandingBuffers) {
+			leaks = new ArrayList<>(outstandingBuffers.values());
+		}
+		for (Throwable leak : leaks) {
+			leak.printStackTrace(System.out);
+		}
+		return leaks;
+	}
+
+	/**
+	 * @return the number of buffers that have been acquired.
+	 */
+	public static long getAcquiredCount() {
+		return acquiredCount.get();
+	}
+
+	/**
+	 * @return the number of acquired buffers that had to be newly allocated
+	 *         rather than reused from the pool.
+	 */
+	public static long getAllocatedCount() {
+		return allocatedCount.get();
+	}
+}
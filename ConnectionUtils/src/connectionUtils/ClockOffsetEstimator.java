@@ -0,0 +1,141 @@
+package connectionUtils;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Estimates the offset between this node's wall clock and a remote
+ *         node's, in the same way as NTP, from timestamps piggybacked on an
+ *         existing request-response exchange. For each exchange, the
+ *         requester records when it sent the request (t0) and received the
+ *         response (t3), and the responder reports when it received the
+ *         request (t1) and sent the response (t2). Assuming the network
+ *         delay is the same in each direction, the remote clock is ahead of
+ *         the local clock by <code>((t1 - t0) + (t2 - t3)) / 2</code>, with an
+ *         error of at most half the round trip delay
+ *         <code>(t3 - t0) - (t2 - t1)</code>.
+ *         </p>
+ *         <p>
+ *         As queueing delay is rarely symmetric, the estimate given is that
+ *         of the sample with the shortest round trip among the most recent
+ *         samples, which is the least affected by queueing.
+ *         </p>
+ *         <p>
+ *         The estimate is diagnostic: it shows how far apart nodes' clocks
+ *         are, e.g. when lining up their logs, but no component relies on it,
+ *         as deadlines never cross node boundaries (see {@link TimeSource}).
+ *         </p>
+ *
+ */
+public class ClockOffsetEstimator {
+
+	/**
+	 * The offset of each recent sample, in milliseconds, in a circular
+	 * buffer.
+	 */
+	private final long[] offsets;
+
+	/**
+	 * The round trip delay of each recent sample, in milliseconds.
+	 */
+	private final long[] delays;
+
+	/**
+	 * The number of samples that have been added.
+	 */
+	private long sampleCount = 0;
+
+	/**
+	 * Creates a new ClockOffsetEstimator.
+	 *
+	 * @param windowSize
+	 *            the number of most recent samples to choose the estimate from
+	 * @throws IllegalArgumentException
+	 *             if the window size is less than 1.
+	 */
+	public ClockOffsetEstimator(int windowSize) {
+		if (windowSize < 1)
+			throw new IllegalArgumentException("Window size must be at least 1.");
+
+		offsets = new long[windowSize];
+		delays = new long[windowSize];
+	}
+
+	/**
+	 * Adds the timestamps of a completed exchange, all as wall clock Unix
+	 * milliseconds. A sample whose round trip delay comes out negative (i.e.
+	 * the responder took longer than the whole exchange, because one of the
+	 * clocks was changed) is ignored.
+	 *
+	 * @param requestSentMillis
+	 *            the local time the request was sent (t0)
+	 * @param requestReceivedMillis
+	 *            the remote time the request was received (t1)
+	 * @param responseSentMillis
+	 *            the remote time the response was sent (t2)
+	 * @param responseReceivedMillis
+	 *            the local time the response was received (t3)
+	 */
+	public synchronized void addSample(long requestSentMillis, long requestReceivedMillis, long responseSentMillis,
+			long responseReceivedMillis) {
+		long delay = (responseReceivedMillis - requestSentMillis) - (responseSentMillis - requestReceivedMillis);
+		if (delay < 0) {
+			return;
+		}
+		int index = (int) (sampleCount % offsets.length);
+		offsets[index] = ((requestReceivedMillis - requestSentMillis) + (responseSentMillis - responseReceivedMillis))
+				/ 2;
+		delays[index] = delay;
+		sampleCount++;
+	}
+
+	/**
+	 * @return true if at least one sample has been added.
+	 */
+	public synchronized boolean hasEstimate() {
+		return sampleCount > 0;
+	}
+
+	/**
+	 * @return the number of milliseconds that the remote clock is ahead of
+	 *         the local clock (negative if it is behind), or 0 if there are
+	 *         no samples.
+	 */
+	public synchronized long getOffsetMillis() {
+		int bestIndex = getBestIndex();
+		return bestIndex == -1 ? 0 : offsets[bestIndex];
+	}
+
+	/**
+	 * @return the round trip delay, in milliseconds, of the sample the
+	 *         offset is taken from, which bounds the error of the offset at
+	 *         half this value, or -1 if there are no samples.
+	 */
+	public synchronized long getRoundTripDelayMillis() {
+		int bestIndex = getBestIndex();
+		return bestIndex == -1 ? -1 : delays[bestIndex];
+	}
+
+	/**
+	 * @param remoteMillis
+	 *            a wall clock time reported by the remote node
+	 * @return the same instant on the local wall clock.
+	 */
+	public long toLocalMillis(long remoteMillis) {
+		return remoteMillis - getOffsetMillis();
+	}
+
+	/**
+	 * @return the index of the recent sample with the shortest round trip
+	 *         delay, or -1 if there are no samples.
+	 */
+	private int getBestIndex() {
+		int samples = (int) Math.min(sampleCount, offsets.length);
+		int bestIndex = -1;
+		for (int i = 0; i < samples; i++) {
+			if (bestIndex == -1 || delays[i] < delays[bestIndex]) {
+				bestIndex = i;
+			}
+		}
+		return bestIndex;
+	}
+}
@@ -1,10 +1,13 @@
 package connectionUtils;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * @author Joachim Utility class for all network communication functionality.
@@ -12,6 +15,11 @@ import java.nio.channels.SocketChannel;
  */
 public class ConnectNIO {
 
+	/**
+	 * The timeout, in milliseconds, used when connecting without one.
+	 */
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
 	/**
 	 * Creates a non-blocking {@link SocketChannel} using the given IP address
 	 * and connection port. Uses a default timeout value of 5 seconds to avoid
@@ -20,25 +28,11 @@ public class ConnectNIO {
 	 * @param connectAddress
 	 *            the remote address to connect to
 	 * @return a non-blocking {@link SocketChannel} that is connected to the
-	 *         remote address, or null if a connection error occurs.
+	 *         remote address, or closed if the connection failed or timed out,
+	 *         or null if the channel could not be opened.
 	 */
 	public static SocketChannel getNonBlockingSocketChannel(InetSocketAddress connectAddress) {
-		SocketChannel socketChannel = null;
-		try {
-			socketChannel = SocketChannel.open();
-			socketChannel.configureBlocking(false);
-			socketChannel.connect(connectAddress);
-			long connectAttemptStart = System.currentTimeMillis();
-			long timeoutEpoch = connectAttemptStart + 5000;
-			while (!socketChannel.finishConnect()) {
-				if (System.currentTimeMillis() > timeoutEpoch) {
-					break;
-				}
-			}
-		} catch (IOException e) {
-			//e.printStackTrace();
-		}
-		return socketChannel;
+		return getNonBlockingSocketChannel(connectAddress, DEFAULT_CONNECT_TIMEOUT_MILLIS, null);
 	}
 	
 	/**
@@ -50,27 +44,160 @@ public class ConnectNIO {
 	 * @param timeoutMillis
 	 *            the duration, in milliseconds, to timeout after attempting to connect
 	 * @return a non-blocking {@link SocketChannel} that is connected to the
-	 *         remote address, or null if a connection error occurs.
+	 *         remote address, or closed if the connection failed or timed out,
+	 *         or null if the channel could not be opened.
 	 */
 	public static SocketChannel getNonBlockingSocketChannel(InetSocketAddress connectAddress, int timeoutMillis) {
-		SocketChannel socketChannel = null;
+		return getNonBlockingSocketChannel(connectAddress, timeoutMillis, null);
+	}
+
+	/**
+	 * Creates a non-blocking {@link SocketChannel} using the given IP address
+	 * and connection port, with the local end of the connection bound to the
+	 * given local address. Used when several components share a host and
+	 * must be told apart by their IP address (e.g. 127.0.0.x loopback
+	 * addresses). The calling thread waits on {@link #connectAsync} rather
+	 * than polling the channel, and is not woken early by an interrupt.
+	 * 
+	 * @param connectAddress
+	 *            the remote address to connect to
+	 * @param timeoutMillis
+	 *            the duration, in milliseconds, to timeout after attempting to connect
+	 * @param localAddress
+	 *            the local address to bind the connection to, or null to let
+	 *            the system choose
+	 * @return a non-blocking {@link SocketChannel} that is connected to the
+	 *         remote address, or closed if the connection failed or timed out,
+	 *         or null if the channel could not be opened.
+	 */
+	public static SocketChannel getNonBlockingSocketChannel(InetSocketAddress connectAddress, int timeoutMillis,
+			InetAddress localAddress) {
+		SocketChannel socketChannel = connectUnixDomain(connectAddress, localAddress);
+		if (socketChannel != null) {
+			return socketChannel;
+		}
 		try {
-			socketChannel = SocketChannel.open();
+			socketChannel = openNonBlockingSocketChannel(localAddress);
+			AsyncConnector.getInstance().connect(socketChannel, connectAddress, timeoutMillis).join();
+		} catch (IOException | CompletionException e) {
+			//e.printStackTrace();
+			closeQuietly(socketChannel);
+		}
+		return socketChannel;
+	}
+
+	/**
+	 * Starts connecting a non-blocking {@link SocketChannel} to the given
+	 * address without waiting for the connection to be made. The connect is
+	 * completed by a selector shared by the process, so callers may either
+	 * wait on the returned future or attach a callback to it.
+	 * 
+	 * @param connectAddress
+	 *            the remote address to connect to
+	 * @param timeoutMillis
+	 *            the duration, in milliseconds, to timeout after attempting to connect
+	 * @return a future that is completed with the connected, non-blocking
+	 *         channel, or exceptionally (with the channel closed) if the
+	 *         connection fails or times out.
+	 */
+	public static CompletableFuture<SocketChannel> connectAsync(InetSocketAddress connectAddress, int timeoutMillis) {
+		return connectAsync(connectAddress, timeoutMillis, null);
+	}
+
+	/**
+	 * Starts connecting a non-blocking {@link SocketChannel} to the given
+	 * address, with the local end of the connection bound to the given local
+	 * address, without waiting for the connection to be made.
+	 * 
+	 * @param connectAddress
+	 *            the remote address to connect to
+	 * @param timeoutMillis
+	 *            the duration, in milliseconds, to timeout after attempting to connect
+	 * @param localAddress
+	 *            the local address to bind the connection to, or null to let
+	 *            the system choose
+	 * @return a future that is completed with the connected, non-blocking
+	 *         channel, or exceptionally (with the channel closed) if the
+	 *         connection fails or times out.
+	 */
+	public static CompletableFuture<SocketChannel> connectAsync(InetSocketAddress connectAddress, int timeoutMillis,
+			InetAddress localAddress) {
+		SocketChannel socketChannel = connectUnixDomain(connectAddress, localAddress);
+		if (socketChannel != null) {
+			return CompletableFuture.completedFuture(socketChannel);
+		}
+		try {
+			socketChannel = openNonBlockingSocketChannel(localAddress);
+			return AsyncConnector.getInstance().connect(socketChannel, connectAddress, timeoutMillis);
+		} catch (IOException e) {
+			closeQuietly(socketChannel);
+			CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	/**
+	 * Connects to the given address over a UNIX domain socket instead of TCP,
+	 * if {@link UnixDomainSockets} are enabled, the address is on this host
+	 * and something is listening on the socket file for its port. A UNIX
+	 * domain connect completes (or fails) immediately, so no timeout is
+	 * needed.
+	 * 
+	 * @return a connected non-blocking channel, or null if TCP should be used
+	 *         instead.
+	 */
+	private static SocketChannel connectUnixDomain(InetSocketAddress connectAddress, InetAddress localAddress) {
+		if (localAddress != null || !UnixDomainSockets.isEnabled()) {
+			return null;
+		}
+		UnixDomainSockets.UnixConnection unixConnection = UnixDomainSockets.openSocketChannel(connectAddress);
+		if (unixConnection == null) {
+			return null;
+		}
+		SocketChannel socketChannel = unixConnection.socketChannel;
+		try {
+			socketChannel.connect(unixConnection.socketAddress);
 			socketChannel.configureBlocking(false);
-			socketChannel.connect(connectAddress);
-			long connectAttemptStart = System.currentTimeMillis();
-			long timeoutEpoch = connectAttemptStart + timeoutMillis;
-			while (!socketChannel.finishConnect()) {
-				if (System.currentTimeMillis() > timeoutEpoch) {
-					break;
-				}
+			return socketChannel;
+		} catch (IOException e) {
+			// e.g. a socket file left behind by a component that has exited
+			closeQuietly(socketChannel);
+			return null;
+		}
+	}
+
+	/**
+	 * Opens a non-blocking {@link SocketChannel}, bound to the given local
+	 * address if there is one.
+	 */
+	private static SocketChannel openNonBlockingSocketChannel(InetAddress localAddress) throws IOException {
+		SocketChannel socketChannel = SocketChannel.open();
+		try {
+			socketChannel.configureBlocking(false);
+			if (localAddress != null) {
+				socketChannel.bind(new InetSocketAddress(localAddress, 0));
 			}
 		} catch (IOException e) {
-			//e.printStackTrace();
+			socketChannel.close();
+			throw e;
 		}
 		return socketChannel;
 	}
 
+	/**
+	 * Closes the given channel if it is not null, ignoring any error.
+	 */
+	private static void closeQuietly(SocketChannel socketChannel) {
+		if (socketChannel != null) {
+			try {
+				socketChannel.close();
+			} catch (IOException e) {
+				// e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Creates a blocking {@link SocketChannel} using the given IP address and
 	 * connection port.
@@ -83,24 +210,39 @@ public class ConnectNIO {
 	 *         address, or null if a connection error occurs.
 	 */
 	public static SocketChannel getBlockingSocketChannel(InetSocketAddress connectAddress) {
+		return getBlockingSocketChannel(connectAddress, null);
+	}
+
+	/**
+	 * Creates a blocking {@link SocketChannel} using the given IP address and
+	 * connection port, with the local end of the connection bound to the
+	 * given local address.
+	 * 
+	 * @param connectAddress
+	 *            the remote address to connect to
+	 * @param localAddress
+	 *            the local address to bind the connection to, or null to let
+	 *            the system choose
+	 * @return a blocking {@link SocketChannel} that is connected to the remote
+	 *         address, or null if a connection error occurs.
+	 */
+	public static SocketChannel getBlockingSocketChannel(InetSocketAddress connectAddress, InetAddress localAddress) {
 		SocketChannel socketChannel = null;
 		try {
 			socketChannel = SocketChannel.open();
 			socketChannel.configureBlocking(true);
+			if (localAddress != null) {
+				socketChannel.bind(new InetSocketAddress(localAddress, 0));
+			}
 			socketChannel.connect(connectAddress);
 		} catch (IOException e) {
 			// e.printStackTrace();
 		}
-		if (socketChannel.isConnected()) {
+		if (socketChannel != null && socketChannel.isConnected()) {
 			return socketChannel;
-		} else {
-			try {
-				socketChannel.close();
-			} catch (IOException e) {
-				// e.printStackTrace();
-			}
-			return null;
 		}
+		closeQuietly(socketChannel);
+		return null;
 	}
 
 	/**
@@ -114,16 +256,47 @@ public class ConnectNIO {
 	 *         (e.g. port already bound).
 	 */
 	public static ServerSocketChannel getServerSocketChannel(int acceptPort) {
+		return getServerSocketChannel(new InetSocketAddress(acceptPort));
+	}
+
+	/**
+	 * Creates a new, open {@link ServerSocketChannel} that will be bound to the
+	 * given local address, rather than to all local interfaces.
+	 * 
+	 * @param acceptAddress
+	 *            the local address and port to listen for incoming connection
+	 *            requests on
+	 * @return an open {@link ServerSocketChannel} that is bound to the
+	 *         specified address, or null if there is a problem binding to it
+	 *         (e.g. port already bound).
+	 */
+	public static ServerSocketChannel getServerSocketChannel(InetSocketAddress acceptAddress) {
 		ServerSocketChannel serverSocketChannel = null;
 		try {
 			serverSocketChannel = ServerSocketChannel.open();
-			serverSocketChannel.socket().bind(new InetSocketAddress(acceptPort));
+			serverSocketChannel.socket().bind(acceptAddress);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return serverSocketChannel;
 	}
 
+	/**
+	 * Creates a new, open {@link ServerSocketChannel} listening on the UNIX
+	 * domain socket that stands in for the given TCP port, so that components
+	 * on the same host can connect without going through TCP. Connections
+	 * accepted on it do not support <code>socket()</code>.
+	 * 
+	 * @param acceptPort
+	 *            the TCP port that this component also accepts connections on
+	 * @return an open {@link ServerSocketChannel} bound to the socket file, or
+	 *         null if {@link UnixDomainSockets} are not enabled or the socket
+	 *         cannot be bound.
+	 */
+	public static ServerSocketChannel getUnixDomainServerSocketChannel(int acceptPort) {
+		return UnixDomainSockets.openServerSocketChannel(acceptPort);
+	}
+
 	/**
 	 * Convenience method for checking if a port is available by using a
 	 * {@link Socket}. Method taken from: http://stackoverflow.com/a/13826145
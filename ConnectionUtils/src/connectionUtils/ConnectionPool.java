@@ -0,0 +1,293 @@
+package connectionUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Keeps idle connections to remote components, keyed by address, so
+ *         that short request-response exchanges (e.g. a client asking the
+ *         load balancer for a token) can reuse an open channel rather than
+ *         making a new TCP connection each time. Channels are handed out with
+ *         {@link #acquire(InetSocketAddress, int)}, which connects through
+ *         {@link ConnectNIO} when no idle channel is available, and handed
+ *         back with {@link #release(InetSocketAddress, SocketChannel)} once
+ *         the exchange is complete.
+ *         </p>
+ *         <p>
+ *         An idle channel is checked before it is reused: it must still be
+ *         open and connected, and a non-blocking read must find neither
+ *         end-of-stream nor unexpected data. Channels left idle for longer
+ *         than the idle timeout are closed by a background timer.
+ *         </p>
+ *
+ */
+public class ConnectionPool {
+
+	/**
+	 * The largest number of idle channels kept for each address.
+	 */
+	private int maxIdlePerAddress;
+
+	/**
+	 * The time, in milliseconds, after which an idle channel is closed.
+	 */
+	private long idleTimeoutMillis;
+
+	/**
+	 * The idle channels for each address, most recently released last.
+	 */
+	private final Map<InetSocketAddress, ArrayDeque<IdleConnection>> idleConnections = new HashMap<>();
+
+	/**
+	 * The timer that periodically closes channels that have been idle for too
+	 * long.
+	 */
+	private Timer evictionTimer;
+
+	/**
+	 * The number of channels handed out that were reused from the pool.
+	 */
+	private final AtomicLong reusedCount = new AtomicLong();
+
+	/**
+	 * The number of channels handed out that had to be newly connected.
+	 */
+	private final AtomicLong connectedCount = new AtomicLong();
+
+	/**
+	 * A channel waiting in the pool, with the time it was released.
+	 */
+	private static class IdleConnection {
+		private final SocketChannel socketChannel;
+		private final long releaseTime;
+
+		private IdleConnection(SocketChannel socketChannel, long releaseTime) {
+			this.socketChannel = socketChannel;
+			this.releaseTime = releaseTime;
+		}
+	}
+
+	/**
+	 * Creates a new ConnectionPool.
+	 *
+	 * @param maxIdlePerAddress
+	 *            the largest number of idle channels to keep for each address
+	 * @param idleTimeoutMillis
+	 *            the time, in milliseconds, after which an idle channel is
+	 *            closed
+	 * @throws IllegalArgumentException
+	 *             if either value is less than 1.
+	 */
+	public ConnectionPool(int maxIdlePerAddress, long idleTimeoutMillis) {
+		if (maxIdlePerAddress < 1)
+			throw new IllegalArgumentException("Maximum idle connections per address must be at least 1.");
+		if (idleTimeoutMillis < 1)
+			throw new IllegalArgumentException("Idle timeout must be at least 1ms.");
+
+		this.maxIdlePerAddress = maxIdlePerAddress;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		long evictionPeriod = Math.max(1, idleTimeoutMillis / 2);
+		evictionTimer = new Timer("ConnectionPool-eviction", true);
+		evictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				evictIdleConnections();
+			}
+		}, evictionPeriod, evictionPeriod);
+	}
+
+	/**
+	 * Takes a healthy idle channel to the given address from the pool, or
+	 * connects a new one if there is none.
+	 *
+	 * @param address
+	 *            the remote address to connect to
+	 * @param timeoutMillis
+	 *            the duration, in milliseconds, to wait for a new connection
+	 * @return a connected, non-blocking channel, or null if no connection
+	 *         could be made.
+	 */
+	public SocketChannel acquire(InetSocketAddress address, int timeoutMillis) {
+		try {
+			return acquireAsync(address, timeoutMillis).join();
+		} catch (CompletionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Takes a healthy idle channel to the given address from the pool, or
+	 * starts connecting a new one if there is none, without waiting for the
+	 * connection to be made.
+	 *
+	 * @param address
+	 *            the remote address to connect to
+	 * @param timeoutMillis
+	 *            the duration, in milliseconds, to wait for a new connection
+	 * @return a future that is completed with a connected, non-blocking
+	 *         channel, or exceptionally if no connection could be made.
+	 */
+	public CompletableFuture<SocketChannel> acquireAsync(InetSocketAddress address, int timeoutMillis) {
+		SocketChannel socketChannel;
+		while ((socketChannel = takeIdleConnection(address)) != null) {
+			if (isHealthy(socketChannel)) {
+				reusedCount.incrementAndGet();
+				return CompletableFuture.completedFuture(socketChannel);
+			}
+			closeQuietly(socketChannel);
+		}
+		connectedCount.incrementAndGet();
+		return ConnectNIO.connectAsync(address, timeoutMillis);
+	}
+
+	/**
+	 * Hands a channel back to the pool once an exchange on it is complete.
+	 * The channel must be non-blocking, must not be registered with a
+	 * selector that is still open and must have no unread data, otherwise it
+	 * should be closed instead. Channels that are no longer connected, or
+	 * that would take the address over its idle limit, are closed.
+	 *
+	 * @param address
+	 *            the remote address the channel was acquired for
+	 * @param socketChannel
+	 *            the channel to return
+	 */
+	public void release(InetSocketAddress address, SocketChannel socketChannel) {
+		if (socketChannel == null) {
+			return;
+		}
+		if (!socketChannel.isOpen() || !socketChannel.isConnected() || socketChannel.isBlocking()) {
+			closeQuietly(socketChannel);
+			return;
+		}
+		synchronized (idleConnections) {
+			ArrayDeque<IdleConnection> connections = idleConnections.get(address);
+			if (connections == null) {
+				connections = new ArrayDeque<>();
+				idleConnections.put(address, connections);
+			}
+			if (connections.size() < maxIdlePerAddress) {
+				connections.addLast(new IdleConnection(socketChannel, TimeSource.monotonicMillis()));
+				return;
+			}
+		}
+		closeQuietly(socketChannel);
+	}
+
+	/**
+	 * Closes every idle channel that has been in the pool for longer than the
+	 * idle timeout.
+	 */
+	public void evictIdleConnections() {
+		long evictBefore = TimeSource.monotonicMillis() - idleTimeoutMillis;
+		synchronized (idleConnections) {
+			Iterator<ArrayDeque<IdleConnection>> addressIterator = idleConnections.values().iterator();
+			while (addressIterator.hasNext()) {
+				ArrayDeque<IdleConnection> connections = addressIterator.next();
+				while (!connections.isEmpty() && connections.peekFirst().releaseTime < evictBefore) {
+					closeQuietly(connections.pollFirst().socketChannel);
+				}
+				if (connections.isEmpty()) {
+					addressIterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes every idle channel and stops the eviction timer. Channels that
+	 * are currently acquired are closed when they are released.
+	 */
+	public void close() {
+		evictionTimer.cancel();
+		synchronized (idleConnections) {
+			for (ArrayDeque<IdleConnection> connections : idleConnections.values()) {
+				for (IdleConnection connection : connections) {
+					closeQuietly(connection.socketChannel);
+				}
+			}
+			idleConnections.clear();
+			maxIdlePerAddress = 0;
+		}
+	}
+
+	/**
+	 * @param address
+	 *            the remote address
+	 * @return the number of idle channels held for the address.
+	 */
+	public int getIdleCount(InetSocketAddress address) {
+		synchronized (idleConnections) {
+			ArrayDeque<IdleConnection> connections = idleConnections.get(address);
+			return connections == null ? 0 : connections.size();
+		}
+	}
+
+	/**
+	 * @return the number of channels handed out that were reused from the
+	 *         pool.
+	 */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	/**
+	 * @return the number of channels handed out that had to be newly
+	 *         connected.
+	 */
+	public long getConnectedCount() {
+		return connectedCount.get();
+	}
+
+	/**
+	 * Removes the most recently released idle channel for the address.
+	 */
+	private SocketChannel takeIdleConnection(InetSocketAddress address) {
+		synchronized (idleConnections) {
+			ArrayDeque<IdleConnection> connections = idleConnections.get(address);
+			if (connections == null || connections.isEmpty()) {
+				return null;
+			}
+			return connections.pollLast().socketChannel;
+		}
+	}
+
+	/**
+	 * Checks that an idle channel can still be used: it must be open and
+	 * connected, and the remote end must neither have closed the connection
+	 * nor sent anything while it was idle.
+	 */
+	private static boolean isHealthy(SocketChannel socketChannel) {
+		if (!socketChannel.isOpen() || !socketChannel.isConnected() || socketChannel.isBlocking()) {
+			return false;
+		}
+		try {
+			return socketChannel.read(ByteBuffer.allocate(1)) == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the given channel, ignoring any error.
+	 */
+	private static void closeQuietly(SocketChannel socketChannel) {
+		try {
+			socketChannel.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -2,20 +2,24 @@ package connectionUtils;
 
 /**
  * This code is taken from: http://stackoverflow.com/a/9201081
- * Allows for an exponential moving average to be calculated
+ * Allows for an exponential moving average to be calculated, weighting each
+ * sample by a fixed alpha. Where samples arrive at irregular intervals, use
+ * {@link statistics.DecayingAverage}, which weights them by elapsed time.
  * @author Joachim
  *
  */
 public class ExponentialMovingAverage {
     private double alpha;
-    private Double oldValue;
+    private double oldValue;
+    private boolean hasValue = false;
     public ExponentialMovingAverage(double alpha) {
         this.alpha = alpha;
     }
 
     public double average(double value) {
-        if (oldValue == null) {
+        if (!hasValue) {
             oldValue = value;
+            hasValue = true;
             return value;
         }
         double newValue = oldValue + alpha * (value - oldValue);
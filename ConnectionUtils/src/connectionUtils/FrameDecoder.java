@@ -0,0 +1,248 @@
+package connectionUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.Selector;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Splits the bytes read from a channel back into the length-prefixed
+ *         frames written by a {@link FrameEncoder}. One decoder is kept per
+ *         channel: each read appends whatever the channel has to an
+ *         accumulation buffer, which may then hold any number of complete
+ *         frames followed by part of the next one. Split frames are kept
+ *         until the rest arrives, so coalesced and fragmented TCP segments
+ *         are both handled.
+ *         </p>
+ *         <p>
+ *         Complete frames are returned as slices of the accumulation buffer
+ *         rather than copies. A slice is only valid until the next call to
+ *         {@link #read(ReadableByteChannel)}, which may move or replace the
+ *         buffer's contents, so each frame should be handled before reading
+ *         again.
+ *         </p>
+ *         <p>
+ *         The accumulation buffer is a direct buffer taken from the
+ *         {@link BufferPool} on the first read, so the channel reads straight
+ *         into it without an intermediate copy. It should be handed back with
+ *         {@link #release()} once the channel is closed or the decoder is no
+ *         longer needed.
+ *         </p>
+ *
+ */
+public class FrameDecoder {
+
+	/**
+	 * The default initial size of the accumulation buffer.
+	 */
+	public static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+	/**
+	 * The default largest frame that will be accepted.
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20;
+
+	/**
+	 * The largest frame, in bytes, that will be accepted. Anything larger is
+	 * treated as a corrupt stream.
+	 */
+	private int maxFrameSize;
+
+	/**
+	 * The size of the accumulation buffer to acquire on the first read.
+	 */
+	private int initialCapacity;
+
+	/**
+	 * The accumulation buffer, kept in write mode: bytes between
+	 * <code>readIndex</code> and the buffer's position have been received
+	 * but not yet returned as frames. Null until the first read and after
+	 * the decoder has been released.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * The index in the buffer of the start of the next frame.
+	 */
+	private int readIndex = 0;
+
+	/**
+	 * Creates a new FrameDecoder with the default buffer size and frame size
+	 * limit.
+	 */
+	public FrameDecoder() {
+		this(DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Creates a new FrameDecoder.
+	 *
+	 * @param initialCapacity
+	 *            the initial size of the accumulation buffer, which grows as
+	 *            needed to hold the largest frame received
+	 * @param maxFrameSize
+	 *            the largest frame, in bytes, that will be accepted
+	 * @throws IllegalArgumentException
+	 *             if either value is less than 1.
+	 */
+	public FrameDecoder(int initialCapacity, int maxFrameSize) {
+		if (initialCapacity < 1 || maxFrameSize < 1)
+			throw new IllegalArgumentException("Buffer capacity and maximum frame size must be at least 1.");
+
+		this.maxFrameSize = maxFrameSize;
+		this.initialCapacity = Math.max(initialCapacity, FrameEncoder.HEADER_SIZE);
+	}
+
+	/**
+	 * Reads whatever the channel currently has into the accumulation buffer,
+	 * first discarding frames that have already been returned and growing
+	 * the buffer if the next frame would not fit. Invalidates any slices
+	 * returned by {@link #nextFrame()}.
+	 *
+	 * @param channel
+	 *            the channel to read from
+	 * @return the number of bytes read, or -1 if the channel has reached
+	 *         end-of-stream.
+	 * @throws IOException
+	 *             if the read fails.
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		if (buffer == null) {
+			buffer = BufferPool.acquire(initialCapacity);
+			buffer.limit(buffer.capacity());
+		}
+		if (readIndex > 0) {
+			buffer.limit(buffer.position());
+			buffer.position(readIndex);
+			buffer.compact();
+			readIndex = 0;
+		}
+		int requiredCapacity = buffer.position() + 1;
+		if (buffer.position() >= FrameEncoder.HEADER_SIZE) {
+			int frameLength = buffer.getInt(0);
+			if (frameLength >= 0 && frameLength <= maxFrameSize) {
+				requiredCapacity = Math.max(requiredCapacity, FrameEncoder.HEADER_SIZE + frameLength);
+			}
+		}
+		if (requiredCapacity > buffer.capacity()) {
+			ByteBuffer largerBuffer = BufferPool.acquire(Math.max(requiredCapacity, buffer.capacity() * 2));
+			largerBuffer.limit(largerBuffer.capacity());
+			buffer.flip();
+			largerBuffer.put(buffer);
+			BufferPool.release(buffer);
+			buffer = largerBuffer;
+		}
+		return channel.read(buffer);
+	}
+
+	/**
+	 * Returns the next complete frame that has been received, if any.
+	 *
+	 * @return the message held in the next frame (without its length
+	 *         prefix), as a slice of the accumulation buffer, or null if no
+	 *         complete frame has been received.
+	 * @throws IOException
+	 *             if the next frame's length is negative or larger than the
+	 *             maximum frame size, meaning the stream is corrupt.
+	 */
+	public ByteBuffer nextFrame() throws IOException {
+		if (buffer == null) {
+			return null;
+		}
+		int available = buffer.position() - readIndex;
+		if (available < FrameEncoder.HEADER_SIZE) {
+			return null;
+		}
+		int frameLength = buffer.getInt(readIndex);
+		if (frameLength < 0 || frameLength > maxFrameSize) {
+			throw new IOException("Invalid frame length: " + frameLength);
+		}
+		if (available < FrameEncoder.HEADER_SIZE + frameLength) {
+			return null;
+		}
+		ByteBuffer frame = buffer.duplicate();
+		frame.limit(readIndex + FrameEncoder.HEADER_SIZE + frameLength);
+		frame.position(readIndex + FrameEncoder.HEADER_SIZE);
+		readIndex += FrameEncoder.HEADER_SIZE + frameLength;
+		return frame.slice();
+	}
+
+	/**
+	 * Reads from a blocking channel until a complete frame has been received.
+	 *
+	 * @param channel
+	 *            the blocking channel to read from
+	 * @return the next frame, as described by {@link #nextFrame()}.
+	 * @throws EOFException
+	 *             if the channel reached end-of-stream first.
+	 * @throws IOException
+	 *             if the read fails or the stream is corrupt.
+	 */
+	public ByteBuffer readFrame(ReadableByteChannel channel) throws IOException {
+		ByteBuffer frame;
+		while ((frame = nextFrame()) == null) {
+			if (read(channel) == -1) {
+				throw new EOFException();
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Reads from a non-blocking channel until a complete frame has been
+	 * received or the timeout passes.
+	 *
+	 * @param channel
+	 *            the non-blocking channel to read from
+	 * @param readSelector
+	 *            a selector that the channel is registered with for
+	 *            <code>OP_READ</code>
+	 * @param timeoutMillis
+	 *            the longest time, in milliseconds, to wait for the frame
+	 * @return the next frame, as described by {@link #nextFrame()}, or null
+	 *         if the timeout passed first.
+	 * @throws EOFException
+	 *             if the channel reached end-of-stream first.
+	 * @throws IOException
+	 *             if the read fails or the stream is corrupt.
+	 */
+	public ByteBuffer readFrame(ReadableByteChannel channel, Selector readSelector, long timeoutMillis)
+			throws IOException {
+		long timeoutEpoch = TimeSource.monotonicMillis() + timeoutMillis;
+		ByteBuffer frame;
+		while ((frame = nextFrame()) == null) {
+			long remainingMillis = timeoutEpoch - TimeSource.monotonicMillis();
+			if (remainingMillis <= 0 || readSelector.select(remainingMillis) == 0) {
+				return null;
+			}
+			readSelector.selectedKeys().clear();
+			if (read(channel) == -1) {
+				throw new EOFException();
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * @return the number of bytes that have been received but not yet
+	 *         returned as part of a frame.
+	 */
+	public int getBufferedBytes() {
+		return buffer == null ? 0 : buffer.position() - readIndex;
+	}
+
+	/**
+	 * Hands the accumulation buffer back to the {@link BufferPool}, discarding
+	 * any partially received frame and invalidating any slices returned by
+	 * {@link #nextFrame()}. The decoder may still be used afterwards, in
+	 * which case a new buffer is acquired on the next read.
+	 */
+	public void release() {
+		BufferPool.release(buffer);
+		buffer = null;
+		readIndex = 0;
+	}
+}
@@ -0,0 +1,102 @@
+package connectionUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Wraps messages in length-prefixed frames so that the receiver can
+ *         find the message boundaries in a TCP byte stream. Each frame is the
+ *         length of the message in bytes (int) followed by the message itself
+ *         (which still starts with its {@link MessageType}). Several messages
+ *         can be framed into a single buffer and sent with one write.
+ *         </p>
+ *         <p>
+ *         Frames are read back with a {@link FrameDecoder}.
+ *         </p>
+ *
+ */
+public class FrameEncoder {
+
+	/**
+	 * The size in bytes of the length prefix written before each message.
+	 */
+	public static final int HEADER_SIZE = 4;
+
+	/**
+	 * Frames the given messages into a single buffer, in order. The messages'
+	 * positions are advanced past the bytes that were copied.
+	 *
+	 * @param messages
+	 *            the messages to frame, each flipped and ready to be read
+	 * @return a buffer holding one frame per message, flipped and ready to be
+	 *         written.
+	 */
+	public static ByteBuffer encode(ByteBuffer... messages) {
+		return encodeInto(ByteBuffer.allocate(getEncodedSize(messages)), messages);
+	}
+
+	/**
+	 * Frames the given messages into a single direct buffer taken from the
+	 * {@link BufferPool}, in order. The caller is responsible for releasing
+	 * the buffer once it has been written.
+	 *
+	 * @param messages
+	 *            the messages to frame, each flipped and ready to be read
+	 * @return a pooled buffer holding one frame per message, flipped and
+	 *         ready to be written.
+	 */
+	public static ByteBuffer encodePooled(ByteBuffer... messages) {
+		return encodeInto(BufferPool.acquire(getEncodedSize(messages)), messages);
+	}
+
+	/**
+	 * @return the number of bytes needed to frame the given messages.
+	 */
+	private static int getEncodedSize(ByteBuffer... messages) {
+		int frameSize = 0;
+		for (ByteBuffer message : messages) {
+			frameSize += HEADER_SIZE + message.remaining();
+		}
+		return frameSize;
+	}
+
+	/**
+	 * Writes a frame for each message into the given buffer and flips it.
+	 */
+	private static ByteBuffer encodeInto(ByteBuffer buffer, ByteBuffer... messages) {
+		for (ByteBuffer message : messages) {
+			buffer.putInt(message.remaining());
+			buffer.put(message);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Frames the given messages and writes them to the channel with as few
+	 * writes as the channel allows, blocking (or spinning, for a
+	 * non-blocking channel) until everything has been written. The frames
+	 * are built in a pooled direct buffer, so the JDK does not need to copy
+	 * them again before writing.
+	 *
+	 * @param channel
+	 *            the channel to write to
+	 * @param messages
+	 *            the messages to send, each flipped and ready to be read
+	 * @throws IOException
+	 *             if the write fails.
+	 */
+	public static void write(WritableByteChannel channel, ByteBuffer... messages) throws IOException {
+		ByteBuffer buffer = encodePooled(messages);
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
+}
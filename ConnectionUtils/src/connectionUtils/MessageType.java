@@ -14,12 +14,15 @@ public enum MessageType {
 	////////// CLIENT-SERVER MESSAGES //////////
 	/**
 	 * A request sent from a client process containing data to be processed by a
-	 * server.
+	 * server, preceded by an ID (long) chosen by the client.
 	 */
 	CLIENT_REQUEST(0),
 
 	/**
-	 * A processed response from the server to be sent to a client process.
+	 * A processed response from the server to be sent to a client process,
+	 * preceded by the ID of the request it answers. A server may process
+	 * several requests from a connection at once, so responses can arrive in
+	 * a different order to the requests.
 	 */
 	SERVER_RESPONSE(1),
 
@@ -43,25 +46,34 @@ public enum MessageType {
 
 	////////// SERVER LOAD MESSAGES //////////
 	/**
-	 * A request to the server for its current CPU load info.
+	 * A request to the server for its current CPU load info. May be followed
+	 * by the requester's wall clock time (long), which the server echoes in
+	 * its response to allow the offset between their clocks to be estimated.
 	 */
 	SERVER_CPU_REQUEST(5),
 
 	/**
-	 * A server response containing the given node's current CPU load.
+	 * A server response containing the given node's current CPU load. If the
+	 * request carried a time, it is followed by that time and the server's
+	 * wall clock times when it received the request and sent the response
+	 * (longs).
 	 */
 	SERVER_CPU_NOTIFY(6),
 
 	////////// CLIENT-LOAD BALANCER MESSAGES //////////
 	/**
 	 * A request to the primary load balancer for the connection details of an
-	 * available server.
+	 * available server. May be followed by a short giving the number of
+	 * tokens wanted, in which case the response is a
+	 * <code>SERVER_TOKEN_BATCH</code>.
 	 */
 	AVAILABLE_SERVER_REQUEST(7),
 
 	/**
-	 * A server token message containing the address of an available server to
-	 * use.
+	 * A server token message containing the lifetime of the token in
+	 * milliseconds (long), measured from when it is received, and the address
+	 * of an available server to use. A lifetime of 0 with no address means
+	 * that no server is available.
 	 */
 	SERVER_TOKEN(8),
 
@@ -103,7 +115,73 @@ public enum MessageType {
 	 * An election prompt either initialising an election or transporting the
 	 * sending node's election candidacy message.
 	 */
-	ELECTION_MESSAGE(14);
+	ELECTION_MESSAGE(14),
+
+	/**
+	 * A message sent periodically by each active load balancer when running in
+	 * active-active mode, registering (or renewing) its address with the name
+	 * service for the given lease duration. Clients are shared between all
+	 * load balancers holding a current lease.
+	 */
+	HOST_ADDR_LEASE(15),
+
+	/**
+	 * A datagram exchanged between load balancers to share the list of load
+	 * balancer nodes in the system, used to discover nodes that join or leave
+	 * without restarting the other nodes.
+	 */
+	MEMBERSHIP_GOSSIP(16),
+
+	/**
+	 * A message sent by a server to the active load balancer to add itself to
+	 * the pool of servers that clients are sent to.
+	 */
+	SERVER_REGISTER(17),
+
+	/**
+	 * A message sent by a server to the active load balancer to remove itself
+	 * from the pool of servers. The server is drained, i.e. no new tokens are
+	 * issued for it, and it is removed once its outstanding tokens expire.
+	 */
+	SERVER_DEREGISTER(18),
+
+	/**
+	 * A message sent by the active load balancer to a server after each CPU
+	 * load request, listing the least loaded of the other servers and their
+	 * loads. Used by an overloaded server to redirect clients itself.
+	 */
+	SERVER_PEER_HINTS(19),
+
+	/**
+	 * Sent by an overloaded server in place of a <code>SERVER_RESPONSE</code>,
+	 * containing the ID of the redirected request and naming a less loaded
+	 * server that the client should resend it to and use until its token
+	 * expires.
+	 */
+	CLIENT_REDIRECT(20),
+
+	/**
+	 * A request from a client to the active load balancer for the current
+	 * {@link ServerTable}, containing the version of the table that the client
+	 * already holds (or 0).
+	 */
+	SERVER_TABLE_REQUEST(21),
+
+	/**
+	 * The active load balancer's response to a
+	 * <code>SERVER_TABLE_REQUEST</code>, containing the current
+	 * {@link ServerTable} or, if the client's table is still current, just
+	 * its header.
+	 */
+	SERVER_TABLE(22),
+
+	/**
+	 * The active load balancer's response to an
+	 * <code>AVAILABLE_SERVER_REQUEST</code> that asks for more than one
+	 * token, containing a batch of server tokens to be handed out to
+	 * separate clients.
+	 */
+	SERVER_TOKEN_BATCH(23);
 
 	/**
 	 * Numerical value attributed to each enum that will be set as the first
@@ -0,0 +1,220 @@
+package connectionUtils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import logging.LogMessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Converts the type byte at the start of every received message back
+ *         into its {@link MessageType} or {@link LogMessageType}. The types
+ *         are held in tables indexed by their numerical value, built once, so
+ *         a lookup neither allocates (as <code>values()</code> does, cloning
+ *         the enum array on every call) nor throws for a byte that does not
+ *         name a type. An unknown type is returned as null, so that the
+ *         receiver can drop the frame and carry on reading from the
+ *         connection.
+ *         </p>
+ *         <p>
+ *         Each message decoded through {@link #decodeMessageType(ByteBuffer)}
+ *         or {@link #decodeLogMessageType(ByteBuffer)} is counted against its
+ *         type, and unknown types are counted separately, so a component can
+ *         report what it has received and whether any peer is sending
+ *         malformed messages.
+ *         </p>
+ *
+ */
+public class ProtocolRegistry {
+
+	/**
+	 * Each message type, at the index of its numerical value.
+	 */
+	private static final MessageType[] messageTypes = buildMessageTypeTable();
+
+	/**
+	 * Each log message type, at the index of its numerical value.
+	 */
+	private static final LogMessageType[] logMessageTypes = buildLogMessageTypeTable();
+
+	/**
+	 * The number of messages decoded of each type, indexed by numerical value.
+	 */
+	private static final AtomicLongArray messageCounts = new AtomicLongArray(messageTypes.length);
+
+	/**
+	 * The number of log messages decoded of each type, indexed by numerical
+	 * value.
+	 */
+	private static final AtomicLongArray logMessageCounts = new AtomicLongArray(logMessageTypes.length);
+
+	/**
+	 * The number of messages received with a type byte that is not a known
+	 * message type.
+	 */
+	private static final AtomicLong unknownMessageCount = new AtomicLong();
+
+	/**
+	 * The number of log messages received with a type byte that is not a
+	 * known log message type.
+	 */
+	private static final AtomicLong unknownLogMessageCount = new AtomicLong();
+
+	/**
+	 * Private constructor, as this class only has static methods.
+	 */
+	private ProtocolRegistry() {
+	}
+
+	/**
+	 * Reads the type byte at the buffer's position, advancing past it, and
+	 * counts the message against its type.
+	 *
+	 * @param buffer
+	 *            the received message, positioned at its type byte
+	 * @return the type of the message, or null if the byte is not a known
+	 *         message type, in which case the message should be dropped.
+	 * @throws java.nio.BufferUnderflowException
+	 *             if the buffer is empty.
+	 */
+	public static MessageType decodeMessageType(ByteBuffer buffer) {
+		int value = buffer.get() & 0xFF;
+		if (value >= messageTypes.length || messageTypes[value] == null) {
+			unknownMessageCount.incrementAndGet();
+			return null;
+		}
+		messageCounts.incrementAndGet(value);
+		return messageTypes[value];
+	}
+
+	/**
+	 * Reads the type byte at the buffer's position, advancing past it, and
+	 * counts the log message against its type.
+	 *
+	 * @param buffer
+	 *            the received log message, positioned at its type byte
+	 * @return the type of the log message, or null if the byte is not a known
+	 *         log message type, in which case the message should be dropped.
+	 * @throws java.nio.BufferUnderflowException
+	 *             if the buffer is empty.
+	 */
+	public static LogMessageType decodeLogMessageType(ByteBuffer buffer) {
+		int value = buffer.get() & 0xFF;
+		if (value >= logMessageTypes.length || logMessageTypes[value] == null) {
+			unknownLogMessageCount.incrementAndGet();
+			return null;
+		}
+		logMessageCounts.incrementAndGet(value);
+		return logMessageTypes[value];
+	}
+
+	/**
+	 * Looks up a message type without counting it, e.g. to inspect a message
+	 * that is waiting to be sent.
+	 *
+	 * @param value
+	 *            the type byte of the message
+	 * @return the message type with the given value, or null if there is
+	 *         none.
+	 */
+	public static MessageType getMessageType(int value) {
+		value &= 0xFF;
+		return value < messageTypes.length ? messageTypes[value] : null;
+	}
+
+	/**
+	 * Looks up a log message type without counting it.
+	 *
+	 * @param value
+	 *            the type byte of the log message
+	 * @return the log message type with the given value, or null if there is
+	 *         none.
+	 */
+	public static LogMessageType getLogMessageType(int value) {
+		value &= 0xFF;
+		return value < logMessageTypes.length ? logMessageTypes[value] : null;
+	}
+
+	/**
+	 * @param messageType
+	 *            the message type
+	 * @return the number of messages of the given type decoded by this
+	 *         process.
+	 */
+	public static long getMessageCount(MessageType messageType) {
+		return messageCounts.get(messageType.getValue());
+	}
+
+	/**
+	 * @param logMessageType
+	 *            the log message type
+	 * @return the number of log messages of the given type decoded by this
+	 *         process.
+	 */
+	public static long getLogMessageCount(LogMessageType logMessageType) {
+		return logMessageCounts.get(logMessageType.getValue());
+	}
+
+	/**
+	 * @return the number of messages dropped by this process because their
+	 *         type byte was not a known message type.
+	 */
+	public static long getUnknownMessageCount() {
+		return unknownMessageCount.get();
+	}
+
+	/**
+	 * @return the number of log messages dropped by this process because
+	 *         their type byte was not a known log message type.
+	 */
+	public static long getUnknownLogMessageCount() {
+		return unknownLogMessageCount.get();
+	}
+
+	/**
+	 * Sets every message counter back to 0.
+	 */
+	public static void resetCounts() {
+		for (int i = 0; i < messageCounts.length(); i++) {
+			messageCounts.set(i, 0);
+		}
+		for (int i = 0; i < logMessageCounts.length(); i++) {
+			logMessageCounts.set(i, 0);
+		}
+		unknownMessageCount.set(0);
+		unknownLogMessageCount.set(0);
+	}
+
+	/**
+	 * @return a table holding each message type at the index of its value.
+	 */
+	private static MessageType[] buildMessageTypeTable() {
+		int maxValue = 0;
+		for (MessageType messageType : MessageType.values()) {
+			maxValue = Math.max(maxValue, messageType.getValue());
+		}
+		MessageType[] table = new MessageType[maxValue + 1];
+		for (MessageType messageType : MessageType.values()) {
+			table[messageType.getValue()] = messageType;
+		}
+		return table;
+	}
+
+	/**
+	 * @return a table holding each log message type at the index of its
+	 *         value.
+	 */
+	private static LogMessageType[] buildLogMessageTypeTable() {
+		int maxValue = 0;
+		for (LogMessageType logMessageType : LogMessageType.values()) {
+			maxValue = Math.max(maxValue, logMessageType.getValue());
+		}
+		LogMessageType[] table = new LogMessageType[maxValue + 1];
+		for (LogMessageType logMessageType : LogMessageType.values()) {
+			table[logMessageType.getValue()] = logMessageType;
+		}
+		return table;
+	}
+}
@@ -0,0 +1,280 @@
+package connectionUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         A versioned snapshot of the servers that clients may use, each with
+ *         a weight given by the active load balancer's selection strategy.
+ *         Published by the load balancer in a <code>SERVER_TABLE</code>
+ *         message so that clients can pick a server themselves (in proportion
+ *         to its weight) instead of requesting a token for each connection.
+ *         The version only changes when the servers or their weights change,
+ *         so a client that already holds the current table is sent just the
+ *         header.
+ *         </p>
+ *         <p>
+ *         A table is encoded as the message type, the version (long), the
+ *         number of seconds it may be used for before it is refreshed (int)
+ *         and the number of entries (short), followed by each entry's weight
+ *         (byte) and server address, as written by {@link AddressCodec}. An
+ *         entry count of -1 means that the requester's table is still
+ *         current.
+ *         </p>
+ *
+ */
+public class ServerTable {
+
+	/**
+	 * The size in bytes of an encoded table with no entries, including the
+	 * message type.
+	 */
+	public static final int HEADER_SIZE = 15;
+
+	/**
+	 * The version of this table.
+	 */
+	private long version;
+
+	/**
+	 * The number of seconds that this table may be used for before it should
+	 * be refreshed.
+	 */
+	private int refreshSeconds;
+
+	/**
+	 * The addresses of the servers in this table.
+	 */
+	private List<InetSocketAddress> serverAddresses;
+
+	/**
+	 * The weight of each server, at the same index as its address.
+	 */
+	private List<Integer> weights;
+
+	/**
+	 * The sum of the weights of all servers.
+	 */
+	private int totalWeight = 0;
+
+	/**
+	 * The time, in milliseconds, at which this table was received (or
+	 * confirmed to be current).
+	 */
+	private long receivedTime = TimeSource.monotonicMillis();
+
+	/**
+	 * Creates a new ServerTable.
+	 *
+	 * @param version
+	 *            the version of the table
+	 * @param refreshSeconds
+	 *            the number of seconds that the table may be used for before
+	 *            it should be refreshed
+	 * @param serverAddresses
+	 *            the addresses of the servers
+	 * @param weights
+	 *            the weight of each server, at the same index as its address
+	 * @throws IllegalArgumentException
+	 *             if either list is null, the lists differ in size or a weight
+	 *             is outside the range 1 to 127.
+	 */
+	public ServerTable(long version, int refreshSeconds, List<InetSocketAddress> serverAddresses,
+			List<Integer> weights) {
+		if (serverAddresses == null || weights == null || serverAddresses.size() != weights.size())
+			throw new IllegalArgumentException("Server addresses and weights must be non-null and the same size.");
+		for (int weight : weights) {
+			if (weight < 1 || weight > Byte.MAX_VALUE)
+				throw new IllegalArgumentException("Server weights must be between 1 and " + Byte.MAX_VALUE + ".");
+			totalWeight += weight;
+		}
+
+		this.version = version;
+		this.refreshSeconds = refreshSeconds;
+		this.serverAddresses = Collections.unmodifiableList(new ArrayList<>(serverAddresses));
+		this.weights = Collections.unmodifiableList(new ArrayList<>(weights));
+	}
+
+	/**
+	 * @return the version of this table.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of seconds that this table may be used for before it
+	 *         should be refreshed.
+	 */
+	public int getRefreshSeconds() {
+		return refreshSeconds;
+	}
+
+	/**
+	 * @return the addresses of the servers in this table.
+	 */
+	public List<InetSocketAddress> getServerAddresses() {
+		return serverAddresses;
+	}
+
+	/**
+	 * @return the weight of each server, at the same index as its address.
+	 */
+	public List<Integer> getWeights() {
+		return weights;
+	}
+
+	/**
+	 * @return true if this table contains no servers.
+	 */
+	public boolean isEmpty() {
+		return serverAddresses.isEmpty();
+	}
+
+	/**
+	 * @return true if this table was received (or last confirmed to be
+	 *         current) more than <code>refreshSeconds</code> ago.
+	 */
+	public boolean isExpired() {
+		return TimeSource.monotonicMillis() - receivedTime >= refreshSeconds * 1000L;
+	}
+
+	/**
+	 * Marks this table as current again after the load balancer has
+	 * confirmed that its version has not changed.
+	 *
+	 * @param refreshSeconds
+	 *            the number of seconds that the table may now be used for
+	 */
+	public void renew(int refreshSeconds) {
+		this.refreshSeconds = refreshSeconds;
+		receivedTime = TimeSource.monotonicMillis();
+	}
+
+	/**
+	 * Picks a server at random, in proportion to the servers' weights.
+	 *
+	 * @return the address of the selected server, or null if this table is
+	 *         empty.
+	 */
+	public InetSocketAddress selectServer() {
+		if (serverAddresses.isEmpty()) {
+			return null;
+		}
+		int target = ThreadLocalRandom.current().nextInt(totalWeight);
+		for (int i = 0; i < serverAddresses.size(); i++) {
+			target -= weights.get(i);
+			if (target < 0) {
+				return serverAddresses.get(i);
+			}
+		}
+		return serverAddresses.get(serverAddresses.size() - 1);
+	}
+
+	/**
+	 * @return true if the given table has the same servers and weights as
+	 *         this one, in the same order.
+	 */
+	public boolean hasSameEntries(ServerTable serverTable) {
+		return serverTable != null && serverAddresses.equals(serverTable.serverAddresses)
+				&& weights.equals(serverTable.weights);
+	}
+
+	/**
+	 * @return this table encoded as a complete <code>SERVER_TABLE</code>
+	 *         message, ready to be written.
+	 */
+	public ByteBuffer encode() {
+		int messageSize = HEADER_SIZE;
+		for (InetSocketAddress serverAddress : serverAddresses) {
+			messageSize += 1 + AddressCodec.getEncodedLength(serverAddress);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(messageSize);
+		buffer.put((byte) MessageType.SERVER_TABLE.getValue());
+		buffer.putLong(version);
+		buffer.putInt(refreshSeconds);
+		buffer.putShort((short) serverAddresses.size());
+		for (int i = 0; i < serverAddresses.size(); i++) {
+			buffer.put((byte) (int) weights.get(i));
+			AddressCodec.encode(buffer, serverAddresses.get(i));
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @param version
+	 *            the version of the current table
+	 * @param refreshSeconds
+	 *            the number of seconds that the table may be used for before
+	 *            it should be refreshed
+	 * @return a complete <code>SERVER_TABLE</code> message, ready to be
+	 *         written, telling the requester that its table is still current.
+	 */
+	public static ByteBuffer encodeNotModified(long version, int refreshSeconds) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+		buffer.put((byte) MessageType.SERVER_TABLE.getValue());
+		buffer.putLong(version);
+		buffer.putInt(refreshSeconds);
+		buffer.putShort((short) -1);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads a table from a received <code>SERVER_TABLE</code> message. An
+	 * entry whose address cannot be decoded is left out.
+	 *
+	 * @param buffer
+	 *            the received message, positioned after the message type
+	 * @return the table, or null if the message says that the requester's
+	 *         table is still current.
+	 * @throws BufferUnderflowException
+	 *             if the message was not fully received.
+	 */
+	public static ServerTable decode(ByteBuffer buffer) {
+		long version = buffer.getLong();
+		int refreshSeconds = buffer.getInt();
+		int entryCount = buffer.getShort();
+		if (entryCount < 0) {
+			return null;
+		}
+		List<InetSocketAddress> serverAddresses = new ArrayList<>();
+		List<Integer> weights = new ArrayList<>();
+		for (int i = 0; i < entryCount; i++) {
+			int weight = buffer.get();
+			InetSocketAddress serverAddress = AddressCodec.decode(buffer);
+			if (serverAddress != null) {
+				weights.add(weight);
+				serverAddresses.add(serverAddress);
+			}
+		}
+		return new ServerTable(version, refreshSeconds, serverAddresses, weights);
+	}
+
+	/**
+	 * Reads the number of seconds that the requester's table may be used for
+	 * from a received <code>SERVER_TABLE</code> message, which is all that a
+	 * reply saying the table is still current carries. The buffer's position
+	 * is not changed.
+	 *
+	 * @param buffer
+	 *            the received message, positioned after the message type
+	 * @return the number of seconds before the table should be refreshed.
+	 * @throws BufferUnderflowException
+	 *             if the message was not fully received.
+	 */
+	public static int decodeRefreshSeconds(ByteBuffer buffer) {
+		if (buffer.remaining() < HEADER_SIZE - 1) {
+			throw new BufferUnderflowException();
+		}
+		return buffer.getInt(buffer.position() + 8);
+	}
+}
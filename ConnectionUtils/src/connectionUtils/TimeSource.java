@@ -0,0 +1,89 @@
+package connectionUtils;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         The single source of timestamps used by every component for
+ *         deadlines and latency measurements. Timestamps are taken from
+ *         <code>System.nanoTime()</code>, so they only ever increase and are
+ *         unaffected by changes to the wall clock, and are counted from when
+ *         this class was loaded, so they are always positive. They mean
+ *         nothing outside the process that took them: a deadline sent to
+ *         another node must be sent as a duration (as token lifetimes are),
+ *         and converted back with {@link #deadlineAfterMillis(long)} on
+ *         receipt.
+ *         </p>
+ *         <p>
+ *         The wall clock is only used where another node has to interpret a
+ *         time: in the timestamps exchanged to estimate the offset between
+ *         two nodes' clocks (see {@link ClockOffsetEstimator}), and in values
+ *         that must keep increasing across a restart of the node that chose
+ *         them, such as a load balancer's gossip incarnation, heartbeat
+ *         sender epoch and first server table version.
+ *         </p>
+ *
+ */
+public class TimeSource {
+
+	/**
+	 * The value of <code>System.nanoTime()</code> when this class was loaded.
+	 */
+	private static final long originNanos = System.nanoTime();
+
+	/**
+	 * Private constructor, as this class only has static methods.
+	 */
+	private TimeSource() {
+	}
+
+	/**
+	 * @return the number of nanoseconds since this class was loaded.
+	 */
+	public static long monotonicNanos() {
+		return System.nanoTime() - originNanos;
+	}
+
+	/**
+	 * @return the number of milliseconds since this class was loaded.
+	 */
+	public static long monotonicMillis() {
+		return monotonicNanos() / 1000000;
+	}
+
+	/**
+	 * @param durationMillis
+	 *            a duration in milliseconds
+	 * @return the monotonic timestamp, in milliseconds, at which the given
+	 *         duration from now will have passed.
+	 */
+	public static long deadlineAfterMillis(long durationMillis) {
+		return monotonicMillis() + durationMillis;
+	}
+
+	/**
+	 * @param deadlineMillis
+	 *            a monotonic timestamp, in milliseconds
+	 * @return the number of milliseconds until the deadline, or 0 if it has
+	 *         passed.
+	 */
+	public static long millisUntil(long deadlineMillis) {
+		return Math.max(0, deadlineMillis - monotonicMillis());
+	}
+
+	/**
+	 * @param deadlineMillis
+	 *            a monotonic timestamp, in milliseconds
+	 * @return true if the deadline has been reached.
+	 */
+	public static boolean hasPassed(long deadlineMillis) {
+		return monotonicMillis() >= deadlineMillis;
+	}
+
+	/**
+	 * @return the current wall clock time in Unix milliseconds, for
+	 *         timestamps that are sent to another node.
+	 */
+	public static long wallClockMillis() {
+		return System.currentTimeMillis();
+	}
+}
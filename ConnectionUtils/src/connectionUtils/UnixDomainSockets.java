@@ -0,0 +1,249 @@
+package connectionUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Lets components that share a host talk over UNIX domain sockets
+ *         instead of loopback TCP. Components are still addressed by their
+ *         TCP address everywhere (in configuration, tokens and name service
+ *         replies); a component that listens on a TCP port also listens on a
+ *         socket file named after that port in the configured socket
+ *         directory, and {@link ConnectNIO} connects through that file instead
+ *         of TCP when the target address is local and the file exists.
+ *         </p>
+ *         <p>
+ *         UNIX domain socket channels were added in Java 16, so they are
+ *         opened through reflection and this class does nothing on older
+ *         runtimes, where every connection stays on TCP. Channels opened here
+ *         are ordinary {@link SocketChannel}s and {@link ServerSocketChannel}s,
+ *         except that <code>socket()</code> is not supported on them.
+ *         </p>
+ *
+ */
+public class UnixDomainSockets {
+
+	/**
+	 * The directory holding the socket files, or null if UNIX domain sockets
+	 * are not being used.
+	 */
+	private static volatile File socketDirectory;
+
+	/**
+	 * The UNIX protocol family, or null if the runtime does not support it.
+	 */
+	private static final ProtocolFamily unixProtocolFamily;
+
+	/**
+	 * <code>UnixDomainSocketAddress.of(String)</code>, or null if the runtime
+	 * does not support it.
+	 */
+	private static final Method addressFactory;
+
+	/**
+	 * <code>SocketChannel.open(ProtocolFamily)</code>, or null if the runtime
+	 * does not support it.
+	 */
+	private static final Method socketChannelFactory;
+
+	/**
+	 * <code>ServerSocketChannel.open(ProtocolFamily)</code>, or null if the
+	 * runtime does not support it.
+	 */
+	private static final Method serverSocketChannelFactory;
+
+	/**
+	 * Whether each remote IP address that has been checked belongs to this
+	 * host.
+	 */
+	private static final ConcurrentHashMap<InetAddress, Boolean> localAddresses = new ConcurrentHashMap<>();
+
+	static {
+		ProtocolFamily protocolFamily = null;
+		Method addressMethod = null;
+		Method socketChannelMethod = null;
+		Method serverSocketChannelMethod = null;
+		try {
+			protocolFamily = StandardProtocolFamily.valueOf("UNIX");
+			addressMethod = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+			socketChannelMethod = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+			serverSocketChannelMethod = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+		} catch (IllegalArgumentException | ReflectiveOperationException e) {
+			protocolFamily = null;
+		}
+		unixProtocolFamily = protocolFamily;
+		addressFactory = addressMethod;
+		socketChannelFactory = socketChannelMethod;
+		serverSocketChannelFactory = serverSocketChannelMethod;
+	}
+
+	/**
+	 * @return true if the runtime supports UNIX domain socket channels.
+	 */
+	public static boolean isSupported() {
+		return unixProtocolFamily != null;
+	}
+
+	/**
+	 * Sets the directory holding the socket files, creating it if needed.
+	 * UNIX domain sockets are only used once a directory has been set, and
+	 * only if the runtime supports them.
+	 *
+	 * @param directory
+	 *            the directory to use, or null to stop using UNIX domain
+	 *            sockets
+	 */
+	public static void setSocketDirectory(String directory) {
+		if (directory == null || directory.trim().isEmpty()) {
+			socketDirectory = null;
+			return;
+		}
+		if (!isSupported()) {
+			System.out.println("UNIX domain sockets need Java 16 or later, using TCP only.");
+			socketDirectory = null;
+			return;
+		}
+		File newSocketDirectory = new File(directory.trim());
+		newSocketDirectory.mkdirs();
+		socketDirectory = newSocketDirectory;
+	}
+
+	/**
+	 * @return true if UNIX domain sockets are supported and a socket
+	 *         directory has been set.
+	 */
+	public static boolean isEnabled() {
+		return socketDirectory != null;
+	}
+
+	/**
+	 * @param port
+	 *            the TCP port that the socket stands in for
+	 * @return the socket file for the given port, or null if UNIX domain
+	 *         sockets are not enabled.
+	 */
+	public static File getSocketFile(int port) {
+		File directory = socketDirectory;
+		return directory == null ? null : new File(directory, "port-" + port + ".sock");
+	}
+
+	/**
+	 * Opens a server channel listening on the socket file for the given TCP
+	 * port, replacing any file left behind by an earlier run. The file is
+	 * deleted when the JVM exits.
+	 *
+	 * @param port
+	 *            the TCP port that the socket stands in for
+	 * @return a blocking server channel bound to the socket file, or null if
+	 *         UNIX domain sockets are not enabled or the file cannot be bound.
+	 */
+	public static ServerSocketChannel openServerSocketChannel(int port) {
+		File socketFile = getSocketFile(port);
+		if (socketFile == null) {
+			return null;
+		}
+		ServerSocketChannel serverSocketChannel = null;
+		try {
+			socketFile.delete();
+			serverSocketChannel = (ServerSocketChannel) serverSocketChannelFactory.invoke(null, unixProtocolFamily);
+			serverSocketChannel.bind(toSocketAddress(socketFile));
+			socketFile.deleteOnExit();
+			return serverSocketChannel;
+		} catch (IOException | ReflectiveOperationException e) {
+			e.printStackTrace();
+			if (serverSocketChannel != null) {
+				try {
+					serverSocketChannel.close();
+				} catch (IOException closeException) {
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Opens an unconnected channel to use in place of a TCP connection to the
+	 * given address, if the address belongs to this host and a component is
+	 * listening on the socket file for its port.
+	 *
+	 * @param connectAddress
+	 *            the TCP address being connected to
+	 * @return the address of the socket file to connect the new channel to,
+	 *         with the channel, or null if TCP should be used.
+	 */
+	static UnixConnection openSocketChannel(InetSocketAddress connectAddress) {
+		File socketFile = getSocketFile(connectAddress.getPort());
+		if (socketFile == null || !isLocalAddress(connectAddress.getAddress()) || !socketFile.exists()) {
+			return null;
+		}
+		try {
+			SocketChannel socketChannel = (SocketChannel) socketChannelFactory.invoke(null, unixProtocolFamily);
+			return new UnixConnection(socketChannel, toSocketAddress(socketFile));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * An unconnected UNIX domain channel and the socket address to connect it
+	 * to.
+	 */
+	static class UnixConnection {
+		final SocketChannel socketChannel;
+		final SocketAddress socketAddress;
+
+		private UnixConnection(SocketChannel socketChannel, SocketAddress socketAddress) {
+			this.socketChannel = socketChannel;
+			this.socketAddress = socketAddress;
+		}
+	}
+
+	/**
+	 * @return the <code>UnixDomainSocketAddress</code> of the given socket
+	 *         file.
+	 */
+	private static SocketAddress toSocketAddress(File socketFile) throws ReflectiveOperationException {
+		try {
+			return (SocketAddress) addressFactory.invoke(null, socketFile.getPath());
+		} catch (InvocationTargetException e) {
+			throw new ReflectiveOperationException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return true if the given address is a loopback address or belongs to
+	 *         one of this host's network interfaces.
+	 */
+	private static boolean isLocalAddress(InetAddress address) {
+		if (address == null) {
+			return false;
+		}
+		if (address.isLoopbackAddress() || address.isAnyLocalAddress()) {
+			return true;
+		}
+		Boolean isLocal = localAddresses.get(address);
+		if (isLocal == null) {
+			try {
+				isLocal = NetworkInterface.getByInetAddress(address) != null;
+			} catch (SocketException e) {
+				isLocal = false;
+			}
+			localAddresses.put(address, isLocal);
+		}
+		return isLocal;
+	}
+}
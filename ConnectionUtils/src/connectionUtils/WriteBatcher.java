@@ -0,0 +1,183 @@
+package connectionUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Collects the framed messages (see {@link FrameEncoder}) to be
+ *         written to a single channel and writes them together with one
+ *         gathering write, rather than making one write per message. A
+ *         component sending several messages in a burst (e.g. the responses
+ *         to every request found in one read) queues them with
+ *         {@link #enqueue(ByteBuffer...)} and calls {@link #flush()} at the
+ *         end of its event loop iteration. The queue is also flushed as soon
+ *         as it holds at least the flush threshold in bytes, so a long burst
+ *         is not held back. A message that must not wait (e.g. a response
+ *         completed by another thread) is sent with
+ *         {@link #send(ByteBuffer...)}, which writes it and anything queued
+ *         before it straight away.
+ *         </p>
+ *         <p>
+ *         Messages are copied into pooled buffers when they are queued, so the
+ *         caller may reuse its buffer immediately. Writes spin on a
+ *         non-blocking channel until everything has been written, as
+ *         {@link FrameEncoder#write} does.
+ *         </p>
+ *
+ */
+public class WriteBatcher {
+
+	/**
+	 * The channel that queued messages are written to.
+	 */
+	private final GatheringByteChannel channel;
+
+	/**
+	 * The number of queued bytes at which the queue is flushed without
+	 * waiting for {@link #flush()}. If 0, every message is written as soon as
+	 * it is queued.
+	 */
+	private final int flushThreshold;
+
+	/**
+	 * The framed messages waiting to be written, in order.
+	 */
+	private final ArrayDeque<ByteBuffer> queuedFrames = new ArrayDeque<>();
+
+	/**
+	 * The total number of bytes waiting to be written.
+	 */
+	private int queuedBytes = 0;
+
+	/**
+	 * The number of flushes that have written at least one message.
+	 */
+	private long flushCount = 0;
+
+	/**
+	 * The number of messages that have been queued or sent.
+	 */
+	private long messageCount = 0;
+
+	/**
+	 * Creates a new WriteBatcher for the given channel.
+	 *
+	 * @param channel
+	 *            the channel to write to
+	 * @param flushThreshold
+	 *            the number of queued bytes at which the queue is flushed
+	 *            without waiting for {@link #flush()}, or 0 to write every
+	 *            message as soon as it is queued
+	 * @throws IllegalArgumentException
+	 *             if the channel is null or the threshold is negative.
+	 */
+	public WriteBatcher(GatheringByteChannel channel, int flushThreshold) {
+		if (channel == null)
+			throw new IllegalArgumentException("Channel cannot be null.");
+		if (flushThreshold < 0)
+			throw new IllegalArgumentException("Flush threshold cannot be negative.");
+
+		this.channel = channel;
+		this.flushThreshold = flushThreshold;
+	}
+
+	/**
+	 * Frames the given messages and queues them to be written by the next
+	 * flush. If the queue then holds at least the flush threshold in bytes,
+	 * it is flushed straight away.
+	 *
+	 * @param messages
+	 *            the messages to send, each flipped and ready to be read
+	 * @throws IOException
+	 *             if a flush was needed and the write failed, in which case
+	 *             every queued message is discarded.
+	 */
+	public synchronized void enqueue(ByteBuffer... messages) throws IOException {
+		ByteBuffer frame = FrameEncoder.encodePooled(messages);
+		queuedFrames.add(frame);
+		queuedBytes += frame.remaining();
+		messageCount += messages.length;
+		if (queuedBytes >= flushThreshold) {
+			flush();
+		}
+	}
+
+	/**
+	 * Frames the given messages and writes them, along with any messages
+	 * queued before them, without waiting for the end of the burst.
+	 *
+	 * @param messages
+	 *            the messages to send, each flipped and ready to be read
+	 * @throws IOException
+	 *             if the write failed, in which case every queued message is
+	 *             discarded.
+	 */
+	public synchronized void send(ByteBuffer... messages) throws IOException {
+		queuedFrames.add(FrameEncoder.encodePooled(messages));
+		messageCount += messages.length;
+		flush();
+	}
+
+	/**
+	 * Writes every queued message to the channel, using a single gathering
+	 * write where the channel accepts it all at once.
+	 *
+	 * @throws IOException
+	 *             if the write failed, in which case every queued message is
+	 *             discarded.
+	 */
+	public synchronized void flush() throws IOException {
+		if (queuedFrames.isEmpty()) {
+			return;
+		}
+		ByteBuffer[] frames = queuedFrames.toArray(new ByteBuffer[queuedFrames.size()]);
+		try {
+			int offset = 0;
+			while (offset < frames.length) {
+				channel.write(frames, offset, frames.length - offset);
+				while (offset < frames.length && !frames[offset].hasRemaining()) {
+					offset++;
+				}
+			}
+			flushCount++;
+		} finally {
+			clear();
+		}
+	}
+
+	/**
+	 * Discards every queued message without writing it.
+	 */
+	public synchronized void clear() {
+		for (ByteBuffer frame : queuedFrames) {
+			BufferPool.release(frame);
+		}
+		queuedFrames.clear();
+		queuedBytes = 0;
+	}
+
+	/**
+	 * @return the number of bytes waiting to be written.
+	 */
+	public synchronized int getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return the number of flushes that have written at least one message.
+	 */
+	public synchronized long getFlushCount() {
+		return flushCount;
+	}
+
+	/**
+	 * @return the number of messages that have been queued or sent.
+	 */
+	public synchronized long getMessageCount() {
+		return messageCount;
+	}
+}
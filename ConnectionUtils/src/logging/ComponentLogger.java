@@ -13,7 +13,9 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import connectionUtils.BufferPool;
 import connectionUtils.ConnectNIO;
+import connectionUtils.ProtocolRegistry;
 
 /**
  * @author Joachim
@@ -125,8 +127,8 @@ public class ComponentLogger {
 			buffer.clear();
 			socketChannel.read(buffer);
 			buffer.flip();
-			LogMessageType response = LogMessageType.values()[buffer.get()];
-			if (response.equals(LogMessageType.REGISTRATION_CONFIRM)) {
+			LogMessageType response = ProtocolRegistry.decodeLogMessageType(buffer);
+			if (LogMessageType.REGISTRATION_CONFIRM.equals(response)) {
 				System.out.println("Successfully registered with NodeMonitor.");
 				componentID = buffer.getInt();
 			} else {
@@ -149,7 +151,7 @@ public class ComponentLogger {
 	 *            any additional parameters that are used for this log message
 	 */
 	public synchronized void log(LogMessageType logMessageType, Object... params) {
-		ByteBuffer buffer = ByteBuffer.allocate(50);
+		ByteBuffer buffer = BufferPool.acquire(50);
 		buffer.put((byte) logMessageType.getValue());
 		buffer.putInt(componentID);
 		for (int i = 0; i < params.length; i++) {
@@ -180,6 +182,8 @@ public class ComponentLogger {
 		} catch (IOException | NullPointerException e) {
 			// e.printStackTrace();
 
+		} finally {
+			BufferPool.release(buffer);
 		}
 	}
 }
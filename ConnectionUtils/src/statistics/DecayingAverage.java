@@ -0,0 +1,132 @@
+package statistics;
+
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         An exponentially weighted moving average that decays with the time
+ *         between samples rather than with the number of samples. Each sample
+ *         is weighted by <code>1 - 2^(-elapsed / halfLife)</code>, where
+ *         <code>elapsed</code> is the time since the previous sample, so a
+ *         sample that follows a long gap (e.g. after missed polls) moves the
+ *         average further than one of a burst taken in quick succession, and
+ *         after one half-life without a sample, the previous average counts
+ *         for half of the next. A fixed per-sample weight, as used by
+ *         {@link connectionUtils.ExponentialMovingAverage}, instead lets a
+ *         burst of samples outweigh everything before it.
+ *         </p>
+ *         <p>
+ *         Timestamps are monotonic nanoseconds, as given by
+ *         {@link TimeSource#monotonicNanos()}. The state is held in primitive
+ *         fields, so adding a sample does not allocate. This class is not
+ *         thread safe; a caller sharing an instance between threads must
+ *         synchronize on it.
+ *         </p>
+ *
+ */
+public class DecayingAverage {
+
+	/**
+	 * The natural log of 2, used to convert the half-life to a decay rate.
+	 */
+	private static final double LN_2 = Math.log(2);
+
+	/**
+	 * The rate at which older samples lose weight, per nanosecond.
+	 */
+	private final double decayRatePerNano;
+
+	/**
+	 * The current value of the average.
+	 */
+	private double average = 0;
+
+	/**
+	 * The timestamp of the most recent sample, in nanoseconds.
+	 */
+	private long lastSampleNanos = 0;
+
+	/**
+	 * Whether any sample has been added since creation or the last reset.
+	 */
+	private boolean hasValue = false;
+
+	/**
+	 * Creates a new DecayingAverage.
+	 *
+	 * @param halfLifeNanos
+	 *            the time, in nanoseconds, over which the weight of the
+	 *            average so far halves
+	 * @throws IllegalArgumentException
+	 *             if the half-life is less than 1.
+	 */
+	public DecayingAverage(long halfLifeNanos) {
+		if (halfLifeNanos < 1)
+			throw new IllegalArgumentException("Half-life must be at least 1 nanosecond.");
+
+		decayRatePerNano = LN_2 / halfLifeNanos;
+	}
+
+	/**
+	 * Adds a sample taken now.
+	 *
+	 * @param value
+	 *            the sampled value
+	 * @return the updated average.
+	 */
+	public double add(double value) {
+		return add(value, TimeSource.monotonicNanos());
+	}
+
+	/**
+	 * Adds a sample taken at the given time. The first sample becomes the
+	 * average. A sample timestamped at or before the previous one carries no
+	 * weight, so samples must be added in the order they were taken.
+	 *
+	 * @param value
+	 *            the sampled value
+	 * @param nowNanos
+	 *            the monotonic time the sample was taken, in nanoseconds
+	 * @return the updated average.
+	 */
+	public double add(double value, long nowNanos) {
+		if (!hasValue) {
+			average = value;
+			lastSampleNanos = nowNanos;
+			hasValue = true;
+			return average;
+		}
+		long elapsedNanos = nowNanos - lastSampleNanos;
+		if (elapsedNanos > 0) {
+			double weight = 1 - Math.exp(-elapsedNanos * decayRatePerNano);
+			average += weight * (value - average);
+			lastSampleNanos = nowNanos;
+		}
+		return average;
+	}
+
+	/**
+	 * @return the current average, or 0 if no samples have been added.
+	 */
+	public double getAverage() {
+		return average;
+	}
+
+	/**
+	 * @return true if at least one sample has been added since creation or
+	 *         the last reset.
+	 */
+	public boolean hasValue() {
+		return hasValue;
+	}
+
+	/**
+	 * Discards every sample, so that the next one becomes the average.
+	 */
+	public void reset() {
+		average = 0;
+		lastSampleNanos = 0;
+		hasValue = false;
+	}
+}
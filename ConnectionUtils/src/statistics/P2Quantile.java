@@ -0,0 +1,210 @@
+package statistics;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Estimates a single quantile of a stream of values without storing
+ *         them, using the P<sup>2</sup> algorithm of Jain and Chlamtac ("The
+ *         P<sup>2</sup> Algorithm for Dynamic Calculation of Quantiles and
+ *         Histograms Without Storing Observations", CACM 28(10), 1985). Five
+ *         markers track the minimum, the maximum, the wanted quantile and the
+ *         quantiles halfway to either side of it; as each value arrives the
+ *         markers' positions are updated, and any marker that has drifted at
+ *         least one position from where it should be is moved, adjusting its
+ *         height by piecewise-parabolic interpolation between its neighbours.
+ *         </p>
+ *         <p>
+ *         Memory and the cost of adding a value are constant, and nothing is
+ *         allocated after construction. Until five values have been added the
+ *         quantile is calculated exactly, by the nearest-rank method. The
+ *         estimate covers every value added since creation or the last reset,
+ *         so a quantile of only recent values should be taken from a bounded
+ *         window instead. This class is not thread safe.
+ *         </p>
+ *
+ */
+public class P2Quantile {
+
+	/**
+	 * The number of markers.
+	 */
+	private static final int MARKER_COUNT = 5;
+
+	/**
+	 * The quantile being estimated, between 0 and 1.
+	 */
+	private final double quantile;
+
+	/**
+	 * The height (value) of each marker. Until five values have been added,
+	 * holds the values added so far in ascending order.
+	 */
+	private final double[] heights = new double[MARKER_COUNT];
+
+	/**
+	 * The actual position of each marker, counting from 1.
+	 */
+	private final double[] positions = new double[MARKER_COUNT];
+
+	/**
+	 * The position each marker should be at.
+	 */
+	private final double[] desiredPositions = new double[MARKER_COUNT];
+
+	/**
+	 * The amount added to each marker's desired position for each value.
+	 */
+	private final double[] desiredIncrements = new double[MARKER_COUNT];
+
+	/**
+	 * The number of values added since creation or the last reset.
+	 */
+	private long count = 0;
+
+	/**
+	 * Creates a new P2Quantile.
+	 *
+	 * @param quantile
+	 *            the quantile to estimate, e.g. 0.9 for the 90th percentile
+	 * @throws IllegalArgumentException
+	 *             if the quantile is not strictly between 0 and 1.
+	 */
+	public P2Quantile(double quantile) {
+		if (!(quantile > 0 && quantile < 1))
+			throw new IllegalArgumentException("Quantile must be between 0 and 1.");
+
+		this.quantile = quantile;
+		desiredIncrements[0] = 0;
+		desiredIncrements[1] = quantile / 2;
+		desiredIncrements[2] = quantile;
+		desiredIncrements[3] = (1 + quantile) / 2;
+		desiredIncrements[4] = 1;
+	}
+
+	/**
+	 * Adds a value to the stream.
+	 *
+	 * @param value
+	 *            the value to add
+	 */
+	public void add(double value) {
+		if (count < MARKER_COUNT) {
+			// Insertion sort into the first values, which become the markers
+			int i = (int) count;
+			while (i > 0 && heights[i - 1] > value) {
+				heights[i] = heights[i - 1];
+				i--;
+			}
+			heights[i] = value;
+			count++;
+			if (count == MARKER_COUNT) {
+				for (int j = 0; j < MARKER_COUNT; j++) {
+					positions[j] = j + 1;
+				}
+				desiredPositions[0] = 1;
+				desiredPositions[1] = 1 + 2 * quantile;
+				desiredPositions[2] = 1 + 4 * quantile;
+				desiredPositions[3] = 3 + 2 * quantile;
+				desiredPositions[4] = 5;
+			}
+			return;
+		}
+
+		// Find the cell the value falls in, extending the extremes if needed
+		int cell;
+		if (value < heights[0]) {
+			heights[0] = value;
+			cell = 0;
+		} else if (value >= heights[MARKER_COUNT - 1]) {
+			heights[MARKER_COUNT - 1] = value;
+			cell = MARKER_COUNT - 2;
+		} else {
+			cell = 0;
+			while (value >= heights[cell + 1]) {
+				cell++;
+			}
+		}
+
+		for (int i = cell + 1; i < MARKER_COUNT; i++) {
+			positions[i]++;
+		}
+		for (int i = 0; i < MARKER_COUNT; i++) {
+			desiredPositions[i] += desiredIncrements[i];
+		}
+
+		// Move any middle marker that is at least one position out
+		for (int i = 1; i < MARKER_COUNT - 1; i++) {
+			double offset = desiredPositions[i] - positions[i];
+			if ((offset >= 1 && positions[i + 1] - positions[i] > 1)
+					|| (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+				int direction = offset > 0 ? 1 : -1;
+				double height = parabolic(i, direction);
+				if (heights[i - 1] < height && height < heights[i + 1]) {
+					heights[i] = height;
+				} else {
+					heights[i] = linear(i, direction);
+				}
+				positions[i] += direction;
+			}
+		}
+		count++;
+	}
+
+	/**
+	 * @return the estimated quantile of the values added, or NaN if none have
+	 *         been added.
+	 */
+	public double getQuantile() {
+		if (count == 0) {
+			return Double.NaN;
+		}
+		if (count < MARKER_COUNT) {
+			int rank = (int) Math.ceil(quantile * count) - 1;
+			return heights[Math.max(0, Math.min(rank, (int) count - 1))];
+		}
+		return heights[2];
+	}
+
+	/**
+	 * @return the quantile being estimated, between 0 and 1.
+	 */
+	public double getTargetQuantile() {
+		return quantile;
+	}
+
+	/**
+	 * @return the number of values added since creation or the last reset.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Discards every value added so far.
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * @return the height of the given marker after moving it one position in
+	 *         the given direction, by piecewise-parabolic interpolation.
+	 */
+	private double parabolic(int i, int direction) {
+		double belowGap = positions[i] - positions[i - 1];
+		double aboveGap = positions[i + 1] - positions[i];
+		return heights[i] + direction / (positions[i + 1] - positions[i - 1])
+				* ((belowGap + direction) * (heights[i + 1] - heights[i]) / aboveGap
+						+ (aboveGap - direction) * (heights[i] - heights[i - 1]) / belowGap);
+	}
+
+	/**
+	 * @return the height of the given marker after moving it one position in
+	 *         the given direction, by linear interpolation towards its
+	 *         neighbour.
+	 */
+	private double linear(int i, int direction) {
+		return heights[i] + direction * (heights[i + direction] - heights[i])
+				/ (positions[i + direction] - positions[i]);
+	}
+}
@@ -0,0 +1,183 @@
+package statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Counts events over a sliding window of time, e.g. to give the rate
+ *         at which tokens are issued over the last few seconds. The window is
+ *         split into a ring of buckets, each covering an equal slice of time;
+ *         an event is counted in the bucket for the slice it falls in, and the
+ *         count for the window is the sum of the buckets still inside it, so
+ *         the window slides forward one bucket at a time.
+ *         </p>
+ *         <p>
+ *         Each bucket is a single <code>long</code> holding its count in the
+ *         low 40 bits and (the low 24 bits of) the number of the slice it was
+ *         last used for in the high bits. A bucket left over from an earlier
+ *         pass round the ring is recognised by its slice number and restarted
+ *         with the same compare-and-set that counts the event, so counting is
+ *         lock-free, exact under contention, and never allocates. Reading the
+ *         count sums the buckets without blocking writers.
+ *         </p>
+ *         <p>
+ *         Timestamps are monotonic nanoseconds, as given by
+ *         {@link TimeSource#monotonicNanos()}. As slice numbers wrap after
+ *         2<sup>24</sup> slices, a counter left untouched for that long (e.g.
+ *         over 19 days with 100ms buckets) may report stale events until its
+ *         buckets are next reused.
+ *         </p>
+ *
+ */
+public class RollingWindowCounter {
+
+	/**
+	 * The number of low bits of a bucket that hold its count.
+	 */
+	private static final int COUNT_BITS = 40;
+
+	/**
+	 * Mask for the count of a bucket.
+	 */
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	/**
+	 * Mask for the slice number of a bucket, once shifted down.
+	 */
+	private static final long SLICE_MASK = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+
+	/**
+	 * The ring of buckets, each holding a slice number and count.
+	 */
+	private final AtomicLongArray buckets;
+
+	/**
+	 * The length of time covered by each bucket, in nanoseconds.
+	 */
+	private final long bucketNanos;
+
+	/**
+	 * The time this counter was created, so that rates are not diluted
+	 * before a full window has passed.
+	 */
+	private final long creationNanos;
+
+	/**
+	 * Creates a new RollingWindowCounter.
+	 *
+	 * @param windowNanos
+	 *            the length of the window, in nanoseconds
+	 * @param bucketCount
+	 *            the number of buckets the window is split into, which sets
+	 *            how smoothly the window slides
+	 * @throws IllegalArgumentException
+	 *             if the bucket count is less than 1, or the window is shorter
+	 *             than one nanosecond per bucket.
+	 */
+	public RollingWindowCounter(long windowNanos, int bucketCount) {
+		if (bucketCount < 1)
+			throw new IllegalArgumentException("Bucket count must be at least 1.");
+		if (windowNanos < bucketCount)
+			throw new IllegalArgumentException("Window must be at least 1 nanosecond per bucket.");
+
+		buckets = new AtomicLongArray(bucketCount);
+		bucketNanos = windowNanos / bucketCount;
+		creationNanos = TimeSource.monotonicNanos();
+	}
+
+	/**
+	 * Counts one event now.
+	 */
+	public void increment() {
+		add(1, TimeSource.monotonicNanos());
+	}
+
+	/**
+	 * Counts the given number of events at the given time.
+	 *
+	 * @param events
+	 *            the number of events
+	 * @param nowNanos
+	 *            the monotonic time of the events, in nanoseconds
+	 */
+	public void add(long events, long nowNanos) {
+		long slice = Math.floorDiv(nowNanos, bucketNanos);
+		int index = (int) Math.floorMod(slice, (long) buckets.length());
+		long sliceTag = (slice & SLICE_MASK) << COUNT_BITS;
+		while (true) {
+			long bucket = buckets.get(index);
+			long updatedBucket;
+			if ((bucket & ~COUNT_MASK) == sliceTag) {
+				updatedBucket = sliceTag | ((bucket + events) & COUNT_MASK);
+			} else {
+				updatedBucket = sliceTag | (events & COUNT_MASK);
+			}
+			if (buckets.compareAndSet(index, bucket, updatedBucket)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of events counted in the window ending now.
+	 */
+	public long getCount() {
+		return getCount(TimeSource.monotonicNanos());
+	}
+
+	/**
+	 * @param nowNanos
+	 *            the monotonic time at which the window ends, in nanoseconds
+	 * @return the number of events counted in the window ending at the given
+	 *         time.
+	 */
+	public long getCount(long nowNanos) {
+		long slice = Math.floorDiv(nowNanos, bucketNanos) & SLICE_MASK;
+		long count = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			long bucket = buckets.get(i);
+			long age = (slice - (bucket >>> COUNT_BITS)) & SLICE_MASK;
+			if (age < buckets.length()) {
+				count += bucket & COUNT_MASK;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the average number of events per second over the window ending
+	 *         now.
+	 */
+	public double getRatePerSecond() {
+		return getRatePerSecond(TimeSource.monotonicNanos());
+	}
+
+	/**
+	 * @param nowNanos
+	 *            the monotonic time at which the window ends, in nanoseconds
+	 * @return the average number of events per second over the window ending
+	 *         at the given time, or over the time since this counter was
+	 *         created if that is shorter.
+	 */
+	public double getRatePerSecond(long nowNanos) {
+		// The window spans the full older buckets and the elapsed part of the
+		// current one
+		long spanNanos = (buckets.length() - 1) * bucketNanos + Math.floorMod(nowNanos, bucketNanos);
+		if (nowNanos > creationNanos) {
+			spanNanos = Math.min(spanNanos, nowNanos - creationNanos);
+		}
+		spanNanos = Math.max(1, spanNanos);
+		return getCount(nowNanos) * 1e9 / spanNanos;
+	}
+
+	/**
+	 * @return the length of the window, in nanoseconds, rounded down to a
+	 *         whole number of buckets.
+	 */
+	public long getWindowNanos() {
+		return bucketNanos * buckets.length();
+	}
+}
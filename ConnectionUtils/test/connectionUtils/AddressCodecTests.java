@@ -0,0 +1,193 @@
+package connectionUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link AddressCodec} class and its methods.
+ *         </p>
+ *
+ */
+public class AddressCodecTests {
+
+	/**
+	 * Empties the shared address cache so that each test starts without any
+	 * cached addresses.
+	 */
+	@Before
+	public void clearCache() {
+		AddressCodec.clearCache();
+	}
+
+	/**
+	 * Test that an IPv4 address is written as its family byte, 4 address
+	 * bytes and the port, and decodes to an equal address.
+	 */
+	@Test
+	public void testAddressCodec_ipv4() {
+		InetSocketAddress address = new InetSocketAddress("127.0.0.2", 8080);
+		ByteBuffer buffer = encode(address);
+		assertEquals(7, buffer.remaining());
+		assertEquals(AddressCodec.FAMILY_IPV4, buffer.get(0));
+		assertEquals(address, AddressCodec.decode(buffer));
+		assertEquals(0, buffer.remaining());
+	}
+
+	/**
+	 * Test that an IPv6 address is written as its family byte, 16 address
+	 * bytes and the port, and decodes to an equal address.
+	 *
+	 * @throws UnknownHostException
+	 */
+	@Test
+	public void testAddressCodec_ipv6() throws UnknownHostException {
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("fe80::1:2"), 65535);
+		ByteBuffer buffer = encode(address);
+		assertEquals(19, buffer.remaining());
+		assertEquals(AddressCodec.FAMILY_IPV6, buffer.get(0));
+		assertEquals(address, AddressCodec.decode(buffer));
+		assertEquals(0, buffer.remaining());
+	}
+
+	/**
+	 * Test that an unresolved address is written as its host name and decodes
+	 * to the same host name and port.
+	 */
+	@Test
+	public void testAddressCodec_hostName() {
+		ByteBuffer buffer = encode(InetSocketAddress.createUnresolved("localhost", 8080));
+		assertEquals(4 + "localhost".length(), buffer.remaining());
+		assertEquals(AddressCodec.FAMILY_HOSTNAME, buffer.get(0));
+		InetSocketAddress decodedAddress = AddressCodec.decode(buffer);
+		assertEquals("localhost", decodedAddress.getHostString());
+		assertEquals(8080, decodedAddress.getPort());
+		assertEquals(0, buffer.remaining());
+	}
+
+	/**
+	 * Test that a host name longer than a length byte can describe is cut to
+	 * its first 255 bytes, followed by the port.
+	 */
+	@Test
+	public void testAddressCodec_hostNameTruncated() {
+		StringBuilder hostName = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			hostName.append((char) ('a' + i % 26));
+		}
+		InetSocketAddress address = InetSocketAddress.createUnresolved(hostName.toString(), 8080);
+		assertEquals(AddressCodec.MAX_ENCODED_LENGTH, AddressCodec.getEncodedLength(address));
+
+		ByteBuffer buffer = encode(address);
+		assertEquals(AddressCodec.MAX_ENCODED_LENGTH, buffer.remaining());
+		assertEquals(AddressCodec.FAMILY_HOSTNAME, buffer.get());
+		assertEquals(255, buffer.get() & 0xFF);
+		byte[] hostNameBytes = new byte[255];
+		buffer.get(hostNameBytes);
+		assertEquals(hostName.substring(0, 255), new String(hostNameBytes));
+		assertEquals(8080, buffer.getShort() & 0xFFFF);
+	}
+
+	/**
+	 * Test that a missing address is written as {@link AddressCodec#FAMILY_NONE}
+	 * with a port of 0, and decodes to null.
+	 */
+	@Test
+	public void testAddressCodec_none() {
+		assertEquals(3, AddressCodec.getEncodedLength(null));
+		ByteBuffer buffer = encode(null);
+		assertEquals(3, buffer.remaining());
+		assertEquals(AddressCodec.FAMILY_NONE, buffer.get(0));
+		assertNull(AddressCodec.decode(buffer));
+		assertEquals(0, buffer.remaining());
+	}
+
+	/**
+	 * Test that an address sent with a port of 0 decodes to null for each
+	 * family, after reading the whole address.
+	 *
+	 * @throws UnknownHostException
+	 */
+	@Test
+	public void testAddressCodec_portZero() throws UnknownHostException {
+		InetSocketAddress[] addresses = { new InetSocketAddress("127.0.0.2", 0),
+				new InetSocketAddress(InetAddress.getByName("::1"), 0),
+				InetSocketAddress.createUnresolved("localhost", 0) };
+		for (InetSocketAddress address : addresses) {
+			ByteBuffer buffer = encode(address);
+			assertNull(AddressCodec.decode(buffer));
+			assertEquals(0, buffer.remaining());
+		}
+	}
+
+	/**
+	 * Test that an unrecognised family byte decodes to null.
+	 */
+	@Test
+	public void testAddressCodec_unknownFamily() {
+		ByteBuffer buffer = ByteBuffer.allocate(3);
+		buffer.put((byte) 9);
+		buffer.putShort((short) 8080);
+		buffer.flip();
+		assertNull(AddressCodec.decode(buffer));
+	}
+
+	/**
+	 * Test that decoding the same address again returns the cached instance,
+	 * for both IPv4 and other families, and that clearing the cache makes the
+	 * next decode build a new one.
+	 *
+	 * @throws UnknownHostException
+	 */
+	@Test
+	public void testAddressCodec_cacheReuse() throws UnknownHostException {
+		InetSocketAddress[] addresses = { new InetSocketAddress("127.0.0.2", 8080),
+				new InetSocketAddress(InetAddress.getByName("::1"), 8080) };
+		for (InetSocketAddress address : addresses) {
+			InetSocketAddress decodedAddress = AddressCodec.decode(encode(address));
+			assertSame(decodedAddress, AddressCodec.decode(encode(address)));
+
+			AddressCodec.clearCache();
+			InetSocketAddress redecodedAddress = AddressCodec.decode(encode(address));
+			assertNotSame(decodedAddress, redecodedAddress);
+			assertEquals(decodedAddress, redecodedAddress);
+		}
+	}
+
+	/**
+	 * Test that the cache is emptied once it holds 1024 addresses, so that an
+	 * address decoded before then is built again.
+	 */
+	@Test
+	public void testAddressCodec_cacheEviction() {
+		InetSocketAddress address = new InetSocketAddress("127.0.0.2", 8080);
+		InetSocketAddress decodedAddress = AddressCodec.decode(encode(address));
+
+		// 1023 more addresses fill the cache, and the next one clears it
+		for (int port = 1; port <= 1024; port++) {
+			AddressCodec.decode(encode(new InetSocketAddress("127.0.0.3", port)));
+		}
+		InetSocketAddress redecodedAddress = AddressCodec.decode(encode(address));
+		assertNotSame(decodedAddress, redecodedAddress);
+		assertEquals(decodedAddress, redecodedAddress);
+		assertSame(redecodedAddress, AddressCodec.decode(encode(address)));
+	}
+
+	private static ByteBuffer encode(InetSocketAddress address) {
+		ByteBuffer buffer = ByteBuffer.allocate(AddressCodec.getEncodedLength(address));
+		AddressCodec.encode(buffer, address);
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,166 @@
+package connectionUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link AsyncConnector} class and the connect methods of
+ *         {@link ConnectNIO} that use it.
+ *         </p>
+ *
+ */
+public class AsyncConnectorTests {
+
+	/**
+	 * A listening channel on an ephemeral loopback port.
+	 */
+	private ServerSocketChannel serverSocketChannel;
+
+	/**
+	 * Channels opened by a test, closed after it.
+	 */
+	private List<SocketChannel> openedChannels = new ArrayList<>();
+
+	/**
+	 * Opens a listening channel with a backlog of one connection.
+	 *
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+	}
+
+	/**
+	 * Closes the listening channel and any channels opened by the test.
+	 *
+	 * @throws IOException
+	 */
+	@After
+	public void tearDown() throws IOException {
+		for (SocketChannel socketChannel : openedChannels) {
+			socketChannel.close();
+		}
+		serverSocketChannel.close();
+	}
+
+	/**
+	 * Test that connecting to a listening address completes the future with
+	 * the connected, non-blocking channel.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAsyncConnector_connect() throws Exception {
+		SocketChannel socketChannel = openChannel();
+		SocketChannel connectedChannel = AsyncConnector.getInstance()
+				.connect(socketChannel, getServerAddress(), 1000).get(2, TimeUnit.SECONDS);
+		assertSame(socketChannel, connectedChannel);
+		assertTrue(connectedChannel.isConnected());
+		assertFalse(connectedChannel.isBlocking());
+	}
+
+	/**
+	 * Test that connecting to an address nothing is listening on completes the
+	 * future exceptionally and closes the channel.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAsyncConnector_connectRefused() throws Exception {
+		InetSocketAddress closedAddress = getServerAddress();
+		serverSocketChannel.close();
+		SocketChannel socketChannel = openChannel();
+		try {
+			AsyncConnector.getInstance().connect(socketChannel, closedAddress, 1000).get(2, TimeUnit.SECONDS);
+			fail("Connect to a closed port should fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ConnectException);
+		}
+		assertFalse(socketChannel.isOpen());
+	}
+
+	/**
+	 * Test that a connect that is not answered in time completes the future
+	 * with a {@link SocketTimeoutException} and closes the channel. The
+	 * listening channel never accepts, so once its backlog is full further
+	 * connects are left unanswered.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAsyncConnector_connectTimeout() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			SocketChannel socketChannel = openChannel();
+			try {
+				AsyncConnector.getInstance().connect(socketChannel, getServerAddress(), 200).get(2, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof SocketTimeoutException);
+				assertFalse(socketChannel.isOpen());
+				return;
+			}
+		}
+		fail("Connects to a full backlog should time out");
+	}
+
+	/**
+	 * Test that {@link ConnectNIO#getBlockingSocketChannel(InetSocketAddress)}
+	 * returns null, rather than throwing, when the connection is refused.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testConnectNIO_getBlockingSocketChannelRefused() throws IOException {
+		InetSocketAddress closedAddress = getServerAddress();
+		serverSocketChannel.close();
+		assertNull(ConnectNIO.getBlockingSocketChannel(closedAddress));
+	}
+
+	/**
+	 * Test that {@link ConnectNIO#connectAsync(InetSocketAddress, int)}
+	 * completes with a connected channel.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectNIO_connectAsync() throws Exception {
+		SocketChannel socketChannel = ConnectNIO.connectAsync(getServerAddress(), 1000).get(2, TimeUnit.SECONDS);
+		openedChannels.add(socketChannel);
+		assertTrue(socketChannel.isConnected());
+		assertEquals(getServerAddress(), socketChannel.getRemoteAddress());
+	}
+
+	private InetSocketAddress getServerAddress() throws IOException {
+		return (InetSocketAddress) serverSocketChannel.getLocalAddress();
+	}
+
+	private SocketChannel openChannel() throws IOException {
+		SocketChannel socketChannel = SocketChannel.open();
+		socketChannel.configureBlocking(false);
+		openedChannels.add(socketChannel);
+		return socketChannel;
+	}
+}
@@ -0,0 +1,194 @@
+package connectionUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link BufferPool} class and its methods. The pool is
+ *         shared by the whole JVM, so tests that depend on a thread's cache
+ *         being empty run on a new thread.
+ *         </p>
+ *
+ */
+public class BufferPoolTests {
+
+	/**
+	 * The number of buffers of a size class held in a single thread's cache.
+	 */
+	private static final int THREAD_CACHE_SIZE = 8;
+
+	/**
+	 * The number of buffers of a size class held in the shared queue.
+	 */
+	private static final int SHARED_POOL_SIZE = 64;
+
+	/**
+	 * Turns leak detection back off after each test.
+	 */
+	@After
+	public void disableLeakDetection() {
+		BufferPool.setLeakDetectionEnabled(false);
+	}
+
+	/**
+	 * Test that an acquired buffer is direct, has exactly the requested bytes
+	 * remaining, and has the capacity of the smallest size class that holds
+	 * them.
+	 */
+	@Test
+	public void testBufferPool_sizeClassRounding() {
+		assertAcquiredCapacity(0, BufferPool.MIN_SIZE_CLASS);
+		assertAcquiredCapacity(BufferPool.MIN_SIZE_CLASS, BufferPool.MIN_SIZE_CLASS);
+		assertAcquiredCapacity(65, 128);
+		assertAcquiredCapacity(128, 128);
+		assertAcquiredCapacity(1000, 1024);
+		assertAcquiredCapacity(BufferPool.MAX_SIZE_CLASS, BufferPool.MAX_SIZE_CLASS);
+		assertAcquiredCapacity(BufferPool.MAX_SIZE_CLASS + 1, BufferPool.MAX_SIZE_CLASS + 1);
+	}
+
+	/**
+	 * Test acquiring a buffer of negative size. Should throw
+	 * IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testBufferPool_acquireNegativeSize() {
+		BufferPool.acquire(-1);
+	}
+
+	/**
+	 * Test that a released buffer is handed out again by the next acquire of
+	 * the same size class on the same thread, while a buffer larger than
+	 * {@link BufferPool#MAX_SIZE_CLASS} is never pooled.
+	 */
+	@Test
+	public void testBufferPool_largeBuffersNotPooled() {
+		ByteBuffer buffer = BufferPool.acquire(200);
+		BufferPool.release(buffer);
+		assertSame(buffer, BufferPool.acquire(250));
+		BufferPool.release(buffer);
+
+		ByteBuffer largeBuffer = BufferPool.acquire(BufferPool.MAX_SIZE_CLASS + 1);
+		BufferPool.release(largeBuffer);
+		long allocatedCount = BufferPool.getAllocatedCount();
+		ByteBuffer nextLargeBuffer = BufferPool.acquire(BufferPool.MAX_SIZE_CLASS + 1);
+		assertNotSame(largeBuffer, nextLargeBuffer);
+		assertEquals(allocatedCount + 1, BufferPool.getAllocatedCount());
+	}
+
+	/**
+	 * Test that buffers released beyond the releasing thread's cache spill
+	 * into the shared queue, where another thread can take them, and that the
+	 * shared queue holds no more than its bound.
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testBufferPool_threadCacheSpillsToSharedQueue() throws InterruptedException {
+		final int size = 16 * 1024;
+		final int bufferCount = THREAD_CACHE_SIZE + SHARED_POOL_SIZE + 1;
+		final List<ByteBuffer> releasedBuffers = new ArrayList<>();
+		final ByteBuffer[] reacquiredBuffer = new ByteBuffer[1];
+		runOnNewThread(new Runnable() {
+			@Override
+			public void run() {
+				// Acquiring this many also empties the shared queue of any
+				// buffers of this size class left by earlier tests
+				for (int i = 0; i < bufferCount; i++) {
+					releasedBuffers.add(BufferPool.acquire(size));
+				}
+				for (ByteBuffer buffer : releasedBuffers) {
+					BufferPool.release(buffer);
+				}
+				reacquiredBuffer[0] = BufferPool.acquire(size);
+				BufferPool.release(reacquiredBuffer[0]);
+			}
+		});
+		// The thread's own cache is used first, most recently released first
+		assertSame(releasedBuffers.get(THREAD_CACHE_SIZE - 1), reacquiredBuffer[0]);
+
+		final List<ByteBuffer> acquiredBuffers = new ArrayList<>();
+		final long[] allocatedCount = new long[1];
+		runOnNewThread(new Runnable() {
+			@Override
+			public void run() {
+				long allocatedCountBefore = BufferPool.getAllocatedCount();
+				for (int i = 0; i < bufferCount; i++) {
+					acquiredBuffers.add(BufferPool.acquire(size));
+				}
+				allocatedCount[0] = BufferPool.getAllocatedCount() - allocatedCountBefore;
+			}
+		});
+		Set<ByteBuffer> sharedBuffers = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+		sharedBuffers.addAll(releasedBuffers.subList(THREAD_CACHE_SIZE, THREAD_CACHE_SIZE + SHARED_POOL_SIZE));
+		int reusedCount = 0;
+		for (ByteBuffer buffer : acquiredBuffers) {
+			if (sharedBuffers.contains(buffer)) {
+				reusedCount++;
+			}
+		}
+		assertEquals(SHARED_POOL_SIZE, reusedCount);
+		assertEquals(bufferCount - SHARED_POOL_SIZE, allocatedCount[0]);
+	}
+
+	/**
+	 * Test that with leak detection on, acquired buffers are tracked until
+	 * they are released, and that releasing a buffer twice is reported
+	 * instead of putting it in the pool twice.
+	 */
+	@Test
+	public void testBufferPool_doubleReleaseReported() {
+		BufferPool.setLeakDetectionEnabled(true);
+		ByteBuffer buffer = BufferPool.acquire(300);
+		assertEquals(1, BufferPool.getOutstandingBufferCount());
+		BufferPool.release(buffer);
+		assertEquals(0, BufferPool.getOutstandingBufferCount());
+
+		PrintStream standardOut = System.out;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output));
+		try {
+			BufferPool.release(buffer);
+		} finally {
+			System.setOut(standardOut);
+		}
+		assertTrue(output.toString().contains("already released"));
+
+		// Had the buffer been pooled twice, both would be the same buffer
+		ByteBuffer firstBuffer = BufferPool.acquire(300);
+		ByteBuffer secondBuffer = BufferPool.acquire(300);
+		assertNotSame(firstBuffer, secondBuffer);
+		assertEquals(2, BufferPool.getOutstandingBufferCount());
+		BufferPool.release(firstBuffer);
+		BufferPool.release(secondBuffer);
+	}
+
+	private static void assertAcquiredCapacity(int size, int expectedCapacity) {
+		ByteBuffer buffer = BufferPool.acquire(size);
+		assertTrue(buffer.isDirect());
+		assertEquals(size, buffer.remaining());
+		assertEquals(expectedCapacity, buffer.capacity());
+		BufferPool.release(buffer);
+	}
+
+	private static void runOnNewThread(Runnable runnable) throws InterruptedException {
+		Thread thread = new Thread(runnable);
+		thread.start();
+		thread.join();
+	}
+}
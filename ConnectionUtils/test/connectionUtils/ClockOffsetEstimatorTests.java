@@ -0,0 +1,108 @@
+package connectionUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link ClockOffsetEstimator} class and its methods.
+ *         </p>
+ *
+ */
+public class ClockOffsetEstimatorTests {
+
+	/**
+	 * Test creating a {@link ClockOffsetEstimator} with a window of 0
+	 * samples. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateClockOffsetEstimator_invalidWindow() {
+		new ClockOffsetEstimator(0);
+	}
+
+	/**
+	 * Test that there is no estimate before any samples are added.
+	 */
+	@Test
+	public void testClockOffsetEstimator_noSamples() {
+		ClockOffsetEstimator clockOffsetEstimator = new ClockOffsetEstimator(4);
+		assertFalse(clockOffsetEstimator.hasEstimate());
+		assertEquals(0, clockOffsetEstimator.getOffsetMillis());
+		assertEquals(-1, clockOffsetEstimator.getRoundTripDelayMillis());
+	}
+
+	/**
+	 * Test that the offset is taken from the sample with the shortest round
+	 * trip delay, whichever order the samples were added in.
+	 */
+	@Test
+	public void testClockOffsetEstimator_smallestDelayChosen() {
+		ClockOffsetEstimator clockOffsetEstimator = new ClockOffsetEstimator(4);
+		addSample(clockOffsetEstimator, 100, 40);
+		addSample(clockOffsetEstimator, 200, 10);
+		addSample(clockOffsetEstimator, 300, 30);
+		assertTrue(clockOffsetEstimator.hasEstimate());
+		assertEquals(200, clockOffsetEstimator.getOffsetMillis());
+		assertEquals(10, clockOffsetEstimator.getRoundTripDelayMillis());
+		assertEquals(5000, clockOffsetEstimator.toLocalMillis(5200));
+	}
+
+	/**
+	 * Test that once the window is full each sample replaces the oldest, so a
+	 * sample with a short delay stops being used once it has left the window.
+	 */
+	@Test
+	public void testClockOffsetEstimator_windowWrapAround() {
+		ClockOffsetEstimator clockOffsetEstimator = new ClockOffsetEstimator(3);
+		addSample(clockOffsetEstimator, 100, 10);
+		addSample(clockOffsetEstimator, 200, 50);
+		addSample(clockOffsetEstimator, 300, 40);
+		assertEquals(100, clockOffsetEstimator.getOffsetMillis());
+
+		// The first sample is replaced
+		addSample(clockOffsetEstimator, 400, 30);
+		assertEquals(400, clockOffsetEstimator.getOffsetMillis());
+		assertEquals(30, clockOffsetEstimator.getRoundTripDelayMillis());
+
+		// Round the window again, until the fourth sample is replaced too
+		addSample(clockOffsetEstimator, 500, 60);
+		addSample(clockOffsetEstimator, 600, 70);
+		assertEquals(400, clockOffsetEstimator.getOffsetMillis());
+		addSample(clockOffsetEstimator, 700, 80);
+		assertEquals(500, clockOffsetEstimator.getOffsetMillis());
+		assertEquals(60, clockOffsetEstimator.getRoundTripDelayMillis());
+	}
+
+	/**
+	 * Test that a sample with a negative round trip delay, in which the
+	 * responder took longer than the whole exchange, is ignored and does not
+	 * take a place in the window.
+	 */
+	@Test
+	public void testClockOffsetEstimator_negativeDelayIgnored() {
+		ClockOffsetEstimator clockOffsetEstimator = new ClockOffsetEstimator(1);
+		clockOffsetEstimator.addSample(1000, 1000, 1100, 1050);
+		assertFalse(clockOffsetEstimator.hasEstimate());
+
+		addSample(clockOffsetEstimator, 100, 20);
+		clockOffsetEstimator.addSample(1000, 1000, 1100, 1050);
+		assertEquals(100, clockOffsetEstimator.getOffsetMillis());
+		assertEquals(20, clockOffsetEstimator.getRoundTripDelayMillis());
+	}
+
+	/**
+	 * Adds the timestamps of an exchange with the given remote clock offset
+	 * and round trip delay, split evenly between the two directions, and in
+	 * which the responder replies immediately.
+	 */
+	private static void addSample(ClockOffsetEstimator clockOffsetEstimator, long offsetMillis, long delayMillis) {
+		long requestSentMillis = 1000;
+		long requestReceivedMillis = requestSentMillis + offsetMillis + delayMillis / 2;
+		clockOffsetEstimator.addSample(requestSentMillis, requestReceivedMillis, requestReceivedMillis,
+				requestSentMillis + delayMillis);
+	}
+}
@@ -0,0 +1,180 @@
+package connectionUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link ConnectionPool} class and its methods.
+ *         </p>
+ *
+ */
+public class ConnectionPoolTests {
+
+	/**
+	 * A listening channel on an ephemeral loopback port.
+	 */
+	private ServerSocketChannel serverSocketChannel;
+
+	/**
+	 * The address the listening channel is bound to.
+	 */
+	private InetSocketAddress serverAddress;
+
+	/**
+	 * The pool under test.
+	 */
+	private ConnectionPool connectionPool;
+
+	/**
+	 * Opens a listening channel and creates a pool with a long idle timeout.
+	 *
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		serverAddress = (InetSocketAddress) serverSocketChannel.getLocalAddress();
+		connectionPool = new ConnectionPool(2, 60000);
+	}
+
+	/**
+	 * Closes the pool and the listening channel.
+	 *
+	 * @throws IOException
+	 */
+	@After
+	public void tearDown() throws IOException {
+		connectionPool.close();
+		serverSocketChannel.close();
+	}
+
+	/**
+	 * Test creating a {@link ConnectionPool} with no idle channels per
+	 * address. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateConnectionPool_invalidMaxIdle() {
+		new ConnectionPool(0, 1000);
+	}
+
+	/**
+	 * Test that a released channel is handed out again by the next acquire,
+	 * rather than a new connection being made.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testConnectionPool_reuseReleasedChannel() throws IOException {
+		SocketChannel socketChannel = connectionPool.acquire(serverAddress, 1000);
+		assertNotNull(socketChannel);
+		SocketChannel acceptedChannel = serverSocketChannel.accept();
+		connectionPool.release(serverAddress, socketChannel);
+		assertEquals(1, connectionPool.getIdleCount(serverAddress));
+
+		assertSame(socketChannel, connectionPool.acquire(serverAddress, 1000));
+		assertEquals(0, connectionPool.getIdleCount(serverAddress));
+		assertEquals(1, connectionPool.getConnectedCount());
+		assertEquals(1, connectionPool.getReusedCount());
+		socketChannel.close();
+		acceptedChannel.close();
+	}
+
+	/**
+	 * Test that an idle channel whose peer has closed the connection is
+	 * detected by the health check, closed and replaced by a new connection.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionPool_rejectClosedPeer() throws Exception {
+		SocketChannel socketChannel = connectionPool.acquire(serverAddress, 1000);
+		serverSocketChannel.accept().close();
+		connectionPool.release(serverAddress, socketChannel);
+		// Let the FIN arrive, so the health check reads end-of-stream
+		Thread.sleep(100);
+
+		SocketChannel newChannel = connectionPool.acquire(serverAddress, 1000);
+		assertNotNull(newChannel);
+		assertNotSame(socketChannel, newChannel);
+		assertFalse(socketChannel.isOpen());
+		assertEquals(2, connectionPool.getConnectedCount());
+		assertEquals(0, connectionPool.getReusedCount());
+		newChannel.close();
+	}
+
+	/**
+	 * Test that evicting idle connections closes the channels that have been
+	 * idle for longer than the idle timeout.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionPool_evictIdleConnections() throws Exception {
+		connectionPool.close();
+		connectionPool = new ConnectionPool(2, 50);
+		SocketChannel socketChannel = connectionPool.acquire(serverAddress, 1000);
+		SocketChannel acceptedChannel = serverSocketChannel.accept();
+		connectionPool.release(serverAddress, socketChannel);
+		assertEquals(1, connectionPool.getIdleCount(serverAddress));
+
+		Thread.sleep(100);
+		connectionPool.evictIdleConnections();
+		assertEquals(0, connectionPool.getIdleCount(serverAddress));
+		assertFalse(socketChannel.isOpen());
+		acceptedChannel.close();
+	}
+
+	/**
+	 * Test that releasing more channels than the idle limit closes the extra
+	 * channels, and that releasing a blocking channel closes it.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testConnectionPool_releaseOverLimit() throws IOException {
+		SocketChannel[] socketChannels = new SocketChannel[3];
+		for (int i = 0; i < socketChannels.length; i++) {
+			socketChannels[i] = connectionPool.acquire(serverAddress, 1000);
+		}
+		for (SocketChannel socketChannel : socketChannels) {
+			connectionPool.release(serverAddress, socketChannel);
+		}
+		assertEquals(2, connectionPool.getIdleCount(serverAddress));
+		assertFalse(socketChannels[2].isOpen());
+
+		SocketChannel blockingChannel = ConnectNIO.getBlockingSocketChannel(serverAddress);
+		connectionPool.release(serverAddress, blockingChannel);
+		assertFalse(blockingChannel.isOpen());
+		assertEquals(2, connectionPool.getIdleCount(serverAddress));
+	}
+
+	/**
+	 * Test that acquiring a channel to an address nothing is listening on
+	 * returns null.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testConnectionPool_acquireRefused() throws IOException {
+		serverSocketChannel.close();
+		assertNull(connectionPool.acquire(serverAddress, 1000));
+		assertEquals(1, connectionPool.getConnectedCount());
+	}
+}
@@ -0,0 +1,177 @@
+package connectionUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link FrameDecoder} class and its methods.
+ *         </p>
+ *
+ */
+public class FrameDecoderTests {
+
+	/**
+	 * Test creating a {@link FrameDecoder} with a maximum frame size less than
+	 * 1. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateFrameDecoder_invalidMaxFrameSize() {
+		new FrameDecoder(16, 0);
+	}
+
+	/**
+	 * Test that a decoder that has not read anything returns no frame.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testFrameDecoder_nextFrameBeforeRead() throws IOException {
+		FrameDecoder frameDecoder = new FrameDecoder();
+		assertNull(frameDecoder.nextFrame());
+		assertEquals(0, frameDecoder.getBufferedBytes());
+	}
+
+	/**
+	 * Test that two frames arriving in a single read are returned one at a
+	 * time.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testFrameDecoder_coalescedFrames() throws IOException {
+		ByteBuffer frames = ByteBuffer.allocate(11);
+		frames.put(FrameEncoder.encode(ByteBuffer.wrap(new byte[] { 1, 2 })));
+		frames.put(FrameEncoder.encode(ByteBuffer.wrap(new byte[] { 3 })));
+		FrameDecoder frameDecoder = new FrameDecoder();
+		frameDecoder.read(new ChunkedChannel(frames.array()));
+
+		ByteBuffer frame = frameDecoder.nextFrame();
+		assertEquals(2, frame.remaining());
+		assertEquals(1, frame.get());
+		assertEquals(2, frame.get());
+		frame = frameDecoder.nextFrame();
+		assertEquals(1, frame.remaining());
+		assertEquals(3, frame.get());
+		assertNull(frameDecoder.nextFrame());
+		frameDecoder.release();
+	}
+
+	/**
+	 * Test that a frame split across several reads, including a split inside
+	 * its length prefix, is only returned once all of it has arrived, and
+	 * that the buffer grows to hold a frame larger than its initial capacity.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testFrameDecoder_splitFrame() throws IOException {
+		byte[] message = new byte[40];
+		for (int i = 0; i < message.length; i++) {
+			message[i] = (byte) i;
+		}
+		ByteBuffer encoded = FrameEncoder.encode(ByteBuffer.wrap(message));
+		byte[] frameBytes = new byte[encoded.remaining()];
+		encoded.get(frameBytes);
+
+		ChunkedChannel channel = new ChunkedChannel(slice(frameBytes, 0, 2), slice(frameBytes, 2, 5),
+				slice(frameBytes, 5, 20), slice(frameBytes, 20, frameBytes.length));
+		FrameDecoder frameDecoder = new FrameDecoder(8, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+
+		frameDecoder.read(channel);
+		assertNull(frameDecoder.nextFrame());
+		assertEquals(2, frameDecoder.getBufferedBytes());
+		frameDecoder.read(channel);
+		assertNull(frameDecoder.nextFrame());
+		assertEquals(5, frameDecoder.getBufferedBytes());
+		frameDecoder.read(channel);
+		assertNull(frameDecoder.nextFrame());
+
+		ByteBuffer frame = frameDecoder.readFrame(channel);
+		assertEquals(message.length, frame.remaining());
+		for (int i = 0; i < message.length; i++) {
+			assertEquals(message[i], frame.get());
+		}
+		assertEquals(0, frameDecoder.getBufferedBytes());
+		frameDecoder.release();
+	}
+
+	/**
+	 * Test that a frame whose length is larger than the maximum frame size is
+	 * rejected as a corrupt stream.
+	 *
+	 * @throws IOException
+	 */
+	@Test(expected = IOException.class)
+	public void testFrameDecoder_oversizedFrame() throws IOException {
+		FrameDecoder frameDecoder = new FrameDecoder(16, 32);
+		frameDecoder.read(new ChunkedChannel(lengthPrefix(33)));
+		frameDecoder.nextFrame();
+	}
+
+	/**
+	 * Test that a frame with a negative length is rejected as a corrupt
+	 * stream.
+	 *
+	 * @throws IOException
+	 */
+	@Test(expected = IOException.class)
+	public void testFrameDecoder_negativeFrameLength() throws IOException {
+		FrameDecoder frameDecoder = new FrameDecoder();
+		frameDecoder.read(new ChunkedChannel(lengthPrefix(-1)));
+		frameDecoder.nextFrame();
+	}
+
+	private static byte[] slice(byte[] bytes, int from, int to) {
+		byte[] slice = new byte[to - from];
+		System.arraycopy(bytes, from, slice, 0, slice.length);
+		return slice;
+	}
+
+	private static byte[] lengthPrefix(int length) {
+		return ByteBuffer.allocate(FrameEncoder.HEADER_SIZE).putInt(length).array();
+	}
+
+	/**
+	 * A channel that returns one of the given chunks of bytes on each read,
+	 * then end-of-stream.
+	 */
+	private static class ChunkedChannel implements ReadableByteChannel {
+
+		private Queue<byte[]> chunks = new ArrayDeque<byte[]>();
+
+		ChunkedChannel(byte[]... chunks) {
+			for (byte[] chunk : chunks) {
+				this.chunks.add(chunk);
+			}
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			byte[] chunk = chunks.poll();
+			if (chunk == null) {
+				return -1;
+			}
+			dst.put(chunk);
+			return chunk.length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package connectionUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link ServerTable} class and its methods.
+ *         </p>
+ *
+ */
+public class ServerTableTests {
+
+	/**
+	 * Test that an encoded table decodes to the same version, refresh time
+	 * and entries, including an entry given by host name.
+	 */
+	@Test
+	public void testServerTable_encodeDecode() {
+		ServerTable serverTable = new ServerTable(7, 30, Arrays.asList(new InetSocketAddress("127.0.0.2", 8080),
+				InetSocketAddress.createUnresolved("localhost", 8081)), Arrays.asList(10, 3));
+		ByteBuffer buffer = serverTable.encode();
+		assertEquals(MessageType.SERVER_TABLE, MessageType.values()[buffer.get()]);
+		assertEquals(30, ServerTable.decodeRefreshSeconds(buffer));
+
+		ServerTable decodedTable = ServerTable.decode(buffer);
+		assertEquals(0, buffer.remaining());
+		assertEquals(7, decodedTable.getVersion());
+		assertEquals(30, decodedTable.getRefreshSeconds());
+		assertEquals(Arrays.asList(10, 3), decodedTable.getWeights());
+		assertEquals(new InetSocketAddress("127.0.0.2", 8080), decodedTable.getServerAddresses().get(0));
+		assertEquals("localhost", decodedTable.getServerAddresses().get(1).getHostString());
+		assertEquals(8081, decodedTable.getServerAddresses().get(1).getPort());
+	}
+
+	/**
+	 * Test that a reply saying the requester's table is still current decodes
+	 * to no table, and that its refresh time can still be read.
+	 */
+	@Test
+	public void testServerTable_notModified() {
+		ByteBuffer buffer = ServerTable.encodeNotModified(7, 45);
+		assertEquals(ServerTable.HEADER_SIZE, buffer.remaining());
+		buffer.get();
+		assertEquals(45, ServerTable.decodeRefreshSeconds(buffer));
+		assertNull(ServerTable.decode(buffer));
+	}
+}
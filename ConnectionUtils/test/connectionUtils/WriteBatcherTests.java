@@ -0,0 +1,160 @@
+package connectionUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link WriteBatcher} class and its methods.
+ *         </p>
+ *
+ */
+public class WriteBatcherTests {
+
+	/**
+	 * Test creating a {@link WriteBatcher} with a negative flush threshold.
+	 * Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateWriteBatcher_negativeThreshold() {
+		new WriteBatcher(new RecordingChannel(Integer.MAX_VALUE), -1);
+	}
+
+	/**
+	 * Test that queued messages are held until the flush threshold is
+	 * reached, then written together in a single gathering write.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBatcher_thresholdFlush() throws Exception {
+		RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+		// Each framed message is 4 bytes of length prefix plus 4 of data
+		WriteBatcher writeBatcher = new WriteBatcher(channel, 20);
+
+		writeBatcher.enqueue(message(1));
+		writeBatcher.enqueue(message(2));
+		assertEquals(16, writeBatcher.getQueuedBytes());
+		assertEquals(0, channel.writeCount);
+
+		writeBatcher.enqueue(message(3));
+		assertEquals(0, writeBatcher.getQueuedBytes());
+		assertEquals(1, channel.writeCount);
+		assertEquals(1, writeBatcher.getFlushCount());
+		assertEquals(3, writeBatcher.getMessageCount());
+		assertArrayEquals(frames(1, 2, 3), channel.written.toByteArray());
+	}
+
+	/**
+	 * Test that sending a message writes it straight away, after anything
+	 * queued before it.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBatcher_send() throws Exception {
+		RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+		WriteBatcher writeBatcher = new WriteBatcher(channel, 1024);
+
+		writeBatcher.enqueue(message(1));
+		writeBatcher.send(message(2));
+		assertEquals(0, writeBatcher.getQueuedBytes());
+		assertEquals(1, channel.writeCount);
+		assertArrayEquals(frames(1, 2), channel.written.toByteArray());
+	}
+
+	/**
+	 * Test that a flush keeps writing when the channel only accepts part of
+	 * the queued bytes at a time, including a write that ends inside a frame,
+	 * until every frame has been written in order.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteBatcher_partialWrite() throws Exception {
+		RecordingChannel channel = new RecordingChannel(5);
+		WriteBatcher writeBatcher = new WriteBatcher(channel, 1024);
+
+		writeBatcher.enqueue(message(1));
+		writeBatcher.enqueue(message(2));
+		writeBatcher.enqueue(message(3));
+		writeBatcher.flush();
+		assertEquals(0, writeBatcher.getQueuedBytes());
+		assertTrue(channel.writeCount >= 5);
+		assertEquals(1, writeBatcher.getFlushCount());
+		assertArrayEquals(frames(1, 2, 3), channel.written.toByteArray());
+	}
+
+	private static ByteBuffer message(int value) {
+		ByteBuffer message = ByteBuffer.allocate(4);
+		message.putInt(value);
+		message.flip();
+		return message;
+	}
+
+	private static byte[] frames(int... values) {
+		ByteBuffer frames = ByteBuffer.allocate(values.length * 8);
+		for (int value : values) {
+			frames.putInt(4);
+			frames.putInt(value);
+		}
+		return frames.array();
+	}
+
+	/**
+	 * A channel that records the bytes written to it, accepting at most the
+	 * given number of bytes on each write.
+	 */
+	private static class RecordingChannel implements GatheringByteChannel {
+
+		private final int maxBytesPerWrite;
+
+		private ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+		private int writeCount = 0;
+
+		RecordingChannel(int maxBytesPerWrite) {
+			this.maxBytesPerWrite = maxBytesPerWrite;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			writeCount++;
+			int remaining = maxBytesPerWrite;
+			for (int i = offset; i < offset + length && remaining > 0; i++) {
+				while (srcs[i].hasRemaining() && remaining > 0) {
+					written.write(srcs[i].get());
+					remaining--;
+				}
+			}
+			return maxBytesPerWrite - remaining;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			return (int) write(new ByteBuffer[] { src }, 0, 1);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
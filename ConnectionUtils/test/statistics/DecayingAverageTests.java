@@ -0,0 +1,91 @@
+package statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link DecayingAverage} class and its methods.
+ *         </p>
+ *
+ */
+public class DecayingAverageTests {
+
+	/**
+	 * The half-life used by the tests, in nanoseconds.
+	 */
+	private static final long HALF_LIFE_NANOS = 1000;
+
+	/**
+	 * Test creating a {@link DecayingAverage} with a half-life of 0. Should
+	 * throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateDecayingAverage_invalidHalfLife() {
+		new DecayingAverage(0);
+	}
+
+	/**
+	 * Test that the first sample becomes the average.
+	 */
+	@Test
+	public void testDecayingAverage_firstSample() {
+		DecayingAverage decayingAverage = new DecayingAverage(HALF_LIFE_NANOS);
+		assertFalse(decayingAverage.hasValue());
+		assertEquals(40, decayingAverage.add(40, 5000), 0);
+		assertTrue(decayingAverage.hasValue());
+		assertEquals(40, decayingAverage.getAverage(), 0);
+	}
+
+	/**
+	 * Test that each sample is weighted by the time since the previous one
+	 * over gaps of irregular length: after one half-life the previous average
+	 * counts for half, after three for an eighth, and after half a half-life
+	 * for 2^-0.5.
+	 */
+	@Test
+	public void testDecayingAverage_halfLifeOverIrregularGaps() {
+		DecayingAverage decayingAverage = new DecayingAverage(HALF_LIFE_NANOS);
+		decayingAverage.add(0, 0);
+		assertEquals(50, decayingAverage.add(100, 1000), 1e-9);
+		assertEquals(93.75, decayingAverage.add(100, 4000), 1e-9);
+		assertEquals(93.75 * Math.pow(2, -0.5), decayingAverage.add(0, 4500), 1e-9);
+	}
+
+	/**
+	 * Test that a burst of samples moves the average no further than a single
+	 * sample spanning the same time, unlike a fixed per-sample weight.
+	 */
+	@Test
+	public void testDecayingAverage_burstMatchesSingleSample() {
+		DecayingAverage burstAverage = new DecayingAverage(HALF_LIFE_NANOS);
+		burstAverage.add(0, 0);
+		for (int i = 1; i <= 10; i++) {
+			burstAverage.add(100, i * 100);
+		}
+		DecayingAverage singleAverage = new DecayingAverage(HALF_LIFE_NANOS);
+		singleAverage.add(0, 0);
+		singleAverage.add(100, 1000);
+		assertEquals(singleAverage.getAverage(), burstAverage.getAverage(), 1e-9);
+	}
+
+	/**
+	 * Test that a sample timestamped at or before the previous one carries no
+	 * weight, and that resetting makes the next sample the average.
+	 */
+	@Test
+	public void testDecayingAverage_outOfOrderSampleAndReset() {
+		DecayingAverage decayingAverage = new DecayingAverage(HALF_LIFE_NANOS);
+		decayingAverage.add(10, 2000);
+		assertEquals(10, decayingAverage.add(1000, 2000), 0);
+		assertEquals(10, decayingAverage.add(1000, 1500), 0);
+
+		decayingAverage.reset();
+		assertFalse(decayingAverage.hasValue());
+		assertEquals(70, decayingAverage.add(70, 0), 0);
+	}
+}
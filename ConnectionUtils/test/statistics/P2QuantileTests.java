@@ -0,0 +1,116 @@
+package statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link P2Quantile} class and its methods.
+ *         </p>
+ *
+ */
+public class P2QuantileTests {
+
+	/**
+	 * The number of values in each seeded stream.
+	 */
+	private static final int STREAM_LENGTH = 10000;
+
+	/**
+	 * Test creating a {@link P2Quantile} for a quantile outside (0, 1).
+	 * Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateP2Quantile_invalidQuantile() {
+		new P2Quantile(1);
+	}
+
+	/**
+	 * Test that no estimate is given before any values are added, and that
+	 * the quantile of the first few values is exact.
+	 */
+	@Test
+	public void testP2Quantile_firstValuesExact() {
+		P2Quantile p2Quantile = new P2Quantile(0.5);
+		assertTrue(Double.isNaN(p2Quantile.getQuantile()));
+		p2Quantile.add(30);
+		p2Quantile.add(10);
+		p2Quantile.add(20);
+		assertEquals(20, p2Quantile.getQuantile(), 0);
+		p2Quantile.add(40);
+		p2Quantile.add(0);
+		assertEquals(5, p2Quantile.getCount());
+		assertEquals(20, p2Quantile.getQuantile(), 0);
+	}
+
+	/**
+	 * Test that the estimates of several quantiles of a seeded log-normal
+	 * stream, shaped like network round trip times, are within 2% of the
+	 * exact quantiles.
+	 */
+	@Test
+	public void testP2Quantile_logNormalStream() {
+		double[] values = new double[STREAM_LENGTH];
+		Random random = new Random(42);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Math.exp(random.nextGaussian() * 0.5);
+		}
+		assertEstimates(values);
+	}
+
+	/**
+	 * Test that the estimates of several quantiles of a seeded uniform stream
+	 * are within 2% of the exact quantiles.
+	 */
+	@Test
+	public void testP2Quantile_uniformStream() {
+		double[] values = new double[STREAM_LENGTH];
+		Random random = new Random(7);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextDouble() * 100;
+		}
+		assertEstimates(values);
+	}
+
+	/**
+	 * Test that resetting discards every value, so that the estimate only
+	 * reflects values added afterwards.
+	 */
+	@Test
+	public void testP2Quantile_reset() {
+		P2Quantile p2Quantile = new P2Quantile(0.9);
+		for (int i = 0; i < 100; i++) {
+			p2Quantile.add(1000);
+		}
+		p2Quantile.reset();
+		assertEquals(0, p2Quantile.getCount());
+		assertTrue(Double.isNaN(p2Quantile.getQuantile()));
+		for (int i = 1; i <= 10; i++) {
+			p2Quantile.add(i);
+		}
+		assertTrue(p2Quantile.getQuantile() <= 10);
+	}
+
+	/**
+	 * Asserts that the estimates of the median, 90th and 99th percentiles of
+	 * the given values are within 2% of the exact, nearest-rank quantiles.
+	 */
+	private static void assertEstimates(double[] values) {
+		double[] sortedValues = values.clone();
+		Arrays.sort(sortedValues);
+		for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+			P2Quantile p2Quantile = new P2Quantile(quantile);
+			for (double value : values) {
+				p2Quantile.add(value);
+			}
+			double exact = sortedValues[(int) Math.ceil(quantile * sortedValues.length) - 1];
+			assertEquals("Quantile " + quantile, exact, p2Quantile.getQuantile(), exact * 0.02);
+		}
+	}
+}
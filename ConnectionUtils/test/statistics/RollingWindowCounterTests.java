@@ -0,0 +1,100 @@
+package statistics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link RollingWindowCounter} class and its methods.
+ *         </p>
+ *
+ */
+public class RollingWindowCounterTests {
+
+	/**
+	 * Test creating a {@link RollingWindowCounter} with a window shorter than
+	 * one nanosecond per bucket. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateRollingWindowCounter_invalidWindow() {
+		new RollingWindowCounter(5, 10);
+	}
+
+	/**
+	 * Test that the window is rounded down to a whole number of buckets.
+	 */
+	@Test
+	public void testRollingWindowCounter_getWindowNanos() {
+		assertEquals(1000, new RollingWindowCounter(1005, 10).getWindowNanos());
+	}
+
+	/**
+	 * Test that events are counted until their bucket slides out of the
+	 * window, one bucket at a time, and that a bucket reused on a later pass
+	 * round the ring only counts its new events.
+	 */
+	@Test
+	public void testRollingWindowCounter_windowExpiry() {
+		// Ten buckets of 100ns each
+		RollingWindowCounter counter = new RollingWindowCounter(1000, 10);
+		counter.add(1, 0);
+		counter.add(2, 150);
+		counter.add(4, 190);
+		assertEquals(7, counter.getCount(190));
+		assertEquals(7, counter.getCount(999));
+
+		// The first bucket has left the window
+		assertEquals(6, counter.getCount(1000));
+		// The second bucket has left too
+		assertEquals(0, counter.getCount(1100));
+
+		// The first bucket is reused for a later slice
+		counter.add(5, 1050);
+		assertEquals(11, counter.getCount(1050));
+		assertEquals(5, counter.getCount(1100));
+		assertEquals(0, counter.getCount(2050));
+	}
+
+	/**
+	 * Test that the rate is the count over the window, in events per second.
+	 */
+	@Test
+	public void testRollingWindowCounter_getRatePerSecond() {
+		RollingWindowCounter counter = new RollingWindowCounter(1000000000L, 10);
+		long startNanos = 50000000000L;
+		for (int i = 0; i < 10; i++) {
+			counter.add(20, startNanos + i * 100000000L);
+		}
+		// The window spans the nine full buckets before the current one
+		assertEquals(200 / 0.9, counter.getRatePerSecond(startNanos + 900000000L), 1e-6);
+	}
+
+	/**
+	 * Test that increments made from several threads at once are all counted.
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRollingWindowCounter_concurrentIncrements() throws InterruptedException {
+		final RollingWindowCounter counter = new RollingWindowCounter(60000000000L, 10);
+		final int incrementsPerThread = 20000;
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < incrementsPerThread; j++) {
+						counter.increment();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threads.length * incrementsPerThread, counter.getCount());
+	}
+}
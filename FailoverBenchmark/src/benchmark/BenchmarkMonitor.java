@@ -0,0 +1,377 @@
+package benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import connectionUtils.ConnectNIO;
+import connectionUtils.ProtocolRegistry;
+import connectionUtils.TimeSource;
+import logging.LogMessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Stands in for the NodeMonitor during a failover benchmark. Every
+ *         system component already reports registration, state changes and
+ *         failure detection to the NodeMonitor through the
+ *         {@link logging.ComponentLogger}, so by accepting those connections
+ *         and timestamping each log message on arrival, the benchmark can
+ *         reconstruct the failover timeline without any extra instrumentation
+ *         in the components themselves.
+ *         </p>
+ *
+ */
+public class BenchmarkMonitor implements Runnable {
+
+	/**
+	 * The port that the components have been configured to send their log
+	 * messages to.
+	 */
+	private int acceptPort;
+
+	/**
+	 * Used to hand out unique component IDs on registration.
+	 */
+	private AtomicInteger nextComponentID = new AtomicInteger(1);
+
+	/**
+	 * Registration events in the order they are received, so that the
+	 * benchmark can match each started process to its component ID.
+	 */
+	private BlockingQueue<LogEvent> registrations = new LinkedBlockingQueue<>();
+
+	/**
+	 * Every log message that has been received, in arrival order.
+	 */
+	private List<LogEvent> events = new ArrayList<>();
+
+	/**
+	 * The current state of each load balancer, keyed by component ID. True if
+	 * the load balancer last reported entering the active state.
+	 */
+	private Map<Integer, Boolean> loadBalancerActiveStates = new ConcurrentHashMap<>();
+
+	/**
+	 * The server socket used to accept component connections.
+	 */
+	private ServerSocketChannel serverSocketChannel;
+
+	/**
+	 * Creates a new BenchmarkMonitor that will accept component connections
+	 * on the given port when started in a new thread.
+	 *
+	 * @param acceptPort
+	 *            the port to accept component connections on
+	 */
+	public BenchmarkMonitor(int acceptPort) {
+		this.acceptPort = acceptPort;
+	}
+
+	@Override
+	public void run() {
+		serverSocketChannel = ConnectNIO.getServerSocketChannel(new InetSocketAddress("127.0.0.1", acceptPort));
+		ExecutorService threadPoolExecutor = Executors.newCachedThreadPool();
+		while (!Thread.currentThread().isInterrupted() && serverSocketChannel.isOpen()) {
+			try {
+				SocketChannel connectRequestSocket = serverSocketChannel.accept();
+				threadPoolExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						readComponentMessages(connectRequestSocket);
+					}
+				});
+			} catch (IOException e) {
+				break;
+			}
+		}
+		threadPoolExecutor.shutdownNow();
+	}
+
+	/**
+	 * Stops accepting new component connections.
+	 */
+	public void stop() {
+		try {
+			serverSocketChannel.close();
+		} catch (IOException | NullPointerException e) {
+		}
+	}
+
+	/**
+	 * Reads and timestamps log messages from a single component until the
+	 * connection is closed. As several log messages can arrive in a single
+	 * read, each message is split off using its known length.
+	 */
+	private void readComponentMessages(SocketChannel socketChannel) {
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		int componentID = -1;
+		try {
+			while (socketChannel.read(buffer) != -1) {
+				long receivedNanos = System.nanoTime();
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					LogMessageType messageType = ProtocolRegistry.getLogMessageType(buffer.get(buffer.position()));
+					if (messageType == null) {
+						// Unknown message type - the message boundaries are
+						// lost, so drop the rest of the read
+						buffer.position(buffer.limit());
+						break;
+					}
+					int messageLength = getMessageLength(messageType);
+					if (messageLength == -1) {
+						messageLength = buffer.remaining();
+					}
+					if (buffer.remaining() < messageLength) {
+						break;
+					}
+					int messageEnd = buffer.position() + messageLength;
+					buffer.get();
+					switch (messageType) {
+					case CLIENT_REGISTER:
+					case NAME_SERVICE_REGISTER:
+					case SERVER_REGISTER:
+					case LOAD_BALANCER_REGISTER:
+						componentID = nextComponentID.getAndIncrement();
+						ByteBuffer response = ByteBuffer.allocate(5);
+						response.put((byte) LogMessageType.REGISTRATION_CONFIRM.getValue());
+						response.putInt(componentID);
+						response.flip();
+						while (response.hasRemaining()) {
+							socketChannel.write(response);
+						}
+						LogEvent registration = new LogEvent(receivedNanos, messageType, componentID);
+						addEvent(registration);
+						registrations.add(registration);
+						break;
+					default:
+						componentID = buffer.getInt();
+						if (messageType == LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE) {
+							loadBalancerActiveStates.put(componentID, true);
+						} else if (messageType == LogMessageType.LOAD_BALANCER_ENTERED_PASSIVE) {
+							loadBalancerActiveStates.put(componentID, false);
+						}
+						addEvent(new LogEvent(receivedNanos, messageType, componentID));
+						break;
+					}
+					buffer.position(messageEnd);
+				}
+				buffer.compact();
+			}
+		} catch (IOException | IndexOutOfBoundsException e) {
+		}
+		try {
+			socketChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @param messageType
+	 *            the type of log message
+	 * @return the length in bytes of the given log message (including the
+	 *         type byte), or -1 if the message has a variable length and
+	 *         extends to the end of the data read.
+	 */
+	private int getMessageLength(LogMessageType messageType) {
+		switch (messageType) {
+		case CLIENT_REGISTER:
+			return 21;
+		case NAME_SERVICE_REGISTER:
+		case SERVER_REGISTER:
+		case LOAD_BALANCER_REGISTER:
+			return 1;
+		case CLIENT_MESSAGE_COUNT:
+			return 17;
+		case SERVER_CPU_LOAD:
+			return 13;
+		case NAME_SERVICE_ADDR_REGISTERED:
+			return -1;
+		default:
+			return 5;
+		}
+	}
+
+	/**
+	 * Adds an event to the list of received events.
+	 */
+	private synchronized void addEvent(LogEvent logEvent) {
+		events.add(logEvent);
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the next component registration of the given type.
+	 *
+	 * @param registrationType
+	 *            the registration message type to wait for
+	 * @param timeoutMillis
+	 *            the maximum time to wait
+	 * @return the ID assigned to the registered component, or -1 if no
+	 *         registration of the given type was received in time.
+	 */
+	public int awaitRegistration(LogMessageType registrationType, long timeoutMillis) {
+		long deadline = TimeSource.monotonicMillis() + timeoutMillis;
+		try {
+			long remainingMillis;
+			while ((remainingMillis = deadline - TimeSource.monotonicMillis()) > 0) {
+				LogEvent registration = registrations.poll(remainingMillis, TimeUnit.MILLISECONDS);
+				if (registration != null && registration.getMessageType() == registrationType) {
+					return registration.getComponentID();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the first event of any of the given types that was received after
+	 * the given time, optionally ignoring events from one component.
+	 *
+	 * @param afterNanos
+	 *            only events received after this <code>System.nanoTime</code>
+	 *            value are considered
+	 * @param excludedComponentID
+	 *            events from this component are ignored (-1 to include all)
+	 * @param messageTypes
+	 *            the event types to look for
+	 * @return the first matching event, or null if none has been received.
+	 */
+	public synchronized LogEvent findFirstEvent(long afterNanos, int excludedComponentID,
+			LogMessageType... messageTypes) {
+		for (LogEvent logEvent : events) {
+			if (logEvent.getReceivedNanos() <= afterNanos || logEvent.getComponentID() == excludedComponentID) {
+				continue;
+			}
+			for (LogMessageType messageType : messageTypes) {
+				if (logEvent.getMessageType() == messageType) {
+					return logEvent;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Blocks until an event of one of the given types is received after the
+	 * given time, or the timeout expires.
+	 *
+	 * @return the first matching event, or null if the timeout expired.
+	 */
+	public synchronized LogEvent awaitEvent(long afterNanos, int excludedComponentID, long timeoutMillis,
+			LogMessageType... messageTypes) {
+		long deadline = TimeSource.monotonicMillis() + timeoutMillis;
+		LogEvent logEvent;
+		while ((logEvent = findFirstEvent(afterNanos, excludedComponentID, messageTypes)) == null) {
+			long remainingMillis = deadline - TimeSource.monotonicMillis();
+			if (remainingMillis <= 0) {
+				return null;
+			}
+			try {
+				wait(remainingMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return logEvent;
+	}
+
+	/**
+	 * @param messageTypes
+	 *            the event types to look for
+	 * @return the <code>System.nanoTime</code> value at which the most recent
+	 *         event of any of the given types was received, or 0 if no such
+	 *         event has been received.
+	 */
+	public synchronized long getLastEventNanos(LogMessageType... messageTypes) {
+		for (int i = events.size() - 1; i >= 0; i--) {
+			for (LogMessageType messageType : messageTypes) {
+				if (events.get(i).getMessageType() == messageType) {
+					return events.get(i).getReceivedNanos();
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param componentID
+	 *            the ID of a load balancer
+	 * @return true if the given load balancer last reported entering the
+	 *         active state.
+	 */
+	public boolean isActive(int componentID) {
+		Boolean isActive = loadBalancerActiveStates.get(componentID);
+		return isActive != null && isActive;
+	}
+
+	/**
+	 * @author Joachim
+	 *         <p>
+	 *         A single log message received from a component, along with the
+	 *         time it was received.
+	 *         </p>
+	 *
+	 */
+	public static class LogEvent {
+
+		/**
+		 * The <code>System.nanoTime</code> value when this event was
+		 * received.
+		 */
+		private long receivedNanos;
+
+		/**
+		 * The type of log message received.
+		 */
+		private LogMessageType messageType;
+
+		/**
+		 * The ID of the component that sent the log message.
+		 */
+		private int componentID;
+
+		public LogEvent(long receivedNanos, LogMessageType messageType, int componentID) {
+			this.receivedNanos = receivedNanos;
+			this.messageType = messageType;
+			this.componentID = componentID;
+		}
+
+		/**
+		 * @return the <code>System.nanoTime</code> value when this event was
+		 *         received.
+		 */
+		public long getReceivedNanos() {
+			return receivedNanos;
+		}
+
+		/**
+		 * @return the type of log message received.
+		 */
+		public LogMessageType getMessageType() {
+			return messageType;
+		}
+
+		/**
+		 * @return the ID of the component that sent the log message.
+		 */
+		public int getComponentID() {
+			return componentID;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package benchmark;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import connectionUtils.BufferPool;
+import connectionUtils.FrameEncoder;
+import connectionUtils.MessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Compares the garbage produced by the message write path before and
+ *         after the introduction of the {@link BufferPool}. Each run writes the
+ *         same number of 89-byte <code>CLIENT_REQUEST</code> messages (the most
+ *         frequent message in the system) through a pipe, which a second
+ *         thread drains. The <i>heap</i> run builds each message and its frame
+ *         in new heap buffers, as every component did previously; the
+ *         <i>pooled</i> run builds them in pooled direct buffers through
+ *         {@link FrameEncoder#write}. For each run the elapsed time, the bytes
+ *         allocated by the writing thread and the number and total duration of
+ *         garbage collections are printed.
+ *         </p>
+ *         <p>
+ *         Usage: <code>BufferPoolBenchmark [messages] [rounds]</code>. The
+ *         first round of each mode is a warm-up and is not reported.
+ *         </p>
+ *
+ */
+public class BufferPoolBenchmark {
+
+	/**
+	 * The size of a <code>CLIENT_REQUEST</code> message.
+	 */
+	private static final int MESSAGE_SIZE = 89;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		System.out.println("mode,round,elapsedMillis,allocatedBytes,bytesPerMessage,gcCount,gcMillis");
+		for (int round = 0; round <= rounds; round++) {
+			runRound("heap", false, round, messageCount);
+			runRound("pooled", true, round, messageCount);
+		}
+		System.out.println("BufferPool acquired " + BufferPool.getAcquiredCount() + " buffers, allocating "
+				+ BufferPool.getAllocatedCount() + ".");
+	}
+
+	/**
+	 * Writes <code>messageCount</code> messages through a new pipe and prints
+	 * the measurements for the round, unless it is the warm-up round.
+	 */
+	private static void runRound(String mode, boolean pooled, int round, int messageCount)
+			throws IOException, InterruptedException {
+		Pipe pipe = Pipe.open();
+		Thread drainThread = startDrainThread(pipe.source());
+
+		long startGcCount = getGcCount();
+		long startGcMillis = getGcMillis();
+		long startAllocatedBytes = getAllocatedBytes();
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < messageCount; i++) {
+			if (pooled) {
+				ByteBuffer message = BufferPool.acquire(MESSAGE_SIZE);
+				fillMessage(message, i);
+				FrameEncoder.write(pipe.sink(), message);
+				BufferPool.release(message);
+			} else {
+				ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+				fillMessage(message, i);
+				ByteBuffer frame = ByteBuffer.allocate(FrameEncoder.HEADER_SIZE + message.remaining());
+				frame.putInt(message.remaining());
+				frame.put(message);
+				frame.flip();
+				while (frame.hasRemaining()) {
+					pipe.sink().write(frame);
+				}
+			}
+		}
+
+		long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+		long allocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+		long gcCount = getGcCount() - startGcCount;
+		long gcMillis = getGcMillis() - startGcMillis;
+
+		pipe.sink().close();
+		drainThread.join();
+		pipe.source().close();
+
+		if (round > 0) {
+			System.out.println(mode + "," + round + "," + elapsedMillis + "," + allocatedBytes + ","
+					+ (allocatedBytes < 0 ? -1 : allocatedBytes / messageCount) + "," + gcCount + "," + gcMillis);
+		}
+	}
+
+	/**
+	 * Fills the given buffer with a <code>CLIENT_REQUEST</code> and flips it.
+	 */
+	private static void fillMessage(ByteBuffer message, long seed) {
+		message.put((byte) MessageType.CLIENT_REQUEST.getValue());
+		message.putLong(seed);
+		for (int i = 0; i < 10; i++) {
+			message.putLong(seed + i);
+		}
+		message.flip();
+	}
+
+	/**
+	 * Starts a thread that reads and discards everything written to the pipe
+	 * until it is closed.
+	 */
+	private static Thread startDrainThread(final Pipe.SourceChannel source) {
+		Thread drainThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+				try {
+					while (source.read(buffer) != -1) {
+						buffer.clear();
+					}
+				} catch (IOException e) {
+				}
+			}
+		});
+		drainThread.start();
+		return drainThread;
+	}
+
+	/**
+	 * @return the number of bytes allocated by the current thread, or -1 if
+	 *         the JVM does not report it.
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadBean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the total number of garbage collections so far.
+	 */
+	private static long getGcCount() {
+		long gcCount = 0;
+		for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(gcBean.getCollectionCount(), 0);
+		}
+		return gcCount;
+	}
+
+	/**
+	 * @return the total time spent in garbage collection so far, in
+	 *         milliseconds.
+	 */
+	private static long getGcMillis() {
+		long gcMillis = 0;
+		for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcMillis += Math.max(gcBean.getCollectionTime(), 0);
+		}
+		return gcMillis;
+	}
+}
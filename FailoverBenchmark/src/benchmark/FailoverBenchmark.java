@@ -0,0 +1,190 @@
+package benchmark;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.HierarchicalConfiguration;
+import org.apache.commons.configuration2.builder.fluent.Configurations;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.tree.ImmutableNode;
+
+import benchmark.BenchmarkMonitor.LogEvent;
+import logging.LogMessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Measures the failover timeline of the load balancer cluster. A
+ *         complete system is started locally, then for each trial the active
+ *         load balancer is killed and the time taken to reach each failover
+ *         milestone is recorded: failure detection by a backup, a new node
+ *         entering the active state, the name service being updated with the
+ *         new address and a client receiving its first server token. The
+ *         killed node is restarted and the cluster allowed to settle between
+ *         trials. Results are written to a CSV file and summarised as a
+ *         distribution for each milestone.
+ *         </p>
+ *
+ */
+public class FailoverBenchmark {
+
+	public static void main(String[] args) {
+		FailoverBenchmark instance = new FailoverBenchmark();
+		instance.launch(args);
+	}
+
+	private void launch(String[] args) {
+		Configurations configs = new Configurations();
+		HierarchicalConfiguration<ImmutableNode> config;
+		try {
+			config = configs.xml(args.length > 0 ? args[0] : "benchmarkConfig.xml");
+		} catch (ConfigurationException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (config.getInt("loadBalancers") < 2) {
+			System.out.println("At least 2 load balancers are required to measure failover.");
+			return;
+		}
+		int trials = config.getInt("trials");
+		long settleMillis = config.getLong("settleMillis");
+		long trialTimeoutMillis = config.getLong("trialTimeoutMillis");
+
+		BenchmarkMonitor monitor = new BenchmarkMonitor(config.getInt("monitorPort"));
+		Thread monitorThread = new Thread(monitor);
+		monitorThread.setDaemon(true);
+		monitorThread.start();
+
+		LocalCluster cluster = new LocalCluster(config, monitor);
+		List<FailoverTrial> results = new ArrayList<>();
+		try {
+			cluster.start();
+			for (int i = 1; i <= trials; i++) {
+				int activeLoadBalancerID = cluster.awaitSteadyState(settleMillis, trialTimeoutMillis);
+				if (activeLoadBalancerID == -1) {
+					System.out.println("Cluster did not reach a steady state, stopping after " + results.size()
+							+ " trials.");
+					break;
+				}
+				FailoverTrial trial = runTrial(i, activeLoadBalancerID, cluster, monitor, trialTimeoutMillis);
+				results.add(trial);
+				System.out.println("Trial " + i + ": " + trial.toCsvLine());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			cluster.shutdown();
+			monitor.stop();
+		}
+
+		try {
+			writeResults(config.getString("outputFile"), results);
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		}
+		printSummary(results);
+	}
+
+	/**
+	 * Kills the given active load balancer, waits for a client to receive a
+	 * server token from its replacement and reads each milestone from the
+	 * monitor's event log. The killed node is restarted once the trial is
+	 * complete.
+	 */
+	private FailoverTrial runTrial(int trialNumber, int activeLoadBalancerID, LocalCluster cluster,
+			BenchmarkMonitor monitor, long trialTimeoutMillis) throws IOException {
+		long killNanos = System.nanoTime();
+		int killedIndex = cluster.killLoadBalancer(activeLoadBalancerID);
+
+		LogEvent firstClientToken = monitor.awaitEvent(killNanos, activeLoadBalancerID, trialTimeoutMillis,
+				LogMessageType.CLIENT_RECONNECTED_TO_SERVICE);
+		LogEvent detection = monitor.findFirstEvent(killNanos, activeLoadBalancerID,
+				LogMessageType.LOAD_BALANCER_ACTIVE_FAILURE_DETECTED, LogMessageType.LOAD_BALANCER_NO_ACTIVE_DETECTED);
+		LogEvent activeDeclaration = monitor.findFirstEvent(killNanos, activeLoadBalancerID,
+				LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE);
+		LogEvent nameServiceUpdate = monitor.findFirstEvent(killNanos, activeLoadBalancerID,
+				LogMessageType.NAME_SERVICE_ADDR_REGISTERED);
+
+		cluster.startLoadBalancer(killedIndex);
+		return new FailoverTrial(trialNumber, getElapsedMillis(killNanos, detection),
+				getElapsedMillis(killNanos, activeDeclaration), getElapsedMillis(killNanos, nameServiceUpdate),
+				getElapsedMillis(killNanos, firstClientToken));
+	}
+
+	/**
+	 * @return the number of milliseconds between the given time and the given
+	 *         event being received, or -1 if the event was not received.
+	 */
+	private double getElapsedMillis(long startNanos, LogEvent logEvent) {
+		if (logEvent == null) {
+			return -1;
+		}
+		return (logEvent.getReceivedNanos() - startNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Writes the results of every trial to the given CSV file.
+	 */
+	private void writeResults(String outputFile, List<FailoverTrial> results) throws FileNotFoundException {
+		try (PrintWriter writer = new PrintWriter(outputFile)) {
+			writer.println("trial," + String.join(",", FailoverTrial.MILESTONE_NAMES));
+			for (FailoverTrial trial : results) {
+				writer.println(trial.toCsvLine());
+			}
+		}
+		System.out.println("Results written to " + outputFile);
+	}
+
+	/**
+	 * Prints the distribution of each milestone over all completed trials.
+	 */
+	private void printSummary(List<FailoverTrial> results) {
+		int completedTrials = 0;
+		for (FailoverTrial trial : results) {
+			if (trial.isComplete()) {
+				completedTrials++;
+			}
+		}
+		System.out.println(completedTrials + " of " + results.size() + " trials completed every milestone.");
+		System.out.println(String.format("%-20s %6s %10s %10s %10s %10s %10s %10s", "milestone (ms)", "count", "min",
+				"mean", "p50", "p90", "p99", "max"));
+		for (int m = 0; m < FailoverTrial.MILESTONE_NAMES.length; m++) {
+			List<Double> samples = new ArrayList<>();
+			for (FailoverTrial trial : results) {
+				double millis = trial.getMilestoneMillis()[m];
+				if (millis >= 0) {
+					samples.add(millis);
+				}
+			}
+			if (samples.isEmpty()) {
+				System.out.println(String.format("%-20s %6d", FailoverTrial.MILESTONE_NAMES[m], 0));
+				continue;
+			}
+			double[] sorted = new double[samples.size()];
+			double sum = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = samples.get(i);
+				sum += sorted[i];
+			}
+			Arrays.sort(sorted);
+			System.out.println(String.format("%-20s %6d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+					FailoverTrial.MILESTONE_NAMES[m], sorted.length, sorted[0], sum / sorted.length,
+					getPercentile(sorted, 0.5), getPercentile(sorted, 0.9), getPercentile(sorted, 0.99),
+					sorted[sorted.length - 1]));
+		}
+	}
+
+	/**
+	 * @return the given percentile of the sorted samples using the
+	 *         nearest-rank method.
+	 */
+	private double getPercentile(double[] sortedSamples, double percentile) {
+		int rank = (int) Math.ceil(percentile * sortedSamples.length) - 1;
+		return sortedSamples[Math.max(0, Math.min(rank, sortedSamples.length - 1))];
+	}
+}
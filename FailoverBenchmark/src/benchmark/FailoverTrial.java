@@ -0,0 +1,91 @@
+package benchmark;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         The timeline of a single failover trial. Each milestone is stored as
+ *         the number of milliseconds between the active load balancer being
+ *         killed and the milestone being observed, or -1 if the milestone was
+ *         not observed before the trial timed out.
+ *         </p>
+ *
+ */
+public class FailoverTrial {
+
+	/**
+	 * The names of each milestone, in the order they are returned by
+	 * <code>getMilestoneMillis</code>.
+	 */
+	public static final String[] MILESTONE_NAMES = { "detection", "activeDeclaration", "nameServiceUpdate",
+			"firstClientToken" };
+
+	/**
+	 * The trial number.
+	 */
+	private int trialNumber;
+
+	/**
+	 * The time taken for each milestone to be observed.
+	 */
+	private double[] milestoneMillis;
+
+	/**
+	 * Creates a new FailoverTrial with the given milestone times.
+	 *
+	 * @param trialNumber
+	 *            the trial number
+	 * @param detectionMillis
+	 *            the time until a backup detected the failure
+	 * @param activeDeclarationMillis
+	 *            the time until a new load balancer entered the active state
+	 * @param nameServiceUpdateMillis
+	 *            the time until the name service was given the new active's
+	 *            address
+	 * @param firstClientTokenMillis
+	 *            the time until a client first received a server token
+	 */
+	public FailoverTrial(int trialNumber, double detectionMillis, double activeDeclarationMillis,
+			double nameServiceUpdateMillis, double firstClientTokenMillis) {
+		this.trialNumber = trialNumber;
+		this.milestoneMillis = new double[] { detectionMillis, activeDeclarationMillis, nameServiceUpdateMillis,
+				firstClientTokenMillis };
+	}
+
+	/**
+	 * @return the trial number.
+	 */
+	public int getTrialNumber() {
+		return trialNumber;
+	}
+
+	/**
+	 * @return the time taken for each milestone to be observed, in the order
+	 *         given by <code>MILESTONE_NAMES</code>.
+	 */
+	public double[] getMilestoneMillis() {
+		return milestoneMillis;
+	}
+
+	/**
+	 * @return true if every milestone was observed during this trial.
+	 */
+	public boolean isComplete() {
+		for (double millis : milestoneMillis) {
+			if (millis < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return this trial as a line of comma separated values.
+	 */
+	public String toCsvLine() {
+		StringBuilder line = new StringBuilder().append(trialNumber);
+		for (double millis : milestoneMillis) {
+			line.append(',').append(String.format("%.3f", millis));
+		}
+		return line.toString();
+	}
+}
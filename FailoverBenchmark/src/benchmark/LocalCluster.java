@@ -0,0 +1,326 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration2.HierarchicalConfiguration;
+import org.apache.commons.configuration2.tree.ImmutableNode;
+
+import connectionUtils.TimeSource;
+import logging.LogMessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Starts and stops a complete system on the local machine, with every
+ *         component running as a separate process: a NameService, N Servers,
+ *         K LoadBalancers and a ClientVirtualizer. Each process is given its
+ *         own working directory containing a generated configuration file.
+ *         Every load balancer is bound to its own loopback address
+ *         (127.0.0.x) as load balancers identify each other by IP address.
+ *         </p>
+ *
+ */
+public class LocalCluster {
+
+	/**
+	 * The benchmark configuration.
+	 */
+	private HierarchicalConfiguration<ImmutableNode> config;
+
+	/**
+	 * The monitor that all processes log to.
+	 */
+	private BenchmarkMonitor monitor;
+
+	/**
+	 * The root of the repository, used to resolve classpath entries.
+	 */
+	private File repositoryRoot;
+
+	/**
+	 * The directory that each process's working directory is created in.
+	 */
+	private File runDirectory;
+
+	/**
+	 * The time to wait for a newly started process to register with the
+	 * {@link BenchmarkMonitor}.
+	 */
+	private long registrationTimeoutMillis;
+
+	/**
+	 * All processes that have been started, so that they can be destroyed on
+	 * shutdown.
+	 */
+	private List<Process> processes = new ArrayList<>();
+
+	/**
+	 * The process running each load balancer, keyed by component ID.
+	 */
+	private Map<Integer, Process> loadBalancerProcesses = new HashMap<>();
+
+	/**
+	 * The index (used to derive the load balancer's address) of each load
+	 * balancer, keyed by component ID.
+	 */
+	private Map<Integer, Integer> loadBalancerIndices = new HashMap<>();
+
+	/**
+	 * Creates a new LocalCluster using the given benchmark configuration.
+	 *
+	 * @param config
+	 *            the benchmark configuration
+	 * @param monitor
+	 *            the monitor that all started processes will log to
+	 */
+	public LocalCluster(HierarchicalConfiguration<ImmutableNode> config, BenchmarkMonitor monitor) {
+		this.config = config;
+		this.monitor = monitor;
+		this.repositoryRoot = new File(config.getString("repositoryRoot"));
+		this.runDirectory = new File(config.getString("runDirectory"));
+		this.registrationTimeoutMillis = config.getLong("registrationTimeoutMillis");
+	}
+
+	/**
+	 * Starts every component of the system, waiting for each to register with
+	 * the monitor before starting the next.
+	 *
+	 * @throws IOException
+	 *             if a process cannot be started or fails to register.
+	 */
+	public void start() throws IOException {
+		startNameService();
+		for (int i = 0; i < config.getInt("servers"); i++) {
+			startServer(i);
+		}
+		for (int i = 0; i < config.getInt("loadBalancers"); i++) {
+			startLoadBalancer(i);
+		}
+		startClientVirtualizer();
+	}
+
+	/**
+	 * Destroys every process that has been started.
+	 */
+	public void shutdown() {
+		for (Process process : processes) {
+			process.destroyForcibly();
+		}
+	}
+
+	/**
+	 * @return the component ID of the single live load balancer that is in
+	 *         the active state, or -1 if there is not exactly one.
+	 */
+	public int getActiveLoadBalancerID() {
+		int activeLoadBalancerID = -1;
+		for (Map.Entry<Integer, Process> loadBalancer : loadBalancerProcesses.entrySet()) {
+			if (loadBalancer.getValue().isAlive() && monitor.isActive(loadBalancer.getKey())) {
+				if (activeLoadBalancerID != -1) {
+					return -1;
+				}
+				activeLoadBalancerID = loadBalancer.getKey();
+			}
+		}
+		return activeLoadBalancerID;
+	}
+
+	/**
+	 * Waits until exactly one live load balancer is active and no load
+	 * balancer has changed state for the given settle period.
+	 *
+	 * @param settleMillis
+	 *            the period that the load balancer states must be stable for
+	 * @param timeoutMillis
+	 *            the maximum time to wait
+	 * @return the component ID of the active load balancer, or -1 if a steady
+	 *         state was not reached in time.
+	 */
+	public int awaitSteadyState(long settleMillis, long timeoutMillis) {
+		long deadline = TimeSource.monotonicMillis() + timeoutMillis;
+		while (TimeSource.monotonicMillis() < deadline) {
+			int activeLoadBalancerID = getActiveLoadBalancerID();
+			long lastStateChange = monitor.getLastEventNanos(LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE,
+					LogMessageType.LOAD_BALANCER_ENTERED_PASSIVE, LogMessageType.LOAD_BALANCER_ELECTED_AS_BACKUP);
+			if (activeLoadBalancerID != -1
+					&& System.nanoTime() - lastStateChange >= TimeUnit.MILLISECONDS.toNanos(settleMillis)) {
+				return activeLoadBalancerID;
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Kills the process running the given load balancer without allowing it
+	 * to shut down cleanly, simulating a crash.
+	 *
+	 * @param componentID
+	 *            the ID of the load balancer to kill
+	 * @return the index of the killed load balancer, so it can be restarted.
+	 */
+	public int killLoadBalancer(int componentID) {
+		Process process = loadBalancerProcesses.remove(componentID);
+		process.destroyForcibly();
+		try {
+			process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return loadBalancerIndices.remove(componentID);
+	}
+
+	/**
+	 * Starts the load balancer with the given index.
+	 *
+	 * @param index
+	 *            the index of the load balancer, used to derive its address
+	 * @return the component ID of the started load balancer.
+	 * @throws IOException
+	 *             if the process cannot be started or fails to register.
+	 */
+	public int startLoadBalancer(int index) throws IOException {
+		File workingDirectory = new File(runDirectory, "loadBalancer" + index);
+		StringBuilder serverList = new StringBuilder();
+		for (int i = 0; i < config.getInt("servers"); i++) {
+			serverList.append("<server><ipAddress>127.0.0.1</ipAddress><port>")
+					.append(config.getInt("serverBasePort") + i).append("</port></server>");
+		}
+		StringBuilder remoteLoadBalancerList = new StringBuilder();
+		for (int i = 0; i < config.getInt("loadBalancers"); i++) {
+			if (i != index) {
+				remoteLoadBalancerList.append("<remoteNode><ipAddress>").append(getLoadBalancerIP(i))
+						.append("</ipAddress><port>").append(config.getInt("loadBalancerPort"))
+						.append("</port></remoteNode>");
+			}
+		}
+		writeConfig(workingDirectory, "lbConfig.xml",
+				"<connectPort>" + config.getInt("loadBalancerPort") + "</connectPort>"
+						+ "<bindAddress>" + getLoadBalancerIP(index) + "</bindAddress>"
+						+ "<servers>" + serverList + "</servers>"
+						+ "<remoteLoadBalancers>" + remoteLoadBalancerList + "</remoteLoadBalancers>"
+						+ "<nameServiceAddress><ipAddress>127.0.0.1</ipAddress><port>"
+						+ config.getInt("nameServicePort") + "</port></nameServiceAddress>"
+						+ "<heartbeatIntervalMillis>" + config.getInt("heartbeatIntervalMillis")
+						+ "</heartbeatIntervalMillis>"
+						+ "<heartbeatTimeoutMillis>" + config.getInt("heartbeatTimeoutMillis")
+						+ "</heartbeatTimeoutMillis>"
+						+ "<defaultServerTokenExpiry>" + config.getInt("defaultServerTokenExpiry")
+						+ "</defaultServerTokenExpiry>"
+						+ "<startAsActive>false</startAsActive>");
+		startProcess(workingDirectory, "loadBalancer", "loadBalancer.LoadBalancer");
+		int componentID = awaitRegistration(LogMessageType.LOAD_BALANCER_REGISTER, "LoadBalancer " + index);
+		loadBalancerProcesses.put(componentID, processes.get(processes.size() - 1));
+		loadBalancerIndices.put(componentID, index);
+		return componentID;
+	}
+
+	/**
+	 * Starts the name service.
+	 */
+	private void startNameService() throws IOException {
+		File workingDirectory = new File(runDirectory, "nameService");
+		writeConfig(workingDirectory, "nameServiceConfig.xml",
+				"<acceptPort>" + config.getInt("nameServicePort") + "</acceptPort>");
+		startProcess(workingDirectory, "nameService", "nameService.NameService");
+		awaitRegistration(LogMessageType.NAME_SERVICE_REGISTER, "NameService");
+	}
+
+	/**
+	 * Starts the server with the given index.
+	 */
+	private void startServer(int index) throws IOException {
+		File workingDirectory = new File(runDirectory, "server" + index);
+		writeConfig(workingDirectory, "serverConfig.xml",
+				"<connectPort>" + (config.getInt("serverBasePort") + index) + "</connectPort>");
+		startProcess(workingDirectory, "server", "server.Server");
+		awaitRegistration(LogMessageType.SERVER_REGISTER, "Server " + index);
+	}
+
+	/**
+	 * Starts the client virtualizer.
+	 */
+	private void startClientVirtualizer() throws IOException {
+		File workingDirectory = new File(runDirectory, "clientVirtualizer");
+		writeConfig(workingDirectory, "clientConfig.xml",
+				"<maxClients>" + config.getInt("clients") + "</maxClients>"
+						+ "<minSendFrequencyMs>" + config.getInt("clientSendFrequencyMs") + "</minSendFrequencyMs>"
+						+ "<maxSendFrequencyMs>" + config.getInt("clientSendFrequencyMs") + "</maxSendFrequencyMs>"
+						+ "<minClientRequests>1</minClientRequests><maxClientRequests>5</maxClientRequests>"
+						+ "<nameServiceIP>127.0.0.1</nameServiceIP>"
+						+ "<nameServicePort>" + config.getInt("nameServicePort") + "</nameServicePort>");
+		startProcess(workingDirectory, "client", "client.Client");
+		awaitRegistration(LogMessageType.CLIENT_REGISTER, "ClientVirtualizer");
+	}
+
+	/**
+	 * @return the loopback address that the load balancer with the given
+	 *         index is bound to.
+	 */
+	private String getLoadBalancerIP(int index) {
+		return "127.0.0." + (config.getInt("loadBalancerFirstOctet") + index);
+	}
+
+	/**
+	 * Writes a component configuration file containing the given elements,
+	 * along with the node monitor address that all components need.
+	 */
+	private void writeConfig(File workingDirectory, String fileName, String elements) throws FileNotFoundException {
+		workingDirectory.mkdirs();
+		try (PrintWriter writer = new PrintWriter(new File(workingDirectory, fileName))) {
+			writer.println("<?xml version=\"1.0\" encoding=\"ISO-8859-1\" ?>");
+			writer.println("<configuration>");
+			writer.println(elements);
+			writer.println("<nodeMonitorPort>" + config.getInt("monitorPort") + "</nodeMonitorPort>");
+			writer.println("<nodeMonitorIP>127.0.0.1</nodeMonitorIP>");
+			writer.println("</configuration>");
+		}
+	}
+
+	/**
+	 * Starts a new JVM running the given main class, using the classpath
+	 * configured for the given component. Output is written to a log file in
+	 * the working directory.
+	 */
+	private void startProcess(File workingDirectory, String component, String mainClass) throws IOException {
+		StringBuilder classpath = new StringBuilder();
+		for (String entry : config.getList(String.class, "classpaths." + component + ".entry")) {
+			if (classpath.length() > 0) {
+				classpath.append(File.pathSeparator);
+			}
+			classpath.append(new File(repositoryRoot, entry).getAbsolutePath());
+		}
+		ProcessBuilder processBuilder = new ProcessBuilder(config.getString("javaCommand"), "-cp",
+				classpath.toString(), mainClass);
+		processBuilder.directory(workingDirectory);
+		processBuilder.redirectErrorStream(true);
+		processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(workingDirectory, "output.log")));
+		processes.add(processBuilder.start());
+	}
+
+	/**
+	 * Waits for the most recently started process to register with the
+	 * monitor.
+	 */
+	private int awaitRegistration(LogMessageType registrationType, String componentName) throws IOException {
+		int componentID = monitor.awaitRegistration(registrationType, registrationTimeoutMillis);
+		if (componentID == -1) {
+			throw new IOException(componentName + " failed to register with the benchmark monitor.");
+		}
+		System.out.println(componentName + " started (component ID " + componentID + ")");
+		return componentID;
+	}
+}
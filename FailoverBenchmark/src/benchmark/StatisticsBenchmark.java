@@ -0,0 +1,219 @@
+package benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import connectionUtils.ExponentialMovingAverage;
+import connectionUtils.TimeSource;
+import statistics.DecayingAverage;
+import statistics.P2Quantile;
+import statistics.RollingWindowCounter;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Measures the cost of the estimators in the <code>statistics</code>
+ *         package against the code they replace. Each run feeds the same
+ *         pseudo-random latency samples to one estimator and prints the time
+ *         and the bytes allocated by the measuring thread per operation:
+ *         </p>
+ *         <ul>
+ *         <li><i>ema</i> - {@link ExponentialMovingAverage}, the fixed-alpha
+ *         average.</li>
+ *         <li><i>decaying</i> - {@link DecayingAverage}, timestamping each
+ *         sample.</li>
+ *         <li><i>sortedWindow</i> - the 90th percentile of a 20-sample window
+ *         by copying and sorting it after each sample, as the load balancer's
+ *         latency record previously did.</li>
+ *         <li><i>p2</i> - the 90th percentile by {@link P2Quantile} after
+ *         each sample.</li>
+ *         <li><i>rollingCounter</i> - {@link RollingWindowCounter} increments
+ *         from the given number of threads at once, reading the count every
+ *         1000 increments; the allocation reported is that of one thread.</li>
+ *         </ul>
+ *         <p>
+ *         The error of the P<sup>2</sup> estimate against the exact 90th
+ *         percentile of all samples is printed at the end.
+ *         </p>
+ *         <p>
+ *         Usage: <code>StatisticsBenchmark [operations] [rounds] [threads]</code>.
+ *         The first round of each mode is a warm-up and is not reported.
+ *         </p>
+ *
+ */
+public class StatisticsBenchmark {
+
+	/**
+	 * The number of samples in the window of the sorted window mode.
+	 */
+	private static final int WINDOW_SIZE = 20;
+
+	/**
+	 * The percentile calculated by the percentile modes.
+	 */
+	private static final double PERCENTILE = 0.9;
+
+	/**
+	 * Sink for results, so that the work being measured is not optimised
+	 * away.
+	 */
+	private static volatile double sink;
+
+	public static void main(String[] args) throws InterruptedException {
+		int operationCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int threadCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		double[] samples = new double[operationCount];
+		Random random = new Random(42);
+		for (int i = 0; i < operationCount; i++) {
+			// Log-normal, like network round trip times in milliseconds
+			samples[i] = Math.exp(random.nextGaussian() * 0.5);
+		}
+
+		System.out.println("mode,round,elapsedMillis,nanosPerOp,allocatedBytes,bytesPerOp");
+		for (int round = 0; round <= rounds; round++) {
+			runEma(samples, round);
+			runDecaying(samples, round);
+			runSortedWindow(samples, round);
+			runP2(samples, round);
+			runRollingCounter(operationCount, threadCount, round);
+		}
+
+		P2Quantile p2Quantile = new P2Quantile(PERCENTILE);
+		for (double sample : samples) {
+			p2Quantile.add(sample);
+		}
+		double[] sortedSamples = samples.clone();
+		Arrays.sort(sortedSamples);
+		double exact = sortedSamples[(int) Math.ceil(PERCENTILE * sortedSamples.length) - 1];
+		System.out.println("P2 estimate " + p2Quantile.getQuantile() + ", exact " + exact + ", relative error "
+				+ Math.abs(p2Quantile.getQuantile() - exact) / exact);
+	}
+
+	private static void runEma(double[] samples, int round) {
+		ExponentialMovingAverage movingAverage = new ExponentialMovingAverage(0.3);
+		long startAllocatedBytes = getAllocatedBytes();
+		long startTime = System.nanoTime();
+		double result = 0;
+		for (double sample : samples) {
+			result += movingAverage.average(sample);
+		}
+		report("ema", round, samples.length, startTime, startAllocatedBytes);
+		sink = result;
+	}
+
+	private static void runDecaying(double[] samples, int round) {
+		DecayingAverage decayingAverage = new DecayingAverage(1000000L);
+		long startAllocatedBytes = getAllocatedBytes();
+		long startTime = System.nanoTime();
+		double result = 0;
+		for (double sample : samples) {
+			result += decayingAverage.add(sample, TimeSource.monotonicNanos());
+		}
+		report("decaying", round, samples.length, startTime, startAllocatedBytes);
+		sink = result;
+	}
+
+	private static void runSortedWindow(double[] samples, int round) {
+		double[] window = new double[WINDOW_SIZE];
+		int windowCount = 0;
+		long startAllocatedBytes = getAllocatedBytes();
+		long startTime = System.nanoTime();
+		double result = 0;
+		for (int i = 0; i < samples.length; i++) {
+			window[i % WINDOW_SIZE] = samples[i];
+			if (windowCount < WINDOW_SIZE) {
+				windowCount++;
+			}
+			double[] sortedWindow = Arrays.copyOf(window, windowCount);
+			Arrays.sort(sortedWindow);
+			result += sortedWindow[Math.max(0, (int) Math.ceil(PERCENTILE * windowCount) - 1)];
+		}
+		report("sortedWindow", round, samples.length, startTime, startAllocatedBytes);
+		sink = result;
+	}
+
+	private static void runP2(double[] samples, int round) {
+		P2Quantile p2Quantile = new P2Quantile(PERCENTILE);
+		long startAllocatedBytes = getAllocatedBytes();
+		long startTime = System.nanoTime();
+		double result = 0;
+		for (double sample : samples) {
+			p2Quantile.add(sample);
+			result += p2Quantile.getQuantile();
+		}
+		report("p2", round, samples.length, startTime, startAllocatedBytes);
+		sink = result;
+	}
+
+	private static void runRollingCounter(final int operationCount, int threadCount, int round)
+			throws InterruptedException {
+		final RollingWindowCounter counter = new RollingWindowCounter(1000000000L, 10);
+		final int operationsPerThread = operationCount / threadCount;
+		Thread[] threads = new Thread[threadCount - 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					incrementCounter(counter, operationsPerThread);
+				}
+			});
+		}
+
+		long startAllocatedBytes = getAllocatedBytes();
+		long startTime = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		incrementCounter(counter, operationsPerThread);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		report("rollingCounter", round, operationsPerThread * threadCount, startTime, startAllocatedBytes);
+	}
+
+	/**
+	 * Increments the counter the given number of times, reading it every
+	 * 1000 increments.
+	 */
+	private static void incrementCounter(RollingWindowCounter counter, int operationCount) {
+		long result = 0;
+		for (int i = 0; i < operationCount; i++) {
+			counter.increment();
+			if (i % 1000 == 0) {
+				result += counter.getCount();
+			}
+		}
+		sink = result;
+	}
+
+	/**
+	 * Prints the measurements for a run, unless it is the warm-up round.
+	 */
+	private static void report(String mode, int round, int operationCount, long startTime,
+			long startAllocatedBytes) {
+		long elapsedNanos = System.nanoTime() - startTime;
+		long allocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+		if (round > 0) {
+			System.out.println(mode + "," + round + "," + elapsedNanos / 1000000 + ","
+					+ String.format("%.1f", (double) elapsedNanos / operationCount) + "," + allocatedBytes + ","
+					+ (allocatedBytes < 0 ? -1 : allocatedBytes / operationCount));
+		}
+	}
+
+	/**
+	 * @return the number of bytes allocated by the current thread, or -1 if
+	 *         the JVM does not report it.
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadBean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,170 @@
+package benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import benchmark.BenchmarkMonitor.LogEvent;
+import logging.LogMessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link BenchmarkMonitor} class, which timestamps the
+ *         milestones of each failover trial and decides when the cluster has
+ *         reached a steady state.
+ *         </p>
+ *
+ */
+public class BenchmarkMonitorTests {
+
+	/**
+	 * The port the monitor accepts component connections on.
+	 */
+	private static final int MONITOR_PORT = 8025;
+
+	private BenchmarkMonitor monitor;
+
+	private SocketChannel componentChannel;
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		monitor = new BenchmarkMonitor(MONITOR_PORT);
+		new Thread(monitor).start();
+		long deadline = System.currentTimeMillis() + 2000;
+		while (componentChannel == null) {
+			try {
+				componentChannel = SocketChannel.open(new InetSocketAddress("localhost", MONITOR_PORT));
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(20);
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		componentChannel.close();
+		monitor.stop();
+	}
+
+	/**
+	 * Test that a load balancer registration is given an ID, and that its
+	 * state change events are recorded and reflected by <code>isActive</code>.
+	 */
+	@Test
+	public void testBenchmarkMonitor_registerAndChangeState() throws IOException {
+		int componentID = register();
+		assertFalse(monitor.isActive(componentID));
+
+		long beforeNanos = System.nanoTime();
+		sendEvent(LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE, componentID);
+		LogEvent activeEvent = monitor.awaitEvent(beforeNanos, -1, 2000, LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE);
+		assertNotNull(activeEvent);
+		assertEquals(componentID, activeEvent.getComponentID());
+		assertTrue(activeEvent.getReceivedNanos() > beforeNanos);
+		assertTrue(monitor.isActive(componentID));
+		assertEquals(activeEvent.getReceivedNanos(), monitor.getLastEventNanos(
+				LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE, LogMessageType.LOAD_BALANCER_ENTERED_PASSIVE));
+
+		sendEvent(LogMessageType.LOAD_BALANCER_ENTERED_PASSIVE, componentID);
+		assertNotNull(monitor.awaitEvent(activeEvent.getReceivedNanos(), -1, 2000,
+				LogMessageType.LOAD_BALANCER_ENTERED_PASSIVE));
+		assertFalse(monitor.isActive(componentID));
+	}
+
+	/**
+	 * Test that milestone lookups ignore events from the excluded (killed)
+	 * component and events received before the trial started, and that
+	 * several events arriving in one read are each recorded.
+	 */
+	@Test
+	public void testBenchmarkMonitor_findFirstEventExcludesKilledComponent() throws IOException {
+		int killedID = register();
+		int backupID = 99;
+		long killNanos = System.nanoTime();
+
+		ByteBuffer events = ByteBuffer.allocate(10);
+		putEvent(events, LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE, killedID);
+		putEvent(events, LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE, backupID);
+		events.flip();
+		while (events.hasRemaining()) {
+			componentChannel.write(events);
+		}
+
+		LogEvent declaration = monitor.awaitEvent(killNanos, killedID, 2000,
+				LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE);
+		assertNotNull(declaration);
+		assertEquals(backupID, declaration.getComponentID());
+		assertNull(monitor.findFirstEvent(System.nanoTime(), -1, LogMessageType.LOAD_BALANCER_ENTERED_ACTIVE));
+		assertNull(monitor.findFirstEvent(killNanos, -1, LogMessageType.NAME_SERVICE_ADDR_REGISTERED));
+	}
+
+	/**
+	 * Test that waiting for a milestone that never arrives returns null once
+	 * the timeout expires.
+	 */
+	@Test
+	public void testBenchmarkMonitor_awaitEventTimeout() {
+		long startTime = System.currentTimeMillis();
+		assertNull(monitor.awaitEvent(System.nanoTime(), -1, 200, LogMessageType.CLIENT_RECONNECTED_TO_SERVICE));
+		assertTrue(System.currentTimeMillis() - startTime >= 200);
+		assertEquals(0, monitor.getLastEventNanos(LogMessageType.CLIENT_RECONNECTED_TO_SERVICE));
+	}
+
+	/**
+	 * Registers the test channel as a load balancer.
+	 *
+	 * @return the component ID assigned by the monitor.
+	 */
+	private int register() throws IOException {
+		ByteBuffer registration = ByteBuffer.allocate(1);
+		registration.put((byte) LogMessageType.LOAD_BALANCER_REGISTER.getValue());
+		registration.flip();
+		componentChannel.write(registration);
+		int componentID = monitor.awaitRegistration(LogMessageType.LOAD_BALANCER_REGISTER, 2000);
+		assertTrue(componentID > 0);
+
+		ByteBuffer confirmation = ByteBuffer.allocate(5);
+		while (confirmation.hasRemaining()) {
+			componentChannel.read(confirmation);
+		}
+		confirmation.flip();
+		assertEquals(LogMessageType.REGISTRATION_CONFIRM.getValue(), confirmation.get());
+		assertEquals(componentID, confirmation.getInt());
+		return componentID;
+	}
+
+	/**
+	 * Sends a single event for the given component.
+	 */
+	private void sendEvent(LogMessageType messageType, int componentID) throws IOException {
+		ByteBuffer event = ByteBuffer.allocate(5);
+		putEvent(event, messageType, componentID);
+		event.flip();
+		while (event.hasRemaining()) {
+			componentChannel.write(event);
+		}
+	}
+
+	/**
+	 * Puts a fixed-length event into the buffer.
+	 */
+	private void putEvent(ByteBuffer buffer, LogMessageType messageType, int componentID) {
+		buffer.put((byte) messageType.getValue());
+		buffer.putInt(componentID);
+	}
+}
@@ -0,0 +1,60 @@
+package benchmark;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link FailoverTrial} class and its methods.
+ *         </p>
+ *
+ */
+public class FailoverTrialTests {
+
+	/**
+	 * Test that the milestone times are returned in the order of
+	 * <code>MILESTONE_NAMES</code>.
+	 */
+	@Test
+	public void testFailoverTrial_getMilestoneMillis() {
+		FailoverTrial trial = new FailoverTrial(3, 10, 20, 30, 40);
+		assertEquals(3, trial.getTrialNumber());
+		assertEquals(FailoverTrial.MILESTONE_NAMES.length, trial.getMilestoneMillis().length);
+		assertArrayEquals(new double[] { 10, 20, 30, 40 }, trial.getMilestoneMillis(), 0);
+	}
+
+	/**
+	 * Test that a trial is only complete if every milestone was observed.
+	 */
+	@Test
+	public void testFailoverTrial_isComplete() {
+		assertTrue(new FailoverTrial(1, 0, 1.5, 2, 3).isComplete());
+		assertFalse(new FailoverTrial(1, -1, 1.5, 2, 3).isComplete());
+		assertFalse(new FailoverTrial(1, 0, 1.5, 2, -1).isComplete());
+	}
+
+	/**
+	 * Test that the CSV line holds the trial number followed by each
+	 * milestone to 3 decimal places, with -1 for a missed milestone, matching
+	 * the header written by the benchmark.
+	 */
+	@Test
+	public void testFailoverTrial_toCsvLine() {
+		Locale defaultLocale = Locale.getDefault();
+		Locale.setDefault(Locale.UK);
+		try {
+			FailoverTrial trial = new FailoverTrial(7, 12.3456, 250, 1000.0004, -1);
+			assertEquals("7,12.346,250.000,1000.000,-1.000", trial.toCsvLine());
+			assertEquals(FailoverTrial.MILESTONE_NAMES.length + 1, trial.toCsvLine().split(",").length);
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+	}
+}
@@ -1,10 +1,12 @@
 package commsModel;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
 
 import connectionUtils.ConnectNIO;
+import connectionUtils.FrameDecoder;
 
 /**
  * @author Joachim
@@ -17,6 +19,13 @@ import connectionUtils.ConnectNIO;
  */
 public abstract class AbstractRemote {
 
+	/**
+	 * The local address that all outgoing connections to remote nodes are
+	 * bound to. Null by default, in which case the system chooses the local
+	 * address.
+	 */
+	protected static InetAddress localBindAddress;
+
 	/**
 	 * The address of this remote object.
 	 */
@@ -29,6 +38,14 @@ public abstract class AbstractRemote {
 	 * convenient.
 	 */
 	protected SocketChannel socketChannel;
+
+	/**
+	 * The decoder that accumulates the frames received on the current
+	 * <code>socketChannel</code>. Replaced whenever the channel changes so
+	 * that a partial frame from an old connection is never mixed with the
+	 * new one.
+	 */
+	protected FrameDecoder frameDecoder = new FrameDecoder();
 	
 	
 	/**
@@ -38,6 +55,23 @@ public abstract class AbstractRemote {
 		return address;
 	}
 	
+	/**
+	 * @param bindAddress
+	 *            the local address that all outgoing connections to remote
+	 *            nodes will be bound to, or null to let the system choose.
+	 */
+	public static void setLocalBindAddress(InetAddress bindAddress) {
+		localBindAddress = bindAddress;
+	}
+
+	/**
+	 * @return the local address that outgoing connections are bound to, or
+	 *         null if not set.
+	 */
+	public static InetAddress getLocalBindAddress() {
+		return localBindAddress;
+	}
+
 	/**
 	 * @return the current SocketChannel that is (or should be) connected to
 	 *         this remote node.
@@ -52,8 +86,21 @@ public abstract class AbstractRemote {
 	 *            to/from this remote node.
 	 */
 	public void setSocketChannel(SocketChannel socketChannel) {
+		if (socketChannel != this.socketChannel) {
+			// The old decoder is not released, as a listening thread may
+			// still be reading from it
+			frameDecoder = new FrameDecoder();
+		}
 		this.socketChannel = socketChannel;
 	}
+
+	/**
+	 * @return the {@link FrameDecoder} for messages received on the current
+	 *         SocketChannel.
+	 */
+	public FrameDecoder getFrameDecoder() {
+		return frameDecoder;
+	}
 	
 	/**
 	 * Attempts to connect to the remote node with a given timeout. 
@@ -62,9 +109,9 @@ public abstract class AbstractRemote {
 	 */
 	public boolean connect(int timeoutMillis) {
 		if (socketChannel == null || !socketChannel.isConnected()) {
-			SocketChannel newSocketChannel = ConnectNIO.getNonBlockingSocketChannel(address, timeoutMillis);
+			SocketChannel newSocketChannel = ConnectNIO.getNonBlockingSocketChannel(address, timeoutMillis, localBindAddress);
 			if (newSocketChannel != null && newSocketChannel.isConnected()) {
-				socketChannel = newSocketChannel;
+				setSocketChannel(newSocketChannel);
 				return true;
 			} else if (newSocketChannel != null) {
 				try {
@@ -0,0 +1,17 @@
+package commsModel;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Enum used to represent the state of the circuit breaker kept for
+ *         each back-end server. A server is sent clients while CLOSED, is
+ *         ejected while OPEN, and is re-admitted once a probe succeeds while
+ *         HALF_OPEN.
+ *         </p>
+ *
+ */
+public enum CircuitState {
+
+	CLOSED, OPEN, HALF_OPEN
+
+}
@@ -0,0 +1,122 @@
+package commsModel;
+
+import connectionUtils.ExponentialMovingAverage;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Holds the latency measurements taken for a single remote node. Keeps
+ *         an exponential moving average of all samples along with a fixed-size
+ *         window of the most recent samples, so that a percentile of the
+ *         recent latency distribution can be calculated.
+ *         </p>
+ *
+ */
+public class LatencyRecord {
+
+	/**
+	 * The maximum number of recent samples that are kept for percentile
+	 * calculations.
+	 */
+	private static final int SAMPLE_WINDOW_SIZE = 20;
+
+	/**
+	 * The smoothed average of all latency samples recorded so far.
+	 */
+	private ExponentialMovingAverage movingAverage;
+
+	/**
+	 * The most recently calculated value of the moving average.
+	 */
+	private double averageLatency = -1;
+
+	/**
+	 * Circular buffer containing the most recent latency samples.
+	 */
+	private double[] sampleWindow = new double[SAMPLE_WINDOW_SIZE];
+
+	/**
+	 * Scratch space that the samples are sorted into to calculate a
+	 * percentile, so that a calculation does not allocate.
+	 */
+	private double[] sortedSamples = new double[SAMPLE_WINDOW_SIZE];
+
+	/**
+	 * The number of samples currently held in the <code>sampleWindow</code>.
+	 */
+	private int sampleCount = 0;
+
+	/**
+	 * The index in the <code>sampleWindow</code> that the next sample will be
+	 * written to.
+	 */
+	private int nextSampleIndex = 0;
+
+	/**
+	 * Creates a new LatencyRecord that will smooth samples using the given
+	 * alpha value.
+	 *
+	 * @param alpha
+	 *            the smoothing factor used for the moving average.
+	 */
+	public LatencyRecord(double alpha) {
+		movingAverage = new ExponentialMovingAverage(alpha);
+	}
+
+	/**
+	 * Adds a new latency sample to this record.
+	 *
+	 * @param latency
+	 *            the measured latency (in any unit, so long as it is used
+	 *            consistently).
+	 */
+	public synchronized void addSample(double latency) {
+		averageLatency = movingAverage.average(latency);
+		sampleWindow[nextSampleIndex] = latency;
+		nextSampleIndex = (nextSampleIndex + 1) % SAMPLE_WINDOW_SIZE;
+		if (sampleCount < SAMPLE_WINDOW_SIZE) {
+			sampleCount++;
+		}
+	}
+
+	/**
+	 * @return the exponential moving average of all samples, or -1 if no
+	 *         samples have been recorded.
+	 */
+	public synchronized double getAverageLatency() {
+		return averageLatency;
+	}
+
+	/**
+	 * Calculates the given percentile of the samples in the recent sample
+	 * window using the nearest-rank method.
+	 *
+	 * @param percentile
+	 *            the percentile to calculate, between 0 and 1.
+	 * @return the latency value at the given percentile, or -1 if no samples
+	 *         have been recorded.
+	 */
+	public synchronized double getPercentile(double percentile) {
+		if (sampleCount == 0) {
+			return -1;
+		}
+		for (int i = 0; i < sampleCount; i++) {
+			double sample = sampleWindow[i];
+			int j = i;
+			while (j > 0 && sortedSamples[j - 1] > sample) {
+				sortedSamples[j] = sortedSamples[j - 1];
+				j--;
+			}
+			sortedSamples[j] = sample;
+		}
+		int rank = (int) Math.ceil(percentile * sampleCount) - 1;
+		return sortedSamples[Math.max(0, Math.min(rank, sampleCount - 1))];
+	}
+
+	/**
+	 * @return the number of samples held in the recent sample window.
+	 */
+	public synchronized int getSampleCount() {
+		return sampleCount;
+	}
+}
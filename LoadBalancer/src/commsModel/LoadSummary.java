@@ -0,0 +1,310 @@
+package commsModel;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         A compact snapshot of the active load balancer's view of the
+ *         back-end servers, carried on <code>ACTIVE_ALIVE_CONFIRM</code>
+ *         heartbeats so that passive nodes hold an up to date copy without any
+ *         extra messages. Contains the CPU load of each server, quantized to a
+ *         single byte (whole percent, or 255 if unknown), and the number of
+ *         tokens issued for each server since its load was last retrieved,
+ *         along with the rate at which the active is issuing server tokens.
+ *         In active-active mode, the same summary is exchanged between all
+ *         active nodes so that each can account for the tokens issued by the
+ *         others.
+ *         </p>
+ *         <p>
+ *         Encoded as: [float tokenIssueRate][byte serverCount] followed by
+ *         [byte addressLength][address][short port][byte load][byte tokens]
+ *         for each server.
+ *         </p>
+ *
+ */
+public class LoadSummary {
+
+	/**
+	 * The byte value used to represent a server whose load is not known.
+	 */
+	private static final int UNKNOWN_LOAD = 255;
+
+	/**
+	 * The maximum number of servers that can be included in a summary.
+	 */
+	private static final int MAX_SERVERS = 255;
+
+	/**
+	 * The maximum token count that can be sent for a server.
+	 */
+	private static final int MAX_TOKEN_COUNT = 255;
+
+	/**
+	 * The rate, in tokens per second, at which the active load balancer was
+	 * issuing server tokens when this summary was created.
+	 */
+	private float tokenIssueRate;
+
+	/**
+	 * The address of each server in this summary.
+	 */
+	private List<InetSocketAddress> serverAddresses = new ArrayList<>();
+
+	/**
+	 * The quantized load of each server in this summary, in the same order as
+	 * <code>serverAddresses</code>.
+	 */
+	private List<Integer> serverLoads = new ArrayList<>();
+
+	/**
+	 * The number of tokens issued for each server since its load was last
+	 * retrieved, in the same order as <code>serverAddresses</code>.
+	 */
+	private List<Integer> serverTokenCounts = new ArrayList<>();
+
+	/**
+	 * The time, in milliseconds, that this summary was created or decoded.
+	 */
+	private long creationTime = TimeSource.monotonicMillis();
+
+	/**
+	 * Creates an empty LoadSummary with the given token issue rate.
+	 *
+	 * @param tokenIssueRate
+	 *            the rate, in tokens per second, at which server tokens are
+	 *            being issued
+	 */
+	public LoadSummary(float tokenIssueRate) {
+		this.tokenIssueRate = tokenIssueRate;
+	}
+
+	/**
+	 * Creates a LoadSummary containing the current CPU load of each of the
+	 * given servers. The load of servers that are not connected is sent as
+	 * unknown.
+	 *
+	 * @param servers
+	 *            the servers to summarise
+	 * @param tokenIssueRate
+	 *            the rate, in tokens per second, at which server tokens are
+	 *            being issued
+	 * @return the new LoadSummary.
+	 */
+	public static LoadSummary fromServers(Set<Server> servers, float tokenIssueRate) {
+		LoadSummary loadSummary = new LoadSummary(tokenIssueRate);
+		for (Server server : servers) {
+			if (loadSummary.serverAddresses.size() == MAX_SERVERS) {
+				break;
+			}
+			if (server.getAddress().getAddress() != null) {
+				loadSummary.addServer(server.getAddress(),
+						server.isConnected() || server.hasSnapshotLoad() ? server.getCPULoad() : -1,
+						server.getTokensIssuedSinceLoadUpdate());
+			}
+		}
+		return loadSummary;
+	}
+
+	/**
+	 * Adds a server to this summary.
+	 *
+	 * @param serverAddress
+	 *            the resolved address of the server
+	 * @param cpuLoad
+	 *            the CPU load of the server as a percentage, or a negative
+	 *            value if unknown
+	 */
+	public void addServer(InetSocketAddress serverAddress, double cpuLoad) {
+		addServer(serverAddress, cpuLoad, 0);
+	}
+
+	/**
+	 * Adds a server to this summary, along with the number of tokens issued
+	 * for it since its load was last retrieved.
+	 *
+	 * @param serverAddress
+	 *            the resolved address of the server
+	 * @param cpuLoad
+	 *            the CPU load of the server as a percentage, or a negative
+	 *            value if unknown
+	 * @param tokenCount
+	 *            the number of tokens issued for the server
+	 */
+	public void addServer(InetSocketAddress serverAddress, double cpuLoad, int tokenCount) {
+		serverAddresses.add(serverAddress);
+		serverLoads.add(quantizeLoad(cpuLoad));
+		serverTokenCounts.add(Math.max(0, Math.min(MAX_TOKEN_COUNT, tokenCount)));
+	}
+
+	/**
+	 * Writes this summary to the given buffer.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 */
+	public void encode(ByteBuffer buffer) {
+		buffer.putFloat(tokenIssueRate);
+		buffer.put((byte) serverAddresses.size());
+		for (int i = 0; i < serverAddresses.size(); i++) {
+			byte[] address = serverAddresses.get(i).getAddress().getAddress();
+			buffer.put((byte) address.length);
+			buffer.put(address);
+			buffer.putShort((short) serverAddresses.get(i).getPort());
+			buffer.put((byte) serverLoads.get(i).intValue());
+			buffer.put((byte) serverTokenCounts.get(i).intValue());
+		}
+	}
+
+	/**
+	 * @return the number of bytes needed to encode this summary.
+	 */
+	public int getEncodedLength() {
+		int length = 5;
+		for (InetSocketAddress serverAddress : serverAddresses) {
+			length += 5 + serverAddress.getAddress().getAddress().length;
+		}
+		return length;
+	}
+
+	/**
+	 * Reads a summary from the given buffer, starting at its current
+	 * position.
+	 *
+	 * @param buffer
+	 *            the buffer to read from
+	 * @return the decoded LoadSummary, or null if the buffer does not contain
+	 *         a complete summary.
+	 */
+	public static LoadSummary decode(ByteBuffer buffer) {
+		try {
+			LoadSummary loadSummary = new LoadSummary(buffer.getFloat());
+			int serverCount = buffer.get() & 0xFF;
+			for (int i = 0; i < serverCount; i++) {
+				byte[] address = new byte[buffer.get() & 0xFF];
+				buffer.get(address);
+				int port = buffer.getShort() & 0xFFFF;
+				int load = buffer.get() & 0xFF;
+				int tokenCount = buffer.get() & 0xFF;
+				loadSummary.serverAddresses.add(new InetSocketAddress(InetAddress.getByAddress(address), port));
+				loadSummary.serverLoads.add(load);
+				loadSummary.serverTokenCounts.add(tokenCount);
+			}
+			return loadSummary;
+		} catch (BufferUnderflowException | UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the CPU load of each of the given servers to the value held in this
+	 * summary, marking them as seeded from a snapshot. Servers that are not in
+	 * this summary, or whose load is unknown, are left unchanged.
+	 *
+	 * @param servers
+	 *            the servers to update
+	 * @return the number of servers that were updated.
+	 */
+	public int applyTo(Set<Server> servers) {
+		int updatedServers = 0;
+		for (Server server : servers) {
+			int index = serverAddresses.indexOf(server.getAddress());
+			if (index != -1 && serverLoads.get(index) != UNKNOWN_LOAD) {
+				server.applyLoadSnapshot(serverLoads.get(index));
+				updatedServers++;
+			}
+		}
+		return updatedServers;
+	}
+
+	/**
+	 * Removes each of the given servers that is not in this summary, i.e.
+	 * that the sender has removed (e.g. after a <code>SERVER_DEREGISTER</code>).
+	 * Servers whose address is unresolved are kept, as they cannot be
+	 * included in a summary, and nothing is removed if this summary holds the
+	 * maximum number of servers, as some may have been left out.
+	 *
+	 * @param servers
+	 *            the servers to prune
+	 * @return the number of servers that were removed.
+	 */
+	public int removeMissingFrom(Set<Server> servers) {
+		if (serverAddresses.size() == MAX_SERVERS) {
+			return 0;
+		}
+		int removedServers = 0;
+		for (Server server : servers) {
+			if (server.getAddress().getAddress() != null && !serverAddresses.contains(server.getAddress())
+					&& servers.remove(server)) {
+				removedServers++;
+			}
+		}
+		return removedServers;
+	}
+
+	/**
+	 * @return the rate, in tokens per second, at which the active load
+	 *         balancer was issuing server tokens.
+	 */
+	public float getTokenIssueRate() {
+		return tokenIssueRate;
+	}
+
+	/**
+	 * @return the addresses of the servers in this summary.
+	 */
+	public List<InetSocketAddress> getServerAddresses() {
+		return Collections.unmodifiableList(serverAddresses);
+	}
+
+	/**
+	 * @param serverAddress
+	 *            the address of a server
+	 * @return the quantized load held for the given server, 255 if its load
+	 *         is unknown, or -1 if it is not in this summary.
+	 */
+	public int getServerLoad(InetSocketAddress serverAddress) {
+		int index = serverAddresses.indexOf(serverAddress);
+		return index == -1 ? -1 : serverLoads.get(index);
+	}
+
+	/**
+	 * @param serverAddress
+	 *            the address of a server
+	 * @return the number of tokens issued for the given server since its load
+	 *         was last retrieved, or 0 if it is not in this summary.
+	 */
+	public int getServerTokenCount(InetSocketAddress serverAddress) {
+		int index = serverAddresses.indexOf(serverAddress);
+		return index == -1 ? 0 : serverTokenCounts.get(index);
+	}
+
+	/**
+	 * @return the time, in milliseconds, that this summary was created or
+	 *         decoded.
+	 */
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	/**
+	 * @return the given CPU load percentage rounded to a whole percent, or
+	 *         255 if the load is unknown.
+	 */
+	private static int quantizeLoad(double cpuLoad) {
+		if (cpuLoad < 0 || Double.isNaN(cpuLoad)) {
+			return UNKNOWN_LOAD;
+		}
+		return (int) Math.min(100, Math.round(cpuLoad));
+	}
+}
@@ -0,0 +1,232 @@
+package commsModel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import connectionUtils.BufferPool;
+import connectionUtils.FrameEncoder;
+import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         A bounded queue of framed messages (see {@link FrameEncoder})
+ *         waiting to be written to a single {@link RemoteLoadBalancer}.
+ *         Heartbeat messages (<code>ACTIVE_ALIVE_CONFIRM</code> and
+ *         <code>BACKUP_ALIVE_CONFIRM</code>) are coalesced, so that a queued
+ *         heartbeat is replaced by a newer one of the same type rather than
+ *         both being sent. When the queue is full, a new heartbeat is dropped
+ *         while any other (control) message evicts the oldest queued
+ *         heartbeat, or is dropped if there are none. This stops a slow peer
+ *         from building up an unbounded backlog of stale messages.
+ *         </p>
+ *         <p>
+ *         The queue owns the messages offered to it: each one is handed back
+ *         to the {@link BufferPool} when it has been written, replaced,
+ *         dropped or cleared, so messages may be built in pooled buffers.
+ *         </p>
+ *
+ */
+public class OutboundMessageQueue {
+
+	/**
+	 * The maximum number of messages held in the queue.
+	 */
+	private int capacity;
+
+	/**
+	 * The queued messages, in the order they will be written. The message at
+	 * the head of the queue may have been partially written.
+	 */
+	private ArrayDeque<ByteBuffer> messages = new ArrayDeque<>();
+
+	/**
+	 * True if some of the message at the head of the queue has already been
+	 * written, in which case it must not be replaced or removed.
+	 */
+	private boolean headPartiallyWritten = false;
+
+	/**
+	 * The number of messages that have been dropped or evicted because the
+	 * queue was full.
+	 */
+	private long droppedMessageCount = 0;
+
+	/**
+	 * The number of heartbeats that have been replaced by a newer heartbeat
+	 * before being sent.
+	 */
+	private long coalescedHeartbeatCount = 0;
+
+	/**
+	 * Creates a new OutboundMessageQueue that will hold at most
+	 * <code>capacity</code> messages.
+	 *
+	 * @param capacity
+	 *            the maximum number of queued messages
+	 * @throws IllegalArgumentException
+	 *             if the capacity is less than 1.
+	 */
+	public OutboundMessageQueue(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Queue capacity must be at least 1.");
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Adds a message to the queue, applying the coalescing and drop policy.
+	 * The message must not be used by the caller afterwards, even if it is
+	 * dropped.
+	 *
+	 * @param message
+	 *            the message to queue, positioned ready to be written
+	 * @return true if the message was queued, or false if it was dropped.
+	 */
+	public synchronized boolean offer(ByteBuffer message) {
+		boolean isHeartbeat = isHeartbeat(message);
+		if (isHeartbeat) {
+			Iterator<ByteBuffer> iterator = messages.iterator();
+			boolean isHead = true;
+			while (iterator.hasNext()) {
+				ByteBuffer queuedMessage = iterator.next();
+				if (!(isHead && headPartiallyWritten) && getMessageType(queuedMessage) == getMessageType(message)) {
+					iterator.remove();
+					BufferPool.release(queuedMessage);
+					coalescedHeartbeatCount++;
+					break;
+				}
+				isHead = false;
+			}
+		}
+
+		if (messages.size() >= capacity) {
+			if (isHeartbeat || !evictOldestHeartbeat()) {
+				BufferPool.release(message);
+				droppedMessageCount++;
+				return false;
+			}
+		}
+		messages.add(message);
+		return true;
+	}
+
+	/**
+	 * Removes the oldest heartbeat that is not currently being written.
+	 *
+	 * @return true if a heartbeat was evicted.
+	 */
+	private boolean evictOldestHeartbeat() {
+		Iterator<ByteBuffer> iterator = messages.iterator();
+		boolean isHead = true;
+		while (iterator.hasNext()) {
+			ByteBuffer queuedMessage = iterator.next();
+			if (!(isHead && headPartiallyWritten) && isHeartbeat(queuedMessage)) {
+				iterator.remove();
+				BufferPool.release(queuedMessage);
+				droppedMessageCount++;
+				return true;
+			}
+			isHead = false;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the message at the head of the queue without removing it, or
+	 *         null if the queue is empty.
+	 */
+	public synchronized ByteBuffer peek() {
+		return messages.peek();
+	}
+
+	/**
+	 * @return every queued message, in the order they should be written, so
+	 *         that they can be sent with a single gathering write. The
+	 *         messages remain in the queue until
+	 *         {@link #removeWrittenMessages()} removes them.
+	 */
+	public synchronized ByteBuffer[] toArray() {
+		return messages.toArray(new ByteBuffer[messages.size()]);
+	}
+
+	/**
+	 * Called after a write has been attempted for the queued messages.
+	 * Removes every message at the head of the queue that has been completely
+	 * written, and marks a partially written message left at the head so
+	 * that it is not coalesced or evicted.
+	 *
+	 * @return the number of messages removed.
+	 */
+	public synchronized int removeWrittenMessages() {
+		int removedCount = 0;
+		ByteBuffer head;
+		while ((head = messages.peek()) != null && !head.hasRemaining()) {
+			BufferPool.release(messages.poll());
+			removedCount++;
+		}
+		headPartiallyWritten = head != null && head.position() > 0;
+		return removedCount;
+	}
+
+	/**
+	 * Removes all queued messages. Used when the connection the messages were
+	 * intended for has been replaced or closed.
+	 */
+	public synchronized void clear() {
+		for (ByteBuffer message : messages) {
+			BufferPool.release(message);
+		}
+		messages.clear();
+		headPartiallyWritten = false;
+	}
+
+	/**
+	 * @return true if there are no messages waiting to be written.
+	 */
+	public synchronized boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	/**
+	 * @return the number of messages waiting to be written.
+	 */
+	public synchronized int size() {
+		return messages.size();
+	}
+
+	/**
+	 * @return the number of messages that have been dropped or evicted
+	 *         because the queue was full.
+	 */
+	public synchronized long getDroppedMessageCount() {
+		return droppedMessageCount;
+	}
+
+	/**
+	 * @return the number of heartbeats that have been replaced by a newer
+	 *         heartbeat before being sent.
+	 */
+	public synchronized long getCoalescedHeartbeatCount() {
+		return coalescedHeartbeatCount;
+	}
+
+	/**
+	 * @return the type of the given framed message, read from the first byte
+	 *         after its length prefix without changing its position.
+	 */
+	private static MessageType getMessageType(ByteBuffer message) {
+		return ProtocolRegistry.getMessageType(message.get(FrameEncoder.HEADER_SIZE));
+	}
+
+	/**
+	 * @return true if the given message is a heartbeat that may be coalesced
+	 *         or evicted.
+	 */
+	private static boolean isHeartbeat(ByteBuffer message) {
+		MessageType messageType = getMessageType(message);
+		return messageType == MessageType.ACTIVE_ALIVE_CONFIRM || messageType == MessageType.BACKUP_ALIVE_CONFIRM;
+	}
+}
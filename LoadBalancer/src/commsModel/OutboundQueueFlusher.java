@@ -0,0 +1,134 @@
+package commsModel;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Singleton class that finishes writing the outbound queues of any
+ *         {@link RemoteLoadBalancer} whose socket could not accept a whole
+ *         message straight away. Each such remote's channel is registered for
+ *         <code>OP_WRITE</code> on a single {@link Selector}, and the queue is
+ *         flushed when the channel becomes writable. This means that no thread
+ *         ever has to spin on a slow or stalled peer.
+ *         </p>
+ *
+ */
+public class OutboundQueueFlusher implements Runnable {
+
+	/**
+	 * The singleton instance of this class.
+	 */
+	private static OutboundQueueFlusher instance;
+
+	/**
+	 * The selector used to wait for remote channels to become writable.
+	 */
+	private Selector writeSelector;
+
+	/**
+	 * Remotes that have requested a flush since the selector was last woken.
+	 * Channels are registered from the flusher thread, as registering while
+	 * another thread is blocked in <code>select</code> would block.
+	 */
+	private Queue<RemoteLoadBalancer> pendingFlushRequests = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Private constructor, as this is a singleton class.
+	 */
+	private OutboundQueueFlusher() {
+		try {
+			writeSelector = Selector.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the singleton instance of this class, starting its thread if it
+	 *         has not yet been started.
+	 */
+	public static synchronized OutboundQueueFlusher getInstance() {
+		if (instance == null) {
+			instance = new OutboundQueueFlusher();
+			Thread flusherThread = new Thread(instance);
+			flusherThread.setDaemon(true);
+			flusherThread.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Requests that the outbound queue of the given remote is flushed when
+	 * its channel next becomes writable.
+	 *
+	 * @param remoteLoadBalancer
+	 *            the remote with messages waiting to be written
+	 */
+	public void requestFlush(RemoteLoadBalancer remoteLoadBalancer) {
+		pendingFlushRequests.add(remoteLoadBalancer);
+		writeSelector.wakeup();
+	}
+
+	/*
+	 * (non-Javadoc) Waits for registered channels to become writable and
+	 * flushes the outbound queue of the corresponding remote.
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (writeSelector != null && writeSelector.isOpen()) {
+			try {
+				registerPendingFlushRequests();
+				writeSelector.select();
+				Iterator<SelectionKey> selectedKeys = writeSelector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					RemoteLoadBalancer remoteLoadBalancer = (RemoteLoadBalancer) key.attachment();
+					try {
+						if (!key.isValid() || key.channel() != remoteLoadBalancer.getSocketChannel()
+								|| remoteLoadBalancer.flushOutboundQueue()) {
+							key.interestOps(0);
+						}
+					} catch (CancelledKeyException e) {
+					}
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Registers the channel of each remote that has requested a flush for
+	 * <code>OP_WRITE</code>.
+	 */
+	private void registerPendingFlushRequests() {
+		RemoteLoadBalancer remoteLoadBalancer;
+		while ((remoteLoadBalancer = pendingFlushRequests.poll()) != null) {
+			SocketChannel socketChannel = remoteLoadBalancer.getSocketChannel();
+			if (socketChannel == null || !socketChannel.isOpen() || socketChannel.isBlocking()) {
+				continue;
+			}
+			try {
+				SelectionKey key = socketChannel.keyFor(writeSelector);
+				if (key == null) {
+					socketChannel.register(writeSelector, SelectionKey.OP_WRITE, remoteLoadBalancer);
+				} else {
+					key.attach(remoteLoadBalancer);
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			} catch (ClosedChannelException | CancelledKeyException e) {
+			}
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package commsModel;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import connectionUtils.FrameEncoder;
 
 /**
  * @author Joachim
@@ -12,6 +17,12 @@ import java.net.InetSocketAddress;
  */
 public class RemoteLoadBalancer extends AbstractRemote {
 
+	/**
+	 * The maximum number of messages that can be waiting to be sent to a
+	 * single remote load balancer.
+	 */
+	private static final int OUTBOUND_QUEUE_CAPACITY = 16;
+
 	/**
 	 * The active/passive state of the remote load balancer process that this
 	 * object represents. That is, whether the remote is the primary load
@@ -41,6 +52,11 @@ public class RemoteLoadBalancer extends AbstractRemote {
 	 */
 	private int connectionPrecedence;
 
+	/**
+	 * Messages waiting to be written to this remote load balancer.
+	 */
+	private OutboundMessageQueue outboundQueue = new OutboundMessageQueue(OUTBOUND_QUEUE_CAPACITY);
+
 	/**
 	 * Creates a new RemoteLoadBalancer object instance that hold relevant
 	 * properties and provides an abstraction to the specified remote process.
@@ -127,4 +143,80 @@ public class RemoteLoadBalancer extends AbstractRemote {
 	public void setConnectionPrecedence(int connectionPrecedence) {
 		this.connectionPrecedence = connectionPrecedence;
 	}
+
+	/**
+	 * Replaces the SocketChannel held for this remote node. Any messages
+	 * still queued for the previous channel are discarded.
+	 */
+	@Override
+	public void setSocketChannel(SocketChannel socketChannel) {
+		synchronized (outboundQueue) {
+			if (socketChannel != this.socketChannel) {
+				outboundQueue.clear();
+			}
+			super.setSocketChannel(socketChannel);
+		}
+	}
+
+	/**
+	 * Frames and queues a message to be sent to this remote load balancer and
+	 * writes as much of the queue as the socket will currently accept. Anything left
+	 * over is written by the {@link OutboundQueueFlusher} once the socket
+	 * becomes writable, so this method never blocks on a slow peer.
+	 * 
+	 * @param message
+	 *            the message to send, flipped and ready to be written
+	 * @return false if this node is not connected or the message was dropped
+	 *         by the queue's drop policy, otherwise true.
+	 */
+	public boolean sendMessage(ByteBuffer message) {
+		if (!isConnected() || !outboundQueue.offer(FrameEncoder.encodePooled(message))) {
+			return false;
+		}
+		if (!flushOutboundQueue()) {
+			OutboundQueueFlusher.getInstance().requestFlush(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes queued messages to this node's SocketChannel, all of them with a
+	 * single gathering write unless the socket will not accept that much data.
+	 * If there is no channel the queue is cleared, and if the write fails the
+	 * channel is closed and the queue cleared.
+	 * 
+	 * @return true if the queue is now empty.
+	 */
+	public boolean flushOutboundQueue() {
+		synchronized (outboundQueue) {
+			if (outboundQueue.isEmpty()) {
+				return true;
+			}
+			SocketChannel currentSocketChannel = socketChannel;
+			if (currentSocketChannel == null) {
+				outboundQueue.clear();
+				return true;
+			}
+			try {
+				currentSocketChannel.write(outboundQueue.toArray());
+				outboundQueue.removeWrittenMessages();
+				return outboundQueue.isEmpty();
+			} catch (IOException e) {
+				outboundQueue.clear();
+				try {
+					currentSocketChannel.close();
+				} catch (IOException e1) {
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return the queue of messages waiting to be written to this remote load
+	 *         balancer.
+	 */
+	public OutboundMessageQueue getOutboundQueue() {
+		return outboundQueue;
+	}
 }
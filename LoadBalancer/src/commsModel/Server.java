@@ -5,10 +5,18 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.charset.Charset;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import connectionUtils.ClockOffsetEstimator;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
+import connectionUtils.TimeSource;
 import loadBalancer.ServerManager;
 
 /**
@@ -21,6 +29,18 @@ import loadBalancer.ServerManager;
  */
 public class Server extends AbstractRemote {
 
+	/**
+	 * The time, in milliseconds, to wait for a server to respond to a CPU load
+	 * request.
+	 */
+	private static final int POLL_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * The size of a CPU load response that carries the echoed request
+	 * timestamp and the server's receive and send times.
+	 */
+	private static final int CPU_NOTIFY_WITH_TIMESTAMPS_SIZE = 1 + 8 + 24;
+
 	/**
 	 * The default server usage token expiry value to be used when this server
 	 * does not have enough CPU load data to calculate an accurate coefficient
@@ -33,6 +53,45 @@ public class Server extends AbstractRemote {
 	 */
 	private double cpuLoad = -1;
 
+	/**
+	 * Flag indicating that <code>cpuLoad</code> was taken from a
+	 * {@link LoadSummary} sent by the previous active load balancer, and has
+	 * not yet been replaced by a value retrieved from the server itself.
+	 */
+	private boolean hasSnapshotLoad = false;
+
+	/**
+	 * The number of tokens issued for this server since its CPU load was last
+	 * retrieved.
+	 */
+	private AtomicInteger tokensIssuedSinceLoadUpdate = new AtomicInteger(0);
+
+	/**
+	 * The time, in milliseconds, at which this server first reported its load
+	 * after it was (re)connected, or 0 if it is not currently live. Used to
+	 * ramp up the traffic sent to a newly joined or recovered server.
+	 */
+	private volatile long liveSince = 0;
+
+	/**
+	 * The round trip time, in milliseconds, of the last successful CPU load
+	 * request sent to this server.
+	 */
+	private volatile double lastPollRttMillis = -1;
+
+	/**
+	 * The round trip times, in milliseconds, of the CPU load requests sent to
+	 * this server, used to route clients to servers that will answer
+	 * quickly.
+	 */
+	private LatencyRecord pollLatency = new LatencyRecord(0.3);
+
+	/**
+	 * The absolute change, in CPU load percentage points, between the last
+	 * two loads retrieved from this server.
+	 */
+	private volatile double loadChangeRate = 0;
+
 	/**
 	 * List of the last 20 (max) CPU load values for this server. Used to
 	 * calculate the coefficient of variation and generate a token expiry when
@@ -41,11 +100,18 @@ public class Server extends AbstractRemote {
 	private Deque<Double> cpuLoadRecords = new ArrayDeque<>();
 
 	/**
-	 * Time stamp in Unix seconds representing the time that this server should
-	 * be used until, to be sent to a service-requesting client.
+	 * The {@link TimeSource} timestamp, in milliseconds, that this server
+	 * should be used until. Sent to a service-requesting client as the time
+	 * remaining, as the timestamp means nothing to another process.
 	 */
 	private long tokenExpiry;
 
+	/**
+	 * The estimated offset of this server's clock from the load balancer's,
+	 * from the timestamps exchanged with each CPU load request.
+	 */
+	private ClockOffsetEstimator clockOffset = new ClockOffsetEstimator(8);
+
 	/**
 	 * Creates a new Server object that stores relevant information about the
 	 * specified remote machine.
@@ -71,13 +137,104 @@ public class Server extends AbstractRemote {
 	}
 
 	/**
-	 * @return the current token expiry for this server, as a Unix seconds
-	 *         timestamp.
+	 * @return true if the current CPU load of this server was taken from a
+	 *         {@link LoadSummary} and has not yet been retrieved from the
+	 *         server itself.
+	 */
+	public boolean hasSnapshotLoad() {
+		return hasSnapshotLoad;
+	}
+
+	/**
+	 * Sets the CPU load of this server to a value received in a
+	 * {@link LoadSummary}, so that a newly promoted active load balancer can
+	 * select servers before it has retrieved their load itself. Does not add
+	 * to the load records used to calculate token expiry.
+	 * 
+	 * @param cpuLoad
+	 *            the CPU load percentage received for this server
+	 */
+	public void applyLoadSnapshot(double cpuLoad) {
+		this.cpuLoad = cpuLoad;
+		hasSnapshotLoad = true;
+	}
+
+	/**
+	 * Records that a token has been issued for this server.
+	 */
+	public void recordTokenIssued() {
+		tokensIssuedSinceLoadUpdate.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of tokens issued for this server since its CPU load
+	 *         was last retrieved.
+	 */
+	public int getTokensIssuedSinceLoadUpdate() {
+		return tokensIssuedSinceLoadUpdate.get();
+	}
+
+	/**
+	 * @return the time, in milliseconds, at which this server first reported
+	 *         its load since it was last (re)connected, or 0 if it is not
+	 *         currently live.
+	 */
+	public long getLiveSince() {
+		return liveSince;
+	}
+
+	/**
+	 * @return the round trip time, in milliseconds, of the last successful
+	 *         CPU load request, or -1 if none has succeeded.
+	 */
+	public double getLastPollRttMillis() {
+		return lastPollRttMillis;
+	}
+
+	/**
+	 * @return the record of round trip times, in milliseconds, of the CPU
+	 *         load requests sent to this server.
+	 */
+	public LatencyRecord getPollLatency() {
+		return pollLatency;
+	}
+
+	/**
+	 * @return the absolute change, in CPU load percentage points, between the
+	 *         last two loads retrieved from this server (i.e. per update
+	 *         cycle).
+	 */
+	public double getLoadChangeRate() {
+		return loadChangeRate;
+	}
+
+	/**
+	 * @return the current token expiry for this server, as a
+	 *         {@link TimeSource} timestamp in milliseconds.
 	 */
 	public long getTokenExpiry() {
 		return tokenExpiry;
 	}
 
+	/**
+	 * @return the time, in milliseconds, until the current token for this
+	 *         server expires, or 0 if it has expired. This is the token
+	 *         lifetime sent to clients.
+	 */
+	public long getTokenLifetimeMillis() {
+		return TimeSource.millisUntil(tokenExpiry);
+	}
+
+	/**
+	 * @return the estimated offset of this server's clock from the load
+	 *         balancer's. The estimate is for diagnostics only: no decision
+	 *         depends on it, as every deadline is measured on the local
+	 *         monotonic clock and sent to other nodes as a duration.
+	 */
+	public ClockOffsetEstimator getClockOffset() {
+		return clockOffset;
+	}
+
 	/**
 	 * @param value
 	 *            the default token expiration in seconds to be set for all
@@ -92,51 +249,157 @@ public class Server extends AbstractRemote {
 	 * represents. As this method uses a blocking socket, it should always be
 	 * run in a new thread from a {@link ServerManager} instance. In the case
 	 * that the remote server is down or unresponsive and the communication
-	 * fails, this method will set the <code>isAlive</code> state of this object
-	 * to false and return, otherwise sets it to true.
+	 * fails, this method will close the connection to the server so that it
+	 * is no longer treated as live, and a new connection is attempted on the
+	 * next update. The request carries the load balancer's clock, and the
+	 * server's timestamps in the response are used to update the estimate of
+	 * its clock offset.
+	 * <p>
+	 * A response to an earlier request that timed out may still arrive ahead
+	 * of the response to this one. As the server echoes the request's
+	 * timestamp, any response that echoes a different timestamp is dropped,
+	 * so that a late reply is not measured as an almost instant round trip.
+	 * </p>
+	 * 
+	 * @return true if the server responded with its CPU load, or false if the
+	 *         request failed or timed out.
 	 */
-	public void updateServerState() {
+	public boolean updateServerState() {
 		ByteBuffer buffer = ByteBuffer.allocate(9);
 		buffer.put((byte) MessageType.SERVER_CPU_REQUEST.getValue());
+		long requestSentMillis = TimeSource.wallClockMillis();
+		buffer.putLong(requestSentMillis);
 		buffer.flip();
 
+		long requestTime = TimeSource.monotonicNanos();
 		try {
-			while (buffer.hasRemaining()) {
-				socketChannel.write(buffer);
-			}
+			FrameEncoder.write(socketChannel, buffer);
 		} catch (IOException e) {
-			return;
+			disconnect();
+			return false;
 		}
 
-		buffer.clear();
-
-		try {
-			Selector readSelector = Selector.open();
+		long responseDeadline = TimeSource.deadlineAfterMillis(POLL_TIMEOUT_MILLIS);
+		try (Selector readSelector = Selector.open()) {
 			socketChannel.register(readSelector, SelectionKey.OP_READ);
-			if (readSelector.select(1000) == 0) {
-				return;
-			} else {
-				socketChannel.read(buffer);
-			}
+			do {
+				buffer = frameDecoder.readFrame(socketChannel, readSelector, TimeSource.millisUntil(responseDeadline));
+				if (buffer == null) {
+					return false;
+				}
+			} while (isStaleResponse(buffer, requestSentMillis));
 		} catch (IOException e) {
-			return;
+			disconnect();
+			return false;
 		}
 
-		buffer.flip();
 		if (!buffer.hasRemaining()) {
-			return;
+			return false;
 		}
 		
-		MessageType messageType = MessageType.values()[buffer.get()];
-		if (!messageType.equals(MessageType.SERVER_CPU_NOTIFY)) {
+		MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
+		if (!MessageType.SERVER_CPU_NOTIFY.equals(messageType)) {
 			System.out.println("Error retrieving CPU load for Server at: " + address.getHostName());
+			return false;
 		} else {
+			lastPollRttMillis = (TimeSource.monotonicNanos() - requestTime) / 1000000.0;
+			pollLatency.addSample(lastPollRttMillis);
+			double previousLoad = cpuLoad;
 			cpuLoad = buffer.getDouble();
+			if (buffer.remaining() >= 24) {
+				// The server echoed the request time and added its own receive
+				// and send times
+				clockOffset.addSample(buffer.getLong(), buffer.getLong(), buffer.getLong(),
+						TimeSource.wallClockMillis());
+			}
+			loadChangeRate = previousLoad < 0 || hasSnapshotLoad ? 0 : Math.abs(cpuLoad - previousLoad);
+			if (liveSince == 0) {
+				liveSince = TimeSource.monotonicMillis();
+			}
+			hasSnapshotLoad = false;
+			tokensIssuedSinceLoadUpdate.set(0);
 			cpuLoadRecords.push(cpuLoad);
 			while (cpuLoadRecords.size() > 20) {
 				cpuLoadRecords.pollLast();
 			}
 			// System.out.println("Test " + address.getPort() + " " + cpuLoad);
+			return true;
+		}
+	}
+
+	/**
+	 * @param buffer
+	 *            a received message, positioned at its type byte, which is
+	 *            left unread
+	 * @param requestSentMillis
+	 *            the timestamp sent with the current CPU load request
+	 * @return true if the message is a CPU load response that echoes a
+	 *         different request's timestamp. A response from a server that
+	 *         does not echo the timestamp cannot be checked, and is accepted.
+	 */
+	private static boolean isStaleResponse(ByteBuffer buffer, long requestSentMillis) {
+		int position = buffer.position();
+		return buffer.remaining() >= CPU_NOTIFY_WITH_TIMESTAMPS_SIZE
+				&& (buffer.get(position) & 0xFF) == MessageType.SERVER_CPU_NOTIFY.getValue()
+				&& buffer.getLong(position + 9) != requestSentMillis;
+	}
+
+	/**
+	 * Sends this server a <code>SERVER_PEER_HINTS</code> message listing the
+	 * given peers and their current CPU loads, so that it can redirect clients
+	 * to one of them when it is overloaded. Peers are listed in the given
+	 * order; peers without a resolved address are skipped. Like
+	 * <code>updateServerState</code>, this method uses the blocking socket
+	 * and should be run from the {@link ServerManager}'s polling thread for
+	 * this server.
+	 * 
+	 * @param peers
+	 *            the servers to list, least loaded first
+	 * @return true if the message was sent.
+	 */
+	public boolean sendPeerHints(List<Server> peers) {
+		List<Server> hintedPeers = new ArrayList<>();
+		List<byte[]> peerIPs = new ArrayList<>();
+		int messageSize = 2;
+		for (Server peer : peers) {
+			if (peer.getAddress().getAddress() == null) {
+				continue;
+			}
+			if (hintedPeers.size() == Byte.MAX_VALUE) {
+				break;
+			}
+			byte[] peerIP = peer.getAddress().getAddress().getHostAddress().getBytes(Charset.forName("UTF-8"));
+			hintedPeers.add(peer);
+			peerIPs.add(peerIP);
+			messageSize += 13 + peerIP.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(messageSize);
+		buffer.put((byte) MessageType.SERVER_PEER_HINTS.getValue());
+		buffer.put((byte) hintedPeers.size());
+		for (int i = 0; i < hintedPeers.size(); i++) {
+			buffer.putDouble(hintedPeers.get(i).getCPULoad());
+			buffer.putInt(hintedPeers.get(i).getAddress().getPort());
+			buffer.put((byte) peerIPs.get(i).length);
+			buffer.put(peerIPs.get(i));
+		}
+		buffer.flip();
+		try {
+			FrameEncoder.write(socketChannel, buffer);
+		} catch (IOException e) {
+			disconnect();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the connection to this server after a failed load update.
+	 */
+	private void disconnect() {
+		liveSince = 0;
+		try {
+			socketChannel.close();
+		} catch (IOException e) {
 		}
 	}
 
@@ -147,6 +410,20 @@ public class Server extends AbstractRemote {
 	 * lbConfig.xml) if the collection has less than 12 values.
 	 */
 	public void calculateTokenExpiry() {
+		calculateTokenExpiry(1);
+	}
+
+	/**
+	 * Calculates a token expiry as in <code>calculateTokenExpiry()</code>,
+	 * with the token duration scaled by the given factor (but never less than
+	 * one second). Used to issue short tokens for a server that is still
+	 * warming up, so that clients move back to other servers quickly if it
+	 * becomes overloaded.
+	 * 
+	 * @param durationScale
+	 *            the factor, between 0 and 1, to scale the token duration by
+	 */
+	public void calculateTokenExpiry(double durationScale) {
 		int tokenDurationSeconds = 0;
 		if (cpuLoadRecords.size() < 12) {
 			tokenDurationSeconds = defaultTokenExpiration;
@@ -155,7 +432,25 @@ public class Server extends AbstractRemote {
 			// variance.
 			tokenDurationSeconds = (int) Math.round(Math.abs(1 - getCoV()) * 100);
 		}
-		tokenExpiry = System.currentTimeMillis() / 1000 + tokenDurationSeconds;
+		calculateTokenExpiry(tokenDurationSeconds, durationScale);
+	}
+
+	/**
+	 * Sets the token expiry to the given duration from now, scaled by the
+	 * given factor (but never less than one second). Used when the token
+	 * duration is chosen by a {@link loadBalancer.TokenLifetimeController}
+	 * rather than from this server's load variance.
+	 * 
+	 * @param tokenDurationSeconds
+	 *            the token duration in seconds
+	 * @param durationScale
+	 *            the factor, between 0 and 1, to scale the token duration by
+	 */
+	public void calculateTokenExpiry(int tokenDurationSeconds, double durationScale) {
+		if (durationScale < 1) {
+			tokenDurationSeconds = (int) Math.max(1, Math.round(tokenDurationSeconds * durationScale));
+		}
+		tokenExpiry = TimeSource.deadlineAfterMillis(tokenDurationSeconds * 1000L);
 	}
 
 	/**
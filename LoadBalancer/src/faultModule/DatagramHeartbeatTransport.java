@@ -0,0 +1,343 @@
+package faultModule;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import commsModel.LoadBalancerState;
+import commsModel.RemoteLoadBalancer;
+import connectionUtils.BufferPool;
+import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Optional UDP transport for <code>ACTIVE_ALIVE_CONFIRM</code> and
+ *         <code>BACKUP_ALIVE_CONFIRM</code> heartbeats. Sending a heartbeat
+ *         costs a single datagram when a multicast group is configured, or
+ *         one datagram per passive node in unicast mode, and a slow receiver
+ *         can never hold up the sender. All other load balancer messages
+ *         (elections, active declarations and alive requests) are still sent
+ *         over TCP.
+ *         </p>
+ *         <p>
+ *         Each heartbeat carries the sender's start time and a sequence
+ *         number, so that receivers can detect lost heartbeats and discard
+ *         late or duplicated ones. The sender's accept port and (if bound)
+ *         address are included so that the receiver can identify which
+ *         {@link RemoteLoadBalancer} sent the heartbeat.
+ *         </p>
+ *
+ */
+public class DatagramHeartbeatTransport implements Runnable {
+
+	/**
+	 * The size of the buffer used to send and receive heartbeats.
+	 */
+	private static final int DATAGRAM_BUFFER_SIZE = 1024;
+
+	/**
+	 * The channel used to send and receive heartbeat datagrams.
+	 */
+	private DatagramChannel datagramChannel;
+
+	/**
+	 * The port that this load balancer accepts TCP connections on, which is
+	 * also the port that unicast heartbeats are received on.
+	 */
+	private int acceptPort;
+
+	/**
+	 * The local address that this load balancer is bound to, or null if not
+	 * bound to a specific address.
+	 */
+	private InetAddress bindAddress;
+
+	/**
+	 * The multicast group that heartbeats are sent to, or null if heartbeats
+	 * are sent by unicast to each remote load balancer.
+	 */
+	private InetSocketAddress multicastGroup;
+
+	/**
+	 * A set of all other load balancer nodes in the system.
+	 */
+	private Set<RemoteLoadBalancer> remoteLoadBalancers;
+
+	/**
+	 * The time this transport was created, sent with each heartbeat so that
+	 * receivers can tell when a sender has restarted its sequence numbers.
+	 */
+	private long senderEpoch = TimeSource.wallClockMillis();
+
+	/**
+	 * The sequence number of the next heartbeat sent by this transport.
+	 */
+	private AtomicLong nextSequenceNumber = new AtomicLong(0);
+
+	/**
+	 * The epoch and sequence number of the most recent heartbeat received
+	 * from each remote load balancer.
+	 */
+	private Map<RemoteLoadBalancer, long[]> lastReceivedSequenceNumbers = new ConcurrentHashMap<>();
+
+	/**
+	 * The total number of heartbeats from remote load balancers that were
+	 * never received, detected from gaps in the sequence numbers.
+	 */
+	private AtomicLong lostHeartbeatCount = new AtomicLong(0);
+
+	/**
+	 * The load balancer process currently handling received heartbeats.
+	 */
+	private volatile HeartbeatListener heartbeatListener;
+
+	/**
+	 * The thread receiving heartbeats, or null if this transport has not been
+	 * started.
+	 */
+	private volatile Thread receiverThread;
+
+	/**
+	 * Creates a new DatagramHeartbeatTransport bound to the given accept port
+	 * (and local address, if set). If a multicast group is given, the
+	 * transport joins it and sends all heartbeats to the group, otherwise
+	 * heartbeats are sent directly to the accept port of each passive remote.
+	 *
+	 * @param acceptPort
+	 *            the port this load balancer accepts connections on
+	 * @param bindAddress
+	 *            the local address to bind to, or null to bind to all local
+	 *            addresses
+	 * @param multicastGroup
+	 *            the multicast group to use, or null for unicast
+	 * @param remoteLoadBalancers
+	 *            the set of remote load balancers in the system
+	 * @throws IOException
+	 *             if the datagram channel cannot be opened or the multicast
+	 *             group cannot be joined.
+	 * @throws IllegalArgumentException
+	 *             if the set of remote load balancers is null or empty.
+	 */
+	public DatagramHeartbeatTransport(int acceptPort, InetAddress bindAddress, InetSocketAddress multicastGroup,
+			Set<RemoteLoadBalancer> remoteLoadBalancers) throws IOException {
+		if (remoteLoadBalancers == null || remoteLoadBalancers.isEmpty())
+			throw new IllegalArgumentException("Remote load balancer set cannot be null or empty.");
+
+		this.acceptPort = acceptPort;
+		this.bindAddress = bindAddress;
+		this.multicastGroup = multicastGroup;
+		this.remoteLoadBalancers = remoteLoadBalancers;
+
+		if (multicastGroup == null) {
+			datagramChannel = DatagramChannel.open();
+			datagramChannel.bind(new InetSocketAddress(bindAddress, acceptPort));
+		} else {
+			datagramChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+			datagramChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			datagramChannel.bind(new InetSocketAddress(multicastGroup.getPort()));
+			NetworkInterface networkInterface = bindAddress == null
+					? NetworkInterface.getByInetAddress(InetAddress.getLocalHost())
+					: NetworkInterface.getByInetAddress(bindAddress);
+			if (networkInterface == null) {
+				networkInterface = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+			}
+			datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+			datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+			datagramChannel.join(multicastGroup.getAddress(), networkInterface);
+		}
+	}
+
+	/**
+	 * Sends a heartbeat of the given type. In multicast mode a single datagram
+	 * is sent to the group, otherwise one datagram is sent to each remote load
+	 * balancer that is in the passive state.
+	 *
+	 * @param heartbeatType
+	 *            either <code>ACTIVE_ALIVE_CONFIRM</code> or
+	 *            <code>BACKUP_ALIVE_CONFIRM</code>
+	 */
+	public void broadcastHeartbeat(MessageType heartbeatType) {
+		broadcastHeartbeat(heartbeatType, null);
+	}
+
+	/**
+	 * Sends a heartbeat of the given type carrying the given payload. In
+	 * multicast mode a single datagram is sent to the group, otherwise one
+	 * datagram is sent to each remote load balancer that is in the passive
+	 * state.
+	 *
+	 * @param heartbeatType
+	 *            either <code>ACTIVE_ALIVE_CONFIRM</code> or
+	 *            <code>BACKUP_ALIVE_CONFIRM</code>
+	 * @param payload
+	 *            the bytes to append to the heartbeat, or null to send the
+	 *            heartbeat on its own
+	 */
+	public void broadcastHeartbeat(MessageType heartbeatType, ByteBuffer payload) {
+		ByteBuffer buffer = BufferPool.acquire(DATAGRAM_BUFFER_SIZE);
+		buffer.put((byte) heartbeatType.getValue());
+		buffer.putLong(senderEpoch);
+		buffer.putLong(nextSequenceNumber.getAndIncrement());
+		buffer.putInt(acceptPort);
+		if (bindAddress != null) {
+			ByteBuffer senderIP = Charset.forName("UTF-8").encode(CharBuffer.wrap(bindAddress.getHostAddress()));
+			buffer.put((byte) senderIP.remaining());
+			buffer.put(senderIP);
+		} else {
+			buffer.put((byte) 0);
+		}
+		if (payload != null && payload.remaining() <= buffer.remaining()) {
+			buffer.put(payload.duplicate());
+		}
+		buffer.flip();
+		try {
+			if (multicastGroup != null) {
+				datagramChannel.send(buffer, multicastGroup);
+				return;
+			}
+			for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
+				if (remoteLoadBalancer.getState().equals(LoadBalancerState.PASSIVE)) {
+					datagramChannel.send(buffer, remoteLoadBalancer.getAddress());
+					buffer.rewind();
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
+
+	/*
+	 * (non-Javadoc) Receives heartbeat datagrams until this transport is
+	 * closed, passing each one from a known remote load balancer to the
+	 * current listener.
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		receiverThread = Thread.currentThread();
+		ByteBuffer buffer = BufferPool.acquire(DATAGRAM_BUFFER_SIZE);
+		while (datagramChannel.isOpen()) {
+			try {
+				buffer.clear();
+				InetSocketAddress sourceAddress = (InetSocketAddress) datagramChannel.receive(buffer);
+				buffer.flip();
+				MessageType heartbeatType = ProtocolRegistry.decodeMessageType(buffer);
+				if (heartbeatType != MessageType.ACTIVE_ALIVE_CONFIRM
+						&& heartbeatType != MessageType.BACKUP_ALIVE_CONFIRM) {
+					continue;
+				}
+				long epoch = buffer.getLong();
+				long sequenceNumber = buffer.getLong();
+				int senderPort = buffer.getInt();
+				int senderIPLength = buffer.get() & 0xFF;
+				String senderIP = sourceAddress.getAddress().getHostAddress();
+				if (senderIPLength > 0) {
+					ByteBuffer senderIPBuffer = buffer.slice();
+					senderIPBuffer.limit(senderIPLength);
+					senderIP = Charset.forName("UTF-8").decode(senderIPBuffer).toString();
+					buffer.position(buffer.position() + senderIPLength);
+				}
+
+				RemoteLoadBalancer sender = findRemoteLoadBalancer(InetAddress.getByName(senderIP), senderPort);
+				if (sender == null || !isNewHeartbeat(sender, epoch, sequenceNumber)) {
+					continue;
+				}
+				HeartbeatListener listener = heartbeatListener;
+				if (listener != null) {
+					listener.heartbeatReceived(sender, heartbeatType, buffer.slice());
+				}
+			} catch (IOException e) {
+			} catch (RuntimeException e) {
+				// Malformed datagram - ignore it
+			}
+		}
+		BufferPool.release(buffer);
+	}
+
+	/**
+	 * @return the remote load balancer with the given address and accept
+	 *         port, or null if there is no such remote. Heartbeats sent by
+	 *         this node to a multicast group are also ignored this way.
+	 */
+	private RemoteLoadBalancer findRemoteLoadBalancer(InetAddress senderAddress, int senderPort) {
+		for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
+			InetSocketAddress remoteAddress = remoteLoadBalancer.getAddress();
+			if (remoteAddress.getPort() == senderPort && senderAddress.equals(remoteAddress.getAddress())) {
+				return remoteLoadBalancer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the sequence number of a heartbeat against the last one received
+	 * from the same sender, counting any heartbeats that were skipped.
+	 *
+	 * @return false if the heartbeat is older than, or a duplicate of, one
+	 *         that has already been received.
+	 */
+	private boolean isNewHeartbeat(RemoteLoadBalancer sender, long epoch, long sequenceNumber) {
+		long[] lastReceived = lastReceivedSequenceNumbers.get(sender);
+		if (lastReceived != null && lastReceived[0] == epoch) {
+			if (sequenceNumber <= lastReceived[1]) {
+				return false;
+			}
+			lostHeartbeatCount.addAndGet(sequenceNumber - lastReceived[1] - 1);
+		}
+		lastReceivedSequenceNumbers.put(sender, new long[] { epoch, sequenceNumber });
+		return true;
+	}
+
+	/**
+	 * @param heartbeatListener
+	 *            the load balancer process that received heartbeats will be
+	 *            passed to (can be null).
+	 */
+	public void setHeartbeatListener(HeartbeatListener heartbeatListener) {
+		this.heartbeatListener = heartbeatListener;
+	}
+
+	/**
+	 * @return the total number of heartbeats from remote load balancers that
+	 *         have been detected as lost.
+	 */
+	public long getLostHeartbeatCount() {
+		return lostHeartbeatCount.get();
+	}
+
+	/**
+	 * Closes the datagram channel, stopping the receiving thread. Waits for
+	 * the receiving thread to finish, as the port is not released until it
+	 * has.
+	 */
+	public void close() {
+		try {
+			datagramChannel.close();
+		} catch (IOException e) {
+		}
+		Thread thread = receiverThread;
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
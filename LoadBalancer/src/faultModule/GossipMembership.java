@@ -0,0 +1,607 @@
+package faultModule;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import commsModel.RemoteLoadBalancer;
+import connectionUtils.BufferPool;
+import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Gossip-based membership for the load balancer nodes, allowing nodes
+ *         to join or leave the system without restarting the others. Each
+ *         round, this node sends its list of known members to a few random
+ *         members (and to any seed it has not yet heard from) over UDP. Each
+ *         member has a heartbeat counter that only its own node increments,
+ *         so a member whose counter stops rising for longer than the failure
+ *         timeout is taken to have left. A node leaving cleanly gossips a
+ *         final entry marking itself as left.
+ *         </p>
+ *         <p>
+ *         As the heartbeat counter starts from 0 each time a node starts, each
+ *         entry also carries the node's incarnation (the wall clock time it
+ *         started), and entries are ordered by incarnation and then by
+ *         heartbeat. A node restarted after a crash or after leaving is
+ *         therefore accepted straight away, rather than once its new counter
+ *         passes its old one. The last entry of a departed member is kept for
+ *         twice the failure timeout, so that out of date gossip still held by
+ *         other members does not add it back, and then discarded.
+ *         </p>
+ *         <p>
+ *         Load balancers that are listed in lbConfig.xml are treated as
+ *         static members: they are never removed from the set of remote load
+ *         balancers, as before. Members discovered through gossip are added
+ *         to and removed from the set while the heartbeat and election code
+ *         is running, so the set must support concurrent modification (e.g.
+ *         <code>ConcurrentHashMap.newKeySet()</code>).
+ *         </p>
+ *
+ */
+public class GossipMembership implements Runnable {
+
+	/**
+	 * The size of the buffer used to send and receive gossip datagrams.
+	 */
+	private static final int DATAGRAM_BUFFER_SIZE = 1400;
+
+	/**
+	 * The encoded size of a member entry with an IPv6 address, used to limit
+	 * the number of entries sent in one datagram.
+	 */
+	private static final int MAX_ENTRY_SIZE = 42;
+
+	/**
+	 * The number of random members that are sent this node's member list in
+	 * each gossip round.
+	 */
+	private static final int GOSSIP_FANOUT = 2;
+
+	/**
+	 * The channel used to send and receive gossip datagrams.
+	 */
+	private DatagramChannel datagramChannel;
+
+	/**
+	 * The port that gossip datagrams are received on.
+	 */
+	private int gossipPort;
+
+	/**
+	 * The port that this load balancer accepts TCP connections on, which
+	 * identifies it to the other members.
+	 */
+	private int acceptPort;
+
+	/**
+	 * The local address that this load balancer is bound to, or null if not
+	 * bound to a specific address.
+	 */
+	private InetAddress bindAddress;
+
+	/**
+	 * The set of remote load balancers in the system, updated as members join
+	 * and leave.
+	 */
+	private Set<RemoteLoadBalancer> remoteLoadBalancers;
+
+	/**
+	 * The load balancers that were in the set when this object was created,
+	 * which are never removed.
+	 */
+	private Set<RemoteLoadBalancer> staticMembers;
+
+	/**
+	 * The gossip addresses of the nodes used to first join the system.
+	 */
+	private List<InetSocketAddress> seeds;
+
+	/**
+	 * The interval, in milliseconds, between gossip rounds.
+	 */
+	private int gossipIntervalMillis;
+
+	/**
+	 * The time, in milliseconds, after which a member whose heartbeat counter
+	 * has not increased is taken to have left.
+	 */
+	private int failureTimeoutMillis;
+
+	/**
+	 * The members that this node has heard from, keyed by their accept
+	 * address.
+	 */
+	private Map<InetSocketAddress, Member> members = new ConcurrentHashMap<>();
+
+	/**
+	 * The last known state of each member that has left, so that out of date
+	 * gossip does not add it back until the entry expires.
+	 */
+	private Map<InetSocketAddress, Member> departedMembers = new ConcurrentHashMap<>();
+
+	/**
+	 * This node's incarnation: the wall clock time, in milliseconds, at which
+	 * it started. Sent with every entry so that a restarted node supersedes
+	 * its previous run.
+	 */
+	private final long incarnation = TimeSource.wallClockMillis();
+
+	/**
+	 * This node's own heartbeat counter, incremented each gossip round.
+	 */
+	private long heartbeatCounter = 0;
+
+	/**
+	 * Flag indicating that this node has left the system.
+	 */
+	private boolean hasLeft = false;
+
+	/**
+	 * The timer used to schedule gossip rounds.
+	 */
+	private Timer gossipTimer;
+
+	/**
+	 * The thread receiving gossip, or null if this object has not been
+	 * started.
+	 */
+	private volatile Thread receiverThread;
+
+	/**
+	 * The load balancer process currently notified of membership changes.
+	 */
+	private volatile MembershipListener membershipListener;
+
+	/**
+	 * Creates a new GossipMembership bound to the given gossip port (and local
+	 * address, if set).
+	 *
+	 * @param gossipPort
+	 *            the port to send and receive gossip on
+	 * @param acceptPort
+	 *            the port this load balancer accepts connections on
+	 * @param bindAddress
+	 *            the local address to bind to, or null to bind to all local
+	 *            addresses
+	 * @param remoteLoadBalancers
+	 *            the set of remote load balancers in the system
+	 * @param seeds
+	 *            the gossip addresses of the nodes to contact when joining
+	 * @param gossipIntervalMillis
+	 *            the interval, in milliseconds, between gossip rounds
+	 * @param failureTimeoutMillis
+	 *            the time, in milliseconds, after which a silent member is
+	 *            removed
+	 * @throws IOException
+	 *             if the datagram channel cannot be opened.
+	 * @throws IllegalArgumentException
+	 *             if the set of remote load balancers or the seed list is
+	 *             null, or the interval or timeout is less than 1.
+	 */
+	public GossipMembership(int gossipPort, int acceptPort, InetAddress bindAddress,
+			Set<RemoteLoadBalancer> remoteLoadBalancers, List<InetSocketAddress> seeds, int gossipIntervalMillis,
+			int failureTimeoutMillis) throws IOException {
+		if (remoteLoadBalancers == null)
+			throw new IllegalArgumentException("Remote load balancer set cannot be null.");
+		if (seeds == null)
+			throw new IllegalArgumentException("Seed list cannot be null.");
+		if (gossipIntervalMillis < 1 || failureTimeoutMillis < 1)
+			throw new IllegalArgumentException("Gossip interval and failure timeout must be at least 1 millisecond.");
+
+		this.gossipPort = gossipPort;
+		this.acceptPort = acceptPort;
+		this.bindAddress = bindAddress;
+		this.remoteLoadBalancers = remoteLoadBalancers;
+		this.staticMembers = new HashSet<>(remoteLoadBalancers);
+		this.seeds = seeds;
+		this.gossipIntervalMillis = gossipIntervalMillis;
+		this.failureTimeoutMillis = failureTimeoutMillis;
+
+		datagramChannel = DatagramChannel.open();
+		datagramChannel.bind(new InetSocketAddress(bindAddress, gossipPort));
+	}
+
+	/*
+	 * (non-Javadoc) Starts the gossip rounds and receives gossip from other
+	 * members until this object is closed.
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		receiverThread = Thread.currentThread();
+		gossipTimer = new Timer();
+		gossipTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				gossip();
+			}
+		}, 0, gossipIntervalMillis);
+
+		ByteBuffer buffer = BufferPool.acquire(DATAGRAM_BUFFER_SIZE);
+		while (datagramChannel.isOpen()) {
+			try {
+				buffer.clear();
+				InetSocketAddress sourceAddress = (InetSocketAddress) datagramChannel.receive(buffer);
+				buffer.flip();
+				if (ProtocolRegistry.decodeMessageType(buffer) != MessageType.MEMBERSHIP_GOSSIP) {
+					continue;
+				}
+				int entryCount = buffer.getInt();
+				for (int i = 0; i < entryCount; i++) {
+					byte[] address = new byte[buffer.get()];
+					buffer.get(address);
+					InetAddress memberIP = address.length == 0 ? sourceAddress.getAddress()
+							: InetAddress.getByAddress(address);
+					int memberAcceptPort = buffer.getInt();
+					int memberGossipPort = buffer.getInt();
+					long memberIncarnation = buffer.getLong();
+					long memberHeartbeat = buffer.getLong();
+					boolean memberHasLeft = buffer.get() == 1;
+					mergeEntry(new InetSocketAddress(memberIP, memberAcceptPort), memberGossipPort,
+							memberIncarnation, memberHeartbeat, memberHasLeft);
+				}
+			} catch (IOException e) {
+			} catch (RuntimeException e) {
+				// Malformed datagram - ignore it
+			}
+		}
+		BufferPool.release(buffer);
+	}
+
+	/**
+	 * Runs a single gossip round: increments this node's heartbeat counter,
+	 * removes members that have been silent for longer than the failure
+	 * timeout and discards expired departed entries, then sends the member
+	 * list to a few random members and any seeds that have not yet been heard
+	 * from.
+	 */
+	private synchronized void gossip() {
+		if (hasLeft) {
+			return;
+		}
+		heartbeatCounter++;
+		long currentTime = TimeSource.monotonicMillis();
+		for (Member member : new ArrayList<>(members.values())) {
+			if (currentTime - member.lastUpdated > failureTimeoutMillis) {
+				System.out.println("No gossip from load balancer at: " + member.acceptAddress.getHostString() + ":"
+						+ member.acceptAddress.getPort() + " - removing from membership");
+				removeMember(member);
+			}
+		}
+		for (Member departedMember : departedMembers.values()) {
+			if (currentTime - departedMember.lastUpdated > failureTimeoutMillis * 2L) {
+				departedMembers.remove(departedMember.acceptAddress);
+			}
+		}
+
+		List<InetSocketAddress> memberGossipAddresses = new ArrayList<>();
+		for (Member member : members.values()) {
+			if (member.gossipPort != 0) {
+				memberGossipAddresses.add(member.getGossipAddress());
+			}
+		}
+		List<InetSocketAddress> targets = new ArrayList<>();
+		for (InetSocketAddress seed : seeds) {
+			if (!memberGossipAddresses.contains(seed)) {
+				targets.add(seed);
+			}
+		}
+		Collections.shuffle(memberGossipAddresses);
+		targets.addAll(memberGossipAddresses.subList(0, Math.min(GOSSIP_FANOUT, memberGossipAddresses.size())));
+		sendMemberList(targets);
+	}
+
+	/**
+	 * Merges a member entry received from another node into this node's
+	 * member list, adding or removing the member from the set of remote load
+	 * balancers if it has joined or left. An entry is only applied if it is
+	 * newer than the one held, i.e. from a later incarnation, or from the same
+	 * incarnation with a higher heartbeat.
+	 */
+	private synchronized void mergeEntry(InetSocketAddress acceptAddress, int memberGossipPort,
+			long memberIncarnation, long memberHeartbeat, boolean memberHasLeft) {
+		if (isSelf(acceptAddress)) {
+			return;
+		}
+		Member member = members.get(acceptAddress);
+		if (member == null) {
+			Member departedMember = departedMembers.get(acceptAddress);
+			if (memberHasLeft || (departedMember != null
+					&& !departedMember.isOlderThan(memberIncarnation, memberHeartbeat))) {
+				return;
+			}
+			departedMembers.remove(acceptAddress);
+			member = new Member(acceptAddress, memberGossipPort, memberIncarnation, memberHeartbeat);
+			members.put(acceptAddress, member);
+			addRemoteLoadBalancer(acceptAddress);
+		} else if (member.isOlderThan(memberIncarnation, memberHeartbeat)) {
+			member.incarnation = memberIncarnation;
+			member.heartbeat = memberHeartbeat;
+			member.lastUpdated = TimeSource.monotonicMillis();
+			if (memberGossipPort != 0) {
+				member.gossipPort = memberGossipPort;
+			}
+			if (memberHasLeft) {
+				System.out.println("Load balancer at: " + acceptAddress.getHostString() + ":"
+						+ acceptAddress.getPort() + " left");
+				removeMember(member);
+			}
+		}
+	}
+
+	/**
+	 * Adds a remote load balancer for a newly discovered member, unless it is
+	 * already in the set, and starts connecting to it.
+	 */
+	private void addRemoteLoadBalancer(InetSocketAddress acceptAddress) {
+		if (findRemoteLoadBalancer(acceptAddress) != null) {
+			return;
+		}
+		final RemoteLoadBalancer remoteLoadBalancer = new RemoteLoadBalancer(acceptAddress);
+		try {
+			remoteLoadBalancer
+					.setConnectionPrecedence(Integer.parseInt(acceptAddress.getAddress().getHostAddress().split("\\.")[3]));
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+		}
+		remoteLoadBalancers.add(remoteLoadBalancer);
+		System.out.println("Load balancer at: " + acceptAddress.getHostString() + ":" + acceptAddress.getPort()
+				+ " joined");
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				remoteLoadBalancer.connect(gossipIntervalMillis);
+			}
+		}).start();
+		MembershipListener listener = membershipListener;
+		if (listener != null) {
+			listener.memberJoined(remoteLoadBalancer);
+		}
+	}
+
+	/**
+	 * Removes a member from the member list and, unless it is a static member,
+	 * removes and disconnects its remote load balancer.
+	 */
+	private void removeMember(Member member) {
+		members.remove(member.acceptAddress);
+		member.lastUpdated = TimeSource.monotonicMillis();
+		departedMembers.put(member.acceptAddress, member);
+		RemoteLoadBalancer remoteLoadBalancer = findRemoteLoadBalancer(member.acceptAddress);
+		if (remoteLoadBalancer == null || staticMembers.contains(remoteLoadBalancer)) {
+			return;
+		}
+		remoteLoadBalancers.remove(remoteLoadBalancer);
+		try {
+			if (remoteLoadBalancer.getSocketChannel() != null) {
+				remoteLoadBalancer.getSocketChannel().close();
+			}
+		} catch (IOException e) {
+		}
+		MembershipListener listener = membershipListener;
+		if (listener != null) {
+			listener.memberLeft(remoteLoadBalancer);
+		}
+	}
+
+	/**
+	 * Sends this node's entry followed by an entry for each known member to
+	 * each of the given gossip addresses.
+	 */
+	private void sendMemberList(List<InetSocketAddress> targets) {
+		ByteBuffer buffer = BufferPool.acquire(DATAGRAM_BUFFER_SIZE);
+		buffer.put((byte) MessageType.MEMBERSHIP_GOSSIP.getValue());
+		buffer.putInt(0);
+		int entryCount = 1;
+		putEntry(buffer, bindAddress, acceptPort, gossipPort, incarnation, heartbeatCounter, hasLeft);
+		for (Member member : members.values()) {
+			if (buffer.remaining() < MAX_ENTRY_SIZE) {
+				break;
+			}
+			putEntry(buffer, member.acceptAddress.getAddress(), member.acceptAddress.getPort(), member.gossipPort,
+					member.incarnation, member.heartbeat, false);
+			entryCount++;
+		}
+		buffer.putInt(1, entryCount);
+		buffer.flip();
+		for (InetSocketAddress target : targets) {
+			try {
+				datagramChannel.send(buffer, target);
+			} catch (IOException e) {
+			}
+			buffer.rewind();
+		}
+		BufferPool.release(buffer);
+	}
+
+	/**
+	 * Writes a single member entry to the given buffer. A null address is
+	 * sent as an empty address, which the receiver replaces with the
+	 * datagram's source address.
+	 */
+	private void putEntry(ByteBuffer buffer, InetAddress address, int memberAcceptPort, int memberGossipPort,
+			long memberIncarnation, long memberHeartbeat, boolean memberHasLeft) {
+		byte[] addressBytes = address == null ? new byte[0] : address.getAddress();
+		buffer.put((byte) addressBytes.length);
+		buffer.put(addressBytes);
+		buffer.putInt(memberAcceptPort);
+		buffer.putInt(memberGossipPort);
+		buffer.putLong(memberIncarnation);
+		buffer.putLong(memberHeartbeat);
+		buffer.put((byte) (memberHasLeft ? 1 : 0));
+	}
+
+	/**
+	 * @return true if the given accept address belongs to this node.
+	 */
+	private boolean isSelf(InetSocketAddress acceptAddress) {
+		if (acceptAddress.getPort() != acceptPort) {
+			return false;
+		}
+		InetAddress address = acceptAddress.getAddress();
+		if (bindAddress != null) {
+			return bindAddress.equals(address);
+		}
+		try {
+			return address.isLoopbackAddress() || address.isAnyLocalAddress()
+					|| NetworkInterface.getByInetAddress(address) != null;
+		} catch (SocketException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the remote load balancer with the given accept address, or null
+	 *         if there is no such remote.
+	 */
+	private RemoteLoadBalancer findRemoteLoadBalancer(InetSocketAddress acceptAddress) {
+		for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
+			if (remoteLoadBalancer.getAddress().equals(acceptAddress)) {
+				return remoteLoadBalancer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param membershipListener
+	 *            the load balancer process that membership changes will be
+	 *            passed to (can be null).
+	 */
+	public void setMembershipListener(MembershipListener membershipListener) {
+		this.membershipListener = membershipListener;
+	}
+
+	/**
+	 * @return the number of members that this node has heard from and not
+	 *         since removed.
+	 */
+	public int getMemberCount() {
+		return members.size();
+	}
+
+	/**
+	 * @return the number of departed members whose last entry is still held
+	 *         to reject out of date gossip.
+	 */
+	public int getDepartedMemberCount() {
+		return departedMembers.size();
+	}
+
+	/**
+	 * Gossips to every known member and seed that this node is leaving, then
+	 * closes this object. To be called when the load balancer shuts down.
+	 */
+	public void leave() {
+		synchronized (this) {
+			hasLeft = true;
+			heartbeatCounter++;
+			List<InetSocketAddress> targets = new ArrayList<>(seeds);
+			for (Member member : members.values()) {
+				if (member.gossipPort != 0 && !targets.contains(member.getGossipAddress())) {
+					targets.add(member.getGossipAddress());
+				}
+			}
+			sendMemberList(targets);
+		}
+		close();
+	}
+
+	/**
+	 * Stops the gossip rounds and closes the datagram channel, waiting for
+	 * the receiving thread to finish.
+	 */
+	public void close() {
+		if (gossipTimer != null) {
+			gossipTimer.cancel();
+		}
+		try {
+			datagramChannel.close();
+		} catch (IOException e) {
+		}
+		Thread thread = receiverThread;
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @author Joachim
+	 *         <p>
+	 *         The gossip state held for each member of the system.
+	 *         </p>
+	 *
+	 */
+	private static class Member {
+
+		/**
+		 * The address the member accepts connections on.
+		 */
+		private InetSocketAddress acceptAddress;
+
+		/**
+		 * The port the member receives gossip on, or 0 if not known.
+		 */
+		private int gossipPort;
+
+		/**
+		 * The incarnation (start time) of the member's most recent entry.
+		 */
+		private long incarnation;
+
+		/**
+		 * The highest heartbeat counter received for the member in its
+		 * current incarnation.
+		 */
+		private long heartbeat;
+
+		/**
+		 * The time, in milliseconds, that the member's heartbeat counter last
+		 * increased, or that it departed.
+		 */
+		private long lastUpdated = TimeSource.monotonicMillis();
+
+		private Member(InetSocketAddress acceptAddress, int gossipPort, long incarnation, long heartbeat) {
+			this.acceptAddress = acceptAddress;
+			this.gossipPort = gossipPort;
+			this.incarnation = incarnation;
+			this.heartbeat = heartbeat;
+		}
+
+		/**
+		 * @return true if an entry with the given incarnation and heartbeat
+		 *         is newer than the one held for this member.
+		 */
+		private boolean isOlderThan(long otherIncarnation, long otherHeartbeat) {
+			return otherIncarnation > incarnation || (otherIncarnation == incarnation && otherHeartbeat > heartbeat);
+		}
+
+		/**
+		 * @return the address that gossip is sent to for this member.
+		 */
+		private InetSocketAddress getGossipAddress() {
+			return new InetSocketAddress(acceptAddress.getAddress(), gossipPort);
+		}
+	}
+}
@@ -1,13 +1,15 @@
 package faultModule;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Set;
 
 import commsModel.LoadBalancerState;
+import commsModel.LoadSummary;
 import commsModel.RemoteLoadBalancer;
+import connectionUtils.BufferPool;
 import connectionUtils.MessageType;
 import loadBalancer.AbstractLoadBalancer;
+import loadBalancer.ServerManager;
 
 /**
  * @author Joachim
@@ -39,6 +41,19 @@ public class HeartbeatBroadcaster implements Runnable {
 	 */
 	private LoadBalancerState broadcastState;
 
+	/**
+	 * The UDP transport used to send heartbeats, or null if heartbeats are
+	 * sent over each remote's TCP connection.
+	 */
+	private DatagramHeartbeatTransport datagramTransport;
+
+	/**
+	 * The ServerManager whose {@link LoadSummary} is appended to each
+	 * <code>ACTIVE_ALIVE_CONFIRM</code>, or null if heartbeats are sent
+	 * without a summary.
+	 */
+	private ServerManager serverManager;
+
 	/**
 	 * Flag used to terminate this HeartbeatBroadcaster thread.
 	 */
@@ -62,6 +77,17 @@ public class HeartbeatBroadcaster implements Runnable {
 		this.broadcastState = broadcastState;
 	}
 
+	/**
+	 * Creates a new HeartbeatBroadcaster instance that sends its heartbeats
+	 * using the given {@link DatagramHeartbeatTransport}. If the transport is
+	 * null, heartbeats are sent over each remote's TCP connection.
+	 */
+	public HeartbeatBroadcaster(Set<RemoteLoadBalancer> remoteLoadBalancers, int heartbeatIntervalMillis,
+			LoadBalancerState broadcastState, DatagramHeartbeatTransport datagramTransport) {
+		this(remoteLoadBalancers, heartbeatIntervalMillis, broadcastState);
+		this.datagramTransport = datagramTransport;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -75,12 +101,18 @@ public class HeartbeatBroadcaster implements Runnable {
 				? MessageType.ACTIVE_ALIVE_CONFIRM : MessageType.BACKUP_ALIVE_CONFIRM;
 
 		while (!isTerminated) {
-			for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
-				if (remoteLoadBalancer.isConnected()
-						&& remoteLoadBalancer.getState().equals(LoadBalancerState.PASSIVE)) {
-					sendHeartbeat(remoteLoadBalancer, broadcastMessage);
+			ByteBuffer loadSummary = getEncodedLoadSummary();
+			if (datagramTransport != null) {
+				datagramTransport.broadcastHeartbeat(broadcastMessage, loadSummary);
+			} else {
+				for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
+					if (remoteLoadBalancer.isConnected()
+							&& remoteLoadBalancer.getState().equals(LoadBalancerState.PASSIVE)) {
+						sendHeartbeat(remoteLoadBalancer, broadcastMessage, loadSummary);
+					}
 				}
 			}
+			BufferPool.release(loadSummary);
 			try {
 				Thread.sleep(heartbeatIntervalMillis);
 			} catch (Exception e) {
@@ -94,29 +126,56 @@ public class HeartbeatBroadcaster implements Runnable {
 	}
 
 	/**
-	 * Sends an the specified heartbeat message to the specified
-	 * {@link RemoteLoadBalancer}.
+	 * Sets the ServerManager whose current {@link LoadSummary} will be sent
+	 * with each <code>ACTIVE_ALIVE_CONFIRM</code>, allowing the passive nodes
+	 * to keep a copy of the active's view of the servers.
+	 * 
+	 * @param serverManager
+	 *            the active load balancer's ServerManager, or null to send
+	 *            heartbeats without a summary
+	 */
+	public void setServerManager(ServerManager serverManager) {
+		this.serverManager = serverManager;
+	}
+
+	/**
+	 * @return the encoded load summary to append to the next heartbeat, or
+	 *         null if no summary should be sent.
+	 */
+	private ByteBuffer getEncodedLoadSummary() {
+		if (serverManager == null || !broadcastState.equals(LoadBalancerState.ACTIVE)) {
+			return null;
+		}
+		LoadSummary loadSummary = serverManager.getLoadSummary();
+		ByteBuffer buffer = BufferPool.acquire(loadSummary.getEncodedLength());
+		loadSummary.encode(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Queues the specified heartbeat message to be sent to the specified
+	 * {@link RemoteLoadBalancer}. If an earlier heartbeat is still waiting to
+	 * be sent to a slow remote, it is replaced by this one.
 	 * 
 	 * @param remoteLoadBalancer
 	 *            the RemoteLoadbalancer to send the heartbeat message to
 	 * @param broadcastMessage
 	 *            the message type to send - active or passive.
+	 * @param loadSummary
+	 *            the encoded load summary to send after the message type, or
+	 *            null
 	 */
-	private void sendHeartbeat(RemoteLoadBalancer remoteLoadBalancer, MessageType broadcastMessage) {
-		ByteBuffer buffer = ByteBuffer.allocate(1);
+	private void sendHeartbeat(RemoteLoadBalancer remoteLoadBalancer, MessageType broadcastMessage,
+			ByteBuffer loadSummary) {
+		ByteBuffer buffer = BufferPool.acquire(1 + (loadSummary == null ? 0 : loadSummary.remaining()));
 		buffer.put((byte) broadcastMessage.getValue());
-		buffer.flip();
-		try {
-			while (buffer.hasRemaining()) {
-				remoteLoadBalancer.getSocketChannel().write(buffer);
-			}
-		} catch (IOException e) {
-			if (e.getMessage() != null && e.getMessage().equals("An existing connection was forcibly closed by the remote host")) {
-				try {
-					remoteLoadBalancer.getSocketChannel().close();
-				} catch (IOException e1) {
-				}
-			}
+		if (loadSummary != null) {
+			buffer.put(loadSummary.duplicate());
 		}
+		buffer.flip();
+		// The message is copied into a frame when it is queued
+		remoteLoadBalancer.sendMessage(buffer);
+		BufferPool.release(buffer);
 	}
 }
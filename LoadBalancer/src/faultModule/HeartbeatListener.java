@@ -0,0 +1,32 @@
+package faultModule;
+
+import java.nio.ByteBuffer;
+
+import commsModel.RemoteLoadBalancer;
+import connectionUtils.MessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Interface implemented by load balancer processes that need to be
+ *         notified of heartbeats received by a
+ *         {@link DatagramHeartbeatTransport}.
+ *         </p>
+ *
+ */
+public interface HeartbeatListener {
+
+	/**
+	 * Called each time a heartbeat is received from a known remote load
+	 * balancer.
+	 *
+	 * @param remoteLoadBalancer
+	 *            the remote load balancer that sent the heartbeat
+	 * @param heartbeatType
+	 *            either <code>ACTIVE_ALIVE_CONFIRM</code> or
+	 *            <code>BACKUP_ALIVE_CONFIRM</code>
+	 * @param payload
+	 *            any bytes sent after the heartbeat header (may be empty)
+	 */
+	void heartbeatReceived(RemoteLoadBalancer remoteLoadBalancer, MessageType heartbeatType, ByteBuffer payload);
+}
@@ -0,0 +1,33 @@
+package faultModule;
+
+import commsModel.RemoteLoadBalancer;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Interface implemented by load balancer processes that need to be
+ *         notified when a load balancer node joins or leaves the system, as
+ *         discovered by a {@link GossipMembership}.
+ *         </p>
+ *
+ */
+public interface MembershipListener {
+
+	/**
+	 * Called after a newly discovered load balancer has been added to the set
+	 * of remote load balancers.
+	 *
+	 * @param remoteLoadBalancer
+	 *            the load balancer that joined
+	 */
+	void memberJoined(RemoteLoadBalancer remoteLoadBalancer);
+
+	/**
+	 * Called after a load balancer that has left (or failed) has been removed
+	 * from the set of remote load balancers.
+	 *
+	 * @param remoteLoadBalancer
+	 *            the load balancer that left
+	 */
+	void memberLeft(RemoteLoadBalancer remoteLoadBalancer);
+}
@@ -1,9 +1,8 @@
 package faultModule;
 
 import java.io.IOException;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Timer;
@@ -11,11 +10,14 @@ import java.util.TimerTask;
 import java.util.concurrent.ThreadLocalRandom;
 
 import commsModel.LoadBalancerState;
+import commsModel.LoadSummary;
 import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
-import connectionUtils.ExponentialMovingAverage;
+import connectionUtils.FrameDecoder;
 import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
 import loadBalancer.AbstractLoadBalancer;
+import loadBalancer.ActiveLoadBalancer;
 import loadBalancer.LoadBalancer;
 import loadBalancer.LoadBalancerConnectionHandler;
 import logging.ComponentLogger;
@@ -37,7 +39,8 @@ import logging.LogMessageType;
  *         </p>
  *
  */
-public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnable {
+public class PassiveLoadBalancer extends AbstractLoadBalancer
+		implements Runnable, HeartbeatListener, MembershipListener {
 
 	/**
 	 * The timeout duration used to calculate the heartbeat timeout intervals
@@ -66,14 +69,14 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 	/**
 	 * Flag indicating whether this node is the currently elected backup.
 	 */
-	private boolean isElectedBackup = false;
+	private volatile boolean isElectedBackup = false;
 
 	/**
 	 * Flag used to indicate that the system is currently in an
 	 * election-in-progress state and should handle election messages
 	 * accordingly.
 	 */
-	private boolean preElectionInProgress = false;
+	private volatile boolean preElectionInProgress = false;
 
 	/**
 	 * If this load balancer is the elected backup, this is used as the node's
@@ -89,9 +92,13 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 
 	/**
 	 * The remote node currently acting as the primary load balancer. Reference
-	 * maintained here for ease of use.
+	 * maintained here for ease of use. Read by the heartbeat timers and, if
+	 * heartbeats are sent over UDP, written by the
+	 * {@link DatagramHeartbeatTransport} receiver thread as well as the
+	 * listening thread, so it is only changed while holding this object's
+	 * lock.
 	 */
-	private RemoteLoadBalancer currentActive;
+	private volatile RemoteLoadBalancer currentActive;
 
 	/**
 	 * The timer used to monitor the active load balancer's heartbeat.
@@ -128,18 +135,32 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 	 * Flag indicating that this passive node is expecting an
 	 * <code>ACTIVE_ALIVE_CONFIRM</code> message from the active load balancer.
 	 */
-	private boolean expectingAliveConfirmation = false;
+	private volatile boolean expectingAliveConfirmation = false;
 
 	/**
 	 * Flag indicating that this node has received confirmation that the active
 	 * is alive, in the case that a failure has been suspected.
 	 */
-	private boolean receivedAliveConfirmation = false;
+	private volatile boolean receivedAliveConfirmation = false;
+
+	/**
+	 * The most recent {@link LoadSummary} received from the active load
+	 * balancer, handed to the new {@link ActiveLoadBalancer} if this node is
+	 * promoted.
+	 */
+	private volatile LoadSummary loadSnapshot;
+
+	/**
+	 * Flag set when the elected backup has left the system, prompting a
+	 * pre-election from the listening thread.
+	 */
+	private volatile boolean electedBackupLeft = false;
 	
 	/**
-	 * The ExponentialMovingAverage class used to determine smoothed averages for server latency values. 
+	 * Used to concurrently probe the servers and calculate this node's
+	 * candidacy value from the per-server latencies.
 	 */
-	private ExponentialMovingAverage serverLatencyAverage = new ExponentialMovingAverage(0.5);
+	private ServerLatencyProber serverLatencyProber;
 
 	/**
 	 * Creates a new PassiveLoadBalancer object that acts as a backup load
@@ -168,6 +189,7 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 		this.remoteLoadBalancers = remoteLoadBalancers;
 		this.servers = servers;
 		this.defaultTimeoutMillis = defaultTimeoutMillis;
+		this.serverLatencyProber = new ServerLatencyProber(servers, defaultTimeoutMillis);
 	}
 
 	/*
@@ -183,6 +205,12 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 		ComponentLogger.getInstance().log(LogMessageType.LOAD_BALANCER_ENTERED_PASSIVE);
 
 		connectionHandler.setPassive();
+		if (heartbeatTransport != null) {
+			heartbeatTransport.setHeartbeatListener(this);
+		}
+		if (gossipMembership != null) {
+			gossipMembership.setMembershipListener(this);
+		}
 		
 		// Check if a remote load balancer has been set to the active state in the case
 		// that this node has just transitioned to the passive state after receiving an
@@ -242,63 +270,39 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 		while (!terminateThread.get()) {
 			int backupCount = 0;
 			for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
-				ByteBuffer buffer = ByteBuffer.allocate(100);
+				ByteBuffer buffer;
 				try {
 					if (!remoteLoadBalancer.isConnected()) {
 						continue;
 					}
-					SocketChannel socketChannel = remoteLoadBalancer.getSocketChannel();
-					while (socketChannel.read(buffer) > 0) {
-						buffer.flip();
-						MessageType messageType = MessageType.values()[buffer.get()];
-						switch (messageType) {
-						case ACTIVE_DECLARATION:
-							if (!remoteLoadBalancer.equals(currentActive)) {
-								resetActiveHeartbeatTimer();
-								remoteLoadBalancer.setState(LoadBalancerState.ACTIVE);
-								if (currentActive != null) {
-									currentActive.setState(LoadBalancerState.PASSIVE);
-								}
-								System.out.println("Load Balancer at: " + remoteLoadBalancer.getAddress().getHostString() + " declared active status");
-								currentActive = remoteLoadBalancer;
-								currentActive.setIsElectedBackup(false);
+					FrameDecoder frameDecoder = remoteLoadBalancer.getFrameDecoder();
+					while (frameDecoder.read(remoteLoadBalancer.getSocketChannel()) > 0) {
+						while ((buffer = frameDecoder.nextFrame()) != null) {
+							MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
+							if (messageType == null) {
+								// Unknown message type - drop the frame
+								continue;
 							}
-							break;
-						case ACTIVE_ALIVE_CONFIRM:
-							if (currentActive == null) {
-								remoteLoadBalancer.setState(LoadBalancerState.ACTIVE);
-								System.out.println("Identified active at:" + remoteLoadBalancer.getAddress().getHostString());
-								currentActive = remoteLoadBalancer;
-								currentActive.setIsElectedBackup(false);
-							}
-							if (remoteLoadBalancer.equals(currentActive)) {
-								resetActiveHeartbeatTimer();
-							}
-							if (expectingAliveConfirmation) {
-								if (remoteLoadBalancer.equals(currentActive)) {
-									receivedAliveConfirmation = true;
-								}
-								expectingAliveConfirmation = false;
-							}
-							break;
-						case BACKUP_ALIVE_CONFIRM:
-							if (!preElectionInProgress) {
-								if (!remoteLoadBalancer.isElectedBackup()) {
-									System.out.println("Identified backup at:" + remoteLoadBalancer.getAddress().getHostString());
+							switch (messageType) {
+							case ACTIVE_DECLARATION:
+								handleActiveDeclaration(remoteLoadBalancer);
+								break;
+							case ACTIVE_ALIVE_CONFIRM:
+								handleActiveAliveConfirm(remoteLoadBalancer, buffer);
+								break;
+							case BACKUP_ALIVE_CONFIRM:
+								handleBackupAliveConfirm(remoteLoadBalancer);
+								break;
+							case ELECTION_MESSAGE:
+								remoteLoadBalancer.setCandidacyValue(buffer.getDouble());
+								if (!preElectionInProgress) {
+									System.out.println("Initiated pre-election after receiving election message");
+									initiatePreElection();
 								}
-								remoteLoadBalancer.setIsElectedBackup(true);
-								resetBackupHeartbeatTimer();
+								break;
+							default:
+								break;
 							}
-							break;
-						case ELECTION_MESSAGE:
-							remoteLoadBalancer.setCandidacyValue(buffer.getDouble());
-							if (!preElectionInProgress) {
-								System.out.println("Initiated pre-election after receiving election message");
-								initiatePreElection();
-							}
-							break;
-						default:
-							break;
 						}
 					}
 				} catch (IOException e) {
@@ -321,9 +325,135 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 				System.out.println("Detected multiple backups - Initiated pre-election");
 				initiatePreElection();
 			}
+			if (electedBackupLeft) {
+				electedBackupLeft = false;
+				if (!preElectionInProgress) {
+					System.out.println("Elected backup left - Initiated pre-election");
+					initiatePreElection();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void heartbeatReceived(RemoteLoadBalancer remoteLoadBalancer, MessageType heartbeatType,
+			ByteBuffer payload) {
+		if (terminateThread.get()) {
+			return;
+		}
+		if (heartbeatType == MessageType.ACTIVE_ALIVE_CONFIRM) {
+			handleActiveAliveConfirm(remoteLoadBalancer, payload);
+		} else if (heartbeatType == MessageType.BACKUP_ALIVE_CONFIRM) {
+			handleBackupAliveConfirm(remoteLoadBalancer);
+		}
+	}
+
+	@Override
+	public void memberJoined(RemoteLoadBalancer remoteLoadBalancer) {
+		// New members start in the passive state and receive heartbeats, and
+		// take part in the next election once they send their candidacy
+	}
+
+	@Override
+	public void memberLeft(RemoteLoadBalancer remoteLoadBalancer) {
+		if (!terminateThread.get() && remoteLoadBalancer.isElectedBackup()) {
+			electedBackupLeft = true;
+		}
+	}
+
+	/**
+	 * Handles an <code>ACTIVE_DECLARATION</code> message, taking the sender
+	 * as the current active.
+	 * 
+	 * @param remoteLoadBalancer
+	 *            the remote load balancer that declared itself active
+	 */
+	private synchronized void handleActiveDeclaration(RemoteLoadBalancer remoteLoadBalancer) {
+		if (!remoteLoadBalancer.equals(currentActive)) {
+			resetActiveHeartbeatTimer();
+			remoteLoadBalancer.setState(LoadBalancerState.ACTIVE);
+			if (currentActive != null) {
+				currentActive.setState(LoadBalancerState.PASSIVE);
+			}
+			System.out.println("Load Balancer at: " + remoteLoadBalancer.getAddress().getHostString() + " declared active status");
+			currentActive = remoteLoadBalancer;
+			currentActive.setIsElectedBackup(false);
 		}
 	}
 
+	/**
+	 * Handles an <code>ACTIVE_ALIVE_CONFIRM</code> heartbeat, received over
+	 * either TCP or the {@link DatagramHeartbeatTransport}. If the heartbeat
+	 * from the current active carries a {@link LoadSummary}, it is applied to
+	 * the servers and kept as this node's snapshot of the active's state.
+	 * Servers in the summary that this node does not know of (i.e. that have
+	 * registered with the active) are added to its set of servers, and
+	 * servers missing from it (i.e. that have deregistered and been drained)
+	 * are removed, so that this node does not route to them if promoted.
+	 * Synchronized as UDP heartbeats are handled on the transport's receiver
+	 * thread while TCP heartbeats are handled on the listening thread.
+	 * 
+	 * @param remoteLoadBalancer
+	 *            the remote load balancer that sent the heartbeat
+	 * @param payload
+	 *            the remainder of the heartbeat message
+	 */
+	private synchronized void handleActiveAliveConfirm(RemoteLoadBalancer remoteLoadBalancer, ByteBuffer payload) {
+		if (currentActive == null) {
+			remoteLoadBalancer.setState(LoadBalancerState.ACTIVE);
+			System.out.println("Identified active at:" + remoteLoadBalancer.getAddress().getHostString());
+			currentActive = remoteLoadBalancer;
+			currentActive.setIsElectedBackup(false);
+		}
+		if (remoteLoadBalancer.equals(currentActive)) {
+			resetActiveHeartbeatTimer();
+			if (payload.hasRemaining()) {
+				LoadSummary loadSummary = LoadSummary.decode(payload);
+				if (loadSummary != null) {
+					for (InetSocketAddress serverAddress : loadSummary.getServerAddresses()) {
+						servers.add(new Server(serverAddress));
+					}
+					loadSummary.removeMissingFrom(servers);
+					loadSummary.applyTo(servers);
+					loadSnapshot = loadSummary;
+				}
+			}
+		}
+		if (expectingAliveConfirmation) {
+			if (remoteLoadBalancer.equals(currentActive)) {
+				receivedAliveConfirmation = true;
+			}
+			expectingAliveConfirmation = false;
+		}
+	}
+
+	/**
+	 * Handles a <code>BACKUP_ALIVE_CONFIRM</code> heartbeat, received over
+	 * either TCP or the {@link DatagramHeartbeatTransport}.
+	 * 
+	 * @param remoteLoadBalancer
+	 *            the remote load balancer that sent the heartbeat
+	 */
+	private synchronized void handleBackupAliveConfirm(RemoteLoadBalancer remoteLoadBalancer) {
+		if (!preElectionInProgress) {
+			if (!remoteLoadBalancer.isElectedBackup()) {
+				System.out.println("Identified backup at:" + remoteLoadBalancer.getAddress().getHostString());
+			}
+			remoteLoadBalancer.setIsElectedBackup(true);
+			resetBackupHeartbeatTimer();
+		}
+	}
+
+	/**
+	 * Starts a new {@link ActiveLoadBalancer} in place of this node, passing
+	 * on the most recent load snapshot received from the previous active.
+	 */
+	private void promoteToActive() {
+		ActiveLoadBalancer activeLoadBalancer = LoadBalancer.getNewActiveLoadBalancer();
+		activeLoadBalancer.setLoadSnapshot(loadSnapshot);
+		new Thread(activeLoadBalancer).start();
+	}
+
 	/**
 	 * Starts a new timer for the active load balancer that will begin the fault
 	 * tolerance protocol after it has run for the specified duration.
@@ -333,12 +463,13 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 
 			@Override
 			public void run() {
-				if (currentActive == null) {
+				RemoteLoadBalancer suspectedActive = currentActive;
+				if (suspectedActive == null) {
 					// No active was present - elevate own state.
 					ComponentLogger.getInstance().log(LogMessageType.LOAD_BALANCER_NO_ACTIVE_DETECTED);
 					System.out.println("Detected absence of an active node.");
 					terminateThread.set(true);
-					new Thread(LoadBalancer.getNewActiveLoadBalancer()).start();
+					promoteToActive();
 					for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
 						remoteLoadBalancer.resetState();
 					}
@@ -350,20 +481,16 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 				System.out.println("Active load balancer failure detected.");
 				Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
 
-				if (!currentActive.connect(activeTimeoutMillis / 100)) {
+				if (!suspectedActive.connect(activeTimeoutMillis / 100)) {
 					// activeFailureDetected = true;
 					handleActiveFailure();
 				} else {
 					ByteBuffer buffer = ByteBuffer.allocate(1);
 					buffer.put((byte) MessageType.ALIVE_REQUEST.getValue());
 					buffer.flip();
-					try {
-						while (buffer.hasRemaining()) {
-							currentActive.getSocketChannel().write(buffer);
-						}
+					receivedAliveConfirmation = false;
+					if (suspectedActive.sendMessage(buffer)) {
 						expectingAliveConfirmation = true;
-					} catch (IOException e) {
-						// e.printStackTrace();
 					}
 					new Timer().schedule(new TimerTask() {
 						@Override
@@ -388,16 +515,18 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 	 * Commences the protocol for handling a confirmed failure of the active load balancer.
 	 * Outcome depends on whether this node is the elected backup.
 	 */
-	private void handleActiveFailure() {
+	private synchronized void handleActiveFailure() {
 		if (isElectedBackup) {
 			terminateThread.set(true);
-			new Thread(LoadBalancer.getNewActiveLoadBalancer()).start();
+			promoteToActive();
 			for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
 				remoteLoadBalancer.resetState();
 			}
 		} else {
-			currentActive.setState(LoadBalancerState.PASSIVE);
-			currentActive.setIsElectedBackup(false);
+			if (currentActive != null) {
+				currentActive.setState(LoadBalancerState.PASSIVE);
+				currentActive.setIsElectedBackup(false);
+			}
 			try {
 			currentActive = remoteLoadBalancers.stream().filter(x -> x.isElectedBackup()).findFirst().get();
 			} catch (NoSuchElementException e) {
@@ -418,26 +547,17 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 
 	/**
 	 * Instantiates the <code>serverLatencyProcessorTimer</code> to periodically
-	 * run a {@link TimerTask} that calculates this load balancer's average ping
-	 * time to the servers on the network (at 3x the timeout duration for the
-	 * backup load balancer).
+	 * run a {@link TimerTask} that probes all servers concurrently using the
+	 * {@link ServerLatencyProber} and stores the resulting aggregate latency
+	 * (at 3x the timeout duration for the backup load balancer).
 	 */
 	private void startServerLatencyProcessorTimer() {
 		TimerTask timerTask = new TimerTask() {
 			@Override
 			public void run() {
-				double totalLatency = 0;
-				for (Server server : servers) {
-					long pingStart = System.nanoTime();
-					try {
-						InetAddress.getByName(server.getAddress().getHostName()).isReachable(defaultTimeoutMillis);
-					} catch (IOException e) {
-					}
-					long pingTime = System.nanoTime() - pingStart;
-					totalLatency += pingTime;
-				}
+				double aggregateLatency = serverLatencyProber.probeServers();
 				// Add small value to average server latency in case two passives calculate the same average.
-				averageServerLatency = serverLatencyAverage.average((totalLatency / servers.size()) + ThreadLocalRandom.current().nextDouble(0.001));
+				averageServerLatency = aggregateLatency + ThreadLocalRandom.current().nextDouble(0.001);
 				//System.out.println("Average server latency: " + averageServerLatency + "ns");
 			}
 		};
@@ -522,12 +642,7 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 				buffer.put((byte) MessageType.ELECTION_MESSAGE.getValue());
 				buffer.putDouble(averageServerLatency);	
 				buffer.flip();
-				try {
-					while (buffer.hasRemaining()) {
-						remoteLoadBalancer.getSocketChannel().write(buffer);
-					}
-				} catch (IOException e) {
-				}
+				remoteLoadBalancer.sendMessage(buffer);
 			}
 			remoteLoadBalancer.setIsElectedBackup(false);
 		}
@@ -557,7 +672,7 @@ public class PassiveLoadBalancer extends AbstractLoadBalancer implements Runnabl
 					backupHeartbeatTimer.cancel();
 					isElectedBackup = true;
 					backupHeartbeatBroadcaster = new HeartbeatBroadcaster(remoteLoadBalancers, backupHeartbeatIntervalMillis,
-							LoadBalancerState.PASSIVE);
+							LoadBalancerState.PASSIVE, heartbeatTransport);
 					new Thread(backupHeartbeatBroadcaster).start();
 					
 					// Start timer for next pre-election
@@ -0,0 +1,248 @@
+package faultModule;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import commsModel.LatencyRecord;
+import commsModel.Server;
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Used by a {@link PassiveLoadBalancer} to measure its latency to the
+ *         back-end servers. Each probe round opens a TCP connection to every
+ *         server at the same time and waits on a single {@link Selector} for
+ *         the connections to complete, so a round takes at most one timeout
+ *         period regardless of the number of servers. The connect round trip
+ *         time for each server is stored in a {@link LatencyRecord}, and the
+ *         median of the per-server averages is used as this node's election
+ *         candidacy value.
+ *         </p>
+ *
+ */
+public class ServerLatencyProber {
+
+	/**
+	 * The smoothing factor applied to each server's latency samples.
+	 */
+	private static final double LATENCY_SMOOTHING_ALPHA = 0.5;
+
+	/**
+	 * The set of back-end servers to probe.
+	 */
+	private Set<Server> servers;
+
+	/**
+	 * The time, in milliseconds, after which a server that has not accepted
+	 * the probe connection is considered unreachable. An unreachable server is
+	 * recorded as having a latency equal to this timeout.
+	 */
+	private int probeTimeoutMillis;
+
+	/**
+	 * The latency measurements held for each server.
+	 */
+	private Map<Server, LatencyRecord> latencyRecords = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new ServerLatencyProber for the given set of servers.
+	 *
+	 * @param servers
+	 *            the servers to measure latency to
+	 * @param probeTimeoutMillis
+	 *            the maximum time to wait for a probe round to complete
+	 * @throws IllegalArgumentException
+	 *             if the set of servers is null or empty, or the timeout is
+	 *             not a positive value.
+	 */
+	public ServerLatencyProber(Set<Server> servers, int probeTimeoutMillis) {
+		if (servers == null || servers.isEmpty())
+			throw new IllegalArgumentException("Servers set cannot be null or empty.");
+		if (probeTimeoutMillis < 1)
+			throw new IllegalArgumentException("Probe timeout must be a positive, non-zero value.");
+
+		this.servers = servers;
+		this.probeTimeoutMillis = probeTimeoutMillis;
+	}
+
+	/**
+	 * Probes all servers concurrently, records the connect round trip time for
+	 * each and returns the updated aggregate latency.
+	 *
+	 * @return the median of the per-server average latencies in nanoseconds,
+	 *         as returned by <code>getAggregateLatency</code>.
+	 */
+	public double probeServers() {
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(probeTimeoutMillis);
+		// Forget servers that have since been removed from the system
+		latencyRecords.keySet().retainAll(servers);
+		try (Selector connectSelector = Selector.open()) {
+			long roundStart = TimeSource.monotonicNanos();
+			// Cancelled keys stay in the selector's key set until its next
+			// select, so the probes still in progress are counted instead
+			int outstandingProbes = 0;
+			for (Server server : servers) {
+				if (startProbe(server, connectSelector)) {
+					outstandingProbes++;
+				}
+			}
+
+			long deadline = roundStart + timeoutNanos;
+			while (outstandingProbes > 0) {
+				long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - TimeSource.monotonicNanos());
+				if (remainingMillis <= 0) {
+					break;
+				}
+				connectSelector.select(remainingMillis);
+				Iterator<SelectionKey> selectedKeys = connectSelector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					ProbeAttempt probeAttempt = (ProbeAttempt) key.attachment();
+					SocketChannel socketChannel = (SocketChannel) key.channel();
+					try {
+						if (socketChannel.finishConnect()) {
+							recordSample(probeAttempt.server, TimeSource.monotonicNanos() - probeAttempt.startNanos);
+							key.cancel();
+							socketChannel.close();
+							outstandingProbes--;
+						}
+					} catch (IOException e) {
+						recordSample(probeAttempt.server, timeoutNanos);
+						key.cancel();
+						closeQuietly(socketChannel);
+						outstandingProbes--;
+					}
+				}
+			}
+
+			// Anything left has timed out
+			for (SelectionKey key : connectSelector.keys()) {
+				if (!key.isValid()) {
+					continue;
+				}
+				ProbeAttempt probeAttempt = (ProbeAttempt) key.attachment();
+				recordSample(probeAttempt.server, timeoutNanos);
+				closeQuietly(key.channel());
+			}
+		} catch (IOException e) {
+		}
+		return getAggregateLatency();
+	}
+
+	/**
+	 * Opens a non-blocking connection to the given server and registers it
+	 * with the selector. If the connection cannot be started, the server is
+	 * recorded as unreachable straight away.
+	 *
+	 * @return true if the connection is in progress and registered with the
+	 *         selector, or false if the probe has already been recorded.
+	 */
+	private boolean startProbe(Server server, Selector connectSelector) {
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(probeTimeoutMillis);
+		SocketChannel socketChannel = null;
+		try {
+			socketChannel = SocketChannel.open();
+			socketChannel.configureBlocking(false);
+			long probeStart = TimeSource.monotonicNanos();
+			if (socketChannel.connect(server.getAddress())) {
+				recordSample(server, TimeSource.monotonicNanos() - probeStart);
+				socketChannel.close();
+				return false;
+			}
+			socketChannel.register(connectSelector, SelectionKey.OP_CONNECT, new ProbeAttempt(server, probeStart));
+			return true;
+		} catch (IOException | UnresolvedAddressException e) {
+			recordSample(server, timeoutNanos);
+			closeQuietly(socketChannel);
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a latency sample to the record held for the given server.
+	 */
+	private void recordSample(Server server, double latencyNanos) {
+		LatencyRecord latencyRecord = latencyRecords.get(server);
+		if (latencyRecord == null) {
+			latencyRecord = new LatencyRecord(LATENCY_SMOOTHING_ALPHA);
+			latencyRecords.put(server, latencyRecord);
+		}
+		latencyRecord.addSample(latencyNanos);
+	}
+
+	/**
+	 * Calculates the median of the average latencies held for each server.
+	 * The median is used rather than the mean so that a single dead or very
+	 * slow server does not dominate the result.
+	 *
+	 * @return the median per-server average latency in nanoseconds, or 0 if no
+	 *         probes have completed.
+	 */
+	public double getAggregateLatency() {
+		List<Double> averageLatencies = new ArrayList<>();
+		for (LatencyRecord latencyRecord : latencyRecords.values()) {
+			averageLatencies.add(latencyRecord.getAverageLatency());
+		}
+		if (averageLatencies.isEmpty()) {
+			return 0;
+		}
+		Collections.sort(averageLatencies);
+		int middle = averageLatencies.size() / 2;
+		if (averageLatencies.size() % 2 == 1) {
+			return averageLatencies.get(middle);
+		}
+		return (averageLatencies.get(middle - 1) + averageLatencies.get(middle)) / 2;
+	}
+
+	/**
+	 * @param server
+	 *            the server to retrieve the latency record for
+	 * @return the latency record held for the given server, or null if it has
+	 *         not yet been probed.
+	 */
+	public LatencyRecord getLatencyRecord(Server server) {
+		return latencyRecords.get(server);
+	}
+
+	/**
+	 * Closes the given channel, ignoring any errors.
+	 */
+	private void closeQuietly(Channel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Attached to each probe connection's {@link SelectionKey} so that the
+	 * server and start time can be identified when the connection completes.
+	 */
+	private static class ProbeAttempt {
+
+		private final Server server;
+
+		private final long startNanos;
+
+		private ProbeAttempt(Server server, long startNanos) {
+			this.server = server;
+			this.startNanos = startNanos;
+		}
+	}
+}
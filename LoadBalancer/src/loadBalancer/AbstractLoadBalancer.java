@@ -5,6 +5,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
+import faultModule.DatagramHeartbeatTransport;
+import faultModule.GossipMembership;
 
 /**
  * @author Joachim
@@ -38,6 +40,37 @@ public abstract class AbstractLoadBalancer implements Runnable {
 	 * anonymous runnable classes at runtime. 
 	 */
 	protected final AtomicBoolean terminateThread = new AtomicBoolean(false);
+
+	/**
+	 * The UDP transport used to send and receive heartbeats, or null if
+	 * heartbeats are sent over TCP. Passed between the active and passive
+	 * states during program operation.
+	 */
+	protected DatagramHeartbeatTransport heartbeatTransport;
+
+	/**
+	 * @param heartbeatTransport
+	 *            the UDP transport to use for heartbeats, or null to send
+	 *            heartbeats over TCP.
+	 */
+	public void setHeartbeatTransport(DatagramHeartbeatTransport heartbeatTransport) {
+		this.heartbeatTransport = heartbeatTransport;
+	}
+
+	/**
+	 * The gossip membership used to discover load balancers joining and
+	 * leaving the system, or null if the set of load balancers is static.
+	 */
+	protected GossipMembership gossipMembership;
+
+	/**
+	 * @param gossipMembership
+	 *            the gossip membership that updates the set of remote load
+	 *            balancers, or null if the set is static.
+	 */
+	public void setGossipMembership(GossipMembership gossipMembership) {
+		this.gossipMembership = gossipMembership;
+	}
 	
 	/**
 	 * Indefinitely checks for messages from all other load balancer nodes 
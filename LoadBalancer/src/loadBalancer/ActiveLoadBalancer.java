@@ -9,12 +9,18 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ThreadLocalRandom;
 
+import commsModel.AbstractRemote;
 import commsModel.LoadBalancerState;
+import commsModel.LoadSummary;
 import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
 import connectionUtils.ConnectNIO;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
 import faultModule.HeartbeatBroadcaster;
+import faultModule.HeartbeatListener;
 import logging.ComponentLogger;
 import logging.LogMessageType;
 
@@ -28,9 +34,15 @@ import logging.LogMessageType;
  *         Contains a {@link ServerManager} that is used to monitor the status
  *         of the live servers and retrieve a server's details when necessary.
  *         </p>
+ *         <p>
+ *         In active-active mode, every load balancer node runs as an
+ *         ActiveLoadBalancer. Each holds a lease with the name service, which
+ *         divides clients between them, and the nodes exchange load summaries
+ *         in their heartbeats rather than resolving to a single active.
+ *         </p>
  *
  */
-public class ActiveLoadBalancer extends AbstractLoadBalancer {
+public class ActiveLoadBalancer extends AbstractLoadBalancer implements HeartbeatListener {
 
 	/**
 	 * The address of the name resolution service.
@@ -58,6 +70,83 @@ public class ActiveLoadBalancer extends AbstractLoadBalancer {
 	 */
 	private boolean inBroadcastDelayPeriod = false;
 
+	/**
+	 * Flag indicating that a {@link LoadSummary} should be sent with each
+	 * <code>ACTIVE_ALIVE_CONFIRM</code>.
+	 */
+	private boolean sendLoadSummary = false;
+
+	/**
+	 * The most recent {@link LoadSummary} received from the previous active
+	 * while this node was passive, or null if none was received.
+	 */
+	private LoadSummary loadSnapshot;
+
+	/**
+	 * The ServerManager used to monitor the servers while this node is
+	 * active.
+	 */
+	private ServerManager serverManager;
+
+	/**
+	 * Flag indicating that this node is one of several active nodes sharing
+	 * the client load, rather than the only active.
+	 */
+	private boolean isActiveActive = false;
+
+	/**
+	 * The duration, in milliseconds, of the lease held with the name service
+	 * in active-active mode.
+	 */
+	private int nameServiceLeaseMillis;
+
+	/**
+	 * The penalty passed to the {@link ServerManager} in active-active mode to
+	 * account for tokens issued by peer nodes.
+	 */
+	private double tokenLoadPenalty;
+
+	/**
+	 * The window over which the {@link ServerManager} ramps up traffic to a
+	 * newly joined or recovered server, or 0 to disable slow start.
+	 */
+	private int slowStartWindowMillis = 0;
+
+	/**
+	 * The {@link OutlierDetector} passed to the {@link ServerManager}, or
+	 * null if outlier detection is disabled.
+	 */
+	private OutlierDetector outlierDetector;
+
+	/**
+	 * The way in which the {@link ServerManager} chooses a server for each
+	 * client.
+	 */
+	private SelectionStrategy selectionStrategy = SelectionStrategy.LEAST_LOADED;
+
+	/**
+	 * The {@link TokenLifetimeController} passed to the
+	 * {@link ServerManager}, or null to use each server's load variance.
+	 */
+	private TokenLifetimeController tokenLifetimeController;
+
+	/**
+	 * The number of less loaded peers that the {@link ServerManager} sends to
+	 * each server, or 0 to disable peer hints.
+	 */
+	private int peerHintCount = 0;
+
+	/**
+	 * The number of seconds that clients may use the published server table
+	 * for before refreshing it.
+	 */
+	private int serverTableRefreshSeconds = 5;
+
+	/**
+	 * Timer used to renew the name service lease in active-active mode.
+	 */
+	private Timer nameServiceLeaseTimer;
+
 	/**
 	 * Creates a new ActiveLoadBalancer object that acts as the primary load
 	 * balancer process in the system. The <code>run</code> method prompts this
@@ -106,24 +195,142 @@ public class ActiveLoadBalancer extends AbstractLoadBalancer {
 
 		randomBroadcastTimeoutMillis = ThreadLocalRandom.current().nextInt(heartbeatIntervalMillis * 2);
 
-		ServerManager serverManager = new ServerManager(servers);
+		serverManager = new ServerManager(servers);
+		serverManager.setSlowStartWindow(slowStartWindowMillis);
+		serverManager.setOutlierDetector(outlierDetector);
+		serverManager.setSelectionStrategy(selectionStrategy);
+		serverManager.setTokenLifetimeController(tokenLifetimeController);
+		serverManager.setPeerHintCount(peerHintCount);
+		serverManager.setServerTableRefreshSeconds(serverTableRefreshSeconds);
+		if (loadSnapshot != null) {
+			// Server loads have already been set from the snapshot, so clients
+			// can be routed before the servers have been polled
+			System.out.println("Routing from load snapshot received from previous active");
+			serverManager.setInitialTokenIssueRate(loadSnapshot.getTokenIssueRate());
+		}
 		new Thread(serverManager).start();
 
 		connectionHandler.setActive(serverManager);
-		notifyNameService();
+		if (isActiveActive) {
+			serverManager.setTokenLoadPenalty(tokenLoadPenalty, heartbeatIntervalMillis * 3);
+			startNameServiceLease();
+		} else {
+			notifyNameService();
+		}
 
+		if (heartbeatTransport != null) {
+			heartbeatTransport.setHeartbeatListener(this);
+		}
 		HeartbeatBroadcaster heartbeatBroadcaster = new HeartbeatBroadcaster(remoteLoadBalancers,
-				heartbeatIntervalMillis, LoadBalancerState.ACTIVE);
+				heartbeatIntervalMillis, LoadBalancerState.ACTIVE, heartbeatTransport);
+		if (sendLoadSummary || isActiveActive) {
+			heartbeatBroadcaster.setServerManager(serverManager);
+		}
 		new Thread(heartbeatBroadcaster).start();
 
 		listenForLoadBalancerMessages();
 
 		heartbeatBroadcaster.cancel();
 		serverManager.cancel();
+		if (nameServiceLeaseTimer != null) {
+			nameServiceLeaseTimer.cancel();
+		}
 
 		System.out.println("Active load balancer terminating...");
 	}
 
+	/**
+	 * @param sendLoadSummary
+	 *            true if a {@link LoadSummary} should be sent with each
+	 *            <code>ACTIVE_ALIVE_CONFIRM</code>
+	 */
+	public void setSendLoadSummary(boolean sendLoadSummary) {
+		this.sendLoadSummary = sendLoadSummary;
+	}
+
+	/**
+	 * @param slowStartWindowMillis
+	 *            the window, in milliseconds, over which traffic to a newly
+	 *            joined or recovered server is ramped up, or 0 to disable
+	 */
+	public void setSlowStartWindow(int slowStartWindowMillis) {
+		this.slowStartWindowMillis = slowStartWindowMillis;
+	}
+
+	/**
+	 * @param serverTableRefreshSeconds
+	 *            the number of seconds that clients may use the published
+	 *            server table for before refreshing it
+	 */
+	public void setServerTableRefreshSeconds(int serverTableRefreshSeconds) {
+		this.serverTableRefreshSeconds = serverTableRefreshSeconds;
+	}
+
+	/**
+	 * @param peerHintCount
+	 *            the number of less loaded peers to send to each server after
+	 *            it is polled, or 0 to disable peer hints
+	 */
+	public void setPeerHintCount(int peerHintCount) {
+		this.peerHintCount = peerHintCount;
+	}
+
+	/**
+	 * @param tokenLifetimeController
+	 *            the {@link TokenLifetimeController} used to choose token
+	 *            lifetimes, or null to use each server's load variance
+	 */
+	public void setTokenLifetimeController(TokenLifetimeController tokenLifetimeController) {
+		this.tokenLifetimeController = tokenLifetimeController;
+	}
+
+	/**
+	 * @param selectionStrategy
+	 *            the way in which a server is chosen for each client
+	 */
+	public void setSelectionStrategy(SelectionStrategy selectionStrategy) {
+		this.selectionStrategy = selectionStrategy;
+	}
+
+	/**
+	 * @param outlierDetector
+	 *            the {@link OutlierDetector} used to eject degraded servers,
+	 *            or null to disable outlier detection
+	 */
+	public void setOutlierDetector(OutlierDetector outlierDetector) {
+		this.outlierDetector = outlierDetector;
+	}
+
+	/**
+	 * @param loadSnapshot
+	 *            the most recent {@link LoadSummary} received from the
+	 *            previous active, or null
+	 */
+	public void setLoadSnapshot(LoadSummary loadSnapshot) {
+		this.loadSnapshot = loadSnapshot;
+	}
+
+	/**
+	 * Puts this node into active-active mode, in which it shares the client
+	 * load with the other load balancer nodes rather than being the only
+	 * active.
+	 * 
+	 * @param nameServiceLeaseMillis
+	 *            the duration, in milliseconds, of the lease to hold with the
+	 *            name service
+	 * @param tokenLoadPenalty
+	 *            the amount, in CPU load percentage points, added to a
+	 *            server's load per token issued for it by this node or a peer
+	 */
+	public void setActiveActive(int nameServiceLeaseMillis, double tokenLoadPenalty) {
+		if (nameServiceLeaseMillis < 3)
+			throw new IllegalArgumentException("Name service lease must be at least 3 milliseconds.");
+
+		this.isActiveActive = true;
+		this.nameServiceLeaseMillis = nameServiceLeaseMillis;
+		this.tokenLoadPenalty = tokenLoadPenalty;
+	}
+
 	/**
 	 * Opens a {@link SocketChannel} and sends a <code>HOST_ADDR_NOTIFY</code>
 	 * message to the address that is stored for the name service, alerting the
@@ -131,19 +338,57 @@ public class ActiveLoadBalancer extends AbstractLoadBalancer {
 	 */
 	private void notifyNameService() {
 		System.out.println("Sending host address notification message to name service...");
-		SocketChannel socketChannel = ConnectNIO.getBlockingSocketChannel(nameServiceAddress);
 		ByteBuffer buffer = ByteBuffer.allocate(5);
 		buffer.put((byte) MessageType.HOST_ADDR_NOTIFY.getValue());
 		buffer.putInt(connectionHandler.getAcceptPort());
 		buffer.flip();
-		try {
-			while (buffer.hasRemaining()) {
-				socketChannel.write(buffer);
-			}
+		if (sendToNameService(buffer)) {
 			System.out.println("Notified name service.");
+		}
+	}
+
+	/**
+	 * Starts a timer that sends a <code>HOST_ADDR_LEASE</code> message to the
+	 * name service three times per lease period, so that the lease is kept
+	 * while this node is alive even if a renewal is lost.
+	 */
+	private void startNameServiceLease() {
+		System.out.println("Leasing host address with name service...");
+		nameServiceLeaseTimer = new Timer();
+		nameServiceLeaseTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocate(9);
+				buffer.put((byte) MessageType.HOST_ADDR_LEASE.getValue());
+				buffer.putInt(connectionHandler.getAcceptPort());
+				buffer.putInt(nameServiceLeaseMillis);
+				buffer.flip();
+				sendToNameService(buffer);
+			}
+		}, 0, nameServiceLeaseMillis / 3);
+	}
+
+	/**
+	 * Opens a {@link SocketChannel} to the name service, writes the given
+	 * message and closes the channel.
+	 * 
+	 * @param buffer
+	 *            the message to send
+	 * @return true if the message was sent.
+	 */
+	private boolean sendToNameService(ByteBuffer buffer) {
+		SocketChannel socketChannel = ConnectNIO.getBlockingSocketChannel(nameServiceAddress,
+				AbstractRemote.getLocalBindAddress());
+		if (socketChannel == null) {
+			return false;
+		}
+		try {
+			FrameEncoder.write(socketChannel, buffer);
 			socketChannel.close();
+			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
 	}
 
@@ -151,58 +396,51 @@ public class ActiveLoadBalancer extends AbstractLoadBalancer {
 	public void listenForLoadBalancerMessages() {
 		while (!terminateThread.get()) {
 			for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
-				ByteBuffer buffer = ByteBuffer.allocate(100);
+				ByteBuffer buffer;
 				try {
 
 					if (!remoteLoadBalancer.isConnected()) {
 						continue;
 					}
-					SocketChannel socketChannel = remoteLoadBalancer.getSocketChannel();
-					while (socketChannel.read(buffer) > 0) {
-						buffer.flip();
-						MessageType messageType = MessageType.values()[buffer.get()];
-						switch (messageType) {
-						case ALIVE_REQUEST:
-							System.out.println("Received alive request");
-							buffer.clear();
-							buffer.put((byte) MessageType.ACTIVE_ALIVE_CONFIRM.getValue());
-							buffer.flip();
-							while (buffer.hasRemaining()) {
-								socketChannel.write(buffer);
-							}
-							break;
-						case ACTIVE_DECLARATION:
-							// Received an active declaration from another node
-							// - immediately
-							// move to passive state
-							if (!terminateThread.get()) {
-								System.out.println("Received active declaration - demoting to passive state");
-								terminateThread.set(true);
-								remoteLoadBalancer.setState(LoadBalancerState.ACTIVE);
-								new Thread(LoadBalancer.getNewPassiveLoadBalancer()).start();
+					FrameDecoder frameDecoder = remoteLoadBalancer.getFrameDecoder();
+					while (frameDecoder.read(remoteLoadBalancer.getSocketChannel()) > 0) {
+						while ((buffer = frameDecoder.nextFrame()) != null) {
+							MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
+							if (messageType == null) {
+								// Unknown message type - drop the frame
+								continue;
 							}
-							break;
-						case ACTIVE_ALIVE_CONFIRM:
-							if (!inBroadcastDelayPeriod) {
-								inBroadcastDelayPeriod = true;
-								// Detected another active node - broadcast active
-								// declaration after random timeout
-								// prompting any other active to demote
-								new Timer().schedule(new TimerTask() {
-									@Override
-									public void run() {
-										if (!terminateThread.get()) {
-											System.out.println("Detected another active - broadcasting active declaration");
-											broadcastActiveDeclaration();
-											notifyNameService();
-											inBroadcastDelayPeriod = false;
-										}
-									}
-								}, randomBroadcastTimeoutMillis);
+							switch (messageType) {
+							case ALIVE_REQUEST:
+								System.out.println("Received alive request");
+								LoadSummary loadSummary = (sendLoadSummary || isActiveActive) && serverManager != null
+										? serverManager.getLoadSummary() : null;
+								ByteBuffer aliveConfirmBuffer = ByteBuffer
+										.allocate(1 + (loadSummary == null ? 0 : loadSummary.getEncodedLength()));
+								aliveConfirmBuffer.put((byte) MessageType.ACTIVE_ALIVE_CONFIRM.getValue());
+								if (loadSummary != null) {
+									loadSummary.encode(aliveConfirmBuffer);
+								}
+								aliveConfirmBuffer.flip();
+								remoteLoadBalancer.sendMessage(aliveConfirmBuffer);
+								break;
+							case ACTIVE_DECLARATION:
+								// Received an active declaration from another node
+								// - immediately
+								// move to passive state
+								if (!terminateThread.get() && !isActiveActive) {
+									System.out.println("Received active declaration - demoting to passive state");
+									terminateThread.set(true);
+									remoteLoadBalancer.setState(LoadBalancerState.ACTIVE);
+									new Thread(LoadBalancer.getNewPassiveLoadBalancer()).start();
+								}
+								break;
+							case ACTIVE_ALIVE_CONFIRM:
+								handleActiveAliveConfirm(remoteLoadBalancer, buffer);
+								break;
+							default:
+								break;
 							}
-							break;
-						default:
-							break;
 						}
 					}
 				} catch (IOException e) {
@@ -218,31 +456,64 @@ public class ActiveLoadBalancer extends AbstractLoadBalancer {
 		}
 	}
 
+	@Override
+	public void heartbeatReceived(RemoteLoadBalancer remoteLoadBalancer, MessageType heartbeatType,
+			ByteBuffer payload) {
+		if (!terminateThread.get() && heartbeatType == MessageType.ACTIVE_ALIVE_CONFIRM) {
+			handleActiveAliveConfirm(remoteLoadBalancer, payload);
+		}
+	}
+
+	/**
+	 * Called when an <code>ACTIVE_ALIVE_CONFIRM</code> is received from
+	 * another node, meaning that there are multiple actives in the system. In
+	 * active-active mode this is expected, and the peer's load summary is
+	 * passed to the {@link ServerManager}.
+	 * 
+	 * @param remoteLoadBalancer
+	 *            the remote load balancer that sent the heartbeat
+	 * @param payload
+	 *            the remainder of the heartbeat message
+	 */
+	private void handleActiveAliveConfirm(RemoteLoadBalancer remoteLoadBalancer, ByteBuffer payload) {
+		if (isActiveActive) {
+			LoadSummary peerLoadSummary = payload.hasRemaining() ? LoadSummary.decode(payload) : null;
+			if (peerLoadSummary != null && serverManager != null) {
+				serverManager.updatePeerLoadSummary(remoteLoadBalancer, peerLoadSummary);
+			}
+			return;
+		}
+		if (!inBroadcastDelayPeriod) {
+			inBroadcastDelayPeriod = true;
+			// Detected another active node - broadcast active
+			// declaration after random timeout
+			// prompting any other active to demote
+			new Timer().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					if (!terminateThread.get()) {
+						System.out.println("Detected another active - broadcasting active declaration");
+						broadcastActiveDeclaration();
+						notifyNameService();
+						inBroadcastDelayPeriod = false;
+					}
+				}
+			}, randomBroadcastTimeoutMillis);
+		}
+	}
+
 	/**
 	 * Sends an <code>ACTIVE_DECLARATION</code> message to all other known load
 	 * balancer declaring that this node is the only active and any other nodes
 	 * in the active state should immediately move to the passive state.
 	 */
 	private void broadcastActiveDeclaration() {
-		ByteBuffer buffer = ByteBuffer.allocate(1);
 		for (RemoteLoadBalancer remoteLoadBalancer : remoteLoadBalancers) {
 			if (remoteLoadBalancer.isConnected()) {
-				buffer.clear();
+				ByteBuffer buffer = ByteBuffer.allocate(1);
 				buffer.put((byte) MessageType.ACTIVE_DECLARATION.getValue());
 				buffer.flip();
-				try {
-					while (buffer.hasRemaining()) {
-						remoteLoadBalancer.getSocketChannel().write(buffer);
-					}
-				} catch (IOException e) {
-					if (e.getMessage() != null
-							&& e.getMessage().equals("An existing connection was forcibly closed by the remote host")) {
-						try {
-							remoteLoadBalancer.getSocketChannel().close();
-						} catch (IOException e1) {
-						}
-					}
-				}
+				remoteLoadBalancer.sendMessage(buffer);
 			}
 		}
 	}
@@ -1,21 +1,28 @@
 package loadBalancer;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.HashSet;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.configuration2.HierarchicalConfiguration;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.configuration2.tree.ImmutableNode;
 
+import commsModel.AbstractRemote;
 import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
+import faultModule.DatagramHeartbeatTransport;
+import faultModule.GossipMembership;
 import faultModule.PassiveLoadBalancer;
 import logging.ComponentLogger;
 import logging.LogMessageType;
@@ -25,14 +32,35 @@ public class LoadBalancer {
 	// Configu variables stored here statically so they don't have to be re-read
 	// from the xml again.
 	private static LoadBalancerConnectionHandler connectionHandler;
-	private static Set<Server> servers = new HashSet<>();
-	private static Set<RemoteLoadBalancer> remoteLoadBalancers = new HashSet<>();
+	// Concurrent set as servers may register or be reloaded from the config
+	private static Set<Server> servers = ConcurrentHashMap.newKeySet();
+	// Concurrent set as members may be added and removed by gossip while in use
+	private static Set<RemoteLoadBalancer> remoteLoadBalancers = ConcurrentHashMap.newKeySet();
 	private static InetSocketAddress nameServiceAddress = null;
 	private static int defaultServerTokenExpiry = 0;
 	private static int nodeMonitorPort = 0;
 	private static String nodeMonitorIP = "";
 	private static int heartbeatIntervalMillis = 0;
 	private static int heartbeatTimeoutMillis = 0;
+	private static DatagramHeartbeatTransport heartbeatTransport = null;
+	private static boolean sendLoadSummary = false;
+	private static boolean isActiveActive = false;
+	private static int nameServiceLeaseMillis = 0;
+	private static double tokenLoadPenalty = 0;
+	private static GossipMembership gossipMembership = null;
+	private static int slowStartWindowMillis = 0;
+	private static boolean useOutlierDetection = false;
+	private static SelectionStrategy selectionStrategy = SelectionStrategy.LEAST_LOADED;
+	private static boolean useTokenLifetimeController = false;
+	private static int peerHintCount = 0;
+	private static int serverTableRefreshSeconds = 0;
+	private static int minTokenLifetimeSeconds = 0;
+	private static int maxTokenLifetimeSeconds = 0;
+	private static double targetTokenRate = 0;
+	private static double outlierRttFactor = 0;
+	private static int outlierMissedPolls = 0;
+	private static int outlierBaseEjectionMillis = 0;
+	private static int outlierMaxEjectionMillis = 0;
 
 	public static void main(String[] args) {
 		LoadBalancer instance = new LoadBalancer();
@@ -43,6 +71,13 @@ public class LoadBalancer {
 		Configurations configs = new Configurations();
 		int acceptPort = 0;
 		boolean forceStartAsActive = false;
+		boolean useDatagramHeartbeats = false;
+		InetSocketAddress heartbeatMulticastGroup = null;
+		int gossipPort = 0;
+		int gossipIntervalMillis = 0;
+		int gossipFailureTimeoutMillis = 0;
+		List<InetSocketAddress> gossipSeeds = new ArrayList<>();
+		boolean reloadServerList = false;
 		try {
 			HierarchicalConfiguration<ImmutableNode> config = configs.xml("lbConfig.xml");
 
@@ -50,11 +85,8 @@ public class LoadBalancer {
 			acceptPort = config.getInt("connectPort");
 
 			// List of backend servers
-			List<HierarchicalConfiguration<ImmutableNode>> serverNodes = config.configurationsAt("servers.server");
-			for (HierarchicalConfiguration<ImmutableNode> server : serverNodes) {
-				String ipAddress = server.getString("ipAddress");
-				int port = server.getInt("port");
-				servers.add(new Server(new InetSocketAddress(ipAddress, port)));
+			for (InetSocketAddress serverAddress : ServerListWatcher.readServerAddresses(config)) {
+				servers.add(new Server(serverAddress));
 			}
 
 			// List of other load balancer nodes in the system
@@ -69,6 +101,11 @@ public class LoadBalancer {
 				} catch (NumberFormatException e) {
 				}
 				remoteLoadBalancers.add(remoteLoadBalancer);
+				// Listed nodes with a gossip port are used as gossip seeds
+				int remoteGossipPort = remoteLoadBalancerNode.getInt("gossipPort", 0);
+				if (remoteGossipPort != 0) {
+					gossipSeeds.add(new InetSocketAddress(ipAddress, remoteGossipPort));
+				}
 			}
 
 			// Name service address
@@ -89,7 +126,74 @@ public class LoadBalancer {
 			
 			// Check for active force start
 			forceStartAsActive = config.getBoolean("startAsActive");
-		} catch (ConfigurationException e) {
+
+			// Optional local address to bind to, allowing several load
+			// balancers to run on one host using different loopback addresses
+			String bindAddress = config.getString("bindAddress", null);
+			if (bindAddress != null) {
+				AbstractRemote.setLocalBindAddress(InetAddress.getByName(bindAddress));
+			}
+
+			// Optional UDP heartbeat transport, using multicast if a group is
+			// given, otherwise unicast to each remote load balancer
+			useDatagramHeartbeats = config.getString("heartbeatTransport", "tcp").equalsIgnoreCase("udp");
+			String multicastGroupIP = config.getString("heartbeatMulticastGroup.ipAddress", null);
+			if (useDatagramHeartbeats && multicastGroupIP != null) {
+				heartbeatMulticastGroup = new InetSocketAddress(multicastGroupIP,
+						config.getInt("heartbeatMulticastGroup.port"));
+			}
+
+			// Optionally piggyback a summary of server loads on active
+			// heartbeats so that a promoted passive can route immediately
+			sendLoadSummary = config.getBoolean("heartbeatLoadSummary", false);
+
+			// Optional active-active mode, in which every node serves clients
+			// and holds a lease with the name service
+			isActiveActive = config.getBoolean("activeActive", false);
+			nameServiceLeaseMillis = config.getInt("nameServiceLeaseMillis", heartbeatTimeoutMillis * 2);
+			tokenLoadPenalty = config.getDouble("tokenLoadPenalty", 1);
+
+			// Optional gossip membership, allowing load balancers to join and
+			// leave without restarting the other nodes
+			gossipPort = config.getInt("gossipPort", 0);
+			gossipIntervalMillis = config.getInt("gossipIntervalMillis", heartbeatIntervalMillis);
+			gossipFailureTimeoutMillis = config.getInt("gossipFailureTimeoutMillis", heartbeatTimeoutMillis * 3);
+
+			// Optional window over which traffic to a newly joined or
+			// recovered server is ramped up
+			slowStartWindowMillis = config.getInt("slowStartWindowMillis", 0);
+
+			// Server selection strategy, either least CPU load or expected
+			// response time (CPU headroom combined with round trip time)
+			if (config.getString("selectionStrategy", "leastLoaded").equalsIgnoreCase("latencyAware")) {
+				selectionStrategy = SelectionStrategy.LATENCY_AWARE;
+			}
+
+			// Optional hints sent to each server so that it can redirect
+			// clients itself when overloaded
+			peerHintCount = config.getInt("peerHintCount", 0);
+
+			// How long clients that pick servers themselves may use the
+			// published server table before refreshing it
+			serverTableRefreshSeconds = config.getInt("serverTableRefreshSeconds", 5);
+
+			// Optional feedback control of token lifetimes, replacing the
+			// load variance formula
+			useTokenLifetimeController = config.getBoolean("tokenLifetime.enabled", false);
+			minTokenLifetimeSeconds = config.getInt("tokenLifetime.minSeconds", 5);
+			maxTokenLifetimeSeconds = config.getInt("tokenLifetime.maxSeconds", 60);
+			targetTokenRate = config.getDouble("tokenLifetime.targetTokensPerSecond", 20);
+
+			// Optional ejection of servers that are connected but degraded
+			useOutlierDetection = config.getBoolean("outlierDetection.enabled", false);
+			outlierRttFactor = config.getDouble("outlierDetection.rttFactor", 3);
+			outlierMissedPolls = config.getInt("outlierDetection.missedPolls", 3);
+			outlierBaseEjectionMillis = config.getInt("outlierDetection.baseEjectionMillis", 5000);
+			outlierMaxEjectionMillis = config.getInt("outlierDetection.maxEjectionMillis", 60000);
+
+			// Optionally reload the server list whenever this file is saved
+			reloadServerList = config.getBoolean("reloadServerList", false);
+		} catch (ConfigurationException | UnknownHostException e) {
 			e.printStackTrace();
 			return;
 		}
@@ -103,6 +207,9 @@ public class LoadBalancer {
 			
 			@Override
 			public void run() {
+				if (gossipMembership != null) {
+					gossipMembership.leave();
+				}
 				ComponentLogger.getInstance().log(LogMessageType.LOAD_BALANCER_TERMINATED);
 			}
 			
@@ -125,10 +232,39 @@ public class LoadBalancer {
 		}).start();
 		
 		connectionHandler = new LoadBalancerConnectionHandler(acceptPort, remoteLoadBalancers);
+		if (useDatagramHeartbeats) {
+			try {
+				heartbeatTransport = new DatagramHeartbeatTransport(acceptPort, AbstractRemote.getLocalBindAddress(),
+						heartbeatMulticastGroup, remoteLoadBalancers);
+				new Thread(heartbeatTransport).start();
+				System.out.println("Sending heartbeats over UDP"
+						+ (heartbeatMulticastGroup == null ? "" : " to multicast group " + heartbeatMulticastGroup));
+			} catch (IOException e) {
+				System.out.println("Failed to open UDP heartbeat transport, using TCP heartbeats.");
+				e.printStackTrace();
+			}
+		}
+		if (gossipPort != 0) {
+			try {
+				gossipMembership = new GossipMembership(gossipPort, acceptPort, AbstractRemote.getLocalBindAddress(),
+						remoteLoadBalancers, gossipSeeds, gossipIntervalMillis, gossipFailureTimeoutMillis);
+				new Thread(gossipMembership).start();
+				System.out.println("Gossiping membership on port " + gossipPort);
+			} catch (IOException e) {
+				System.out.println("Failed to start gossip membership, using static load balancer list.");
+				e.printStackTrace();
+			}
+		}
+		if (reloadServerList) {
+			new Thread(new ServerListWatcher(Paths.get("lbConfig.xml"), servers)).start();
+		}
 		
 
 		Thread loadBalancerThread;
-		if (forceStartAsActive) {
+		if (isActiveActive) {
+			new Thread(connectionHandler).start();
+			loadBalancerThread = new Thread(getNewActiveLoadBalancer());
+		} else if (forceStartAsActive) {
 			loadBalancerThread = new Thread(getNewActiveLoadBalancer());
 			try {
 				Selector readSelector = Selector.open();
@@ -147,11 +283,34 @@ public class LoadBalancer {
 	}
 
 	public static ActiveLoadBalancer getNewActiveLoadBalancer() {
-		return new ActiveLoadBalancer(connectionHandler, remoteLoadBalancers, servers, nameServiceAddress,
-				heartbeatIntervalMillis);
+		ActiveLoadBalancer activeLoadBalancer = new ActiveLoadBalancer(connectionHandler, remoteLoadBalancers, servers,
+				nameServiceAddress, heartbeatIntervalMillis);
+		activeLoadBalancer.setHeartbeatTransport(heartbeatTransport);
+		activeLoadBalancer.setGossipMembership(gossipMembership);
+		activeLoadBalancer.setSendLoadSummary(sendLoadSummary);
+		activeLoadBalancer.setSlowStartWindow(slowStartWindowMillis);
+		activeLoadBalancer.setSelectionStrategy(selectionStrategy);
+		activeLoadBalancer.setPeerHintCount(peerHintCount);
+		activeLoadBalancer.setServerTableRefreshSeconds(serverTableRefreshSeconds);
+		if (useTokenLifetimeController) {
+			activeLoadBalancer.setTokenLifetimeController(new TokenLifetimeController(minTokenLifetimeSeconds,
+					maxTokenLifetimeSeconds, targetTokenRate));
+		}
+		if (useOutlierDetection) {
+			activeLoadBalancer.setOutlierDetector(new OutlierDetector(outlierRttFactor, outlierMissedPolls,
+					outlierBaseEjectionMillis, outlierMaxEjectionMillis));
+		}
+		if (isActiveActive) {
+			activeLoadBalancer.setActiveActive(nameServiceLeaseMillis, tokenLoadPenalty);
+		}
+		return activeLoadBalancer;
 	}
 
 	public static PassiveLoadBalancer getNewPassiveLoadBalancer() {
-		return new PassiveLoadBalancer(connectionHandler, remoteLoadBalancers, servers, heartbeatTimeoutMillis);
+		PassiveLoadBalancer passiveLoadBalancer = new PassiveLoadBalancer(connectionHandler, remoteLoadBalancers,
+				servers, heartbeatTimeoutMillis);
+		passiveLoadBalancer.setHeartbeatTransport(heartbeatTransport);
+		passiveLoadBalancer.setGossipMembership(gossipMembership);
+		return passiveLoadBalancer;
 	}
 }
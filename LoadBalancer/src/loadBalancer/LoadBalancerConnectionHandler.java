@@ -2,6 +2,7 @@ package loadBalancer;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
@@ -9,6 +10,7 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import commsModel.AbstractRemote;
 import commsModel.LoadBalancerState;
 import commsModel.RemoteLoadBalancer;
 import connectionUtils.ConnectNIO;
@@ -50,10 +52,13 @@ public class LoadBalancerConnectionHandler implements Runnable {
 	@Override
 	public void run() {
 		System.out.println("Accepting connections on port: " + acceptPort);
-		ServerSocketChannel serverSocketChannel = ConnectNIO.getServerSocketChannel(acceptPort);
+		InetAddress bindAddress = AbstractRemote.getLocalBindAddress();
+		ServerSocketChannel serverSocketChannel = bindAddress == null ? ConnectNIO.getServerSocketChannel(acceptPort)
+				: ConnectNIO.getServerSocketChannel(new InetSocketAddress(bindAddress, acceptPort));
 		int connectionPrecedence = 0;
 		try {
-			connectionPrecedence = Integer.parseInt(InetAddress.getLocalHost().getHostAddress().split("\\.")[3]);
+			InetAddress localAddress = bindAddress == null ? InetAddress.getLocalHost() : bindAddress;
+			connectionPrecedence = Integer.parseInt(localAddress.getHostAddress().split("\\.")[3]);
 		} catch (NumberFormatException | UnknownHostException e1) {
 		}
 		
@@ -0,0 +1,299 @@
+package loadBalancer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import commsModel.CircuitState;
+import commsModel.Server;
+import connectionUtils.TimeSource;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Keeps a circuit breaker for each back-end server, used by the
+ *         {@link ServerManager} to stop sending clients to servers that are
+ *         still connected but degraded. A server is ejected (its circuit
+ *         opened) when it misses several CPU load polls in a row, or when its
+ *         average poll round trip time is several times the median of the
+ *         other servers'. It stays ejected for a backoff period that doubles
+ *         each time it is ejected again, after which its circuit is half
+ *         open: the next poll acts as a probe, closing the circuit if it is
+ *         answered in time or ejecting the server again if not.
+ *         </p>
+ *         <p>
+ *         Round trip times are read from each server's own poll latency
+ *         record (see {@link Server#getPollLatency()}), which the server
+ *         updates as it is polled, so that the detector and the latency-aware
+ *         selection strategy judge servers on the same average.
+ *         </p>
+ *
+ */
+public class OutlierDetector {
+
+	/**
+	 * The number of poll round trip times that must be recorded for a server
+	 * before it can be ejected as an outlier.
+	 */
+	private static final int MIN_RTT_SAMPLES = 3;
+
+	/**
+	 * The amount, in milliseconds, by which a server's round trip time must
+	 * exceed the median before it can be an outlier, so that servers are not
+	 * ejected for differences of a fraction of a millisecond.
+	 */
+	private static final double MIN_OUTLIER_RTT_DIFFERENCE_MILLIS = 10;
+
+	/**
+	 * The factor by which a server's average poll round trip time must exceed
+	 * the median of the other servers' for it to be ejected.
+	 */
+	private double rttOutlierFactor;
+
+	/**
+	 * The number of consecutive missed polls after which a server is
+	 * ejected.
+	 */
+	private int maxMissedPolls;
+
+	/**
+	 * The duration, in milliseconds, of a server's first ejection.
+	 */
+	private int baseEjectionMillis;
+
+	/**
+	 * The maximum duration, in milliseconds, of an ejection.
+	 */
+	private int maxEjectionMillis;
+
+	/**
+	 * The health record kept for each server that has been polled.
+	 */
+	private Map<Server, ServerHealth> serverHealthRecords = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a new OutlierDetector.
+	 *
+	 * @param rttOutlierFactor
+	 *            the factor by which a server's average poll round trip time
+	 *            must exceed the median of the other servers' for it to be
+	 *            ejected
+	 * @param maxMissedPolls
+	 *            the number of consecutive missed polls after which a server
+	 *            is ejected
+	 * @param baseEjectionMillis
+	 *            the duration, in milliseconds, of a server's first ejection
+	 * @param maxEjectionMillis
+	 *            the maximum duration, in milliseconds, of an ejection
+	 * @throws IllegalArgumentException
+	 *             if the outlier factor is not greater than 1, the number of
+	 *             missed polls or base ejection time is less than 1, or the
+	 *             maximum ejection time is less than the base ejection time.
+	 */
+	public OutlierDetector(double rttOutlierFactor, int maxMissedPolls, int baseEjectionMillis,
+			int maxEjectionMillis) {
+		if (rttOutlierFactor <= 1)
+			throw new IllegalArgumentException("Round trip time outlier factor must be greater than 1.");
+		if (maxMissedPolls < 1)
+			throw new IllegalArgumentException("Missed poll threshold must be at least 1.");
+		if (baseEjectionMillis < 1 || maxEjectionMillis < baseEjectionMillis)
+			throw new IllegalArgumentException(
+					"Base ejection time must be at least 1ms and no greater than the maximum ejection time.");
+
+		this.rttOutlierFactor = rttOutlierFactor;
+		this.maxMissedPolls = maxMissedPolls;
+		this.baseEjectionMillis = baseEjectionMillis;
+		this.maxEjectionMillis = maxEjectionMillis;
+	}
+
+	/**
+	 * Records a successful CPU load poll of the given server.
+	 *
+	 * @param server
+	 *            the server that was polled, whose poll latency record
+	 *            already includes the poll
+	 * @param rttMillis
+	 *            the round trip time of the poll, in milliseconds
+	 */
+	public synchronized void recordPoll(Server server, double rttMillis) {
+		long currentTime = TimeSource.monotonicMillis();
+		ServerHealth serverHealth = getServerHealth(server);
+		serverHealth.consecutiveMissedPolls = 0;
+		updateState(server, serverHealth, currentTime);
+		switch (serverHealth.state) {
+		case CLOSED:
+			if (isRttOutlier(server, server.getPollLatency().getAverageLatency(), true)) {
+				eject(server, serverHealth, currentTime, "slow responses");
+			}
+			break;
+		case HALF_OPEN:
+			// Judge the probe on its own round trip time, as the average
+			// still includes the slow polls that caused the ejection
+			if (isRttOutlier(server, rttMillis, false)) {
+				eject(server, serverHealth, currentTime, "slow probe");
+			} else {
+				serverHealth.state = CircuitState.CLOSED;
+				serverHealth.closedSince = currentTime;
+				System.out.println("Re-admitted server at: " + server.getAddress());
+			}
+			break;
+		case OPEN:
+			break;
+		}
+	}
+
+	/**
+	 * Records a CPU load poll of the given server that was not answered in
+	 * time.
+	 *
+	 * @param server
+	 *            the server that was polled
+	 */
+	public synchronized void recordMissedPoll(Server server) {
+		long currentTime = TimeSource.monotonicMillis();
+		ServerHealth serverHealth = getServerHealth(server);
+		serverHealth.consecutiveMissedPolls++;
+		updateState(server, serverHealth, currentTime);
+		if (serverHealth.state.equals(CircuitState.HALF_OPEN) || (serverHealth.state.equals(CircuitState.CLOSED)
+				&& serverHealth.consecutiveMissedPolls >= maxMissedPolls)) {
+			eject(server, serverHealth, currentTime, "missed polls");
+		}
+	}
+
+	/**
+	 * @param server
+	 *            the server to check
+	 * @return true if clients should not currently be sent to the given
+	 *         server, i.e. its circuit is open or half open.
+	 */
+	public synchronized boolean isEjected(Server server) {
+		ServerHealth serverHealth = serverHealthRecords.get(server);
+		if (serverHealth == null) {
+			return false;
+		}
+		updateState(server, serverHealth, TimeSource.monotonicMillis());
+		return !serverHealth.state.equals(CircuitState.CLOSED);
+	}
+
+	/**
+	 * @param server
+	 *            the server to check
+	 * @return the current state of the given server's circuit breaker.
+	 */
+	public synchronized CircuitState getState(Server server) {
+		ServerHealth serverHealth = serverHealthRecords.get(server);
+		if (serverHealth == null) {
+			return CircuitState.CLOSED;
+		}
+		updateState(server, serverHealth, TimeSource.monotonicMillis());
+		return serverHealth.state;
+	}
+
+	/**
+	 * Discards the health record of a server that is no longer managed.
+	 *
+	 * @param server
+	 *            the server to forget
+	 */
+	public void removeServer(Server server) {
+		serverHealthRecords.remove(server);
+	}
+
+	/**
+	 * @return the health record for the given server, creating it if
+	 *         necessary.
+	 */
+	private ServerHealth getServerHealth(Server server) {
+		ServerHealth serverHealth = serverHealthRecords.get(server);
+		if (serverHealth == null) {
+			serverHealth = new ServerHealth();
+			serverHealthRecords.put(server, serverHealth);
+		}
+		return serverHealth;
+	}
+
+	/**
+	 * Moves an ejected server's circuit to half open once its ejection has
+	 * expired.
+	 */
+	private void updateState(Server server, ServerHealth serverHealth, long currentTime) {
+		if (serverHealth.state.equals(CircuitState.OPEN) && currentTime >= serverHealth.ejectedUntil) {
+			serverHealth.state = CircuitState.HALF_OPEN;
+			System.out.println("Probing ejected server at: " + server.getAddress());
+		}
+	}
+
+	/**
+	 * Opens the given server's circuit for a backoff period that doubles with
+	 * each consecutive ejection. The backoff is reset once a server has stayed
+	 * healthy for the maximum ejection time.
+	 */
+	private void eject(Server server, ServerHealth serverHealth, long currentTime, String reason) {
+		if (serverHealth.state.equals(CircuitState.CLOSED)
+				&& currentTime - serverHealth.closedSince >= maxEjectionMillis) {
+			serverHealth.ejectionCount = 0;
+		}
+		long ejectionMillis = baseEjectionMillis;
+		for (int i = 0; i < serverHealth.ejectionCount && ejectionMillis < maxEjectionMillis; i++) {
+			ejectionMillis *= 2;
+		}
+		ejectionMillis = Math.min(ejectionMillis, maxEjectionMillis);
+		serverHealth.ejectionCount++;
+		serverHealth.state = CircuitState.OPEN;
+		serverHealth.ejectedUntil = currentTime + ejectionMillis;
+		System.out.println("Ejected server at: " + server.getAddress() + " for " + ejectionMillis + "ms (" + reason
+				+ ")");
+	}
+
+	/**
+	 * @param server
+	 *            the server being checked
+	 * @param rttMillis
+	 *            the round trip time to compare against the other servers
+	 * @param isAverage
+	 *            true if the round trip time is the server's average, which
+	 *            requires a minimum number of samples, or false to judge a
+	 *            single sample
+	 * @return true if the given round trip time is more than the outlier
+	 *         factor times the median of the other servers' average round
+	 *         trip times.
+	 */
+	private boolean isRttOutlier(Server server, double rttMillis, boolean isAverage) {
+		if (isAverage && server.getPollLatency().getSampleCount() < MIN_RTT_SAMPLES) {
+			return false;
+		}
+		List<Double> otherAverages = new ArrayList<>();
+		for (Map.Entry<Server, ServerHealth> entry : serverHealthRecords.entrySet()) {
+			Server otherServer = entry.getKey();
+			if (!otherServer.equals(server) && entry.getValue().state.equals(CircuitState.CLOSED)
+					&& otherServer.getPollLatency().getSampleCount() >= MIN_RTT_SAMPLES) {
+				otherAverages.add(otherServer.getPollLatency().getAverageLatency());
+			}
+		}
+		if (otherAverages.isEmpty()) {
+			return false;
+		}
+		Collections.sort(otherAverages);
+		double medianRtt = otherAverages.get(otherAverages.size() / 2);
+		return rttMillis > medianRtt * rttOutlierFactor
+				&& rttMillis - medianRtt > MIN_OUTLIER_RTT_DIFFERENCE_MILLIS;
+	}
+
+	/**
+	 * The circuit breaker state and missed poll count of a single server.
+	 */
+	private static class ServerHealth {
+
+		private int consecutiveMissedPolls = 0;
+
+		private CircuitState state = CircuitState.CLOSED;
+
+		private long ejectedUntil = 0;
+
+		private int ejectionCount = 0;
+
+		private long closedSince = TimeSource.monotonicMillis();
+	}
+}
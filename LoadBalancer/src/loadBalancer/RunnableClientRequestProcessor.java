@@ -1,14 +1,19 @@
 package loadBalancer;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
+import java.util.List;
 
 import commsModel.Server;
+import connectionUtils.AddressCodec;
+import connectionUtils.BufferPool;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
+import connectionUtils.ServerTable;
 
 /**
  * @author Joachim
@@ -17,6 +22,9 @@ import connectionUtils.MessageType;
  *         balancer instance. The run method will prompt the object instance to
  *         read data from the supplied {@link SocketChannel} and then process
  *         the message contents and send a response where appropriate.
+ *         Messages are read as length-prefixed frames using a
+ *         {@link FrameDecoder}, so a client may send several requests
+ *         without waiting for each response.
  *         </p>
  */
 public class RunnableClientRequestProcessor implements Runnable {
@@ -52,18 +60,22 @@ public class RunnableClientRequestProcessor implements Runnable {
 
 	@Override
 	public void run() {
+		FrameDecoder frameDecoder = new FrameDecoder();
 		while (socketChannel.isConnected()) {
 			try {
-				ByteBuffer buffer = ByteBuffer.allocate(28);
-				int bytesRead = socketChannel.read(buffer);
+				int bytesRead = frameDecoder.read(socketChannel);
 
 				if (bytesRead == -1) { // Something went wrong, close channel and terminate
 					socketChannel.close();
 					break;
 				} else {
-					buffer.flip();
-					MessageType messageType = MessageType.values()[buffer.get()];
-					processMessage(messageType);
+					ByteBuffer buffer;
+					while ((buffer = frameDecoder.nextFrame()) != null) {
+						MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
+						if (messageType != null) {
+							processMessage(messageType, buffer);
+						}
+					}
 				}
 			} catch (IOException e) {
 				//e.printStackTrace();
@@ -71,30 +83,66 @@ public class RunnableClientRequestProcessor implements Runnable {
 				break;
 			}
 		}
+		frameDecoder.release();
 		//System.out.println("Client disconected.");
 
 	}
 
 	/**
-	 * Handles incoming client messages requesting a server token.
+	 * Handles incoming client messages requesting a server token or the
+	 * server table, and server messages registering or deregistering with the
+	 * load balancer.
 	 * @param messageType the message type that has been received
+	 * @param buffer the buffer containing the rest of the message
 	 */
-	private void processMessage(MessageType messageType) {
+	private void processMessage(MessageType messageType, ByteBuffer buffer) {
 		try {
-			ByteBuffer buffer;
 			switch (messageType) {
 			case AVAILABLE_SERVER_REQUEST:
-				buffer = ByteBuffer.allocate(38);
-				CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+				if (buffer.remaining() >= 2) {
+					int tokenCount = buffer.getShort();
+					if (tokenCount > 1) {
+						sendTokenBatch(tokenCount);
+						break;
+					}
+				}
 				Server server = serverManager.getAvailableServer();
-				buffer.clear();
-				buffer.put((byte) MessageType.SERVER_TOKEN.getValue());
-				buffer.putLong(server.getTokenExpiry());
-				buffer.putInt(server.getAddress().getPort());
-				buffer.put(encoder.encode(CharBuffer.wrap(server.getAddress().getHostString())));
-				buffer.flip();
-				while (buffer.hasRemaining()) {
-					socketChannel.write(buffer);
+				// With no live server the token has no lifetime and no
+				// address, which the client rejects before asking again
+				InetSocketAddress serverAddress = server == null ? null : server.getAddress();
+				buffer = BufferPool.acquire(9 + AddressCodec.getEncodedLength(serverAddress));
+				try {
+					buffer.put((byte) MessageType.SERVER_TOKEN.getValue());
+					buffer.putLong(server == null ? 0 : server.getTokenLifetimeMillis());
+					AddressCodec.encode(buffer, serverAddress);
+					buffer.flip();
+					FrameEncoder.write(socketChannel, buffer);
+				} finally {
+					BufferPool.release(buffer);
+				}
+				break;
+			case SERVER_TABLE_REQUEST:
+				long knownVersion = buffer.getLong();
+				ServerTable serverTable = serverManager.getServerTable();
+				if (serverTable.getVersion() == knownVersion) {
+					buffer = ServerTable.encodeNotModified(knownVersion, serverTable.getRefreshSeconds());
+				} else {
+					buffer = serverTable.encode();
+				}
+				FrameEncoder.write(socketChannel, buffer);
+				break;
+			case SERVER_REGISTER:
+				InetSocketAddress registeringServer = new InetSocketAddress(
+						socketChannel.socket().getInetAddress().getHostAddress(), buffer.getInt());
+				if (serverManager.registerServer(registeringServer)) {
+					System.out.println("Registered server at: " + registeringServer);
+				}
+				break;
+			case SERVER_DEREGISTER:
+				InetSocketAddress deregisteringServer = new InetSocketAddress(
+						socketChannel.socket().getInetAddress().getHostAddress(), buffer.getInt());
+				if (serverManager.deregisterServer(deregisteringServer)) {
+					System.out.println("Deregistered server at: " + deregisteringServer);
 				}
 				break;
 			default:
@@ -106,4 +154,33 @@ public class RunnableClientRequestProcessor implements Runnable {
 		}
 	}
 
+	/**
+	 * Sends a <code>SERVER_TOKEN_BATCH</code> containing the requested number
+	 * of server tokens (or <code>ServerManager.MAX_TOKEN_BATCH_SIZE</code>, if
+	 * fewer). The message is the message type and the number of tokens
+	 * (short), followed by each token's lifetime in milliseconds (long) and
+	 * server address, as written by <code>AddressCodec</code>.
+	 * @param tokenCount the number of tokens requested
+	 * @throws IOException
+	 */
+	private void sendTokenBatch(int tokenCount) throws IOException {
+		List<Server> servers = serverManager.getAvailableServers(tokenCount);
+		int messageSize = 3;
+		for (Server server : servers) {
+			messageSize += 8 + AddressCodec.getEncodedLength(server.getAddress());
+		}
+		ByteBuffer buffer = BufferPool.acquire(messageSize);
+		try {
+			buffer.put((byte) MessageType.SERVER_TOKEN_BATCH.getValue());
+			buffer.putShort((short) servers.size());
+			for (int i = 0; i < servers.size(); i++) {
+				buffer.putLong(servers.get(i).getTokenLifetimeMillis());
+				AddressCodec.encode(buffer, servers.get(i).getAddress());
+			}
+			buffer.flip();
+			FrameEncoder.write(socketChannel, buffer);
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
 }
@@ -0,0 +1,20 @@
+package loadBalancer;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Enum used to represent the way in which the {@link ServerManager}
+ *         chooses a server for each client.
+ *         </p>
+ *         <p>
+ *         LEAST_LOADED selects the server with the lowest CPU load.
+ *         LATENCY_AWARE selects the server expected to answer fastest, taking
+ *         both its CPU headroom and the round trip time to it into account.
+ *         </p>
+ *
+ */
+public enum SelectionStrategy {
+
+	LEAST_LOADED, LATENCY_AWARE
+
+}
@@ -0,0 +1,184 @@
+package loadBalancer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.configuration2.HierarchicalConfiguration;
+import org.apache.commons.configuration2.builder.fluent.Configurations;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.tree.ImmutableNode;
+
+import commsModel.Server;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Watches the load balancer's configuration file and, whenever it is
+ *         saved, reloads the <code>servers.server</code> list and applies the
+ *         changes to the shared set of servers. Servers that have been added
+ *         to the file are added to the set, and servers that have been removed
+ *         from the file are removed from it (and so drained by the active
+ *         {@link ServerManager}). Servers that joined by registering
+ *         themselves are left alone.
+ *         </p>
+ *
+ */
+public class ServerListWatcher implements Runnable {
+
+	/**
+	 * The configuration file to watch.
+	 */
+	private Path configPath;
+
+	/**
+	 * The shared set of servers that changes to the file are applied to.
+	 */
+	private Set<Server> servers;
+
+	/**
+	 * The server addresses listed in the file when it was last read.
+	 */
+	private Set<InetSocketAddress> configuredAddresses = new HashSet<>();
+
+	/**
+	 * The service used to receive file change events, closed to stop this
+	 * watcher.
+	 */
+	private WatchService watchService;
+
+	/**
+	 * Creates a new ServerListWatcher for the given configuration file. All
+	 * servers in the given set are assumed to have been read from the file.
+	 *
+	 * @param configPath
+	 *            the path of the configuration file to watch
+	 * @param servers
+	 *            the shared set of servers, which must be safe to modify
+	 *            while other threads are iterating over it
+	 * @throws IllegalArgumentException
+	 *             if either argument is null.
+	 */
+	public ServerListWatcher(Path configPath, Set<Server> servers) {
+		if (configPath == null)
+			throw new IllegalArgumentException("Configuration file path cannot be null.");
+		if (servers == null)
+			throw new IllegalArgumentException("Server Set cannot be null.");
+
+		this.configPath = configPath.toAbsolutePath();
+		this.servers = servers;
+		for (Server server : servers) {
+			configuredAddresses.add(server.getAddress());
+		}
+	}
+
+	/*
+	 * (non-Javadoc) To be called on <code>Thread.start()</code> to watch the
+	 * configuration file's directory and reload the server list whenever the
+	 * file is modified.
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			configPath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			System.out.println("Failed to watch " + configPath + " for server list changes.");
+			return;
+		}
+		while (!Thread.currentThread().isInterrupted()) {
+			WatchKey watchKey;
+			try {
+				watchKey = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				break;
+			}
+			boolean configChanged = false;
+			for (WatchEvent<?> event : watchKey.pollEvents()) {
+				if (configPath.getFileName().equals(event.context())) {
+					configChanged = true;
+				}
+			}
+			if (configChanged) {
+				reloadServers();
+			}
+			if (!watchKey.reset()) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Stops watching the configuration file.
+	 */
+	public void close() {
+		try {
+			if (watchService != null) {
+				watchService.close();
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Reads the server list from the configuration file and applies any
+	 * changes since it was last read to the shared set of servers. The set is
+	 * left unchanged if the file cannot be read (e.g. while it is only
+	 * partially written) or lists no servers.
+	 */
+	public void reloadServers() {
+		List<InetSocketAddress> serverAddresses;
+		try {
+			serverAddresses = readServerAddresses(new Configurations().xml(configPath.toFile()));
+		} catch (ConfigurationException e) {
+			System.out.println("Failed to reload server list from " + configPath);
+			return;
+		}
+		if (serverAddresses.isEmpty()) {
+			System.out.println("Ignoring empty server list in " + configPath);
+			return;
+		}
+		Set<InetSocketAddress> newAddresses = new HashSet<>(serverAddresses);
+		for (InetSocketAddress address : newAddresses) {
+			if (!configuredAddresses.contains(address) && servers.add(new Server(address))) {
+				System.out.println("Added server at: " + address);
+			}
+		}
+		for (InetSocketAddress address : configuredAddresses) {
+			if (!newAddresses.contains(address) && servers.remove(new Server(address))) {
+				System.out.println("Removed server at: " + address);
+			}
+		}
+		configuredAddresses = newAddresses;
+	}
+
+	/**
+	 * @param config
+	 *            the load balancer configuration
+	 * @return the addresses in the configuration's <code>servers.server</code>
+	 *         list.
+	 */
+	public static List<InetSocketAddress> readServerAddresses(HierarchicalConfiguration<ImmutableNode> config) {
+		List<InetSocketAddress> serverAddresses = new ArrayList<>();
+		List<HierarchicalConfiguration<ImmutableNode>> serverNodes = config.configurationsAt("servers.server");
+		for (HierarchicalConfiguration<ImmutableNode> server : serverNodes) {
+			String ipAddress = server.getString("ipAddress");
+			int port = server.getInt("port");
+			serverAddresses.add(new InetSocketAddress(ipAddress, port));
+		}
+		return serverAddresses;
+	}
+}
@@ -1,9 +1,25 @@
 package loadBalancer;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
+import commsModel.LatencyRecord;
+import commsModel.LoadSummary;
+import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
+import connectionUtils.ServerTable;
+import connectionUtils.TimeSource;
+import statistics.RollingWindowCounter;
 
 /**
  * @author Joachim
@@ -14,19 +30,169 @@ import commsModel.Server;
  *         list, allowing the objects to retrieve a suitable server when
  *         required.
  *         </p>
+ *         <p>
+ *         Servers can be added to and removed from the managed set while
+ *         running (by server registration or by reloading lbConfig.xml).
+ *         Servers are selected from an immutable snapshot of the set that is
+ *         replaced as a whole when it changes, and a server that is removed
+ *         is drained: no more tokens are issued for it, and it is only
+ *         disconnected once the last token issued for it has expired.
+ *         </p>
+ *         <p>
+ *         If a slow-start window is set, a server that has just joined or
+ *         recovered is ramped up over the window rather than being sent every
+ *         client as soon as it reports its (low) load: it is only considered
+ *         for a given token with a probability equal to its slow-start
+ *         weight, and its tokens are shortened by the same factor.
+ *         </p>
+ *         <p>
+ *         If an {@link OutlierDetector} is set, servers that are connected but
+ *         degraded (slow or missing load polls) are ejected from selection
+ *         until they recover.
+ *         </p>
  */
 public class ServerManager implements Runnable {
 
 	/**
-	 * The remote servers that this object manages.
+	 * The remote servers that this object manages. Servers may be added or
+	 * removed by other threads while this ServerManager is running.
 	 */
 	private Set<Server> servers;
+
+	/**
+	 * An immutable copy of <code>servers</code> that servers are selected
+	 * from, replaced whenever the managed set changes.
+	 */
+	private volatile Set<Server> selectionSnapshot;
+
+	/**
+	 * Servers that have been removed from the managed set but may still have
+	 * clients holding unexpired tokens for them.
+	 */
+	private Set<Server> drainingServers = ConcurrentHashMap.newKeySet();
 	
+	/**
+	 * The interval, in milliseconds, between updates of the servers' loads.
+	 */
+	private static final int UPDATE_INTERVAL_MILLIS = 1000;
+
 	/**
 	 * Flag used to terminate this ServerManager thread.
 	 */
 	private boolean isTerminated = false;
 
+	/**
+	 * The length of the sliding window that the token issue rate is
+	 * calculated over, in nanoseconds.
+	 */
+	private static final long TOKEN_RATE_WINDOW_NANOS = 5000000000L;
+
+	/**
+	 * The number of buckets the token issue rate window is split into.
+	 */
+	private static final int TOKEN_RATE_WINDOW_BUCKETS = 10;
+
+	/**
+	 * The server tokens issued within the last
+	 * <code>TOKEN_RATE_WINDOW_NANOS</code>. Counted over a sliding window
+	 * rather than per update cycle, so that the rate does not depend on how
+	 * long each cycle took.
+	 */
+	private RollingWindowCounter tokensIssued = new RollingWindowCounter(TOKEN_RATE_WINDOW_NANOS,
+			TOKEN_RATE_WINDOW_BUCKETS);
+
+	/**
+	 * The number of server tokens issued per second, recalculated on each
+	 * update cycle.
+	 */
+	private volatile float tokenIssueRate = 0;
+
+	/**
+	 * The amount, in CPU load percentage points, added to a server's load for
+	 * each token issued for it (by this node or a peer) since its load was
+	 * last retrieved. Zero disables the penalty, so that servers are chosen
+	 * by CPU load alone.
+	 */
+	private double tokenLoadPenalty = 0;
+
+	/**
+	 * The most recent {@link LoadSummary} received from each peer active load
+	 * balancer in active-active mode.
+	 */
+	private Map<RemoteLoadBalancer, LoadSummary> peerLoadSummaries = new ConcurrentHashMap<>();
+
+	/**
+	 * The age, in milliseconds, after which a peer's load summary is no
+	 * longer used.
+	 */
+	private int peerSummaryTimeoutMillis = 0;
+
+	/**
+	 * The time, in milliseconds, over which the share of clients sent to a
+	 * newly joined or recovered server is ramped up. Zero disables slow
+	 * start.
+	 */
+	private int slowStartWindowMillis = 0;
+
+	/**
+	 * The time at which this ServerManager was created. Servers that become
+	 * live in its first update cycles are not slowed, as they were not
+	 * joining a group of already warm servers.
+	 */
+	private long creationTime = TimeSource.monotonicMillis();
+
+	/**
+	 * Used to eject servers that are connected but degraded, or null if
+	 * outlier detection is disabled.
+	 */
+	private volatile OutlierDetector outlierDetector;
+
+	/**
+	 * The way in which a server is chosen for each client.
+	 */
+	private SelectionStrategy selectionStrategy = SelectionStrategy.LEAST_LOADED;
+
+	/**
+	 * Used to choose token lifetimes, or null to use each server's load
+	 * variance.
+	 */
+	private volatile TokenLifetimeController tokenLifetimeController;
+
+	/**
+	 * The number of less loaded peers sent to each server after it is polled,
+	 * so that it can redirect clients when overloaded. Zero disables peer
+	 * hints.
+	 */
+	private int peerHintCount = 0;
+
+	/**
+	 * The weighted table of servers published to clients that pick a server
+	 * themselves, rebuilt on each update cycle.
+	 */
+	private volatile ServerTable serverTable;
+
+	/**
+	 * The number of seconds that clients may use the server table for before
+	 * refreshing it.
+	 */
+	private int serverTableRefreshSeconds = 5;
+
+	/**
+	 * The highest weight given to a server in the server table.
+	 */
+	private static final int MAX_TABLE_WEIGHT = 10;
+
+	/**
+	 * The largest number of tokens that can be issued in one batch.
+	 */
+	public static final int MAX_TOKEN_BATCH_SIZE = 100;
+
+	/**
+	 * The percentile of the recent poll round trip times that is blended
+	 * with the moving average when estimating a server's latency.
+	 */
+	private static final double LATENCY_PERCENTILE = 0.9;
+
 	/**
 	 * Creates a new ServerManager object containing the specified Set of
 	 * {@link Server} objects.
@@ -39,6 +205,11 @@ public class ServerManager implements Runnable {
 			throw new IllegalArgumentException("Server Set must be initialised and contain at least one server.");
 
 		this.servers = servers;
+		selectionSnapshot = Collections.unmodifiableSet(new HashSet<>(servers));
+		// Versions start from the wall clock time so that a table from a
+		// previous active is not mistaken for the current one
+		serverTable = new ServerTable(TimeSource.wallClockMillis(), serverTableRefreshSeconds, new ArrayList<InetSocketAddress>(),
+				new ArrayList<Integer>());
 	}
 
 	/*
@@ -50,16 +221,41 @@ public class ServerManager implements Runnable {
 	@Override
 	public void run() {
 
+		boolean isFirstCycle = true;
 		while (!isTerminated) {
+			// Keep any rate received from the previous active for the first
+			// cycle, before any tokens have been counted
+			if (!isFirstCycle) {
+				tokenIssueRate = (float) tokensIssued.getRatePerSecond();
+			}
+			isFirstCycle = false;
+			refreshServers();
+			TokenLifetimeController currentTokenLifetimeController = tokenLifetimeController;
+			if (currentTokenLifetimeController != null) {
+				currentTokenLifetimeController.update(selectionSnapshot, tokenIssueRate);
+			}
+			removeDrainedServers();
+			updateServerTable();
 			// Final declaration used for < Java 8 compatibility
-			for (final Server server : servers) {
+			for (final Server server : selectionSnapshot) {
 				new Thread(new Runnable() {
 					
 					@Override
 					public void run() {	
 						// Give a very short timeout to server connect as we are assuming servers are robust and reliable
 						if (server.connect(5)) {
-							server.updateServerState();
+							boolean polled = server.updateServerState();
+							OutlierDetector currentOutlierDetector = outlierDetector;
+							if (currentOutlierDetector != null) {
+								if (polled) {
+									currentOutlierDetector.recordPoll(server, server.getLastPollRttMillis());
+								} else {
+									currentOutlierDetector.recordMissedPoll(server);
+								}
+							}
+							if (polled && peerHintCount > 0) {
+								server.sendPeerHints(getPeerHints(server));
+							}
 						}
 					}
 
@@ -67,7 +263,7 @@ public class ServerManager implements Runnable {
 			}
 
 			try {
-				Thread.sleep(1000);
+				Thread.sleep(UPDATE_INTERVAL_MILLIS);
 			} catch (InterruptedException e) {
 				Thread.currentThread().interrupt();
 			}
@@ -81,43 +277,565 @@ public class ServerManager implements Runnable {
 	
 	/**
 	 * This method selects the {@Server} with the lowest CPU load that is
-	 * currently known to be in a live state. It then calls
+	 * currently known to be in a live state (or, with the
+	 * <code>LATENCY_AWARE</code> strategy, the lowest expected response time;
+	 * see <code>getSelectionScore</code>). If a token load penalty is set,
+	 * the load of each server is increased by the penalty for each token
+	 * issued for it by this node and its peers since the load was retrieved,
+	 * so that several active nodes do not all send clients to the same
+	 * server before its load has been updated. If no server has been connected
+	 * to yet (e.g. straight after this node has been promoted to active), the
+	 * server with the lowest load in the snapshot received from the previous
+	 * active is selected instead. Servers that are warming up (slow start) or
+	 * have been ejected as outliers are passed over, unless no other live
+	 * server is available. It then calls
 	 * <code>calculateTokenExpiry</code> on the selected {@Server} and returns
 	 * the object.
 	 * 
 	 * @return an available {@Server} to be passed onto a client.
 	 */
 	public synchronized Server getAvailableServer() {
+		Set<Server> servers = selectionSnapshot;
+		long currentTime = TimeSource.monotonicMillis();
 		Server availableServer = null;
 		boolean foundLiveServer = false;
+		double availableServerLoad = 0;
+		// Best scoring live server skipped because it is still warming up,
+		// used if every live server is skipped
+		Server skippedServer = null;
+		double skippedServerScore = 0;
+		// Best scoring live server ejected as an outlier, used only if every
+		// live server has been ejected
+		Server ejectedServer = null;
+		double ejectedServerScore = 0;
+		OutlierDetector currentOutlierDetector = outlierDetector;
+		double minimumRtt = selectionStrategy.equals(SelectionStrategy.LATENCY_AWARE) ? getMinimumRtt(servers) : 0;
 		for (Server server : servers) {
 			if (server.isConnected()) {
+				double serverScore = getSelectionScore(server, minimumRtt);
+				if (currentOutlierDetector != null && currentOutlierDetector.isEjected(server)) {
+					if (ejectedServer == null || serverScore < ejectedServerScore) {
+						ejectedServer = server;
+						ejectedServerScore = serverScore;
+					}
+					continue;
+				}
+				double slowStartWeight = getSlowStartWeight(server, currentTime);
+				if (slowStartWeight < 1 && ThreadLocalRandom.current().nextDouble() >= slowStartWeight) {
+					if (skippedServer == null || serverScore < skippedServerScore) {
+						skippedServer = server;
+						skippedServerScore = serverScore;
+					}
+					continue;
+				}
 				if (!foundLiveServer) {
 					availableServer = server;
+					availableServerLoad = serverScore;
 					foundLiveServer = true;
-				} else if (server.getCPULoad() < availableServer.getCPULoad()) {
+				} else if (serverScore < availableServerLoad) {
 					availableServer = server;
+					availableServerLoad = serverScore;
+				}
+			}
+		}
+		if (availableServer == null) {
+			availableServer = skippedServer;
+		}
+		if (availableServer == null) {
+			availableServer = ejectedServer;
+		}
+		if (availableServer == null) {
+			for (Server server : servers) {
+				if (server.hasSnapshotLoad()) {
+					double serverLoad = getEffectiveLoad(server);
+					if (availableServer == null || serverLoad < availableServerLoad) {
+						availableServer = server;
+						availableServerLoad = serverLoad;
+					}
 				}
 			}
 		}
 		if (availableServer != null) {
-			availableServer.calculateTokenExpiry();
+			issueToken(availableServer, currentTime);
 		}
 		return availableServer;
 	}
+
+	/**
+	 * Selects servers for a batch of tokens, to be handed out to separate
+	 * clients. Rather than giving every token to the single best server, the
+	 * servers are picked at random in proportion to their weights in the
+	 * current server table, which are derived from the selection strategy
+	 * (see <code>updateServerTable</code>), so that a batch is spread in the
+	 * same way as the tokens from a series of single requests. If the table
+	 * is empty (e.g. before the first update cycle), each server is selected
+	 * as in <code>getAvailableServer</code>. The token expiry of each selected
+	 * server is calculated as it is selected.
+	 * 
+	 * @param count
+	 *            the number of tokens wanted, at most
+	 *            <code>MAX_TOKEN_BATCH_SIZE</code>
+	 * @return the selected server for each token. A server may appear more
+	 *         than once.
+	 */
+	public synchronized List<Server> getAvailableServers(int count) {
+		count = Math.min(count, MAX_TOKEN_BATCH_SIZE);
+		List<Server> availableServers = new ArrayList<>();
+		ServerTable currentServerTable = serverTable;
+		Map<InetSocketAddress, Server> serversByAddress = new HashMap<>();
+		for (Server server : selectionSnapshot) {
+			serversByAddress.put(server.getAddress(), server);
+		}
+		long currentTime = TimeSource.monotonicMillis();
+		for (int i = 0; i < count; i++) {
+			Server availableServer = null;
+			if (!currentServerTable.isEmpty()) {
+				availableServer = serversByAddress.get(currentServerTable.selectServer());
+			}
+			if (availableServer != null) {
+				issueToken(availableServer, currentTime);
+			} else {
+				availableServer = getAvailableServer();
+			}
+			if (availableServer != null) {
+				availableServers.add(availableServer);
+			}
+		}
+		return availableServers;
+	}
+
+	/**
+	 * Calculates the token expiry of a server that has been selected for a
+	 * client, and records that a token has been issued for it.
+	 */
+	private void issueToken(Server server, long currentTime) {
+		double slowStartWeight = getSlowStartWeight(server, currentTime);
+		TokenLifetimeController currentTokenLifetimeController = tokenLifetimeController;
+		if (currentTokenLifetimeController != null) {
+			server.calculateTokenExpiry(currentTokenLifetimeController.getTokenLifetimeSeconds(server),
+					slowStartWeight);
+		} else {
+			server.calculateTokenExpiry(slowStartWeight);
+		}
+		server.recordTokenIssued();
+		tokensIssued.increment();
+	}
+
+	/**
+	 * @return the value that servers are compared by when selecting a server
+	 *         for a client, where lower is better. With the
+	 *         <code>LEAST_LOADED</code> strategy this is the server's
+	 *         effective load. With the <code>LATENCY_AWARE</code> strategy it
+	 *         is the server's estimated round trip time divided by its CPU
+	 *         headroom (the fraction of CPU left idle), as a server's
+	 *         response time grows as it nears full load. The round trip time
+	 *         estimate is the average of the moving average and the 90th
+	 *         percentile of recent polls, so that both the current trend and
+	 *         the tail are accounted for. Servers with no recorded polls are
+	 *         given the lowest known round trip time.
+	 */
+	private double getSelectionScore(Server server, double minimumRtt) {
+		double serverLoad = getEffectiveLoad(server);
+		if (!selectionStrategy.equals(SelectionStrategy.LATENCY_AWARE)) {
+			return serverLoad;
+		}
+		double rtt = getEstimatedRtt(server);
+		if (rtt < 0) {
+			rtt = minimumRtt;
+		}
+		double headroom = Math.max(1, 100 - serverLoad) / 100;
+		return rtt / headroom;
+	}
+
+	/**
+	 * @return the estimated round trip time to the given server, in
+	 *         milliseconds, or -1 if no polls have been recorded.
+	 */
+	private double getEstimatedRtt(Server server) {
+		LatencyRecord pollLatency = server.getPollLatency();
+		double averageRtt = pollLatency.getAverageLatency();
+		if (averageRtt < 0) {
+			return -1;
+		}
+		return (averageRtt + pollLatency.getPercentile(LATENCY_PERCENTILE)) / 2;
+	}
+
+	/**
+	 * @return the lowest estimated round trip time of the given servers, or
+	 *         0 if none have recorded polls.
+	 */
+	private double getMinimumRtt(Set<Server> servers) {
+		double minimumRtt = -1;
+		for (Server server : servers) {
+			double rtt = getEstimatedRtt(server);
+			if (rtt >= 0 && (minimumRtt < 0 || rtt < minimumRtt)) {
+				minimumRtt = rtt;
+			}
+		}
+		return Math.max(0, minimumRtt);
+	}
+
+	/**
+	 * @return the current weighted table of servers, for clients that pick a
+	 *         server themselves.
+	 */
+	public ServerTable getServerTable() {
+		return serverTable;
+	}
+
+	/**
+	 * Rebuilds the server table from the current loads, using the same
+	 * strategy as <code>getAvailableServer</code>. Each live server that has
+	 * not been ejected is weighted in proportion to how desirable it is: its
+	 * CPU headroom with the <code>LEAST_LOADED</code> strategy, or the
+	 * inverse of its selection score with <code>LATENCY_AWARE</code>, scaled
+	 * so that the best server has the maximum weight and reduced for servers
+	 * that are warming up. The weights are kept coarse so that the table's
+	 * version, and so the clients' copies, only change when the balance
+	 * between servers changes noticeably.
+	 */
+	public void updateServerTable() {
+		long currentTime = TimeSource.monotonicMillis();
+		OutlierDetector currentOutlierDetector = outlierDetector;
+		double minimumRtt = selectionStrategy.equals(SelectionStrategy.LATENCY_AWARE)
+				? getMinimumRtt(selectionSnapshot) : 0;
+		List<Server> tableServers = new ArrayList<>();
+		Map<Server, Double> desirabilities = new HashMap<>();
+		double maxDesirability = 0;
+		for (Server server : selectionSnapshot) {
+			if (!server.isConnected() || server.getCPULoad() < 0
+					|| (currentOutlierDetector != null && currentOutlierDetector.isEjected(server))) {
+				continue;
+			}
+			double desirability;
+			if (selectionStrategy.equals(SelectionStrategy.LATENCY_AWARE)) {
+				double score = getSelectionScore(server, minimumRtt);
+				desirability = score > 0 ? 1 / score : Double.MAX_VALUE;
+			} else {
+				desirability = Math.max(1, 100 - getEffectiveLoad(server));
+			}
+			tableServers.add(server);
+			desirabilities.put(server, desirability);
+			maxDesirability = Math.max(maxDesirability, desirability);
+		}
+		Collections.sort(tableServers, new Comparator<Server>() {
+
+			@Override
+			public int compare(Server server1, Server server2) {
+				return server1.getAddress().toString().compareTo(server2.getAddress().toString());
+			}
+
+		});
+		List<InetSocketAddress> serverAddresses = new ArrayList<>();
+		List<Integer> weights = new ArrayList<>();
+		for (Server server : tableServers) {
+			double weight = MAX_TABLE_WEIGHT * desirabilities.get(server) / maxDesirability
+					* getSlowStartWeight(server, currentTime);
+			serverAddresses.add(server.getAddress());
+			weights.add((int) Math.max(1, Math.round(weight)));
+		}
+		ServerTable currentTable = serverTable;
+		ServerTable newTable = new ServerTable(currentTable.getVersion() + 1, serverTableRefreshSeconds,
+				serverAddresses, weights);
+		if (!newTable.hasSameEntries(currentTable)) {
+			serverTable = newTable;
+		}
+	}
+
+	/**
+	 * @param serverTableRefreshSeconds
+	 *            the number of seconds that clients may use the server table
+	 *            for before refreshing it
+	 */
+	public void setServerTableRefreshSeconds(int serverTableRefreshSeconds) {
+		this.serverTableRefreshSeconds = serverTableRefreshSeconds;
+	}
+
+	/**
+	 * @param server
+	 *            the server that the hints will be sent to
+	 * @return up to <code>peerHintCount</code> of the other connected servers
+	 *         with a known load that are not ejected or draining, least loaded
+	 *         first.
+	 */
+	public List<Server> getPeerHints(Server server) {
+		List<Server> peers = new ArrayList<>();
+		OutlierDetector currentOutlierDetector = outlierDetector;
+		for (Server peer : selectionSnapshot) {
+			if (!peer.equals(server) && peer.isConnected() && peer.getCPULoad() >= 0
+					&& (currentOutlierDetector == null || !currentOutlierDetector.isEjected(peer))) {
+				peers.add(peer);
+			}
+		}
+		Collections.sort(peers, new Comparator<Server>() {
+
+			@Override
+			public int compare(Server server1, Server server2) {
+				return Double.compare(server1.getCPULoad(), server2.getCPULoad());
+			}
+
+		});
+		return peers.size() > peerHintCount ? peers.subList(0, peerHintCount) : peers;
+	}
+
+	/**
+	 * @return the CPU load of the given server plus the token load penalty
+	 *         for each token issued for it since its load was retrieved.
+	 */
+	private double getEffectiveLoad(Server server) {
+		if (tokenLoadPenalty == 0) {
+			return server.getCPULoad();
+		}
+		int tokenCount = server.getTokensIssuedSinceLoadUpdate();
+		long currentTime = TimeSource.monotonicMillis();
+		for (LoadSummary peerLoadSummary : peerLoadSummaries.values()) {
+			if (currentTime - peerLoadSummary.getCreationTime() <= peerSummaryTimeoutMillis) {
+				tokenCount += peerLoadSummary.getServerTokenCount(server.getAddress());
+			}
+		}
+		return server.getCPULoad() + tokenLoadPenalty * tokenCount;
+	}
+
+	/**
+	 * @return the fraction, between 0 and 1, of its full share of clients that
+	 *         the given server should currently receive. This is 1 unless
+	 *         slow start is enabled and the server became live less than the
+	 *         slow-start window ago (after this ServerManager's first update
+	 *         cycles), in which case it rises linearly over the window.
+	 */
+	private double getSlowStartWeight(Server server, long currentTime) {
+		long liveSince = server.getLiveSince();
+		if (slowStartWindowMillis == 0 || liveSince == 0 || liveSince - creationTime < UPDATE_INTERVAL_MILLIS * 2) {
+			return 1;
+		}
+		return Math.min(1, Math.max(0, (double) (currentTime - liveSince) / slowStartWindowMillis));
+	}
+
+	/**
+	 * @param tokenLifetimeController
+	 *            the {@link TokenLifetimeController} used to choose token
+	 *            lifetimes, or null to use each server's load variance
+	 */
+	public void setTokenLifetimeController(TokenLifetimeController tokenLifetimeController) {
+		this.tokenLifetimeController = tokenLifetimeController;
+	}
+
+	/**
+	 * @param peerHintCount
+	 *            the number of less loaded peers to send to each server after
+	 *            it is polled, or 0 to disable peer hints
+	 */
+	public void setPeerHintCount(int peerHintCount) {
+		this.peerHintCount = peerHintCount;
+	}
+
+	/**
+	 * @param selectionStrategy
+	 *            the way in which a server is chosen for each client
+	 */
+	public void setSelectionStrategy(SelectionStrategy selectionStrategy) {
+		this.selectionStrategy = selectionStrategy;
+	}
+
+	/**
+	 * Sets the {@link OutlierDetector} used to eject degraded servers.
+	 * 
+	 * @param outlierDetector
+	 *            the outlier detector to use, or null to disable outlier
+	 *            detection
+	 */
+	public void setOutlierDetector(OutlierDetector outlierDetector) {
+		this.outlierDetector = outlierDetector;
+	}
+
+	/**
+	 * Sets the window over which the share of clients sent to a newly joined
+	 * or recovered server is ramped up.
+	 * 
+	 * @param slowStartWindowMillis
+	 *            the slow-start window in milliseconds, or 0 to disable
+	 */
+	public void setSlowStartWindow(int slowStartWindowMillis) {
+		this.slowStartWindowMillis = slowStartWindowMillis;
+	}
+
+	/**
+	 * Sets the penalty used to account for tokens issued by this node and its
+	 * peers when selecting a server.
+	 * 
+	 * @param tokenLoadPenalty
+	 *            the amount, in CPU load percentage points, added to a
+	 *            server's load per token issued for it, or 0 to disable
+	 * @param peerSummaryTimeoutMillis
+	 *            the age, in milliseconds, after which a peer's load summary
+	 *            is no longer used
+	 */
+	public void setTokenLoadPenalty(double tokenLoadPenalty, int peerSummaryTimeoutMillis) {
+		this.tokenLoadPenalty = tokenLoadPenalty;
+		this.peerSummaryTimeoutMillis = peerSummaryTimeoutMillis;
+	}
+
+	/**
+	 * Stores the most recent {@link LoadSummary} received from a peer active
+	 * load balancer in active-active mode.
+	 * 
+	 * @param remoteLoadBalancer
+	 *            the peer that sent the summary
+	 * @param peerLoadSummary
+	 *            the summary received
+	 */
+	public void updatePeerLoadSummary(RemoteLoadBalancer remoteLoadBalancer, LoadSummary peerLoadSummary) {
+		peerLoadSummaries.put(remoteLoadBalancer, peerLoadSummary);
+	}
+
+	/**
+	 * @return the number of server tokens issued per second, as of the last
+	 *         update cycle.
+	 */
+	public float getTokenIssueRate() {
+		return tokenIssueRate;
+	}
+
+	/**
+	 * Sets the token issue rate to the value received from the previous
+	 * active load balancer, to be used until this ServerManager has
+	 * calculated its own.
+	 * 
+	 * @param tokenIssueRate
+	 *            the number of server tokens issued per second
+	 */
+	public void setInitialTokenIssueRate(float tokenIssueRate) {
+		this.tokenIssueRate = tokenIssueRate;
+	}
+
+	/**
+	 * @return a {@link LoadSummary} of the current load of each server and
+	 *         the token issue rate, to be sent to the passive load balancers.
+	 */
+	public LoadSummary getLoadSummary() {
+		return LoadSummary.fromServers(selectionSnapshot, tokenIssueRate);
+	}
+
+	/**
+	 * Adds the server at the given address to the managed set, e.g. when it
+	 * sends a <code>SERVER_REGISTER</code> message. A server that is still
+	 * draining is returned to use.
+	 * 
+	 * @param address
+	 *            the address of the server to add
+	 * @return true if the server was added, or false if it was already being
+	 *         used.
+	 */
+	public synchronized boolean registerServer(InetSocketAddress address) {
+		Server server = new Server(address);
+		if (selectionSnapshot.contains(server)) {
+			return false;
+		}
+		servers.add(server);
+		refreshServers();
+		return true;
+	}
+
+	/**
+	 * Removes the server at the given address from the managed set, e.g. when
+	 * it sends a <code>SERVER_DEREGISTER</code> message. The server is drained
+	 * until the last token issued for it has expired.
+	 * 
+	 * @param address
+	 *            the address of the server to remove
+	 * @return true if the server was removed, or false if it was not in the
+	 *         managed set.
+	 */
+	public synchronized boolean deregisterServer(InetSocketAddress address) {
+		if (!servers.remove(new Server(address))) {
+			return false;
+		}
+		refreshServers();
+		return true;
+	}
+
+	/**
+	 * Replaces the selection snapshot with a copy of the current managed set.
+	 * Servers that are no longer in the set start draining, and servers that
+	 * have been added back while draining are returned to use with their
+	 * existing connection and load records.
+	 */
+	public synchronized void refreshServers() {
+		Map<Server, Server> knownServers = new HashMap<>();
+		for (Server server : drainingServers) {
+			knownServers.put(server, server);
+		}
+		for (Server server : selectionSnapshot) {
+			knownServers.put(server, server);
+		}
+		Set<Server> newSnapshot = new HashSet<>();
+		for (Server server : servers) {
+			Server knownServer = knownServers.remove(server);
+			newSnapshot.add(knownServer == null ? server : knownServer);
+		}
+		drainingServers.removeAll(newSnapshot);
+		for (Server server : knownServers.values()) {
+			if (drainingServers.add(server)) {
+				System.out.println("Draining server at: " + server.getAddress());
+			}
+		}
+		selectionSnapshot = Collections.unmodifiableSet(newSnapshot);
+	}
+
+	/**
+	 * Disconnects and discards each draining server whose last issued token
+	 * has expired.
+	 */
+	private void removeDrainedServers() {
+		for (Server server : drainingServers) {
+			if (TimeSource.hasPassed(server.getTokenExpiry())) {
+				drainingServers.remove(server);
+				disconnectServer(server);
+				if (outlierDetector != null) {
+					outlierDetector.removeServer(server);
+				}
+				System.out.println("Removed drained server at: " + server.getAddress());
+			}
+		}
+	}
+
+	/**
+	 * @return the servers that clients are currently being sent to.
+	 */
+	public Set<Server> getServers() {
+		return selectionSnapshot;
+	}
+
+	/**
+	 * @return the servers that have been removed but still have unexpired
+	 *         tokens.
+	 */
+	public Set<Server> getDrainingServers() {
+		return Collections.unmodifiableSet(drainingServers);
+	}
 	
 	/**
 	 * Closes all socket channels that are connected to servers.
 	 */
 	private void disconnectServers() {
-		for (Server server : servers) {
-			try {
-				if (server.getSocketChannel() != null) {
-					server.getSocketChannel().close();
-				}
-			} catch (IOException e) {
-				
+		for (Server server : selectionSnapshot) {
+			disconnectServer(server);
+		}
+		for (Server server : drainingServers) {
+			disconnectServer(server);
+		}
+	}
+
+	/**
+	 * Closes the socket channel connected to the given server, if any.
+	 */
+	private void disconnectServer(Server server) {
+		try {
+			if (server.getSocketChannel() != null) {
+				server.getSocketChannel().close();
 			}
+		} catch (IOException e) {
+			
 		}
 	}
 }
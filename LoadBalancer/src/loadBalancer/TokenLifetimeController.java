@@ -0,0 +1,200 @@
+package loadBalancer;
+
+import java.util.Collection;
+
+import commsModel.Server;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Chooses the lifetime of the server tokens issued to clients, in
+ *         place of the coefficient of variation formula used by
+ *         {@link Server#calculateTokenExpiry()}. A client holding a token
+ *         stays on the same server until it expires, so short tokens move
+ *         clients to the least loaded server sooner, at the cost of more
+ *         token requests to the load balancer.
+ *         </p>
+ *         <p>
+ *         The controller keeps a base lifetime that is adjusted on each
+ *         update by a simple feedback loop so that the rate at which tokens
+ *         are issued (i.e. clients are rebalanced) tracks a target rate: the
+ *         base lifetime is lengthened while the rate is above the target and
+ *         shortened while it is below. Each server's token lifetime is then
+ *         the base lifetime shortened according to how far the server's load
+ *         is from the cluster mean and how fast its load is changing, so that
+ *         clients on servers whose load is unusual or unsettled are
+ *         rebalanced sooner. All lifetimes are kept within the configured
+ *         bounds.
+ *         </p>
+ *
+ */
+public class TokenLifetimeController {
+
+	/**
+	 * The deviation from the cluster mean load, in CPU load percentage
+	 * points, that halves a server's token lifetime.
+	 */
+	private static final double LOAD_DEVIATION_SCALE = 10;
+
+	/**
+	 * The change in load per update cycle, in CPU load percentage points,
+	 * that halves a server's token lifetime.
+	 */
+	private static final double LOAD_CHANGE_SCALE = 10;
+
+	/**
+	 * The factor by which the base lifetime is lengthened or shortened on
+	 * each update.
+	 */
+	private static final double ADJUSTMENT_FACTOR = 1.1;
+
+	/**
+	 * The fraction by which the token issue rate may differ from the target
+	 * before the base lifetime is adjusted.
+	 */
+	private static final double TARGET_TOLERANCE = 0.1;
+
+	/**
+	 * The shortest token lifetime, in seconds.
+	 */
+	private int minLifetimeSeconds;
+
+	/**
+	 * The longest token lifetime, in seconds.
+	 */
+	private int maxLifetimeSeconds;
+
+	/**
+	 * The number of tokens per second that the controller aims to issue.
+	 */
+	private double targetTokenRate;
+
+	/**
+	 * The lifetime, in seconds, given to a server whose load is at the
+	 * cluster mean and steady.
+	 */
+	private volatile double baseLifetimeSeconds;
+
+	/**
+	 * The mean load of the servers with a known load, as of the last update.
+	 */
+	private volatile double meanLoad = 0;
+
+	/**
+	 * The token issue rate passed to the last update.
+	 */
+	private volatile double lastTokenRate = 0;
+
+	/**
+	 * The base lifetime, rounded to whole seconds, that was last logged.
+	 */
+	private long lastLoggedBaseLifetime = -1;
+
+	/**
+	 * Creates a new TokenLifetimeController with its base lifetime midway
+	 * between the given bounds.
+	 *
+	 * @param minLifetimeSeconds
+	 *            the shortest token lifetime, in seconds
+	 * @param maxLifetimeSeconds
+	 *            the longest token lifetime, in seconds
+	 * @param targetTokenRate
+	 *            the number of tokens per second to aim to issue
+	 * @throws IllegalArgumentException
+	 *             if the minimum lifetime is less than 1, the maximum is less
+	 *             than the minimum, or the target rate is not positive.
+	 */
+	public TokenLifetimeController(int minLifetimeSeconds, int maxLifetimeSeconds, double targetTokenRate) {
+		if (minLifetimeSeconds < 1 || maxLifetimeSeconds < minLifetimeSeconds)
+			throw new IllegalArgumentException(
+					"Minimum token lifetime must be at least 1 second and no greater than the maximum.");
+		if (targetTokenRate <= 0)
+			throw new IllegalArgumentException("Target token rate must be greater than 0.");
+
+		this.minLifetimeSeconds = minLifetimeSeconds;
+		this.maxLifetimeSeconds = maxLifetimeSeconds;
+		this.targetTokenRate = targetTokenRate;
+		this.baseLifetimeSeconds = (minLifetimeSeconds + maxLifetimeSeconds) / 2.0;
+	}
+
+	/**
+	 * Updates the cluster mean load and adjusts the base lifetime towards
+	 * the target token rate. Called by the {@link ServerManager} on each
+	 * update cycle.
+	 *
+	 * @param servers
+	 *            the servers currently in use
+	 * @param tokenRate
+	 *            the number of tokens issued per second since the last update
+	 */
+	public void update(Collection<Server> servers, double tokenRate) {
+		double loadSum = 0;
+		int loadCount = 0;
+		for (Server server : servers) {
+			if (server.getCPULoad() >= 0) {
+				loadSum += server.getCPULoad();
+				loadCount++;
+			}
+		}
+		if (loadCount > 0) {
+			meanLoad = loadSum / loadCount;
+		}
+
+		lastTokenRate = tokenRate;
+		double newBaseLifetime = baseLifetimeSeconds;
+		if (tokenRate > targetTokenRate * (1 + TARGET_TOLERANCE)) {
+			newBaseLifetime *= ADJUSTMENT_FACTOR;
+		} else if (tokenRate < targetTokenRate * (1 - TARGET_TOLERANCE)) {
+			newBaseLifetime /= ADJUSTMENT_FACTOR;
+		}
+		baseLifetimeSeconds = Math.max(minLifetimeSeconds, Math.min(maxLifetimeSeconds, newBaseLifetime));
+
+		long roundedBaseLifetime = Math.round(baseLifetimeSeconds);
+		if (roundedBaseLifetime != lastLoggedBaseLifetime) {
+			lastLoggedBaseLifetime = roundedBaseLifetime;
+			System.out.println("Token lifetime: " + roundedBaseLifetime + "s (issue rate "
+					+ String.format("%.1f", tokenRate) + "/s, target " + targetTokenRate + "/s, mean load "
+					+ String.format("%.1f", meanLoad) + "%)");
+		}
+	}
+
+	/**
+	 * @param server
+	 *            the server a token is being issued for
+	 * @return the lifetime, in seconds, of a token issued now for the given
+	 *         server: the base lifetime divided by one plus the server's
+	 *         (scaled) deviation from the mean load and load change rate,
+	 *         kept within the configured bounds.
+	 */
+	public int getTokenLifetimeSeconds(Server server) {
+		double lifetime = baseLifetimeSeconds;
+		if (server.getCPULoad() >= 0) {
+			double loadDeviation = Math.abs(server.getCPULoad() - meanLoad);
+			lifetime /= 1 + loadDeviation / LOAD_DEVIATION_SCALE + server.getLoadChangeRate() / LOAD_CHANGE_SCALE;
+		}
+		return (int) Math.max(minLifetimeSeconds, Math.min(maxLifetimeSeconds, Math.round(lifetime)));
+	}
+
+	/**
+	 * @return the lifetime, in seconds, currently given to a server whose
+	 *         load is at the cluster mean and steady.
+	 */
+	public double getBaseLifetimeSeconds() {
+		return baseLifetimeSeconds;
+	}
+
+	/**
+	 * @return the mean load of the servers with a known load, as of the last
+	 *         update.
+	 */
+	public double getMeanLoad() {
+		return meanLoad;
+	}
+
+	/**
+	 * @return the token issue rate passed to the last update.
+	 */
+	public double getLastTokenRate() {
+		return lastTokenRate;
+	}
+}
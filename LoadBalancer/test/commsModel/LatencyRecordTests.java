@@ -0,0 +1,65 @@
+package commsModel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link LatencyRecord} class and its methods.
+ *         </p>
+ *
+ */
+public class LatencyRecordTests {
+
+	/**
+	 * Test that a record with no samples reports -1 for its average and
+	 * percentiles.
+	 */
+	@Test
+	public void testLatencyRecord_noSamples() {
+		LatencyRecord latencyRecord = new LatencyRecord(0.5);
+		assertEquals(0, latencyRecord.getSampleCount());
+		assertEquals(-1, latencyRecord.getAverageLatency(), 0);
+		assertEquals(-1, latencyRecord.getPercentile(0.9), 0);
+	}
+
+	/**
+	 * Test that percentiles are calculated by nearest rank over the samples
+	 * added out of order, and that calculating one does not disturb the
+	 * sample window.
+	 */
+	@Test
+	public void testLatencyRecord_getPercentile() {
+		LatencyRecord latencyRecord = new LatencyRecord(0.5);
+		double[] samples = { 7, 3, 9, 1, 5, 10, 2, 8, 4, 6 };
+		for (double sample : samples) {
+			latencyRecord.addSample(sample);
+		}
+		assertEquals(10, latencyRecord.getSampleCount());
+		assertEquals(9, latencyRecord.getPercentile(0.9), 0);
+		assertEquals(5, latencyRecord.getPercentile(0.5), 0);
+		assertEquals(1, latencyRecord.getPercentile(0), 0);
+		assertEquals(10, latencyRecord.getPercentile(1), 0);
+		assertEquals(9, latencyRecord.getPercentile(0.9), 0);
+	}
+
+	/**
+	 * Test that only the most recent 20 samples are used for percentiles,
+	 * while the sample count stops at the window size.
+	 */
+	@Test
+	public void testLatencyRecord_getPercentileOfRecentWindow() {
+		LatencyRecord latencyRecord = new LatencyRecord(0.5);
+		for (int i = 0; i < 20; i++) {
+			latencyRecord.addSample(1000);
+		}
+		for (int i = 1; i <= 20; i++) {
+			latencyRecord.addSample(i);
+		}
+		assertEquals(20, latencyRecord.getSampleCount());
+		assertEquals(20, latencyRecord.getPercentile(1), 0);
+		assertEquals(18, latencyRecord.getPercentile(0.9), 0);
+	}
+}
@@ -0,0 +1,147 @@
+package commsModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import loadBalancer.ServerManager;
+import testUtils.TestUtils;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link LoadSummary} class and its methods.
+ *         </p>
+ *
+ */
+public class LoadSummaryTests {
+
+	/**
+	 * Test that a summary decoded from an encoded summary contains the same
+	 * token issue rate and quantized server loads.
+	 */
+	@Test
+	public void testLoadSummary_encodeDecode() {
+		LoadSummary loadSummary = new LoadSummary(12.5f);
+		InetSocketAddress firstServer = new InetSocketAddress("localhost", 8000);
+		InetSocketAddress secondServer = new InetSocketAddress("localhost", 8001);
+		loadSummary.addServer(firstServer, 42.37, 7);
+		loadSummary.addServer(secondServer, -1);
+		ByteBuffer buffer = ByteBuffer.allocate(loadSummary.getEncodedLength());
+		loadSummary.encode(buffer);
+		assertFalse(buffer.hasRemaining());
+		buffer.flip();
+
+		LoadSummary decodedLoadSummary = LoadSummary.decode(buffer);
+		assertNotNull(decodedLoadSummary);
+		assertEquals(12.5f, decodedLoadSummary.getTokenIssueRate(), 0);
+		assertEquals(42, decodedLoadSummary.getServerLoad(firstServer));
+		assertEquals(255, decodedLoadSummary.getServerLoad(secondServer));
+		assertEquals(7, decodedLoadSummary.getServerTokenCount(firstServer));
+		assertEquals(0, decodedLoadSummary.getServerTokenCount(secondServer));
+	}
+
+	/**
+	 * Test that decoding a truncated summary returns null.
+	 */
+	@Test
+	public void testLoadSummary_decodeTruncated() {
+		LoadSummary loadSummary = new LoadSummary(1);
+		loadSummary.addServer(new InetSocketAddress("localhost", 8000), 10);
+		ByteBuffer buffer = ByteBuffer.allocate(loadSummary.getEncodedLength());
+		loadSummary.encode(buffer);
+		buffer.flip();
+		buffer.limit(buffer.limit() - 2);
+
+		assertNull(LoadSummary.decode(buffer));
+	}
+
+	/**
+	 * Test that applying a summary sets the load of the matching servers and
+	 * marks them as seeded from a snapshot, leaving servers with an unknown
+	 * load unchanged.
+	 */
+	@Test
+	public void testLoadSummary_applyTo() {
+		Set<Server> servers = TestUtils.getServerSet(2);
+		LoadSummary loadSummary = new LoadSummary(0);
+		Server knownServer = null;
+		for (Server server : servers) {
+			if (knownServer == null) {
+				knownServer = server;
+				loadSummary.addServer(server.getAddress(), 30);
+			} else {
+				loadSummary.addServer(server.getAddress(), -1);
+			}
+		}
+
+		assertEquals(1, loadSummary.applyTo(servers));
+		for (Server server : servers) {
+			if (server == knownServer) {
+				assertTrue(server.hasSnapshotLoad());
+				assertEquals(30, server.getCPULoad(), 0);
+			} else {
+				assertFalse(server.hasSnapshotLoad());
+			}
+		}
+	}
+
+	/**
+	 * Test that servers missing from a summary (i.e. deregistered at the
+	 * sender) are removed, while servers in it and servers with an unresolved
+	 * address are kept.
+	 */
+	@Test
+	public void testLoadSummary_removeMissingFrom() {
+		Set<Server> servers = ConcurrentHashMap.newKeySet();
+		servers.addAll(TestUtils.getServerSet(3));
+		Server unresolvedServer = new Server(InetSocketAddress.createUnresolved("unknown.invalid", 8000));
+		servers.add(unresolvedServer);
+		LoadSummary loadSummary = new LoadSummary(0);
+		Server keptServer = null;
+		for (Server server : servers) {
+			if (server != unresolvedServer && keptServer == null) {
+				keptServer = server;
+				loadSummary.addServer(server.getAddress(), 10);
+			}
+		}
+
+		assertEquals(2, loadSummary.removeMissingFrom(servers));
+		assertEquals(2, servers.size());
+		assertTrue(servers.contains(keptServer));
+		assertTrue(servers.contains(unresolvedServer));
+		assertEquals(0, loadSummary.removeMissingFrom(servers));
+	}
+
+	/**
+	 * Test that a {@link ServerManager} that has not yet connected to any
+	 * server selects the least loaded server from an applied snapshot.
+	 */
+	@Test
+	public void testLoadSummary_serverManagerRoutesFromSnapshot() {
+		Set<Server> servers = TestUtils.getServerSet(3);
+		LoadSummary loadSummary = new LoadSummary(0);
+		Server leastLoadedServer = null;
+		int load = 90;
+		for (Server server : servers) {
+			loadSummary.addServer(server.getAddress(), load);
+			leastLoadedServer = server;
+			load -= 30;
+		}
+		ServerManager serverManager = new ServerManager(servers);
+		assertNull(serverManager.getAvailableServer());
+
+		loadSummary.applyTo(servers);
+		assertSame(leastLoadedServer, serverManager.getAvailableServer());
+	}
+}
@@ -0,0 +1,217 @@
+package commsModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import connectionUtils.ConnectNIO;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
+import connectionUtils.MessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link OutboundMessageQueue} class and its methods, and
+ *         the queued sending of messages to a {@link RemoteLoadBalancer}.
+ *         </p>
+ *
+ */
+public class OutboundMessageQueueTests {
+
+	/**
+	 * Tests successful creation of a new {@link OutboundMessageQueue}.
+	 */
+	@Test
+	public void testCreateOutboundMessageQueue_successful() {
+		OutboundMessageQueue outboundMessageQueue = new OutboundMessageQueue(1);
+		assertNotNull(outboundMessageQueue);
+	}
+
+	/**
+	 * Tests creating a new {@link OutboundMessageQueue} with a capacity of
+	 * less than 1. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateOutboundMessageQueue_invalidCapacity() {
+		new OutboundMessageQueue(0);
+	}
+
+	/**
+	 * Test that queuing a heartbeat while one of the same type is already
+	 * queued replaces the older heartbeat.
+	 */
+	@Test
+	public void testOutboundMessageQueue_coalesceHeartbeats() {
+		OutboundMessageQueue outboundMessageQueue = new OutboundMessageQueue(4);
+		outboundMessageQueue.offer(getFramedMessage(MessageType.ACTIVE_ALIVE_CONFIRM));
+		ByteBuffer newerHeartbeat = getFramedMessage(MessageType.ACTIVE_ALIVE_CONFIRM);
+		outboundMessageQueue.offer(newerHeartbeat);
+
+		assertEquals(1, outboundMessageQueue.size());
+		assertSame(newerHeartbeat, outboundMessageQueue.peek());
+		assertEquals(1, outboundMessageQueue.getCoalescedHeartbeatCount());
+	}
+
+	/**
+	 * Test that a heartbeat is dropped when the queue is full of control
+	 * messages.
+	 */
+	@Test
+	public void testOutboundMessageQueue_dropHeartbeatWhenFull() {
+		OutboundMessageQueue outboundMessageQueue = new OutboundMessageQueue(2);
+		outboundMessageQueue.offer(getFramedMessage(MessageType.ELECTION_MESSAGE));
+		outboundMessageQueue.offer(getFramedMessage(MessageType.ACTIVE_DECLARATION));
+
+		assertFalse(outboundMessageQueue.offer(getFramedMessage(MessageType.BACKUP_ALIVE_CONFIRM)));
+		assertEquals(2, outboundMessageQueue.size());
+		assertEquals(1, outboundMessageQueue.getDroppedMessageCount());
+	}
+
+	/**
+	 * Test that a control message evicts a queued heartbeat when the queue is
+	 * full.
+	 */
+	@Test
+	public void testOutboundMessageQueue_controlMessageEvictsHeartbeat() {
+		OutboundMessageQueue outboundMessageQueue = new OutboundMessageQueue(2);
+		outboundMessageQueue.offer(getFramedMessage(MessageType.BACKUP_ALIVE_CONFIRM));
+		ByteBuffer electionMessage = getFramedMessage(MessageType.ELECTION_MESSAGE);
+		outboundMessageQueue.offer(electionMessage);
+
+		assertTrue(outboundMessageQueue.offer(getFramedMessage(MessageType.ACTIVE_DECLARATION)));
+		assertEquals(2, outboundMessageQueue.size());
+		assertSame(electionMessage, outboundMessageQueue.peek());
+		assertEquals(1, outboundMessageQueue.getDroppedMessageCount());
+	}
+
+	/**
+	 * Test that a partially written heartbeat at the head of the queue is not
+	 * replaced by a newer heartbeat.
+	 */
+	@Test
+	public void testOutboundMessageQueue_partiallyWrittenHeadNotCoalesced() {
+		OutboundMessageQueue outboundMessageQueue = new OutboundMessageQueue(4);
+		ByteBuffer partialHeartbeat = getFramedMessage(MessageType.ACTIVE_ALIVE_CONFIRM);
+		outboundMessageQueue.offer(partialHeartbeat);
+		partialHeartbeat.get();
+		assertEquals(0, outboundMessageQueue.removeWrittenMessages());
+
+		outboundMessageQueue.offer(getFramedMessage(MessageType.ACTIVE_ALIVE_CONFIRM));
+		assertEquals(2, outboundMessageQueue.size());
+		assertSame(partialHeartbeat, outboundMessageQueue.peek());
+	}
+
+	/**
+	 * Test that removing written messages removes every completely written
+	 * message at the head of the queue and stops at one that is partially
+	 * written.
+	 */
+	@Test
+	public void testOutboundMessageQueue_removeWrittenMessages() {
+		OutboundMessageQueue outboundMessageQueue = new OutboundMessageQueue(4);
+		for (int i = 0; i < 3; i++) {
+			outboundMessageQueue.offer(getFramedMessage(MessageType.ELECTION_MESSAGE));
+		}
+		ByteBuffer[] messages = outboundMessageQueue.toArray();
+		messages[0].position(messages[0].limit());
+		messages[1].position(messages[1].limit());
+		messages[2].get();
+
+		assertEquals(2, outboundMessageQueue.removeWrittenMessages());
+		assertEquals(1, outboundMessageQueue.size());
+		assertSame(messages[2], outboundMessageQueue.peek());
+	}
+
+	/**
+	 * Test that sending a message to a connected {@link RemoteLoadBalancer}
+	 * writes it to the remote's socket and leaves the queue empty.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testRemoteLoadBalancer_sendMessage() throws IOException {
+		ServerSocketChannel mockServerSocketChannel = ServerSocketChannel.open();
+		mockServerSocketChannel.socket().bind(new InetSocketAddress(8000));
+		RemoteLoadBalancer remoteLoadBalancer = new RemoteLoadBalancer(new InetSocketAddress("localhost", 8000));
+		remoteLoadBalancer.setSocketChannel(ConnectNIO.getNonBlockingSocketChannel(remoteLoadBalancer.getAddress()));
+		SocketChannel acceptedSocketChannel = mockServerSocketChannel.accept();
+
+		assertTrue(remoteLoadBalancer.sendMessage(getMessage(MessageType.ELECTION_MESSAGE)));
+		assertTrue(remoteLoadBalancer.getOutboundQueue().isEmpty());
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedSocketChannel);
+		assertEquals(MessageType.ELECTION_MESSAGE, MessageType.values()[buffer.get()]);
+
+		remoteLoadBalancer.getSocketChannel().close();
+		acceptedSocketChannel.close();
+		mockServerSocketChannel.close();
+	}
+
+	/**
+	 * Test that sending to a remote that never reads returns straight away
+	 * once the socket buffers are full, with further heartbeats coalesced in
+	 * the queue rather than blocking the sender.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testRemoteLoadBalancer_sendToStalledRemoteDoesNotBlock() throws IOException {
+		ServerSocketChannel mockServerSocketChannel = ServerSocketChannel.open();
+		mockServerSocketChannel.socket().bind(new InetSocketAddress(8000));
+		RemoteLoadBalancer remoteLoadBalancer = new RemoteLoadBalancer(new InetSocketAddress("localhost", 8000));
+		remoteLoadBalancer.setSocketChannel(ConnectNIO.getNonBlockingSocketChannel(remoteLoadBalancer.getAddress()));
+		SocketChannel acceptedSocketChannel = mockServerSocketChannel.accept();
+
+		long sendStart = System.currentTimeMillis();
+		// Fill the socket buffers with large messages so that nothing more
+		// can be written
+		for (int i = 0; i < 64; i++) {
+			ByteBuffer largeMessage = ByteBuffer.allocate(1024 * 1024);
+			largeMessage.put((byte) MessageType.ELECTION_MESSAGE.getValue());
+			largeMessage.position(largeMessage.capacity());
+			largeMessage.flip();
+			remoteLoadBalancer.sendMessage(largeMessage);
+		}
+		for (int i = 0; i < 100; i++) {
+			remoteLoadBalancer.sendMessage(getMessage(MessageType.ACTIVE_ALIVE_CONFIRM));
+		}
+		long sendDuration = System.currentTimeMillis() - sendStart;
+
+		assertTrue(sendDuration < 1000);
+		assertFalse(remoteLoadBalancer.getOutboundQueue().isEmpty());
+		assertTrue(remoteLoadBalancer.getOutboundQueue().getDroppedMessageCount()
+				+ remoteLoadBalancer.getOutboundQueue().getCoalescedHeartbeatCount() > 0);
+
+		remoteLoadBalancer.getSocketChannel().close();
+		acceptedSocketChannel.close();
+		mockServerSocketChannel.close();
+	}
+
+	/**
+	 * @return a single byte message of the given type, ready to be written.
+	 */
+	private ByteBuffer getMessage(MessageType messageType) {
+		ByteBuffer message = ByteBuffer.allocate(1);
+		message.put((byte) messageType.getValue());
+		message.flip();
+		return message;
+	}
+
+	/**
+	 * @return a single byte message of the given type, framed as it is when
+	 *         queued by a {@link RemoteLoadBalancer}.
+	 */
+	private ByteBuffer getFramedMessage(MessageType messageType) {
+		return FrameEncoder.encode(getMessage(messageType));
+	}
+}
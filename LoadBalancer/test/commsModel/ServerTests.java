@@ -15,12 +15,15 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.concurrent.ThreadLocalRandom;
 
 import org.junit.Test;
 
 import connectionUtils.ConnectNIO;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
 import loadBalancer.ServerManager;
 
@@ -103,29 +106,25 @@ public class ServerTests {
 			e.printStackTrace();
 		}
 		assertNotNull(acceptedSocketChannel);
-		ByteBuffer buffer = ByteBuffer.allocate(9);
 		Selector readSelector = Selector.open();
 		acceptedSocketChannel.configureBlocking(false);
 		acceptedSocketChannel.register(readSelector, SelectionKey.OP_READ);
-		if (readSelector.select(1000) == 0) {
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedSocketChannel, readSelector, 1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
-		int bytesRead = acceptedSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
-		buffer.flip();
+		assertEquals(9, buffer.remaining());
 		MessageType responseMessageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.SERVER_CPU_REQUEST, responseMessageType);
 
 		// Return a random double representing the CPU load from the mocked
 		// server and check that the Server object updates it
-		buffer.clear();
+		buffer = ByteBuffer.allocate(9);
 		buffer.put((byte) MessageType.SERVER_CPU_NOTIFY.getValue());
 		double cpuUsage = ThreadLocalRandom.current().nextDouble(0.1, 99.9);
 		buffer.putDouble(cpuUsage);
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			acceptedSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(acceptedSocketChannel, buffer);
 		try {
 			Thread.sleep(25);
 		} catch (InterruptedException e) {
@@ -218,29 +217,25 @@ public class ServerTests {
 			e.printStackTrace();
 		}
 		assertNotNull(acceptedSocketChannel);
-		ByteBuffer buffer = ByteBuffer.allocate(9);
 		Selector readSelector = Selector.open();
 		acceptedSocketChannel.configureBlocking(false);
 		acceptedSocketChannel.register(readSelector, SelectionKey.OP_READ);
-		if (readSelector.select(1000) == 0) {
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedSocketChannel, readSelector, 1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
-		int bytesRead = acceptedSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
-		buffer.flip();
+		assertEquals(9, buffer.remaining());
 		MessageType responseMessageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.SERVER_CPU_REQUEST, responseMessageType);
 
 		// Return a random double representing the CPU load from the mocked
 		// server and check that the Server object updates it
-		buffer.clear();
+		buffer = ByteBuffer.allocate(9);
 		buffer.put((byte) MessageType.SERVER_CPU_NOTIFY.getValue());
 		double cpuUsage = ThreadLocalRandom.current().nextDouble(0.1, 99.9);
 		buffer.putDouble(cpuUsage);
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			acceptedSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(acceptedSocketChannel, buffer);
 		try {
 			Thread.sleep(25);
 		} catch (InterruptedException e) {
@@ -252,6 +247,126 @@ public class ServerTests {
 		mockServerSocketChannel.close();
 	}
 
+	/**
+	 * Tests that the {@link Server} estimates the offset of the remote
+	 * server's clock from the timestamps returned with its CPU load. Here the
+	 * mocked server's clock is 5 seconds ahead.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testServer_estimateClockOffset() throws IOException {
+		Server server = new Server(new InetSocketAddress("localhost", 8024));
+
+		ServerSocketChannel mockServerSocketChannel = ServerSocketChannel.open();
+		mockServerSocketChannel.socket().bind(new InetSocketAddress(8024));
+		mockServerSocketChannel.configureBlocking(false);
+		Selector acceptSelector = Selector.open();
+		mockServerSocketChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				if (server.connect(1000)) {
+					server.updateServerState();
+				}
+			}
+
+		}).start();
+
+		if (acceptSelector.select(1000) == 0) {
+			throw new SocketTimeoutException();
+		}
+		SocketChannel acceptedSocketChannel = mockServerSocketChannel.accept();
+		assertNotNull(acceptedSocketChannel);
+		Selector readSelector = Selector.open();
+		acceptedSocketChannel.configureBlocking(false);
+		acceptedSocketChannel.register(readSelector, SelectionKey.OP_READ);
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedSocketChannel, readSelector, 1000);
+		if (buffer == null) {
+			throw new SocketTimeoutException();
+		}
+		assertEquals(MessageType.SERVER_CPU_REQUEST, MessageType.values()[buffer.get()]);
+		long requestSentMillis = buffer.getLong();
+
+		buffer = ByteBuffer.allocate(33);
+		buffer.put((byte) MessageType.SERVER_CPU_NOTIFY.getValue());
+		buffer.putDouble(50);
+		buffer.putLong(requestSentMillis);
+		buffer.putLong(System.currentTimeMillis() + 5000);
+		buffer.putLong(System.currentTimeMillis() + 5000);
+		buffer.flip();
+		FrameEncoder.write(acceptedSocketChannel, buffer);
+		try {
+			Thread.sleep(25);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		assertTrue(server.getClockOffset().hasEstimate());
+		assertEquals(5000, server.getClockOffset().getOffsetMillis(), 50);
+		acceptSelector.close();
+		readSelector.close();
+		mockServerSocketChannel.close();
+	}
+
+	/**
+	 * Tests that the {@link Server} drops a CPU load response that echoes a
+	 * different request timestamp, as a late reply to an earlier poll would,
+	 * and takes the load from the response to the current poll.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testServer_updateServerStateDropsStaleResponse() throws IOException {
+		Server server = new Server(new InetSocketAddress("localhost", 8025));
+
+		ServerSocketChannel mockServerSocketChannel = ServerSocketChannel.open();
+		mockServerSocketChannel.socket().bind(new InetSocketAddress(8025));
+		mockServerSocketChannel.configureBlocking(false);
+		Selector acceptSelector = Selector.open();
+		mockServerSocketChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				if (server.connect(1000)) {
+					server.updateServerState();
+				}
+			}
+
+		}).start();
+
+		if (acceptSelector.select(1000) == 0) {
+			throw new SocketTimeoutException();
+		}
+		SocketChannel acceptedSocketChannel = mockServerSocketChannel.accept();
+		assertNotNull(acceptedSocketChannel);
+		Selector readSelector = Selector.open();
+		acceptedSocketChannel.configureBlocking(false);
+		acceptedSocketChannel.register(readSelector, SelectionKey.OP_READ);
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedSocketChannel, readSelector, 1000);
+		if (buffer == null) {
+			throw new SocketTimeoutException();
+		}
+		assertEquals(MessageType.SERVER_CPU_REQUEST, MessageType.values()[buffer.get()]);
+		long requestSentMillis = buffer.getLong();
+
+		// A late reply to an earlier poll, followed by the reply to this one
+		FrameEncoder.write(acceptedSocketChannel, cpuNotify(10, requestSentMillis - 1000));
+		FrameEncoder.write(acceptedSocketChannel, cpuNotify(60, requestSentMillis));
+		try {
+			Thread.sleep(25);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		assertEquals(60, server.getCPULoad(), 0);
+		acceptSelector.close();
+		readSelector.close();
+		mockServerSocketChannel.close();
+	}
+
 	/**
 	 * Tests that the {@link Server}'s <code>calculateTokenExpiry</code> method
 	 * works correctly. This method should use the current list of CPU load
@@ -291,9 +406,9 @@ public class ServerTests {
 
 		// Manually calculated value using standard deviation => coefficient of
 		// variation
-		long expectedTokenExpiry = System.currentTimeMillis() / 1000 + 33;
+		long expectedTokenLifetimeMillis = 33000;
 
-		assertEquals(expectedTokenExpiry, server.getTokenExpiry());
+		assertEquals(expectedTokenLifetimeMillis, server.getTokenLifetimeMillis(), 100);
 	}
 
 	/**
@@ -335,9 +450,9 @@ public class ServerTests {
 
 		// Manually calculated value using standard deviation => coefficient of
 		// variation
-		long expectedTokenExpiry = System.currentTimeMillis() / 1000 + 81;
+		long expectedTokenLifetimeMillis = 81000;
 
-		assertEquals(expectedTokenExpiry, server.getTokenExpiry());
+		assertEquals(expectedTokenLifetimeMillis, server.getTokenLifetimeMillis(), 100);
 	}
 
 	/**
@@ -376,9 +491,26 @@ public class ServerTests {
 
 		// Manually calculated value using standard deviation => coefficient of
 		// variation
-		long expectedTokenExpiry = System.currentTimeMillis() / 1000 + 50;
+		long expectedTokenLifetimeMillis = 50000;
+
+		assertEquals(expectedTokenLifetimeMillis, server.getTokenLifetimeMillis(), 100);
+	}
+
+	/**
+	 * Tests that the {@link Server}'s <code>calculateTokenExpiry</code> method
+	 * scales the token duration by the given factor, and never issues a token
+	 * shorter than one second.
+	 */
+	@Test
+	public void testServer_calculateTokenExpiryScaled() {
+		Server server = new Server(new InetSocketAddress("localhost", 8000));
+		Server.setDefaultTokenExpiration(50);
+
+		server.calculateTokenExpiry(0.1);
+		assertEquals(5000, server.getTokenLifetimeMillis(), 100);
 
-		assertEquals(expectedTokenExpiry, server.getTokenExpiry());
+		server.calculateTokenExpiry(0);
+		assertEquals(1000, server.getTokenLifetimeMillis(), 100);
 	}
 
 	/**
@@ -393,6 +525,49 @@ public class ServerTests {
 		assertTrue(equalsResult);
 	}
 
+	/**
+	 * Test that the {@link Server}'s <code>sendPeerHints</code> method sends
+	 * each peer's CPU load and address to the remote server in a
+	 * <code>SERVER_PEER_HINTS</code> message.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testServer_sendPeerHints() throws IOException {
+		Server server = new Server(new InetSocketAddress("localhost", 8030));
+		ServerSocketChannel mockServerSocketChannel = ServerSocketChannel.open();
+		mockServerSocketChannel.socket().bind(new InetSocketAddress(8030));
+		server.setSocketChannel(ConnectNIO.getBlockingSocketChannel(server.getAddress()));
+		SocketChannel acceptedSocketChannel = mockServerSocketChannel.accept();
+
+		Server peer1 = new Server(new InetSocketAddress("127.0.0.1", 8031));
+		peer1.applyLoadSnapshot(20);
+		Server peer2 = new Server(new InetSocketAddress("127.0.0.1", 8032));
+		peer2.applyLoadSnapshot(35.5);
+		assertTrue(server.sendPeerHints(Arrays.asList(peer1, peer2)));
+
+		Selector readSelector = Selector.open();
+		acceptedSocketChannel.configureBlocking(false);
+		acceptedSocketChannel.register(readSelector, SelectionKey.OP_READ);
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedSocketChannel, readSelector, 1000);
+		if (buffer == null) {
+			throw new SocketTimeoutException();
+		}
+		assertEquals(MessageType.SERVER_PEER_HINTS, MessageType.values()[buffer.get()]);
+		assertEquals(2, buffer.get());
+		for (Server peer : Arrays.asList(peer1, peer2)) {
+			assertEquals(peer.getCPULoad(), buffer.getDouble(), 0);
+			assertEquals(peer.getAddress().getPort(), buffer.getInt());
+			byte[] peerIP = new byte[buffer.get()];
+			buffer.get(peerIP);
+			assertEquals("127.0.0.1", new String(peerIP, "UTF-8"));
+		}
+		assertFalse(buffer.hasRemaining());
+		readSelector.close();
+		acceptedSocketChannel.close();
+		mockServerSocketChannel.close();
+	}
+
 	/**
 	 * Test the overridden <code>equals</code> method of the
 	 * {@link AbstractRemote} class. Test case on same object.
@@ -452,4 +627,15 @@ public class ServerTests {
 		boolean equalsResult = server1.equals(remoteLB);
 		assertFalse(equalsResult);
 	}
+
+	private static ByteBuffer cpuNotify(double cpuLoad, long requestSentMillis) {
+		ByteBuffer buffer = ByteBuffer.allocate(33);
+		buffer.put((byte) MessageType.SERVER_CPU_NOTIFY.getValue());
+		buffer.putDouble(cpuLoad);
+		buffer.putLong(requestSentMillis);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.putLong(System.currentTimeMillis());
+		buffer.flip();
+		return buffer;
+	}
 }
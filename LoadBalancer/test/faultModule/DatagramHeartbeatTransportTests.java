@@ -0,0 +1,251 @@
+package faultModule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeNoException;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import commsModel.LoadBalancerState;
+import commsModel.RemoteLoadBalancer;
+import connectionUtils.MessageType;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link DatagramHeartbeatTransport} class and its
+ *         methods. All tests run over the loopback interface.
+ *         </p>
+ *
+ */
+public class DatagramHeartbeatTransportTests {
+
+	/**
+	 * Tests successful creation of a new {@link DatagramHeartbeatTransport}.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testCreateDatagramHeartbeatTransport_successful() throws IOException {
+		DatagramHeartbeatTransport datagramHeartbeatTransport = new DatagramHeartbeatTransport(8000,
+				InetAddress.getLoopbackAddress(), null, getRemoteLoadBalancerSet(8001));
+		assertNotNull(datagramHeartbeatTransport);
+		datagramHeartbeatTransport.close();
+	}
+
+	/**
+	 * Tests creating a new {@link DatagramHeartbeatTransport} with a null set
+	 * of remote load balancers. Should throw IllegalArgumentException.
+	 *
+	 * @throws IOException
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateDatagramHeartbeatTransport_nullRemoteLoadBalancerSet() throws IOException {
+		new DatagramHeartbeatTransport(8000, InetAddress.getLoopbackAddress(), null, null);
+	}
+
+	/**
+	 * Test that a heartbeat sent by unicast is received by the remote's
+	 * transport and passed to its listener along with the sending node.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testDatagramHeartbeatTransport_unicastHeartbeat() throws IOException, InterruptedException {
+		DatagramHeartbeatTransport senderTransport = new DatagramHeartbeatTransport(8000,
+				InetAddress.getLoopbackAddress(), null, getRemoteLoadBalancerSet(8001));
+		HashSet<RemoteLoadBalancer> receiverRemotes = getRemoteLoadBalancerSet(8000);
+		DatagramHeartbeatTransport receiverTransport = new DatagramHeartbeatTransport(8001,
+				InetAddress.getLoopbackAddress(), null, receiverRemotes);
+		List<MessageType> receivedHeartbeats = new CopyOnWriteArrayList<>();
+		List<RemoteLoadBalancer> heartbeatSenders = new CopyOnWriteArrayList<>();
+		receiverTransport.setHeartbeatListener(new HeartbeatListener() {
+			@Override
+			public void heartbeatReceived(RemoteLoadBalancer remoteLoadBalancer, MessageType heartbeatType,
+					ByteBuffer payload) {
+				heartbeatSenders.add(remoteLoadBalancer);
+				receivedHeartbeats.add(heartbeatType);
+			}
+		});
+		new Thread(receiverTransport).start();
+
+		senderTransport.broadcastHeartbeat(MessageType.ACTIVE_ALIVE_CONFIRM);
+		Thread.sleep(200);
+
+		assertEquals(Collections.singletonList(MessageType.ACTIVE_ALIVE_CONFIRM), receivedHeartbeats);
+		assertEquals(receiverRemotes.iterator().next(), heartbeatSenders.get(0));
+
+		senderTransport.close();
+		receiverTransport.close();
+	}
+
+	/**
+	 * Test that a payload sent with a heartbeat is passed to the receiver's
+	 * listener unchanged.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testDatagramHeartbeatTransport_heartbeatWithPayload() throws IOException, InterruptedException {
+		DatagramHeartbeatTransport senderTransport = new DatagramHeartbeatTransport(8000,
+				InetAddress.getLoopbackAddress(), null, getRemoteLoadBalancerSet(8001));
+		DatagramHeartbeatTransport receiverTransport = new DatagramHeartbeatTransport(8001,
+				InetAddress.getLoopbackAddress(), null, getRemoteLoadBalancerSet(8000));
+		List<Long> receivedPayloads = new CopyOnWriteArrayList<>();
+		receiverTransport.setHeartbeatListener(new HeartbeatListener() {
+			@Override
+			public void heartbeatReceived(RemoteLoadBalancer remoteLoadBalancer, MessageType heartbeatType,
+					ByteBuffer payload) {
+				receivedPayloads.add(payload.getLong());
+			}
+		});
+		new Thread(receiverTransport).start();
+
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putLong(1234);
+		payload.flip();
+		senderTransport.broadcastHeartbeat(MessageType.ACTIVE_ALIVE_CONFIRM, payload);
+		Thread.sleep(200);
+
+		assertEquals(Collections.singletonList(1234L), receivedPayloads);
+
+		senderTransport.close();
+		receiverTransport.close();
+	}
+
+	/**
+	 * Test that heartbeats are only sent to remotes in the passive state, so an
+	 * active remote does not receive them in unicast mode.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testDatagramHeartbeatTransport_noHeartbeatToActiveRemote() throws IOException, InterruptedException {
+		HashSet<RemoteLoadBalancer> senderRemotes = getRemoteLoadBalancerSet(8001);
+		senderRemotes.iterator().next().setState(LoadBalancerState.ACTIVE);
+		DatagramHeartbeatTransport senderTransport = new DatagramHeartbeatTransport(8000,
+				InetAddress.getLoopbackAddress(), null, senderRemotes);
+		DatagramChannel mockReceiver = DatagramChannel.open();
+		mockReceiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8001));
+		mockReceiver.configureBlocking(false);
+
+		senderTransport.broadcastHeartbeat(MessageType.BACKUP_ALIVE_CONFIRM);
+		Thread.sleep(100);
+
+		assertEquals(null, mockReceiver.receive(ByteBuffer.allocate(100)));
+
+		senderTransport.close();
+		mockReceiver.close();
+	}
+
+	/**
+	 * Test that gaps in a sender's sequence numbers are counted as lost
+	 * heartbeats, and that a late heartbeat with an old sequence number is not
+	 * passed to the listener.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testDatagramHeartbeatTransport_detectLostAndLateHeartbeats()
+			throws IOException, InterruptedException {
+		DatagramHeartbeatTransport receiverTransport = new DatagramHeartbeatTransport(8001,
+				InetAddress.getLoopbackAddress(), null, getRemoteLoadBalancerSet(8000));
+		List<MessageType> receivedHeartbeats = new CopyOnWriteArrayList<>();
+		receiverTransport.setHeartbeatListener(new HeartbeatListener() {
+			@Override
+			public void heartbeatReceived(RemoteLoadBalancer remoteLoadBalancer, MessageType heartbeatType,
+					ByteBuffer payload) {
+				receivedHeartbeats.add(heartbeatType);
+			}
+		});
+		new Thread(receiverTransport).start();
+
+		DatagramChannel mockSender = DatagramChannel.open();
+		mockSender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8000));
+		InetSocketAddress receiverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 8001);
+		for (long sequenceNumber : new long[] { 0, 3, 2 }) {
+			ByteBuffer buffer = ByteBuffer.allocate(22);
+			buffer.put((byte) MessageType.ACTIVE_ALIVE_CONFIRM.getValue());
+			buffer.putLong(1);
+			buffer.putLong(sequenceNumber);
+			buffer.putInt(8000);
+			buffer.put((byte) 0);
+			buffer.flip();
+			mockSender.send(buffer, receiverAddress);
+			Thread.sleep(50);
+		}
+		Thread.sleep(100);
+
+		assertEquals(2, receivedHeartbeats.size());
+		assertEquals(2, receiverTransport.getLostHeartbeatCount());
+
+		mockSender.close();
+		receiverTransport.close();
+	}
+
+	/**
+	 * Test that a heartbeat sent to a multicast group is received by a
+	 * transport that has joined the group. Skipped if multicast is not
+	 * available on this machine's loopback interface.
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testDatagramHeartbeatTransport_multicastHeartbeat() throws InterruptedException {
+		InetSocketAddress multicastGroup = new InetSocketAddress("230.0.0.1", 8005);
+		DatagramHeartbeatTransport senderTransport = null;
+		DatagramHeartbeatTransport receiverTransport = null;
+		try {
+			senderTransport = new DatagramHeartbeatTransport(8000, InetAddress.getLoopbackAddress(), multicastGroup,
+					getRemoteLoadBalancerSet(8001));
+			receiverTransport = new DatagramHeartbeatTransport(8001, InetAddress.getLoopbackAddress(),
+					multicastGroup, getRemoteLoadBalancerSet(8000));
+		} catch (IOException e) {
+			if (senderTransport != null) {
+				senderTransport.close();
+			}
+			assumeNoException(e);
+		}
+		List<MessageType> receivedHeartbeats = new CopyOnWriteArrayList<>();
+		receiverTransport.setHeartbeatListener(new HeartbeatListener() {
+			@Override
+			public void heartbeatReceived(RemoteLoadBalancer remoteLoadBalancer, MessageType heartbeatType,
+					ByteBuffer payload) {
+				receivedHeartbeats.add(heartbeatType);
+			}
+		});
+		new Thread(receiverTransport).start();
+
+		senderTransport.broadcastHeartbeat(MessageType.ACTIVE_ALIVE_CONFIRM);
+		Thread.sleep(200);
+
+		assertEquals(Collections.singletonList(MessageType.ACTIVE_ALIVE_CONFIRM), receivedHeartbeats);
+
+		senderTransport.close();
+		receiverTransport.close();
+	}
+
+	/**
+	 * @return a set containing a single passive remote load balancer on the
+	 *         loopback address with the given port.
+	 */
+	private HashSet<RemoteLoadBalancer> getRemoteLoadBalancerSet(int port) {
+		HashSet<RemoteLoadBalancer> remoteLoadBalancers = new HashSet<>();
+		remoteLoadBalancers.add(new RemoteLoadBalancer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+		return remoteLoadBalancers;
+	}
+}
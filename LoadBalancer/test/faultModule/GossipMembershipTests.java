@@ -0,0 +1,260 @@
+package faultModule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import commsModel.RemoteLoadBalancer;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link GossipMembership} class and its methods. All
+ *         tests run over the loopback interface, with each node accepting
+ *         connections on port 80xx and gossiping on port 81xx.
+ *         </p>
+ *
+ */
+public class GossipMembershipTests {
+
+	/**
+	 * Tests successful creation of a new {@link GossipMembership}.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testCreateGossipMembership_successful() throws IOException {
+		GossipMembership gossipMembership = new GossipMembership(8100, 8000, InetAddress.getLoopbackAddress(),
+				ConcurrentHashMap.<RemoteLoadBalancer>newKeySet(), new ArrayList<InetSocketAddress>(), 50, 500);
+		assertNotNull(gossipMembership);
+		gossipMembership.close();
+	}
+
+	/**
+	 * Tests creating a new {@link GossipMembership} with a null set of remote
+	 * load balancers. Should throw IllegalArgumentException.
+	 *
+	 * @throws IOException
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateGossipMembership_nullRemoteLoadBalancerSet() throws IOException {
+		new GossipMembership(8100, 8000, InetAddress.getLoopbackAddress(), null, new ArrayList<InetSocketAddress>(),
+				50, 500);
+	}
+
+	/**
+	 * Test that a node joining through a seed is added to the seed's set of
+	 * remote load balancers, and that the seed is added to the new node's set.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testGossipMembership_joinThroughSeed() throws IOException, InterruptedException {
+		Set<RemoteLoadBalancer> seedRemotes = ConcurrentHashMap.newKeySet();
+		GossipMembership seedMembership = new GossipMembership(8100, 8000, InetAddress.getLoopbackAddress(),
+				seedRemotes, new ArrayList<InetSocketAddress>(), 50, 500);
+		List<RemoteLoadBalancer> joinedMembers = new CopyOnWriteArrayList<>();
+		seedMembership.setMembershipListener(getMembershipListener(joinedMembers, null));
+		new Thread(seedMembership).start();
+
+		Set<RemoteLoadBalancer> joiningRemotes = ConcurrentHashMap.newKeySet();
+		GossipMembership joiningMembership = getJoiningMembership(joiningRemotes);
+		new Thread(joiningMembership).start();
+		Thread.sleep(300);
+
+		assertEquals(Collections.singleton(getRemoteLoadBalancer(8001)), seedRemotes);
+		assertEquals(Collections.singleton(getRemoteLoadBalancer(8000)), joiningRemotes);
+		assertEquals(Collections.singletonList(getRemoteLoadBalancer(8001)), joinedMembers);
+
+		seedMembership.close();
+		joiningMembership.close();
+	}
+
+	/**
+	 * Test that a node that leaves cleanly is removed from the other node's
+	 * set of remote load balancers straight away.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testGossipMembership_leave() throws IOException, InterruptedException {
+		Set<RemoteLoadBalancer> seedRemotes = ConcurrentHashMap.newKeySet();
+		GossipMembership seedMembership = new GossipMembership(8100, 8000, InetAddress.getLoopbackAddress(),
+				seedRemotes, new ArrayList<InetSocketAddress>(), 50, 5000);
+		List<RemoteLoadBalancer> departedMembers = new CopyOnWriteArrayList<>();
+		seedMembership.setMembershipListener(getMembershipListener(null, departedMembers));
+		new Thread(seedMembership).start();
+
+		GossipMembership joiningMembership = getJoiningMembership(ConcurrentHashMap.<RemoteLoadBalancer>newKeySet());
+		new Thread(joiningMembership).start();
+		Thread.sleep(300);
+		assertEquals(1, seedRemotes.size());
+
+		joiningMembership.leave();
+		Thread.sleep(100);
+
+		assertTrue(seedRemotes.isEmpty());
+		assertEquals(Collections.singletonList(getRemoteLoadBalancer(8001)), departedMembers);
+
+		seedMembership.close();
+	}
+
+	/**
+	 * Test that a node restarted after leaving rejoins straight away, even
+	 * though its new heartbeat counter is lower than its previous run's, as
+	 * its entries carry a later incarnation.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testGossipMembership_leaveThenRestart() throws IOException, InterruptedException {
+		Set<RemoteLoadBalancer> seedRemotes = ConcurrentHashMap.newKeySet();
+		GossipMembership seedMembership = new GossipMembership(8100, 8000, InetAddress.getLoopbackAddress(),
+				seedRemotes, new ArrayList<InetSocketAddress>(), 50, 5000);
+		List<RemoteLoadBalancer> joinedMembers = new CopyOnWriteArrayList<>();
+		seedMembership.setMembershipListener(getMembershipListener(joinedMembers, null));
+		new Thread(seedMembership).start();
+
+		GossipMembership joiningMembership = getJoiningMembership(ConcurrentHashMap.<RemoteLoadBalancer>newKeySet());
+		new Thread(joiningMembership).start();
+		// Let the first run's heartbeat counter get well ahead
+		Thread.sleep(500);
+		joiningMembership.leave();
+		Thread.sleep(100);
+		assertTrue(seedRemotes.isEmpty());
+		assertEquals(1, seedMembership.getDepartedMemberCount());
+
+		GossipMembership restartedMembership = getJoiningMembership(
+				ConcurrentHashMap.<RemoteLoadBalancer>newKeySet());
+		new Thread(restartedMembership).start();
+		Thread.sleep(300);
+
+		assertEquals(Collections.singleton(getRemoteLoadBalancer(8001)), seedRemotes);
+		assertEquals(1, seedMembership.getMemberCount());
+		assertEquals(0, seedMembership.getDepartedMemberCount());
+		assertEquals(2, joinedMembers.size());
+
+		seedMembership.close();
+		restartedMembership.close();
+	}
+
+	/**
+	 * Test that the entry kept for a departed member is discarded after twice
+	 * the failure timeout.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testGossipMembership_departedEntryExpires() throws IOException, InterruptedException {
+		Set<RemoteLoadBalancer> seedRemotes = ConcurrentHashMap.newKeySet();
+		GossipMembership seedMembership = new GossipMembership(8100, 8000, InetAddress.getLoopbackAddress(),
+				seedRemotes, new ArrayList<InetSocketAddress>(), 50, 200);
+		new Thread(seedMembership).start();
+
+		GossipMembership joiningMembership = getJoiningMembership(ConcurrentHashMap.<RemoteLoadBalancer>newKeySet());
+		new Thread(joiningMembership).start();
+		Thread.sleep(300);
+		joiningMembership.leave();
+		Thread.sleep(100);
+		assertEquals(0, seedMembership.getMemberCount());
+		assertEquals(1, seedMembership.getDepartedMemberCount());
+
+		Thread.sleep(500);
+		assertEquals(0, seedMembership.getDepartedMemberCount());
+
+		seedMembership.close();
+	}
+
+	/**
+	 * Test that a node that stops gossiping is removed after the failure
+	 * timeout, but that a load balancer that was in the initial (static) set
+	 * is never removed.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testGossipMembership_failureTimeout() throws IOException, InterruptedException {
+		Set<RemoteLoadBalancer> seedRemotes = ConcurrentHashMap.newKeySet();
+		RemoteLoadBalancer staticRemote = getRemoteLoadBalancer(8002);
+		seedRemotes.add(staticRemote);
+		GossipMembership seedMembership = new GossipMembership(8100, 8000, InetAddress.getLoopbackAddress(),
+				seedRemotes, new ArrayList<InetSocketAddress>(), 50, 300);
+		new Thread(seedMembership).start();
+
+		GossipMembership joiningMembership = getJoiningMembership(ConcurrentHashMap.<RemoteLoadBalancer>newKeySet());
+		new Thread(joiningMembership).start();
+		GossipMembership staticMembership = new GossipMembership(8102, 8002, InetAddress.getLoopbackAddress(),
+				ConcurrentHashMap.<RemoteLoadBalancer>newKeySet(),
+				Collections.singletonList(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8100)), 50, 300);
+		new Thread(staticMembership).start();
+		Thread.sleep(300);
+		assertEquals(2, seedRemotes.size());
+		assertEquals(2, seedMembership.getMemberCount());
+
+		joiningMembership.close();
+		staticMembership.close();
+		Thread.sleep(600);
+
+		assertEquals(Collections.singleton(staticRemote), seedRemotes);
+		assertEquals(0, seedMembership.getMemberCount());
+
+		seedMembership.close();
+	}
+
+	/**
+	 * @return a GossipMembership for a node accepting connections on port
+	 *         8001 that joins through the seed gossiping on port 8100.
+	 */
+	private GossipMembership getJoiningMembership(Set<RemoteLoadBalancer> remoteLoadBalancers) throws IOException {
+		return new GossipMembership(8101, 8001, InetAddress.getLoopbackAddress(), remoteLoadBalancers,
+				Collections.singletonList(new InetSocketAddress(InetAddress.getLoopbackAddress(), 8100)), 50, 5000);
+	}
+
+	/**
+	 * @return a remote load balancer on the loopback address with the given
+	 *         port.
+	 */
+	private RemoteLoadBalancer getRemoteLoadBalancer(int port) {
+		return new RemoteLoadBalancer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * @return a MembershipListener that adds joining and leaving members to
+	 *         the given lists (either of which can be null).
+	 */
+	private MembershipListener getMembershipListener(final List<RemoteLoadBalancer> joinedMembers,
+			final List<RemoteLoadBalancer> departedMembers) {
+		return new MembershipListener() {
+			@Override
+			public void memberJoined(RemoteLoadBalancer remoteLoadBalancer) {
+				if (joinedMembers != null) {
+					joinedMembers.add(remoteLoadBalancer);
+				}
+			}
+
+			@Override
+			public void memberLeft(RemoteLoadBalancer remoteLoadBalancer) {
+				if (departedMembers != null) {
+					departedMembers.add(remoteLoadBalancer);
+				}
+			}
+		};
+	}
+}
@@ -19,6 +19,8 @@ import org.junit.Test;
 
 import commsModel.LoadBalancerState;
 import commsModel.RemoteLoadBalancer;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
 import testUtils.TestUtils;
 
@@ -125,20 +127,17 @@ public class HeartbeatBroadcasterTests {
 		SocketChannel acceptedSocketChannel = mockRemoteSocketChannel.accept();
 		acceptSelector.close();
 
-		ByteBuffer buffer = ByteBuffer.allocate(1);
+		FrameDecoder frameDecoder = new FrameDecoder();
 		acceptedSocketChannel.socket().setSoTimeout(1000);
-		int bytesRead = acceptedSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
+		ByteBuffer buffer = frameDecoder.readFrame(acceptedSocketChannel);
+		assertEquals(1, buffer.remaining());
 		
-		buffer.flip();
 		MessageType messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.ACTIVE_ALIVE_CONFIRM, messageType);
-		buffer.clear();
 		
-		bytesRead = acceptedSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
+		buffer = frameDecoder.readFrame(acceptedSocketChannel);
+		assertEquals(1, buffer.remaining());
 		
-		buffer.flip();
 		messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.ACTIVE_ALIVE_CONFIRM, messageType);
 		
@@ -178,17 +177,15 @@ public class HeartbeatBroadcasterTests {
 						SocketChannel acceptedSocketChannel = mockRemoteSocketChannel.accept();
 						acceptSelector.close();
 						
-						ByteBuffer buffer = ByteBuffer.allocate(1);
+						FrameDecoder frameDecoder = new FrameDecoder();
 						acceptedSocketChannel.socket().setSoTimeout(1000);
 						
 						for (int i = 0; i < 3; i++) {
-							int bytesRead = acceptedSocketChannel.read(buffer);
-							assertEquals(1, bytesRead);
+							ByteBuffer buffer = frameDecoder.readFrame(acceptedSocketChannel);
+							assertEquals(1, buffer.remaining());
 							
-							buffer.flip();
 							MessageType messageType = MessageType.values()[buffer.get()];
 							assertEquals(MessageType.ACTIVE_ALIVE_CONFIRM, messageType);
-							buffer.clear();
 						}
 
 						mockRemoteSocketChannel.close();
@@ -236,34 +233,28 @@ public class HeartbeatBroadcasterTests {
 		SocketChannel acceptedSocketChannel = mockRemoteSocketChannel.accept();
 		acceptSelector.close();
 		
-		ByteBuffer buffer = ByteBuffer.allocate(1);
+		FrameDecoder frameDecoder = new FrameDecoder();
 		acceptedSocketChannel.socket().setSoTimeout(500);
-		acceptedSocketChannel.read(buffer);
+		ByteBuffer buffer = frameDecoder.readFrame(acceptedSocketChannel);
 		
-		buffer.flip();
 		MessageType messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.ACTIVE_ALIVE_CONFIRM, messageType);
-		buffer.clear();
 		
+		buffer = ByteBuffer.allocate(1);
 		buffer.put((byte) MessageType.ALIVE_REQUEST.getValue());
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			acceptedSocketChannel.write(buffer);
-		}
-		
-		buffer.clear();
+		FrameEncoder.write(acceptedSocketChannel, buffer);
 		
 		acceptedSocketChannel.configureBlocking(false);
 		Selector readSelector = Selector.open();
 		acceptedSocketChannel.register(readSelector, SelectionKey.OP_READ);
 		
-		if (readSelector.select(1000) == 0) {
+		buffer = frameDecoder.readFrame(acceptedSocketChannel, readSelector, 1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
-		int bytesRead = acceptedSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
+		assertEquals(1, buffer.remaining());
 		
-		buffer.flip();
 		messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.ACTIVE_ALIVE_CONFIRM, messageType);
 		
@@ -14,6 +14,7 @@ import org.junit.Test;
 import commsModel.LoadBalancerState;
 import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
 import loadBalancer.AbstractLoadBalancer;
 import loadBalancer.LoadBalancerConnectionHandler;
@@ -191,9 +192,7 @@ public class PassiveLoadBalancerTests {
 		for (int i = 0; i < 4; i++) {
 			buffer.put((byte) MessageType.ACTIVE_ALIVE_CONFIRM.getValue());
 			buffer.flip();
-			while (buffer.hasRemaining()) {
-				activeLBSocketChannel.write(buffer);
-			}
+			FrameEncoder.write(activeLBSocketChannel, buffer);
 
 			try {
 				Thread.sleep(500);
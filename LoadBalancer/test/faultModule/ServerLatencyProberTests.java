@@ -0,0 +1,183 @@
+package faultModule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import commsModel.Server;
+import testUtils.TestUtils;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link ServerLatencyProber} class and its methods.
+ *         </p>
+ *
+ */
+public class ServerLatencyProberTests {
+
+	/**
+	 * Tests successful creation of a new {@link ServerLatencyProber}.
+	 */
+	@Test
+	public void testCreateServerLatencyProber_successful() {
+		ServerLatencyProber serverLatencyProber = new ServerLatencyProber(TestUtils.getServerSet(1), 100);
+		assertNotNull(serverLatencyProber);
+	}
+
+	/**
+	 * Tests creating a new {@link ServerLatencyProber} with a null set of
+	 * servers. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateServerLatencyProber_nullServerSet() {
+		new ServerLatencyProber(null, 100);
+	}
+
+	/**
+	 * Tests creating a new {@link ServerLatencyProber} with an empty set of
+	 * servers. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateServerLatencyProber_emptyServerSet() {
+		new ServerLatencyProber(TestUtils.getServerSet(0), 100);
+	}
+
+	/**
+	 * Tests creating a new {@link ServerLatencyProber} with a timeout of less
+	 * than 1. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateServerLatencyProber_invalidTimeout() {
+		new ServerLatencyProber(TestUtils.getServerSet(1), 0);
+	}
+
+	/**
+	 * Test that probing a set of listening (mocked) servers records a latency
+	 * sample for each that is lower than the probe timeout.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testServerLatencyProber_probeLiveServers() throws IOException {
+		Set<Server> servers = TestUtils.getServerSet(3);
+		ServerSocketChannel[] mockServerSocketChannels = new ServerSocketChannel[3];
+		for (int i = 0; i < 3; i++) {
+			mockServerSocketChannels[i] = ServerSocketChannel.open();
+			mockServerSocketChannels[i].socket().bind(new InetSocketAddress(8000 + i));
+		}
+
+		ServerLatencyProber serverLatencyProber = new ServerLatencyProber(servers, 1000);
+		double aggregateLatency = serverLatencyProber.probeServers();
+
+		for (Server server : servers) {
+			assertNotNull(serverLatencyProber.getLatencyRecord(server));
+			assertEquals(1, serverLatencyProber.getLatencyRecord(server).getSampleCount());
+			assertTrue(serverLatencyProber.getLatencyRecord(server).getAverageLatency() < TimeUnit.MILLISECONDS
+					.toNanos(1000));
+		}
+		assertTrue(aggregateLatency > 0);
+		assertTrue(aggregateLatency < TimeUnit.MILLISECONDS.toNanos(1000));
+
+		for (ServerSocketChannel mockServerSocketChannel : mockServerSocketChannels) {
+			mockServerSocketChannel.close();
+		}
+	}
+
+	/**
+	 * Test that a single unreachable server is recorded with the timeout
+	 * latency but does not affect the aggregate, as the median of the
+	 * per-server averages is used.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testServerLatencyProber_unreachableServerIgnoredByAggregate() throws IOException {
+		Server liveServer1 = new Server(new InetSocketAddress("localhost", 8000));
+		Server liveServer2 = new Server(new InetSocketAddress("localhost", 8001));
+		Server deadServer = new Server(new InetSocketAddress("localhost", 8002));
+		ServerSocketChannel mockServerSocketChannel1 = ServerSocketChannel.open();
+		mockServerSocketChannel1.socket().bind(new InetSocketAddress(8000));
+		ServerSocketChannel mockServerSocketChannel2 = ServerSocketChannel.open();
+		mockServerSocketChannel2.socket().bind(new InetSocketAddress(8001));
+
+		ServerLatencyProber serverLatencyProber = new ServerLatencyProber(
+				new HashSet<Server>(Arrays.asList(liveServer1, liveServer2, deadServer)), 500);
+		double aggregateLatency = serverLatencyProber.probeServers();
+
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(500),
+				serverLatencyProber.getLatencyRecord(deadServer).getAverageLatency(), 0);
+		assertTrue(aggregateLatency < TimeUnit.MILLISECONDS.toNanos(500));
+
+		mockServerSocketChannel1.close();
+		mockServerSocketChannel2.close();
+	}
+
+	/**
+	 * Test that a probe round ends as soon as every server has answered,
+	 * rather than waiting out the timeout, and that each round records a
+	 * single sample per server.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testServerLatencyProber_roundEndsWhenAllProbesComplete() throws IOException {
+		Set<Server> servers = new HashSet<>();
+		ServerSocketChannel[] mockServerSocketChannels = new ServerSocketChannel[3];
+		for (int i = 0; i < 3; i++) {
+			mockServerSocketChannels[i] = ServerSocketChannel.open();
+			mockServerSocketChannels[i].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			servers.add(new Server((InetSocketAddress) mockServerSocketChannels[i].getLocalAddress()));
+		}
+		ServerLatencyProber serverLatencyProber = new ServerLatencyProber(servers, 2000);
+
+		for (int round = 1; round <= 2; round++) {
+			long probeStart = System.currentTimeMillis();
+			serverLatencyProber.probeServers();
+			assertTrue(System.currentTimeMillis() - probeStart < 1000);
+			for (Server server : servers) {
+				assertEquals(round, serverLatencyProber.getLatencyRecord(server).getSampleCount());
+				assertTrue(serverLatencyProber.getLatencyRecord(server).getAverageLatency() < TimeUnit.MILLISECONDS
+						.toNanos(1000));
+			}
+		}
+
+		for (ServerSocketChannel mockServerSocketChannel : mockServerSocketChannels) {
+			mockServerSocketChannel.close();
+		}
+	}
+
+	/**
+	 * Test that probing several servers that never respond completes within
+	 * a single timeout period, rather than one timeout per server.
+	 */
+	@Test
+	public void testServerLatencyProber_unresponsiveServersProbedConcurrently() {
+		Set<Server> servers = new HashSet<>();
+		for (int i = 0; i < 3; i++) {
+			servers.add(new Server(new InetSocketAddress("10.255.255.1", 8000 + i)));
+		}
+		ServerLatencyProber serverLatencyProber = new ServerLatencyProber(servers, 300);
+
+		long probeStart = System.currentTimeMillis();
+		serverLatencyProber.probeServers();
+		long probeDuration = System.currentTimeMillis() - probeStart;
+
+		assertTrue(probeDuration < 600);
+		for (Server server : servers) {
+			assertTrue(serverLatencyProber.getLatencyRecord(server).getAverageLatency() <= TimeUnit.MILLISECONDS
+					.toNanos(300));
+		}
+	}
+}
@@ -19,6 +19,7 @@ import org.junit.Test;
 
 import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
+import connectionUtils.FrameDecoder;
 import connectionUtils.MessageType;
 import testUtils.TestUtils;
 
@@ -245,18 +246,15 @@ public class ActiveLoadBalancerTests {
 			throw new SocketTimeoutException();
 		}
 		SocketChannel acceptedNameServiceSocketChannel = nameServiceSocketChannel.accept();
-		ByteBuffer buffer = ByteBuffer.allocate(5);
-		
 		Selector readSelector = Selector.open();
 		acceptedNameServiceSocketChannel.configureBlocking(false);
 		acceptedNameServiceSocketChannel.register(readSelector, SelectionKey.OP_READ);
-		if (readSelector.select(1000) == 0) {
+		ByteBuffer buffer = new FrameDecoder().readFrame(acceptedNameServiceSocketChannel, readSelector, 1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
-		int bytesRead = acceptedNameServiceSocketChannel.read(buffer);
-		assertEquals(5, bytesRead);
+		assertEquals(5, buffer.remaining());
 		
-		buffer.flip();
 		MessageType messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.HOST_ADDR_NOTIFY, messageType);
 		int port = buffer.getInt();
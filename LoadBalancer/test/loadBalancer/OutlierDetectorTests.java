@@ -0,0 +1,124 @@
+package loadBalancer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import commsModel.CircuitState;
+import commsModel.Server;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link OutlierDetector} class and its methods.
+ *         </p>
+ *
+ */
+public class OutlierDetectorTests {
+
+	/**
+	 * Test creating an {@link OutlierDetector} with an outlier factor that is
+	 * not greater than 1. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateOutlierDetector_invalidRttFactor() {
+		new OutlierDetector(1, 3, 100, 1000);
+	}
+
+	/**
+	 * Test creating an {@link OutlierDetector} with a maximum ejection time
+	 * less than the base ejection time. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateOutlierDetector_invalidEjectionTimes() {
+		new OutlierDetector(3, 3, 1000, 100);
+	}
+
+	/**
+	 * Test that a server is ejected after the configured number of
+	 * consecutive missed polls, and that a successful poll resets the count.
+	 */
+	@Test
+	public void testOutlierDetector_ejectAfterMissedPolls() {
+		OutlierDetector outlierDetector = new OutlierDetector(3, 3, 1000, 10000);
+		Server server = new Server(new InetSocketAddress("localhost", 8000));
+
+		outlierDetector.recordMissedPoll(server);
+		outlierDetector.recordMissedPoll(server);
+		recordPoll(outlierDetector, server, 1);
+		outlierDetector.recordMissedPoll(server);
+		outlierDetector.recordMissedPoll(server);
+		assertFalse(outlierDetector.isEjected(server));
+
+		outlierDetector.recordMissedPoll(server);
+		assertTrue(outlierDetector.isEjected(server));
+		assertEquals(CircuitState.OPEN, outlierDetector.getState(server));
+	}
+
+	/**
+	 * Test that a server whose poll round trip time is several times the
+	 * median of the other servers' is ejected, and that the other servers are
+	 * not.
+	 */
+	@Test
+	public void testOutlierDetector_ejectSlowServer() {
+		OutlierDetector outlierDetector = new OutlierDetector(3, 3, 1000, 10000);
+		Server server1 = new Server(new InetSocketAddress("localhost", 8000));
+		Server server2 = new Server(new InetSocketAddress("localhost", 8001));
+		Server slowServer = new Server(new InetSocketAddress("localhost", 8002));
+
+		for (int i = 0; i < 3; i++) {
+			recordPoll(outlierDetector, server1, 2);
+			recordPoll(outlierDetector, server2, 3);
+			recordPoll(outlierDetector, slowServer, 80);
+		}
+
+		assertFalse(outlierDetector.isEjected(server1));
+		assertFalse(outlierDetector.isEjected(server2));
+		assertTrue(outlierDetector.isEjected(slowServer));
+	}
+
+	/**
+	 * Test that an ejected server becomes half open after its ejection, is
+	 * ejected again for twice as long if its probe fails, and is re-admitted
+	 * once a probe succeeds.
+	 * 
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testOutlierDetector_halfOpenProbe() throws InterruptedException {
+		OutlierDetector outlierDetector = new OutlierDetector(3, 1, 100, 10000);
+		Server server = new Server(new InetSocketAddress("localhost", 8000));
+		outlierDetector.recordMissedPoll(server);
+		assertEquals(CircuitState.OPEN, outlierDetector.getState(server));
+
+		Thread.sleep(150);
+		assertEquals(CircuitState.HALF_OPEN, outlierDetector.getState(server));
+		assertTrue(outlierDetector.isEjected(server));
+
+		outlierDetector.recordMissedPoll(server);
+		assertEquals(CircuitState.OPEN, outlierDetector.getState(server));
+		Thread.sleep(150);
+		assertEquals(CircuitState.OPEN, outlierDetector.getState(server));
+		Thread.sleep(100);
+		assertEquals(CircuitState.HALF_OPEN, outlierDetector.getState(server));
+
+		recordPoll(outlierDetector, server, 1);
+		assertEquals(CircuitState.CLOSED, outlierDetector.getState(server));
+		assertFalse(outlierDetector.isEjected(server));
+	}
+
+	/**
+	 * Adds a poll round trip time to the server's latency record, as
+	 * {@link Server#updateServerState()} does, then reports the poll to the
+	 * detector.
+	 */
+	private static void recordPoll(OutlierDetector outlierDetector, Server server, double rttMillis) {
+		server.getPollLatency().addSample(rttMillis);
+		outlierDetector.recordPoll(server, rttMillis);
+	}
+}
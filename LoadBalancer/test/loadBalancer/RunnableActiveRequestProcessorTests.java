@@ -2,18 +2,17 @@ package loadBalancer;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
 import java.util.Set;
 
 import org.junit.After;
@@ -21,6 +20,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import commsModel.Server;
+import connectionUtils.AddressCodec;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
 import testUtils.TestUtils;
 
@@ -229,34 +231,65 @@ public class RunnableActiveRequestProcessorTests {
 		buffer.clear();
 		buffer.put((byte) MessageType.AVAILABLE_SERVER_REQUEST.getValue());
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			mockClientSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(mockClientSocketChannel, buffer);
 
-		buffer.clear();
 		Selector selector = Selector.open();
 		mockClientSocketChannel.configureBlocking(false);
 		mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
-		if (selector.select(1000) == 0) {
+		buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
-		long expectedTokenExpiryTime = System.currentTimeMillis() / 1000 + defaultTokenExpiration;
-		int bytesRead = mockClientSocketChannel.read(buffer);
-		assertEquals(22, bytesRead);
+		assertEquals(16, buffer.remaining());
 
-		buffer.flip();
 		MessageType responseMessageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.SERVER_TOKEN, responseMessageType);
 
-		long serverTokenExpiryTime = buffer.getLong();
-		assertEquals(expectedTokenExpiryTime, serverTokenExpiryTime, 1);
+		long serverTokenLifetimeMillis = buffer.getLong();
+		assertEquals(defaultTokenExpiration * 1000, serverTokenLifetimeMillis, 1000);
 
-		int serverPort = buffer.getInt();
-		assertEquals(8080, serverPort);
+		InetSocketAddress serverAddress = AddressCodec.decode(buffer);
+		assertEquals(new InetSocketAddress("127.0.0.2", 8080), serverAddress);
 
-		CharBuffer charBuffer = Charset.forName("UTF-8").decode(buffer);
-		String hostAddress = charBuffer.toString();
-		assertEquals("127.0.0.2", hostAddress);
+		selector.close();
+		requestProcessorThread.interrupt();
+	}
+
+	/**
+	 * Test that the {@link RunnableClientRequestProcessor} responds to a
+	 * request for an available server when no server is live with a token
+	 * that has no lifetime and no address, and keeps serving the connection.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testActiveRequestProcessor_processClientRequestNoServer() throws IOException {
+		createAcceptedSocketChannel();
+		ServerManager serverManager = new ServerManager(TestUtils.getServerSet(1));
+		RunnableClientRequestProcessor activeRequestProcessor = new RunnableClientRequestProcessor(
+				acceptedSocketChannel, serverManager);
+
+		Thread requestProcessorThread = new Thread(activeRequestProcessor);
+		requestProcessorThread.start();
+
+		Selector selector = Selector.open();
+		mockClientSocketChannel.configureBlocking(false);
+		mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
+		FrameDecoder frameDecoder = new FrameDecoder();
+		for (int i = 0; i < 2; i++) {
+			ByteBuffer buffer = ByteBuffer.allocate(1);
+			buffer.put((byte) MessageType.AVAILABLE_SERVER_REQUEST.getValue());
+			buffer.flip();
+			FrameEncoder.write(mockClientSocketChannel, buffer);
+
+			buffer = frameDecoder.readFrame(mockClientSocketChannel, selector, 1000);
+			if (buffer == null) {
+				throw new SocketTimeoutException();
+			}
+			assertEquals(MessageType.SERVER_TOKEN, MessageType.values()[buffer.get()]);
+			assertEquals(0, buffer.getLong());
+			assertNull(AddressCodec.decode(buffer));
+		}
 
 		selector.close();
 		requestProcessorThread.interrupt();
@@ -283,22 +316,17 @@ public class RunnableActiveRequestProcessorTests {
 		buffer.clear();
 		buffer.put((byte) MessageType.ALIVE_REQUEST.getValue());
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			mockClientSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(mockClientSocketChannel, buffer);
 
-		buffer.clear();
 		Selector selector = Selector.open();
 		mockClientSocketChannel.configureBlocking(false);
 		mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
-		if (selector.select(1000) == 0) {
+		buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
+		assertEquals(1, buffer.remaining());
 		
-		int bytesRead = mockClientSocketChannel.read(buffer);
-		assertEquals(1, bytesRead);
-		
-		buffer.flip();
 		
 		MessageType messageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.ACTIVE_ALIVE_CONFIRM, messageType);
@@ -0,0 +1,153 @@
+package loadBalancer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import commsModel.Server;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link ServerListWatcher} class and its methods.
+ *         </p>
+ *
+ */
+public class ServerListWatcherTests {
+
+	/**
+	 * Temporary directory holding the configuration file.
+	 */
+	private Path configDirectory;
+
+	/**
+	 * The configuration file watched in each test.
+	 */
+	private Path configPath;
+
+	/**
+	 * Creates the temporary configuration directory.
+	 * 
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		configDirectory = Files.createTempDirectory("lbConfig");
+		configPath = configDirectory.resolve("lbConfig.xml");
+	}
+
+	/**
+	 * Deletes the temporary configuration directory.
+	 * 
+	 * @throws IOException
+	 */
+	@After
+	public void cleanup() throws IOException {
+		Files.deleteIfExists(configPath);
+		Files.deleteIfExists(configDirectory);
+	}
+
+	/**
+	 * Test creating a ServerListWatcher with a null set of servers. Should
+	 * throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateServerListWatcher_nullServers() {
+		new ServerListWatcher(configPath, null);
+	}
+
+	/**
+	 * Test that reloading the file adds servers that have been added to it
+	 * and removes servers that have been removed from it, but leaves servers
+	 * that were not read from the file.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testServerListWatcher_reloadServers() throws IOException {
+		Set<Server> servers = ConcurrentHashMap.newKeySet();
+		servers.add(new Server(new InetSocketAddress("localhost", 8000)));
+		servers.add(new Server(new InetSocketAddress("localhost", 8001)));
+		ServerListWatcher serverListWatcher = new ServerListWatcher(configPath, servers);
+		Server registeredServer = new Server(new InetSocketAddress("localhost", 8003));
+		servers.add(registeredServer);
+
+		writeConfig(8001, 8002);
+		serverListWatcher.reloadServers();
+
+		assertEquals(3, servers.size());
+		assertTrue(servers.contains(new Server(new InetSocketAddress("localhost", 8001))));
+		assertTrue(servers.contains(new Server(new InetSocketAddress("localhost", 8002))));
+		assertTrue(servers.contains(registeredServer));
+	}
+
+	/**
+	 * Test that a file that cannot be read or lists no servers leaves the set
+	 * of servers unchanged.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testServerListWatcher_reloadInvalidFile() throws IOException {
+		Set<Server> servers = ConcurrentHashMap.newKeySet();
+		servers.add(new Server(new InetSocketAddress("localhost", 8000)));
+		ServerListWatcher serverListWatcher = new ServerListWatcher(configPath, servers);
+
+		Files.write(configPath, "<configuration><servers>".getBytes(Charset.forName("UTF-8")));
+		serverListWatcher.reloadServers();
+		assertEquals(1, servers.size());
+
+		writeConfig();
+		serverListWatcher.reloadServers();
+		assertEquals(1, servers.size());
+	}
+
+	/**
+	 * Test that a running ServerListWatcher reloads the server list when the
+	 * file is saved.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testServerListWatcher_watchFile() throws IOException, InterruptedException {
+		writeConfig(8000);
+		Set<Server> servers = ConcurrentHashMap.newKeySet();
+		servers.add(new Server(new InetSocketAddress("localhost", 8000)));
+		ServerListWatcher serverListWatcher = new ServerListWatcher(configPath, servers);
+		new Thread(serverListWatcher).start();
+		Thread.sleep(100);
+
+		writeConfig(8000, 8001);
+		for (int i = 0; i < 50 && servers.size() != 2; i++) {
+			Thread.sleep(100);
+		}
+		serverListWatcher.close();
+
+		assertEquals(2, servers.size());
+	}
+
+	/**
+	 * Writes a configuration file listing servers on localhost at the given
+	 * ports.
+	 */
+	private void writeConfig(int... ports) throws IOException {
+		StringBuilder config = new StringBuilder("<configuration><servers>");
+		for (int port : ports) {
+			config.append("<server><ipAddress>localhost</ipAddress><port>").append(port).append("</port></server>");
+		}
+		config.append("</servers></configuration>");
+		Files.write(configPath, config.toString().getBytes(Charset.forName("UTF-8")));
+	}
+}
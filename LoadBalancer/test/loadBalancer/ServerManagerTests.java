@@ -2,18 +2,30 @@ package loadBalancer;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.junit.Test;
 
+import commsModel.LoadSummary;
+import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
+import connectionUtils.MessageType;
+import connectionUtils.ServerTable;
+import connectionUtils.TimeSource;
 import testUtils.TestUtils;
 
 /**
@@ -164,4 +176,361 @@ public class ServerManagerTests {
 		Server availableServer = serverManager.getAvailableServer();
 		assertEquals(server2, availableServer);
 	}
+
+	/**
+	 * Test that when a token load penalty is set, tokens issued for a server
+	 * by a peer load balancer make it less likely to be selected, and that a
+	 * stale peer summary is ignored.
+	 * 
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testServerManager_testGetAvailableServerPeerTokenPenalty() throws InterruptedException {
+		Server server1 = new Server(new InetSocketAddress("localhost", 8000));
+		Server server2 = new Server(new InetSocketAddress("localhost", 8001));
+		server1.applyLoadSnapshot(10);
+		server2.applyLoadSnapshot(12);
+		ServerManager serverManager = new ServerManager(new HashSet<>(Arrays.asList(server1, server2)));
+		serverManager.setTokenLoadPenalty(1, 100);
+
+		LoadSummary peerLoadSummary = new LoadSummary(0);
+		peerLoadSummary.addServer(server1.getAddress(), 10, 5);
+		serverManager.updatePeerLoadSummary(new RemoteLoadBalancer(new InetSocketAddress("localhost", 8002)),
+				peerLoadSummary);
+		assertEquals(server2, serverManager.getAvailableServer());
+
+		Thread.sleep(150);
+		assertEquals(server1, serverManager.getAvailableServer());
+	}
+
+	/**
+	 * Test that when a token load penalty is set, tokens issued by this
+	 * ServerManager spread clients over servers with similar loads before
+	 * their loads have been updated.
+	 */
+	@Test
+	public void testServerManager_testGetAvailableServerLocalTokenPenalty() {
+		Server server1 = new Server(new InetSocketAddress("localhost", 8000));
+		Server server2 = new Server(new InetSocketAddress("localhost", 8001));
+		server1.applyLoadSnapshot(10);
+		server2.applyLoadSnapshot(10.5);
+		ServerManager serverManager = new ServerManager(new HashSet<>(Arrays.asList(server1, server2)));
+		serverManager.setTokenLoadPenalty(1, 100);
+
+		assertEquals(server1, serverManager.getAvailableServer());
+		assertEquals(server2, serverManager.getAvailableServer());
+		assertEquals(1, server1.getTokensIssuedSinceLoadUpdate());
+		assertEquals(1, server2.getTokensIssuedSinceLoadUpdate());
+	}
+
+	/**
+	 * Test that a registered server is added to the selection snapshot and
+	 * can be selected, and that registering it again has no effect.
+	 */
+	@Test
+	public void testServerManager_registerServer() {
+		Server server1 = new Server(new InetSocketAddress("localhost", 8000));
+		server1.applyLoadSnapshot(50);
+		ServerManager serverManager = new ServerManager(new HashSet<>(Arrays.asList(server1)));
+		InetSocketAddress registeredAddress = new InetSocketAddress("localhost", 8001);
+
+		assertTrue(serverManager.registerServer(registeredAddress));
+		assertFalse(serverManager.registerServer(registeredAddress));
+		assertEquals(2, serverManager.getServers().size());
+		for (Server server : serverManager.getServers()) {
+			if (server.getAddress().equals(registeredAddress)) {
+				server.applyLoadSnapshot(10);
+			}
+		}
+		assertEquals(registeredAddress, serverManager.getAvailableServer().getAddress());
+	}
+
+	/**
+	 * Test that a deregistered server is no longer selected and drains until
+	 * its last token expires, and that registering it again while draining
+	 * returns the same server to use.
+	 */
+	@Test
+	public void testServerManager_deregisterServerDrains() {
+		Server server1 = new Server(new InetSocketAddress("localhost", 8000));
+		Server server2 = new Server(new InetSocketAddress("localhost", 8001));
+		server1.applyLoadSnapshot(10);
+		server2.applyLoadSnapshot(50);
+		ServerManager serverManager = new ServerManager(new HashSet<>(Arrays.asList(server1, server2)));
+		assertSame(server1, serverManager.getAvailableServer());
+
+		assertTrue(serverManager.deregisterServer(server1.getAddress()));
+		assertFalse(serverManager.deregisterServer(server1.getAddress()));
+		assertSame(server2, serverManager.getAvailableServer());
+		assertTrue(serverManager.getDrainingServers().contains(server1));
+
+		assertTrue(serverManager.registerServer(server1.getAddress()));
+		assertTrue(serverManager.getDrainingServers().isEmpty());
+		assertSame(server1, serverManager.getAvailableServer());
+	}
+
+	/**
+	 * Test that a server removed from the managed set by another thread is
+	 * drained on the next update cycle, and removed once it has no unexpired
+	 * tokens.
+	 * 
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testServerManager_removedServerDrainedOnUpdate() throws InterruptedException {
+		Set<Server> servers = TestUtils.getServerSet(2);
+		ServerManager serverManager = new ServerManager(servers);
+		Server removedServer = servers.iterator().next();
+		servers.remove(removedServer);
+		Thread serverManagerThread = new Thread(serverManager);
+		serverManagerThread.start();
+		Thread.sleep(250);
+
+		assertFalse(serverManager.getServers().contains(removedServer));
+		assertTrue(serverManager.getDrainingServers().isEmpty());
+		serverManager.cancel();
+	}
+
+	/**
+	 * Test that a server that has just recovered is not sent clients ahead of
+	 * a warm server with a higher load until the slow-start window has
+	 * passed, and that it is still used when it is the only live server.
+	 * 
+	 * @throws IOException
+	 * @throws ReflectiveOperationException
+	 */
+	@Test
+	public void testServerManager_slowStartRampsUpRecoveredServer() throws IOException, ReflectiveOperationException {
+		ServerSocketChannel mockServerSocketChannel1 = ServerSocketChannel.open();
+		mockServerSocketChannel1.bind(new InetSocketAddress("localhost", 8020));
+		ServerSocketChannel mockServerSocketChannel2 = ServerSocketChannel.open();
+		mockServerSocketChannel2.bind(new InetSocketAddress("localhost", 8021));
+		Server warmServer = new Server(new InetSocketAddress("localhost", 8020));
+		Server recoveredServer = new Server(new InetSocketAddress("localhost", 8021));
+		assertTrue(warmServer.connect(100));
+		assertTrue(recoveredServer.connect(100));
+
+		ServerManager serverManager = new ServerManager(new HashSet<>(Arrays.asList(warmServer, recoveredServer)));
+		serverManager.setSlowStartWindow(10000);
+		long currentTime = TimeSource.monotonicMillis();
+		Field creationTimeField = ServerManager.class.getDeclaredField("creationTime");
+		creationTimeField.setAccessible(true);
+		creationTimeField.set(serverManager, currentTime - 60000);
+		Field cpuLoadField = Server.class.getDeclaredField("cpuLoad");
+		cpuLoadField.setAccessible(true);
+		cpuLoadField.set(warmServer, 50.0);
+		cpuLoadField.set(recoveredServer, 5.0);
+		Field liveSinceField = Server.class.getDeclaredField("liveSince");
+		liveSinceField.setAccessible(true);
+		liveSinceField.set(warmServer, currentTime - 60000);
+		liveSinceField.set(recoveredServer, currentTime);
+
+		for (int i = 0; i < 20; i++) {
+			assertSame(warmServer, serverManager.getAvailableServer());
+		}
+
+		warmServer.getSocketChannel().close();
+		assertSame(recoveredServer, serverManager.getAvailableServer());
+		assertEquals(1000, recoveredServer.getTokenLifetimeMillis(), 100);
+
+		assertTrue(warmServer.connect(100));
+		liveSinceField.set(recoveredServer, currentTime - 10000);
+		assertSame(recoveredServer, serverManager.getAvailableServer());
+
+		warmServer.getSocketChannel().close();
+		recoveredServer.getSocketChannel().close();
+		mockServerSocketChannel1.close();
+		mockServerSocketChannel2.close();
+	}
+
+	/**
+	 * Test that a connected server that has been ejected by the
+	 * {@link OutlierDetector} is not selected while another server is
+	 * available.
+	 * 
+	 * @throws IOException
+	 * @throws ReflectiveOperationException
+	 */
+	@Test
+	public void testServerManager_ejectedServerNotSelected() throws IOException, ReflectiveOperationException {
+		ServerSocketChannel mockServerSocketChannel1 = ServerSocketChannel.open();
+		mockServerSocketChannel1.bind(new InetSocketAddress("localhost", 8022));
+		ServerSocketChannel mockServerSocketChannel2 = ServerSocketChannel.open();
+		mockServerSocketChannel2.bind(new InetSocketAddress("localhost", 8023));
+		Server healthyServer = new Server(new InetSocketAddress("localhost", 8022));
+		Server degradedServer = new Server(new InetSocketAddress("localhost", 8023));
+		assertTrue(healthyServer.connect(100));
+		assertTrue(degradedServer.connect(100));
+		Field cpuLoadField = Server.class.getDeclaredField("cpuLoad");
+		cpuLoadField.setAccessible(true);
+		cpuLoadField.set(healthyServer, 50.0);
+		cpuLoadField.set(degradedServer, 5.0);
+
+		ServerManager serverManager = new ServerManager(new HashSet<>(Arrays.asList(healthyServer, degradedServer)));
+		OutlierDetector outlierDetector = new OutlierDetector(3, 1, 10000, 10000);
+		serverManager.setOutlierDetector(outlierDetector);
+		assertSame(degradedServer, serverManager.getAvailableServer());
+
+		outlierDetector.recordMissedPoll(degradedServer);
+		assertSame(healthyServer, serverManager.getAvailableServer());
+
+		healthyServer.getSocketChannel().close();
+		assertSame(degradedServer, serverManager.getAvailableServer());
+
+		degradedServer.getSocketChannel().close();
+		mockServerSocketChannel1.close();
+		mockServerSocketChannel2.close();
+	}
+
+	/**
+	 * Test that the <code>LATENCY_AWARE</code> strategy prefers a slightly
+	 * busier server with a much lower round trip time, where the
+	 * <code>LEAST_LOADED</code> strategy picks the least busy server.
+	 * 
+	 * @throws IOException
+	 * @throws ReflectiveOperationException
+	 */
+	@Test
+	public void testServerManager_latencyAwareSelection() throws IOException, ReflectiveOperationException {
+		ServerSocketChannel mockServerSocketChannel1 = ServerSocketChannel.open();
+		mockServerSocketChannel1.bind(new InetSocketAddress("localhost", 8024));
+		ServerSocketChannel mockServerSocketChannel2 = ServerSocketChannel.open();
+		mockServerSocketChannel2.bind(new InetSocketAddress("localhost", 8025));
+		Server distantServer = new Server(new InetSocketAddress("localhost", 8024));
+		Server nearServer = new Server(new InetSocketAddress("localhost", 8025));
+		assertTrue(distantServer.connect(100));
+		assertTrue(nearServer.connect(100));
+		Field cpuLoadField = Server.class.getDeclaredField("cpuLoad");
+		cpuLoadField.setAccessible(true);
+		cpuLoadField.set(distantServer, 20.0);
+		cpuLoadField.set(nearServer, 40.0);
+		for (int i = 0; i < 5; i++) {
+			distantServer.getPollLatency().addSample(50);
+			nearServer.getPollLatency().addSample(2);
+		}
+
+		ServerManager serverManager = new ServerManager(new HashSet<>(Arrays.asList(distantServer, nearServer)));
+		assertSame(distantServer, serverManager.getAvailableServer());
+		serverManager.setSelectionStrategy(SelectionStrategy.LATENCY_AWARE);
+		assertSame(nearServer, serverManager.getAvailableServer());
+
+		cpuLoadField.set(nearServer, 99.0);
+		assertSame(distantServer, serverManager.getAvailableServer());
+
+		distantServer.getSocketChannel().close();
+		nearServer.getSocketChannel().close();
+		mockServerSocketChannel1.close();
+		mockServerSocketChannel2.close();
+	}
+
+	/**
+	 * Test that the {@link ServerManager}'s server table weights each live
+	 * server by its CPU headroom, and that its version only changes when the
+	 * weights change. Also checks that the table can be encoded and decoded
+	 * as sent to clients.
+	 * 
+	 * @throws IOException
+	 * @throws ReflectiveOperationException
+	 */
+	@Test
+	public void testServerManager_updateServerTable() throws IOException, ReflectiveOperationException {
+		ServerSocketChannel mockServerSocketChannel1 = ServerSocketChannel.open();
+		mockServerSocketChannel1.bind(new InetSocketAddress("localhost", 8026));
+		ServerSocketChannel mockServerSocketChannel2 = ServerSocketChannel.open();
+		mockServerSocketChannel2.bind(new InetSocketAddress("localhost", 8027));
+		Server idleServer = new Server(new InetSocketAddress("localhost", 8026));
+		Server busyServer = new Server(new InetSocketAddress("localhost", 8027));
+		Server disconnectedServer = new Server(new InetSocketAddress("localhost", 8028));
+		assertTrue(idleServer.connect(100));
+		assertTrue(busyServer.connect(100));
+		Field cpuLoadField = Server.class.getDeclaredField("cpuLoad");
+		cpuLoadField.setAccessible(true);
+		cpuLoadField.set(idleServer, 0.0);
+		cpuLoadField.set(busyServer, 80.0);
+		cpuLoadField.set(disconnectedServer, 0.0);
+
+		ServerManager serverManager = new ServerManager(
+				new HashSet<>(Arrays.asList(idleServer, busyServer, disconnectedServer)));
+		long initialVersion = serverManager.getServerTable().getVersion();
+		assertTrue(serverManager.getServerTable().isEmpty());
+		serverManager.updateServerTable();
+		ServerTable serverTable = serverManager.getServerTable();
+		assertEquals(initialVersion + 1, serverTable.getVersion());
+		assertEquals(Arrays.asList(idleServer.getAddress(), busyServer.getAddress()),
+				serverTable.getServerAddresses());
+		assertEquals(Arrays.asList(10, 2), serverTable.getWeights());
+
+		// Small load changes do not change the weights, so keep the version
+		cpuLoadField.set(busyServer, 81.0);
+		serverManager.updateServerTable();
+		assertSame(serverTable, serverManager.getServerTable());
+
+		cpuLoadField.set(busyServer, 30.0);
+		serverManager.updateServerTable();
+		assertEquals(initialVersion + 2, serverManager.getServerTable().getVersion());
+		assertEquals(Arrays.asList(10, 7), serverManager.getServerTable().getWeights());
+
+		ByteBuffer buffer = serverManager.getServerTable().encode();
+		assertEquals(MessageType.SERVER_TABLE, MessageType.values()[buffer.get()]);
+		ServerTable decodedTable = ServerTable.decode(buffer);
+		assertEquals(0, buffer.remaining());
+		assertEquals(serverManager.getServerTable().getVersion(), decodedTable.getVersion());
+		assertTrue(decodedTable.hasSameEntries(serverManager.getServerTable()));
+
+		idleServer.getSocketChannel().close();
+		busyServer.getSocketChannel().close();
+		mockServerSocketChannel1.close();
+		mockServerSocketChannel2.close();
+	}
+
+	/**
+	 * Test that the {@link ServerManager} spreads a batch of tokens across
+	 * servers according to their weights in the server table, rather than
+	 * giving them all to the least loaded server.
+	 * 
+	 * @throws IOException
+	 * @throws ReflectiveOperationException
+	 */
+	@Test
+	public void testServerManager_getAvailableServers() throws IOException, ReflectiveOperationException {
+		ServerSocketChannel mockServerSocketChannel1 = ServerSocketChannel.open();
+		mockServerSocketChannel1.bind(new InetSocketAddress("localhost", 8032));
+		ServerSocketChannel mockServerSocketChannel2 = ServerSocketChannel.open();
+		mockServerSocketChannel2.bind(new InetSocketAddress("localhost", 8033));
+		Server idleServer = new Server(new InetSocketAddress("localhost", 8032));
+		Server busyServer = new Server(new InetSocketAddress("localhost", 8033));
+		assertTrue(idleServer.connect(100));
+		assertTrue(busyServer.connect(100));
+		Field cpuLoadField = Server.class.getDeclaredField("cpuLoad");
+		cpuLoadField.setAccessible(true);
+		cpuLoadField.set(idleServer, 0.0);
+		cpuLoadField.set(busyServer, 50.0);
+		Server.setDefaultTokenExpiration(5);
+
+		ServerManager serverManager = new ServerManager(new HashSet<>(Arrays.asList(idleServer, busyServer)));
+		// Before the server table is built, every token goes to the least
+		// loaded server
+		for (Server server : serverManager.getAvailableServers(10)) {
+			assertSame(idleServer, server);
+		}
+
+		serverManager.updateServerTable();
+		List<Server> availableServers = serverManager.getAvailableServers(1000);
+		assertEquals(ServerManager.MAX_TOKEN_BATCH_SIZE, availableServers.size());
+		int busyServerCount = 0;
+		for (Server server : availableServers) {
+			if (server == busyServer) {
+				busyServerCount++;
+			}
+		}
+		// The busy server has weight 5 against the idle server's 10
+		assertTrue(busyServerCount > 15 && busyServerCount < 55);
+		assertTrue(idleServer.getTokenLifetimeMillis() > 0);
+		assertEquals(100 - busyServerCount, idleServer.getTokensIssuedSinceLoadUpdate() - 10);
+
+		idleServer.getSocketChannel().close();
+		busyServer.getSocketChannel().close();
+		mockServerSocketChannel1.close();
+		mockServerSocketChannel2.close();
+	}
 }
@@ -0,0 +1,107 @@
+package loadBalancer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import commsModel.Server;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link TokenLifetimeController} class and its methods.
+ *         </p>
+ *
+ */
+public class TokenLifetimeControllerTests {
+
+	/**
+	 * Test creating a {@link TokenLifetimeController} with a maximum lifetime
+	 * less than the minimum. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateTokenLifetimeController_invalidBounds() {
+		new TokenLifetimeController(10, 5, 20);
+	}
+
+	/**
+	 * Test creating a {@link TokenLifetimeController} with a target rate of
+	 * 0. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateTokenLifetimeController_invalidTargetRate() {
+		new TokenLifetimeController(5, 60, 0);
+	}
+
+	/**
+	 * Test that the base lifetime is lengthened up to the maximum while the
+	 * token rate is above the target, and shortened down to the minimum while
+	 * it is below.
+	 */
+	@Test
+	public void testTokenLifetimeController_tracksTargetRate() {
+		TokenLifetimeController tokenLifetimeController = new TokenLifetimeController(5, 60, 20);
+		List<Server> servers = getServers(30, 30);
+		double initialLifetime = tokenLifetimeController.getBaseLifetimeSeconds();
+
+		tokenLifetimeController.update(servers, 21);
+		assertEquals(initialLifetime, tokenLifetimeController.getBaseLifetimeSeconds(), 0);
+
+		tokenLifetimeController.update(servers, 40);
+		assertTrue(tokenLifetimeController.getBaseLifetimeSeconds() > initialLifetime);
+		for (int i = 0; i < 50; i++) {
+			tokenLifetimeController.update(servers, 40);
+		}
+		assertEquals(60, tokenLifetimeController.getBaseLifetimeSeconds(), 0);
+		assertEquals(40, tokenLifetimeController.getLastTokenRate(), 0);
+
+		for (int i = 0; i < 50; i++) {
+			tokenLifetimeController.update(servers, 5);
+		}
+		assertEquals(5, tokenLifetimeController.getBaseLifetimeSeconds(), 0);
+	}
+
+	/**
+	 * Test that a server whose load is far from the cluster mean is given a
+	 * shorter token than one at the mean, and that no token is shorter than
+	 * the minimum lifetime.
+	 */
+	@Test
+	public void testTokenLifetimeController_shorterTokensForUnusualLoad() {
+		TokenLifetimeController tokenLifetimeController = new TokenLifetimeController(5, 60, 20);
+		List<Server> servers = getServers(40, 40, 40, 80, 0);
+		for (int i = 0; i < 50; i++) {
+			tokenLifetimeController.update(servers, 40);
+		}
+		assertEquals(40, tokenLifetimeController.getMeanLoad(), 0);
+
+		assertEquals(60, tokenLifetimeController.getTokenLifetimeSeconds(servers.get(0)));
+		assertEquals(12, tokenLifetimeController.getTokenLifetimeSeconds(servers.get(3)));
+		assertEquals(12, tokenLifetimeController.getTokenLifetimeSeconds(servers.get(4)));
+
+		servers.get(3).applyLoadSnapshot(100);
+		tokenLifetimeController.update(servers, 40);
+		assertEquals(44, tokenLifetimeController.getMeanLoad(), 0);
+		assertEquals(9, tokenLifetimeController.getTokenLifetimeSeconds(servers.get(3)));
+		servers.get(3).applyLoadSnapshot(1000);
+		assertEquals(5, tokenLifetimeController.getTokenLifetimeSeconds(servers.get(3)));
+	}
+
+	/**
+	 * @return a list of servers on localhost with the given loads, starting
+	 *         at port 8000.
+	 */
+	private List<Server> getServers(double... loads) {
+		Server[] servers = new Server[loads.length];
+		for (int i = 0; i < loads.length; i++) {
+			servers[i] = new Server(new InetSocketAddress("localhost", 8000 + i));
+			servers[i].applyLoadSnapshot(loads[i]);
+		}
+		return Arrays.asList(servers);
+	}
+}
@@ -16,6 +16,8 @@ import java.util.concurrent.ThreadLocalRandom;
 
 import commsModel.RemoteLoadBalancer;
 import commsModel.Server;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
 
 /**
@@ -99,16 +101,14 @@ public class TestUtils {
 							throw new SocketTimeoutException();
 						}
 						acceptedSocketChannel = mockServerSocketChannel.accept();
-						ByteBuffer buffer = ByteBuffer.allocate(9);
 						Selector readSelector = Selector.open();
 						acceptedSocketChannel.configureBlocking(false);
 						acceptedSocketChannel.register(readSelector, SelectionKey.OP_READ);
-						if (readSelector.select(1000) == 0) {
+						ByteBuffer buffer = new FrameDecoder().readFrame(acceptedSocketChannel, readSelector, 1000);
+						if (buffer == null) {
 							throw new SocketTimeoutException();
 						}
 						
-						acceptedSocketChannel.read(buffer);
-						buffer.flip();
 						MessageType responseMessageType = MessageType.values()[buffer.get()];
 						if (!responseMessageType.equals(MessageType.SERVER_CPU_REQUEST)) {
 							throw new UnsupportedOperationException();
@@ -116,14 +116,12 @@ public class TestUtils {
 
 						// Return a random double representing the CPU load from
 						// the mocked server
-						buffer.clear();
+						buffer = ByteBuffer.allocate(9);
 						buffer.put((byte) MessageType.SERVER_CPU_NOTIFY.getValue());
 
 						buffer.putDouble(cpuUsage);
 						buffer.flip();
-						while (buffer.hasRemaining()) {
-							acceptedSocketChannel.write(buffer);
-						}
+						FrameEncoder.write(acceptedSocketChannel, buffer);
 						acceptSelector.close();
 						readSelector.close();
 					} catch (IOException e) {
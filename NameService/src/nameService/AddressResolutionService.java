@@ -1,12 +1,20 @@
 package nameService;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import connectionUtils.ConnectNIO;
+import connectionUtils.TimeSource;
 
 /**
  * @author Joachim
@@ -18,6 +26,13 @@ import connectionUtils.ConnectNIO;
  *         clients to connect to, or a request from a client for the current
  *         primary's address.
  *         </p>
+ *         <p>
+ *         When load balancers run in active-active mode, each one instead
+ *         holds a lease that it periodically renews with a
+ *         <code>HOST_ADDR_LEASE</code> message. Clients are then divided
+ *         between all hosts with a current lease, either by consistent hash
+ *         of the client's address or round-robin.
+ *         </p>
  *
  */
 public class AddressResolutionService {
@@ -42,6 +57,29 @@ public class AddressResolutionService {
 	 */
 	private int hostPort;
 
+	/**
+	 * The hosts holding a lease in active-active mode, mapped to the time (in
+	 * milliseconds) that each lease expires.
+	 */
+	private Map<InetSocketAddress, Long> leasedHosts = new ConcurrentHashMap<>();
+
+	/**
+	 * The ring used to assign clients to leased hosts, rebuilt whenever a
+	 * host gains or loses its lease.
+	 */
+	private ConsistentHashRing hostRing = new ConsistentHashRing(100);
+
+	/**
+	 * Flag indicating that clients should be given leased hosts in turn,
+	 * rather than by consistent hash of their address.
+	 */
+	private boolean roundRobinSelection = false;
+
+	/**
+	 * The index of the next leased host to be given out in round-robin mode.
+	 */
+	private AtomicInteger nextHostIndex = new AtomicInteger(0);
+
 	
 	/**
 	 * Creates a new AddressResolutionService with the specified port to accept
@@ -89,6 +127,84 @@ public class AddressResolutionService {
 	}
 
 	
+	/**
+	 * @param roundRobinSelection
+	 *            true if clients should be given leased hosts in turn, false
+	 *            to assign clients by consistent hash of their address
+	 */
+	public void setRoundRobinSelection(boolean roundRobinSelection) {
+		this.roundRobinSelection = roundRobinSelection;
+	}
+
+	
+	/**
+	 * Registers or renews a lease for the given host, allowing it to be given
+	 * to clients until the lease expires.
+	 * 
+	 * @param hostAddress
+	 *            the remote address of the load balancer
+	 * @param hostPort
+	 *            the port the load balancer accepts clients on
+	 * @param leaseMillis
+	 *            the duration of the lease in milliseconds
+	 * @return true if the host did not already hold a current lease.
+	 */
+	public synchronized boolean leaseHost(String hostAddress, int hostPort, int leaseMillis) {
+		removeExpiredLeases();
+		InetSocketAddress host = new InetSocketAddress(hostAddress, hostPort);
+		boolean isNewHost = leasedHosts.put(host, TimeSource.monotonicMillis() + leaseMillis) == null;
+		if (isNewHost) {
+			hostRing.setHosts(leasedHosts.keySet());
+		}
+		return isNewHost;
+	}
+
+	
+	/**
+	 * Selects the leased host that the client at the given address should
+	 * connect to.
+	 * 
+	 * @param clientAddress
+	 *            the remote address of the requesting client
+	 * @return the selected host, or null if no host holds a current lease (in
+	 *         which case the single notified host should be used).
+	 */
+	public synchronized InetSocketAddress getHostForClient(String clientAddress) {
+		removeExpiredLeases();
+		if (leasedHosts.isEmpty()) {
+			return null;
+		}
+		if (roundRobinSelection) {
+			List<InetSocketAddress> hosts = new ArrayList<>(leasedHosts.keySet());
+			return hosts.get(Math.floorMod(nextHostIndex.getAndIncrement(), hosts.size()));
+		}
+		return hostRing.getHost(clientAddress);
+	}
+
+	
+	/**
+	 * Removes any leases that have expired, rebuilding the host ring if any
+	 * were removed.
+	 */
+	private void removeExpiredLeases() {
+		long currentTime = TimeSource.monotonicMillis();
+		boolean removedHost = false;
+		Iterator<Map.Entry<InetSocketAddress, Long>> iterator = leasedHosts.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<InetSocketAddress, Long> lease = iterator.next();
+			if (lease.getValue() < currentTime) {
+				System.out.println("Lease expired for host at: " + lease.getKey().getHostString() + ":"
+						+ lease.getKey().getPort());
+				iterator.remove();
+				removedHost = true;
+			}
+		}
+		if (removedHost) {
+			hostRing.setHosts(leasedHosts.keySet());
+		}
+	}
+
+	
 	/**
 	 * Starts listening for incoming connection requests and delegates each to a
 	 * {@link RunnableRequestProcessor}. Expects to receive either a
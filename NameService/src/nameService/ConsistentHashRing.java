@@ -0,0 +1,99 @@
+package nameService;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         A consistent hash ring used to divide clients between the load
+ *         balancers that hold a lease with the name service. Each host is
+ *         placed on the ring at a number of points (virtual nodes), and a
+ *         client is assigned to the first host found clockwise from the hash
+ *         of its address. When a host joins or leaves, only the clients in the
+ *         ring segments next to that host's points are reassigned.
+ *         </p>
+ *
+ */
+public class ConsistentHashRing {
+
+	/**
+	 * The number of points on the ring for each host.
+	 */
+	private int virtualNodesPerHost;
+
+	/**
+	 * The hosts on the ring, keyed by the hash of each of their points.
+	 */
+	private TreeMap<Integer, InetSocketAddress> ring = new TreeMap<>();
+
+	/**
+	 * Creates a new, empty ConsistentHashRing.
+	 *
+	 * @param virtualNodesPerHost
+	 *            the number of points on the ring for each host. More points
+	 *            give a more even division of clients.
+	 * @throws IllegalArgumentException
+	 *             if the number of virtual nodes is less than 1.
+	 */
+	public ConsistentHashRing(int virtualNodesPerHost) {
+		if (virtualNodesPerHost < 1)
+			throw new IllegalArgumentException("Virtual nodes per host must be at least 1.");
+
+		this.virtualNodesPerHost = virtualNodesPerHost;
+	}
+
+	/**
+	 * Replaces the hosts on this ring with the given hosts.
+	 *
+	 * @param hosts
+	 *            the hosts to place on the ring
+	 */
+	public void setHosts(Collection<InetSocketAddress> hosts) {
+		TreeMap<Integer, InetSocketAddress> newRing = new TreeMap<>();
+		for (InetSocketAddress host : hosts) {
+			for (int i = 0; i < virtualNodesPerHost; i++) {
+				newRing.put(hash(host.getHostString() + ":" + host.getPort() + "#" + i), host);
+			}
+		}
+		ring = newRing;
+	}
+
+	/**
+	 * @param key
+	 *            the key to look up, e.g. a client's address
+	 * @return the host that the given key is assigned to, or null if the ring
+	 *         is empty.
+	 */
+	public InetSocketAddress getHost(String key) {
+		TreeMap<Integer, InetSocketAddress> currentRing = ring;
+		if (currentRing.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Integer, InetSocketAddress> entry = currentRing.ceilingEntry(hash(key));
+		if (entry == null) {
+			entry = currentRing.firstEntry();
+		}
+		return entry.getValue();
+	}
+
+	/**
+	 * @return the first 4 bytes of the MD5 digest of the given string, as an
+	 *         int.
+	 */
+	private static int hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(Charset.forName("UTF-8")));
+			return ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) | ((digest[2] & 0xFF) << 8)
+					| (digest[3] & 0xFF);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support MD5
+			return key.hashCode();
+		}
+	}
+}
@@ -16,12 +16,15 @@ public class NameService {
 		int acceptPort = 0;
 		int nodeMonitorPort = 0;
 		String nodeMonitorIP = "";
+		boolean roundRobinSelection = false;
 		try
 		{
 		    XMLConfiguration config = configs.xml("nameServiceConfig.xml");
 		    acceptPort = config.getInt("acceptPort");
 		    nodeMonitorPort = config.getInt("nodeMonitorPort");
 		    nodeMonitorIP = config.getString("nodeMonitorIP");
+		    // How clients are divided between load balancers in active-active mode
+		    roundRobinSelection = config.getString("hostSelection", "consistentHash").equalsIgnoreCase("roundRobin");
 		}
 		catch (ConfigurationException cex)
 		{
@@ -31,6 +34,7 @@ public class NameService {
 		ComponentLogger.setMonitorAddress(new InetSocketAddress(nodeMonitorIP, nodeMonitorPort));
 		ComponentLogger.getInstance().registerWithNodeMonitor(LogMessageType.NAME_SERVICE_REGISTER);
 		AddressResolutionService addressResolutionService = new AddressResolutionService(acceptPort);
+		addressResolutionService.setRoundRobinSelection(roundRobinSelection);
 		addressResolutionService.startService();
 	}
 }
@@ -1,13 +1,16 @@
 package nameService;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 
+import connectionUtils.AddressCodec;
+import connectionUtils.BufferPool;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
 import logging.ComponentLogger;
 import logging.LogMessageType;
 
@@ -64,44 +67,62 @@ public class RunnableRequestProcessor implements Runnable {
 	 */
 	@Override
 	public void run() {
+		FrameDecoder frameDecoder = new FrameDecoder();
+		ByteBuffer responseBuffer = BufferPool.acquire(1 + AddressCodec.MAX_ENCODED_LENGTH);
 		while (socketChannel.isConnected()) {
 			try {
-				ByteBuffer buffer = ByteBuffer.allocate(27);
-				int bytesRead = socketChannel.read(buffer);
+				int bytesRead = frameDecoder.read(socketChannel);
 
 				if (bytesRead == -1) { // Something went wrong, close channel
 										// and terminate
 					socketChannel.close();
 					break;
 				} else {
-					buffer.flip();
-					MessageType messageType = MessageType.values()[buffer.get()];
+					ByteBuffer buffer;
+					while ((buffer = frameDecoder.nextFrame()) != null) {
+						MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
+						if (messageType == null) {
+							// Unknown message type - drop the frame
+							continue;
+						}
 
-					switch (messageType) {
-					case HOST_ADDR_NOTIFY:
-						String hostAddress = socketChannel.socket().getInetAddress().getHostAddress();
-						int hostPort = buffer.getInt();
-						addressResolutionService.setHostAddress(hostAddress);
-						addressResolutionService.setHostPort(hostPort);
-						System.out.println("Received host address notification message from host at: " + hostAddress + ":" + hostPort);
-						ComponentLogger.getInstance().log(LogMessageType.NAME_SERVICE_ADDR_REGISTERED, new Integer(hostPort), hostAddress);
-						break;
-					case HOST_ADDR_REQUEST:
-						CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
-						buffer.clear();
-						buffer.put((byte)MessageType.HOST_ADDR_RESPONSE.getValue());
-						buffer.putInt(addressResolutionService.getHostPort());
-						buffer.put(encoder.encode(CharBuffer.wrap(addressResolutionService.getHostAddress())));
-						buffer.flip();
-						while(buffer.hasRemaining()) {
-							socketChannel.write(buffer);
+						switch (messageType) {
+						case HOST_ADDR_NOTIFY:
+							String hostAddress = socketChannel.socket().getInetAddress().getHostAddress();
+							int hostPort = buffer.getInt();
+							addressResolutionService.setHostAddress(hostAddress);
+							addressResolutionService.setHostPort(hostPort);
+							System.out.println("Received host address notification message from host at: " + hostAddress + ":" + hostPort);
+							ComponentLogger.getInstance().log(LogMessageType.NAME_SERVICE_ADDR_REGISTERED, new Integer(hostPort), hostAddress);
+							break;
+						case HOST_ADDR_LEASE:
+							String leaseHostAddress = socketChannel.socket().getInetAddress().getHostAddress();
+							int leaseHostPort = buffer.getInt();
+							int leaseMillis = buffer.getInt();
+							if (addressResolutionService.leaseHost(leaseHostAddress, leaseHostPort, leaseMillis)) {
+								System.out.println("Received host address lease from host at: " + leaseHostAddress + ":" + leaseHostPort);
+								ComponentLogger.getInstance().log(LogMessageType.NAME_SERVICE_ADDR_REGISTERED, new Integer(leaseHostPort), leaseHostAddress);
+							}
+							break;
+						case HOST_ADDR_REQUEST:
+							String clientAddress = socketChannel.socket().getInetAddress().getHostAddress();
+							InetSocketAddress leasedHost = addressResolutionService.getHostForClient(clientAddress);
+							responseBuffer.clear();
+							responseBuffer.put((byte)MessageType.HOST_ADDR_RESPONSE.getValue());
+							if (leasedHost == null && addressResolutionService.getHostAddress() != null) {
+								leasedHost = new InetSocketAddress(addressResolutionService.getHostAddress(),
+										addressResolutionService.getHostPort());
+							}
+							AddressCodec.encode(responseBuffer, leasedHost);
+							responseBuffer.flip();
+							FrameEncoder.write(socketChannel, responseBuffer);
+							//socketChannel.write(encoder.encode(CharBuffer.wrap(addressResolutionService.getHostAddress())));
+							//System.out.println("Received host address request from client.");
+							break;
+						default:
+							// Received a bad request
+							throw new IOException("Bad MessageType received");
 						}
-						//socketChannel.write(encoder.encode(CharBuffer.wrap(addressResolutionService.getHostAddress())));
-						//System.out.println("Received host address request from client.");
-						break;
-					default:
-						// Received a bad request
-						throw new IOException("Bad MessageType received");
 					}
 				}
 			} catch (IOException e) {
@@ -110,5 +131,7 @@ public class RunnableRequestProcessor implements Runnable {
 				break;
 			}
 		}
+		frameDecoder.release();
+		BufferPool.release(responseBuffer);
 	}
 }
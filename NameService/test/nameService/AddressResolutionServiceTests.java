@@ -6,14 +6,15 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
 
 import org.junit.Test;
 
+import connectionUtils.AddressCodec;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
 
 public class AddressResolutionServiceTests {
@@ -75,9 +76,7 @@ public class AddressResolutionServiceTests {
 		buffer.put((byte) MessageType.HOST_ADDR_NOTIFY.getValue());
 		buffer.putInt(8080);
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			mockServer.write(buffer);
-		}
+		FrameEncoder.write(mockServer, buffer);
 		try {
 			Thread.sleep(20);
 		} catch (InterruptedException e) {
@@ -115,31 +114,60 @@ public class AddressResolutionServiceTests {
 		buffer.clear();
 		buffer.put((byte) MessageType.HOST_ADDR_REQUEST.getValue());
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			mockClient.write(buffer);
-		}
+		FrameEncoder.write(mockClient, buffer);
 
 		Selector selector = Selector.open();
 		mockClient.configureBlocking(false);
 		mockClient.register(selector, SelectionKey.OP_READ);
-		if (selector.select(1000) == 0) {
+		buffer = new FrameDecoder().readFrame(mockClient, selector, 1000);
+		if (buffer == null) {
 			throw new SocketTimeoutException();
 		}
-		buffer.clear();
-		int bytesRead = mockClient.read(buffer);
-		assertTrue(bytesRead != -1);
-		buffer.flip();
 		MessageType responseMessageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.HOST_ADDR_RESPONSE, responseMessageType);
 		
-		int hostPort = buffer.getInt();
-		assertEquals(8000, hostPort);
-		
-		CharBuffer charBuffer = Charset.forName("UTF-8").decode(buffer);
-		String hostAddress = charBuffer.toString();
-		assertEquals("localhost", hostAddress);
+		InetSocketAddress hostAddress = AddressCodec.decode(buffer);
+		assertEquals(new InetSocketAddress("localhost", 8000), hostAddress);
+		assertEquals(0, buffer.remaining());
 		serviceThread.interrupt();
 		selector.close();
 		mockClient.close();
 	}
+
+	/**
+	 * Test that a host holding a lease is given to clients in place of the
+	 * notified host, and that the notified host is used again once the lease
+	 * has expired.
+	 * 
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testAddressResolutionService_leaseHost() throws InterruptedException {
+		AddressResolutionService addressResolutionService = new AddressResolutionService(8000);
+		assertNull(addressResolutionService.getHostForClient("127.0.0.1"));
+
+		assertTrue(addressResolutionService.leaseHost("127.0.0.2", 8001, 100));
+		assertFalse(addressResolutionService.leaseHost("127.0.0.2", 8001, 100));
+		assertEquals(new InetSocketAddress("127.0.0.2", 8001), addressResolutionService.getHostForClient("127.0.0.1"));
+
+		Thread.sleep(150);
+		assertNull(addressResolutionService.getHostForClient("127.0.0.1"));
+	}
+
+	/**
+	 * Test that leased hosts are given out in turn when round-robin selection
+	 * is set.
+	 */
+	@Test
+	public void testAddressResolutionService_roundRobinSelection() {
+		AddressResolutionService addressResolutionService = new AddressResolutionService(8000);
+		addressResolutionService.setRoundRobinSelection(true);
+		addressResolutionService.leaseHost("127.0.0.2", 8001, 10000);
+		addressResolutionService.leaseHost("127.0.0.3", 8001, 10000);
+
+		InetSocketAddress firstHost = addressResolutionService.getHostForClient("127.0.0.1");
+		InetSocketAddress secondHost = addressResolutionService.getHostForClient("127.0.0.1");
+		assertNotEquals(firstHost, secondHost);
+		assertEquals(firstHost, addressResolutionService.getHostForClient("127.0.0.1"));
+	}
 }
@@ -0,0 +1,101 @@
+package nameService;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Tests for the {@link ConsistentHashRing} class and its methods.
+ *         </p>
+ *
+ */
+public class ConsistentHashRingTests {
+
+	/**
+	 * Test creating a {@link ConsistentHashRing} with less than 1 virtual node
+	 * per host. Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateConsistentHashRing_invalidVirtualNodes() {
+		new ConsistentHashRing(0);
+	}
+
+	/**
+	 * Test that an empty ring returns null for any key.
+	 */
+	@Test
+	public void testConsistentHashRing_emptyRing() {
+		ConsistentHashRing consistentHashRing = new ConsistentHashRing(10);
+		assertNull(consistentHashRing.getHost("127.0.0.1"));
+	}
+
+	/**
+	 * Test that keys are spread over all hosts on the ring, and that the same
+	 * key is always given the same host.
+	 */
+	@Test
+	public void testConsistentHashRing_keysSpreadOverHosts() {
+		ConsistentHashRing consistentHashRing = new ConsistentHashRing(100);
+		List<InetSocketAddress> hosts = getHosts(3);
+		consistentHashRing.setHosts(hosts);
+
+		Map<InetSocketAddress, Integer> keyCounts = new HashMap<>();
+		for (int i = 0; i < 3000; i++) {
+			String key = "10.0." + (i / 256) + "." + (i % 256);
+			InetSocketAddress host = consistentHashRing.getHost(key);
+			assertEquals(host, consistentHashRing.getHost(key));
+			keyCounts.put(host, keyCounts.getOrDefault(host, 0) + 1);
+		}
+		assertEquals(3, keyCounts.size());
+		for (int keyCount : keyCounts.values()) {
+			assertTrue(keyCount > 500);
+		}
+	}
+
+	/**
+	 * Test that removing a host only moves the keys that were assigned to
+	 * that host.
+	 */
+	@Test
+	public void testConsistentHashRing_removeHostOnlyMovesItsKeys() {
+		ConsistentHashRing consistentHashRing = new ConsistentHashRing(100);
+		List<InetSocketAddress> hosts = getHosts(3);
+		consistentHashRing.setHosts(hosts);
+		Map<String, InetSocketAddress> assignments = new HashMap<>();
+		for (int i = 0; i < 1000; i++) {
+			String key = "10.1." + (i / 256) + "." + (i % 256);
+			assignments.put(key, consistentHashRing.getHost(key));
+		}
+
+		InetSocketAddress removedHost = hosts.remove(0);
+		consistentHashRing.setHosts(hosts);
+		for (Map.Entry<String, InetSocketAddress> assignment : assignments.entrySet()) {
+			InetSocketAddress newHost = consistentHashRing.getHost(assignment.getKey());
+			if (assignment.getValue().equals(removedHost)) {
+				assertNotEquals(removedHost, newHost);
+			} else {
+				assertEquals(assignment.getValue(), newHost);
+			}
+		}
+	}
+
+	/**
+	 * @return a list of the given number of hosts on localhost, starting at
+	 *         port 8000.
+	 */
+	private List<InetSocketAddress> getHosts(int numberOfHosts) {
+		List<InetSocketAddress> hosts = new ArrayList<>();
+		for (int i = 0; i < numberOfHosts; i++) {
+			hosts.add(new InetSocketAddress("127.0.0.1", 8000 + i));
+		}
+		return hosts;
+	}
+}
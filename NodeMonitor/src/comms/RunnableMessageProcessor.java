@@ -7,6 +7,7 @@ import java.nio.CharBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 
+import connectionUtils.ProtocolRegistry;
 import controller.GUIController;
 import log.LoggerUtility;
 import logging.LogMessageType;
@@ -68,7 +69,11 @@ public class RunnableMessageProcessor implements Runnable {
 					String timestamp = LoggerUtility.getFormattedTimestamp();
 					long messageReceivedTime = System.currentTimeMillis();
 					buffer.flip();
-					LogMessageType messageType = LogMessageType.values()[buffer.get()];
+					LogMessageType messageType = ProtocolRegistry.decodeLogMessageType(buffer);
+					if (messageType == null) {
+						// Unknown message type - drop the message
+						continue;
+					}
 
 					switch (messageType) {
 					// COMPONENT REGISTER MESSAGES
@@ -5,8 +5,8 @@ import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import connectionUtils.ExponentialMovingAverage;
 import javafx.scene.chart.XYChart;
+import statistics.DecayingAverage;
 
 /**
  * @author Joachim
@@ -35,9 +35,17 @@ public class Server extends AbstractRemoteSystemComponent {
 	private XYChart.Series<Number, Number> series = new XYChart.Series<>();
 
 	/**
-	 * The ExponentialMovingAverage class used to determine smoothed averages for server CPU load readings. 
+	 * The time, in nanoseconds, over which the weight of past CPU load
+	 * readings in the smoothed average halves. Readings are only sent when the
+	 * active load balancer polls the server, so the average is decayed by
+	 * time rather than per reading.
 	 */
-	private ExponentialMovingAverage exponentialMovingAverage = new ExponentialMovingAverage(0.2);
+	private static final long CPU_LOAD_HALF_LIFE_NANOS = 3000000000L;
+
+	/**
+	 * The DecayingAverage used to determine smoothed averages for server CPU load readings. 
+	 */
+	private DecayingAverage cpuLoadAverage = new DecayingAverage(CPU_LOAD_HALF_LIFE_NANOS);
 	
 	/**
 	 * Constructs a new Server object with the given componentID and
@@ -97,11 +105,11 @@ public class Server extends AbstractRemoteSystemComponent {
 	}
 	
 	/**
-	 * Uses this object's ExponentialMovingAverage instance to calculate the moving average
+	 * Uses this object's DecayingAverage instance to calculate the moving average
 	 * for the CPU load readings. 
 	 * @return
 	 */
 	public double getSmoothedAverage(double value) {
-		return exponentialMovingAverage.average(value);
+		return cpuLoadAverage.add(value);
 	}
 }
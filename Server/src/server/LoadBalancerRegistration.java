@@ -0,0 +1,173 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import connectionUtils.AddressCodec;
+import connectionUtils.ConnectNIO;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
+import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Registers this server with the active load balancer so that it can
+ *         be added to the pool of servers without restarting the load
+ *         balancers. The active's address is resolved through the name
+ *         service, and the registration is repeated periodically so that a
+ *         newly promoted active also learns of this server.
+ *         </p>
+ *
+ */
+public class LoadBalancerRegistration {
+
+	/**
+	 * The address of the name service used to find the active load balancer.
+	 */
+	private InetSocketAddress nameServiceAddress;
+
+	/**
+	 * The port that this server accepts client connections on.
+	 */
+	private int serverPort;
+
+	/**
+	 * The interval, in milliseconds, between registrations.
+	 */
+	private int registrationIntervalMillis;
+
+	/**
+	 * Timer used to periodically register with the active load balancer.
+	 */
+	private Timer registrationTimer;
+
+	/**
+	 * Creates a new LoadBalancerRegistration for the server accepting
+	 * connections on the given port.
+	 *
+	 * @param nameServiceAddress
+	 *            the address of the name service
+	 * @param serverPort
+	 *            the port that this server accepts client connections on
+	 * @param registrationIntervalMillis
+	 *            the interval, in milliseconds, between registrations
+	 * @throws IllegalArgumentException
+	 *             if the name service address is null or the interval is less
+	 *             than 1.
+	 */
+	public LoadBalancerRegistration(InetSocketAddress nameServiceAddress, int serverPort,
+			int registrationIntervalMillis) {
+		if (nameServiceAddress == null)
+			throw new IllegalArgumentException("Name service address cannot be null.");
+		if (registrationIntervalMillis < 1)
+			throw new IllegalArgumentException("Registration interval must be at least 1ms.");
+
+		this.nameServiceAddress = nameServiceAddress;
+		this.serverPort = serverPort;
+		this.registrationIntervalMillis = registrationIntervalMillis;
+	}
+
+	/**
+	 * Starts periodically registering this server with the active load
+	 * balancer.
+	 */
+	public void start() {
+		registrationTimer = new Timer();
+		registrationTimer.scheduleAtFixedRate(new TimerTask() {
+
+			@Override
+			public void run() {
+				sendToLoadBalancer(MessageType.SERVER_REGISTER);
+			}
+
+		}, 0, registrationIntervalMillis);
+	}
+
+	/**
+	 * Stops registering this server and deregisters it from the active load
+	 * balancer, which will stop issuing tokens for it.
+	 *
+	 * @return true if the deregistration was sent.
+	 */
+	public boolean stop() {
+		if (registrationTimer != null) {
+			registrationTimer.cancel();
+		}
+		return sendToLoadBalancer(MessageType.SERVER_DEREGISTER);
+	}
+
+	/**
+	 * Resolves the active load balancer's address and sends it a message of
+	 * the given type containing this server's port.
+	 *
+	 * @param messageType
+	 *            either <code>SERVER_REGISTER</code> or
+	 *            <code>SERVER_DEREGISTER</code>
+	 * @return true if the message was sent.
+	 */
+	public boolean sendToLoadBalancer(MessageType messageType) {
+		InetSocketAddress loadBalancerAddress = resolveLoadBalancerAddress();
+		if (loadBalancerAddress == null) {
+			return false;
+		}
+		SocketChannel socketChannel = ConnectNIO.getBlockingSocketChannel(loadBalancerAddress);
+		if (socketChannel == null) {
+			return false;
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(5);
+			buffer.put((byte) messageType.getValue());
+			buffer.putInt(serverPort);
+			buffer.flip();
+			FrameEncoder.write(socketChannel, buffer);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socketChannel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Sends a <code>HOST_ADDR_REQUEST</code> to the name service.
+	 *
+	 * @return the address of the active load balancer, or null if the name
+	 *         service could not be contacted.
+	 */
+	private InetSocketAddress resolveLoadBalancerAddress() {
+		FrameDecoder frameDecoder = new FrameDecoder();
+		try (SocketChannel socketChannel = ConnectNIO.getNonBlockingSocketChannel(nameServiceAddress, 1000);
+				Selector readSelector = Selector.open()) {
+			if (socketChannel == null || !socketChannel.isConnected()) {
+				return null;
+			}
+			socketChannel.register(readSelector, SelectionKey.OP_READ);
+			ByteBuffer buffer = ByteBuffer.allocate(1);
+			buffer.put((byte) MessageType.HOST_ADDR_REQUEST.getValue());
+			buffer.flip();
+			FrameEncoder.write(socketChannel, buffer);
+			buffer = frameDecoder.readFrame(socketChannel, readSelector, 1000);
+			if (buffer == null || buffer.remaining() < 4
+					|| ProtocolRegistry.decodeMessageType(buffer) != MessageType.HOST_ADDR_RESPONSE) {
+				return null;
+			}
+			return AddressCodec.decode(buffer);
+		} catch (IOException | BufferUnderflowException e) {
+			return null;
+		} finally {
+			frameDecoder.release();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.net.InetSocketAddress;
+
+/**
+ * @author Joachim
+ *         <p>
+ *         Class used to model one of the less loaded servers listed in a
+ *         <code>SERVER_PEER_HINTS</code> message from the active load
+ *         balancer, so that an overloaded server can redirect clients to it.
+ *         </p>
+ *
+ */
+public class PeerHint {
+
+	/**
+	 * The address that the peer accepts client connections on.
+	 */
+	private InetSocketAddress address;
+
+	/**
+	 * The CPU load of the peer when the hint was sent.
+	 */
+	private double cpuLoad;
+
+	/**
+	 * Creates a new PeerHint with the specified address and CPU load.
+	 * 
+	 * @param address
+	 *            the address that the peer accepts client connections on
+	 * @param cpuLoad
+	 *            the CPU load of the peer when the hint was sent
+	 * @throws IllegalArgumentException
+	 *             if the address is null.
+	 */
+	public PeerHint(InetSocketAddress address, double cpuLoad) {
+		if (address == null)
+			throw new IllegalArgumentException("Peer address cannot be null.");
+
+		this.address = address;
+		this.cpuLoad = cpuLoad;
+	}
+
+	/**
+	 * @return the address that the peer accepts client connections on.
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the CPU load of the peer when the hint was sent.
+	 */
+	public double getCPULoad() {
+		return cpuLoad;
+	}
+}
@@ -1,9 +1,15 @@
 package server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.Attribute;
 import javax.management.AttributeList;
@@ -13,7 +19,12 @@ import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 
+import connectionUtils.BufferPool;
+import connectionUtils.FrameDecoder;
 import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
+import connectionUtils.TimeSource;
+import connectionUtils.WriteBatcher;
 import logging.ComponentLogger;
 import logging.LogMessageType;
 
@@ -22,6 +33,13 @@ import logging.LogMessageType;
  *         request is received at the <code>ServerSocketChannel</code> in the
  *         {@link ThreadPooledServer}, it is delegated to
  *         RunnableRequestProcessor which will handle the request processing.
+ *         If the ThreadPooledServer allows more than one concurrent request
+ *         per connection, client requests are handed to its shared request
+ *         executor and each response is written, tagged with its request ID,
+ *         as soon as it is ready, so responses may be sent out of order.
+ *         Otherwise, if the ThreadPooledServer has a write batch threshold,
+ *         the responses to all of the requests found in one read are written
+ *         together once the read has been processed.
  */
 public class RunnableRequestProcessor implements Runnable {
 
@@ -30,11 +48,29 @@ public class RunnableRequestProcessor implements Runnable {
 	 */
 	private SocketChannel socketChannel;
 
+	/**
+	 * The size of a <code>SERVER_RESPONSE</code>: the message type, the
+	 * request ID and 10 long values.
+	 */
+	private static final int RESPONSE_SIZE = 89;
+
 	/**
 	 * The total number of messages that this object has sent in response to
 	 * client requests.
 	 */
-	private int responsesSent = 0;
+	private AtomicInteger responsesSent = new AtomicInteger(0);
+
+	/**
+	 * Limits the number of this connection's requests being processed by the
+	 * request executor at once, or null if requests are processed in turn.
+	 */
+	private Semaphore concurrentRequests;
+
+	/**
+	 * Collects the messages written to the client so that those produced
+	 * while processing one read are sent with a single write.
+	 */
+	private WriteBatcher writeBatcher;
 
 	/**
 	 * The ThreadPooledServer instance that manages this
@@ -71,82 +107,117 @@ public class RunnableRequestProcessor implements Runnable {
 	@Override
 	public void run() {
 		//boolean isClient = false;
+		FrameDecoder frameDecoder = new FrameDecoder();
+		ByteBuffer responseBuffer = BufferPool.acquire(RESPONSE_SIZE);
+		writeBatcher = new WriteBatcher(socketChannel, threadManager.getWriteBatchThreshold());
+		if (threadManager.getMaxConcurrentRequests() > 1) {
+			concurrentRequests = new Semaphore(threadManager.getMaxConcurrentRequests());
+		}
 		while (socketChannel.isConnected()) {
 			try {
-				ByteBuffer buffer = ByteBuffer.allocate(81);
-				int bytesRead = socketChannel.read(buffer);
+				int bytesRead = frameDecoder.read(socketChannel);
 
 				if (bytesRead == -1) { // Something went wrong, close channel
 										// and terminate
 					socketChannel.close();
 					break;
 				} else {
-					buffer.flip();
-					MessageType messageType = MessageType.values()[buffer.get()];
-
-					switch (messageType) {
-					case CLIENT_REQUEST:
-/*						if (!isClient) {
-							System.out.println("Server received connection request.");
-							isClient = true;
-						}*/
-						threadManager.incrementTotalRequestsReceived();
-						long[] requestData = new long[10];
-						for (int i = 0; i < requestData.length; i++) {
-							try {
-								requestData[i] = buffer.getLong();
-							} catch (BufferUnderflowException e) {
-								// Something went wrong, close channel and
-								// terminate
+					ByteBuffer buffer;
+					while ((buffer = frameDecoder.nextFrame()) != null) {
+						MessageType messageType = ProtocolRegistry.decodeMessageType(buffer);
+						if (messageType == null) {
+							// Unknown message type - drop the frame
+							continue;
+						}
+
+						switch (messageType) {
+						case CLIENT_REQUEST:
+/*							if (!isClient) {
+								System.out.println("Server received connection request.");
+								isClient = true;
+							}*/
+							threadManager.incrementTotalRequestsReceived();
+							if (buffer.remaining() < 8) {
 								socketChannel.close();
 								break;
 							}
-						}
-						//System.out.println("Server Thread (ID:" + Thread.currentThread().getId()
-							//	+ ") received client request: " + Arrays.toString(requestData));
-						//long startTime = System.currentTimeMillis();
-
-						long[] processedResponseValues = processSumOfPrimes(requestData);
-
-						//long endTime = System.currentTimeMillis();
-
-						//System.out.println("Server Thread (ID:" + Thread.currentThread().getId()
-							//	+ ") finished processing client request in " + (endTime - startTime)
-							//	+ "ms, sending response...");
-
-						buffer.clear();
-						buffer.put((byte) MessageType.SERVER_RESPONSE.getValue());
-						for (int i = 0; i < processedResponseValues.length; i++) {
-							buffer.putLong(processedResponseValues[i]);
-						}
-
-						buffer.flip();
-						while (buffer.hasRemaining()) {
-							socketChannel.write(buffer);
-
-						}
-						threadManager.incrementTotalResponsesSent();
-						responsesSent++;
-						break;
-					case SERVER_CPU_REQUEST:
-						double cpuUsage = getSystemCPULoad();
-						if (!Double.isNaN(cpuUsage)) {
-							//cpuUsage = -1.00;
-							ComponentLogger.getInstance().log(LogMessageType.SERVER_CPU_LOAD, new Double(cpuUsage));
-							//System.out.println(cpuUsage);
-							buffer.clear();
-							buffer.put((byte) MessageType.SERVER_CPU_NOTIFY.getValue());
-							buffer.putDouble(cpuUsage);
-							buffer.flip();
-							while (buffer.hasRemaining()) {
-								socketChannel.write(buffer);
+							final long requestID = buffer.getLong();
+							final long[] requestData = new long[10];
+							for (int i = 0; i < requestData.length; i++) {
+								try {
+									requestData[i] = buffer.getLong();
+								} catch (BufferUnderflowException e) {
+									// Something went wrong, close channel and
+									// terminate
+									socketChannel.close();
+									break;
+								}
+							}
+							// If overloaded, send the client to a less loaded peer
+							// instead of processing the request
+							InetSocketAddress redirectAddress = threadManager.getRedirectAddress();
+							if (redirectAddress != null) {
+								responseBuffer.clear();
+								responseBuffer.put((byte) MessageType.CLIENT_REDIRECT.getValue());
+								responseBuffer.putLong(requestID);
+								responseBuffer.putInt(redirectAddress.getPort());
+								responseBuffer.put(Charset.forName("UTF-8").encode(redirectAddress.getAddress().getHostAddress()));
+								responseBuffer.flip();
+								writeMessage(responseBuffer);
+								threadManager.incrementTotalRedirectsSent();
+								break;
+							}
+							if (concurrentRequests == null) {
+								sendResponse(requestID, requestData, responseBuffer, false);
+								break;
+							}
+							// Wait for an earlier request to finish if this
+							// connection already has the maximum in progress
+							concurrentRequests.acquireUninterruptibly();
+							threadManager.getRequestExecutor().execute(new Runnable() {
+								@Override
+								public void run() {
+									ByteBuffer concurrentResponseBuffer = BufferPool.acquire(RESPONSE_SIZE);
+									try {
+										sendResponse(requestID, requestData, concurrentResponseBuffer, true);
+									} catch (IOException e) {
+									} finally {
+										BufferPool.release(concurrentResponseBuffer);
+										concurrentRequests.release();
+									}
+								}
+							});
+							break;
+						case SERVER_CPU_REQUEST:
+							long requestReceivedMillis = TimeSource.wallClockMillis();
+							double cpuUsage = getSystemCPULoad();
+							if (!Double.isNaN(cpuUsage)) {
+								//cpuUsage = -1.00;
+								ComponentLogger.getInstance().log(LogMessageType.SERVER_CPU_LOAD, new Double(cpuUsage));
+								threadManager.setCPULoad(cpuUsage);
+								//System.out.println(cpuUsage);
+								responseBuffer.clear();
+								responseBuffer.put((byte) MessageType.SERVER_CPU_NOTIFY.getValue());
+								responseBuffer.putDouble(cpuUsage);
+								if (buffer.remaining() >= 8) {
+									// Let the load balancer estimate our clock offset
+									responseBuffer.putLong(buffer.getLong());
+									responseBuffer.putLong(requestReceivedMillis);
+									responseBuffer.putLong(TimeSource.wallClockMillis());
+								}
+								responseBuffer.flip();
+								writeMessage(responseBuffer);
 							}
+							break;
+						case SERVER_PEER_HINTS:
+							threadManager.setPeerHints(readPeerHints(buffer));
+							break;
+						default:
+							// Received a bad request
+							throw new IOException("Bad MessageType received");
 						}
-						break;
-					default:
-						// Received a bad request
-						throw new IOException("Bad MessageType received");
 					}
+					writeBatcher.flush();
 				}
 			} catch (IOException e) {
 				// e.printStackTrace();
@@ -154,17 +225,112 @@ public class RunnableRequestProcessor implements Runnable {
 				break;
 			}
 		}
+		writeBatcher.clear();
+		frameDecoder.release();
+		BufferPool.release(responseBuffer);
 /*		if (isClient) {
 			System.out.println("Client disconected.");
 		}*/
 	}
 
+	/**
+	 * Reads the peers listed in a <code>SERVER_PEER_HINTS</code> message.
+	 * Each peer is sent as its CPU load, port, and the length and UTF-8 bytes
+	 * of its IP address.
+	 * 
+	 * @param buffer
+	 *            the received message, positioned after the message type
+	 * @return the peers read from the message. Peers that were not fully
+	 *         received are ignored.
+	 */
+	private List<PeerHint> readPeerHints(ByteBuffer buffer) {
+		List<PeerHint> peerHints = new ArrayList<>();
+		try {
+			int peerCount = buffer.get();
+			for (int i = 0; i < peerCount; i++) {
+				double peerLoad = buffer.getDouble();
+				int peerPort = buffer.getInt();
+				byte[] peerIP = new byte[buffer.get()];
+				buffer.get(peerIP);
+				peerHints.add(new PeerHint(new InetSocketAddress(new String(peerIP, "UTF-8"), peerPort), peerLoad));
+			}
+		} catch (BufferUnderflowException | IOException e) {
+		}
+		return peerHints;
+	}
+
+	/**
+	 * Processes a client request and sends the response, tagged with the
+	 * request's ID.
+	 * 
+	 * @param requestID
+	 *            the ID that the client gave the request
+	 * @param requestData
+	 *            the long values to be processed
+	 * @param responseBuffer
+	 *            the buffer to build the response in, which must not be in
+	 *            use by any other thread
+	 * @param sendImmediately
+	 *            true if the request is being processed concurrently, so the
+	 *            response is written as soon as it is ready rather than at
+	 *            the end of the current read
+	 * @throws IOException
+	 *             if the response could not be sent.
+	 */
+	private void sendResponse(long requestID, long[] requestData, ByteBuffer responseBuffer, boolean sendImmediately)
+			throws IOException {
+		//System.out.println("Server Thread (ID:" + Thread.currentThread().getId()
+			//	+ ") received client request: " + Arrays.toString(requestData));
+		//long startTime = System.currentTimeMillis();
+
+		long[] processedResponseValues = processSumOfPrimes(requestData);
+
+		//long endTime = System.currentTimeMillis();
+
+		//System.out.println("Server Thread (ID:" + Thread.currentThread().getId()
+			//	+ ") finished processing client request in " + (endTime - startTime)
+			//	+ "ms, sending response...");
+
+		responseBuffer.clear();
+		responseBuffer.put((byte) MessageType.SERVER_RESPONSE.getValue());
+		responseBuffer.putLong(requestID);
+		for (int i = 0; i < processedResponseValues.length; i++) {
+			responseBuffer.putLong(processedResponseValues[i]);
+		}
+
+		responseBuffer.flip();
+		if (sendImmediately) {
+			writeBatcher.send(responseBuffer);
+		} else {
+			writeMessage(responseBuffer);
+		}
+		threadManager.incrementTotalResponsesSent();
+		responsesSent.incrementAndGet();
+	}
+
+	/**
+	 * Queues a message to be written to the client, which happens once the
+	 * current read has been processed or when the write batch threshold is
+	 * reached. Responses to requests processed concurrently are instead sent
+	 * as soon as they are ready, along with anything queued before them.
+	 * Writes are serialised by the {@link WriteBatcher} so that responses
+	 * from requests processed concurrently are not interleaved.
+	 * 
+	 * @param message
+	 *            the message to send, flipped and ready to be written
+	 * @throws IOException
+	 *             if the message could not be sent.
+	 */
+	private void writeMessage(ByteBuffer message) throws IOException {
+		writeBatcher.enqueue(message);
+	}
+
 	/**
 	 * @return The total number of responses that this RunnableRequestProcessor
 	 *         has sent.
 	 */
 	public int getResponsesSent() {
-		return responsesSent;
+		return responsesSent.get();
 	}
 
 	/**
@@ -6,6 +6,7 @@ import org.apache.commons.configuration2.XMLConfiguration;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
+import connectionUtils.UnixDomainSockets;
 import logging.ComponentLogger;
 import logging.LogMessageType;
 
@@ -21,22 +22,65 @@ public class Server {
 		int connectPort = 0;
 		int nodeMonitorPort = 0;
 		String nodeMonitorIP = "";
+		InetSocketAddress nameServiceAddress = null;
+		int registrationIntervalMillis = 0;
+		boolean redirectEnabled = false;
+		double redirectLoadThreshold = 0;
+		double redirectLoadMargin = 0;
+		int maxConcurrentRequests = 1;
+		int writeBatchThreshold = 0;
+		String unixSocketDirectory = null;
 		try
 		{
 		    XMLConfiguration config = configs.xml("serverConfig.xml");
 		    connectPort = config.getInt("connectPort");
 		    nodeMonitorPort = config.getInt("nodeMonitorPort");
 		    nodeMonitorIP = config.getString("nodeMonitorIP");
+		    // Optionally register with the active load balancer, found through the name service
+		    String nameServiceIP = config.getString("nameServiceAddress.ipAddress", null);
+		    if (nameServiceIP != null) {
+		    	nameServiceAddress = new InetSocketAddress(nameServiceIP, config.getInt("nameServiceAddress.port"));
+		    }
+		    registrationIntervalMillis = config.getInt("registrationIntervalMillis", 10000);
+		    // Optionally redirect clients to a less loaded peer when overloaded
+		    redirectEnabled = config.getBoolean("redirect.enabled", false);
+		    redirectLoadThreshold = config.getDouble("redirect.loadThreshold", 90);
+		    redirectLoadMargin = config.getDouble("redirect.loadMargin", 20);
+		    // Optionally process several requests from the same client at once
+		    maxConcurrentRequests = config.getInt("maxConcurrentRequests", 1);
+		    // Optionally send the responses to several pipelined requests in one write
+		    writeBatchThreshold = config.getInt("writeBatchThreshold", 0);
+		    // Optionally also accept clients on the same host over a UNIX domain socket
+		    unixSocketDirectory = config.getString("unixSocketDirectory", null);
 		}
 		catch (ConfigurationException cex)
 		{
 		    cex.printStackTrace();
 		    return;
 		}
+		UnixDomainSockets.setSocketDirectory(unixSocketDirectory);
 		ComponentLogger.setMonitorAddress(new InetSocketAddress(nodeMonitorIP, nodeMonitorPort));
 		ComponentLogger.getInstance().registerWithNodeMonitor(LogMessageType.SERVER_REGISTER);
 		ThreadPooledServer server = new ThreadPooledServer(connectPort);
+		if (redirectEnabled) {
+			server.setRedirectPolicy(redirectLoadThreshold, redirectLoadMargin);
+		}
+		server.setMaxConcurrentRequests(maxConcurrentRequests);
+		server.setWriteBatchThreshold(writeBatchThreshold);
 		new Thread(server).start();
+		if (nameServiceAddress != null) {
+			final LoadBalancerRegistration registration = new LoadBalancerRegistration(nameServiceAddress, connectPort,
+					registrationIntervalMillis);
+			registration.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					registration.stop();
+				}
+
+			}));
+		}
 	}
 
 }
@@ -1,11 +1,16 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.MBeanServer;
@@ -52,6 +57,61 @@ public class ThreadPooledServer implements Runnable {
 	 */
 	private MBeanServer mBeanServer;
 
+	/**
+	 * The CPU load of this machine when it was last requested by the load
+	 * balancer, or -1 if it has not been requested.
+	 */
+	private volatile double cpuLoad = -1;
+
+	/**
+	 * The less loaded peers most recently sent by the active load balancer.
+	 */
+	private volatile List<PeerHint> peerHints = Collections.emptyList();
+
+	/**
+	 * Flag indicating whether clients are redirected to a peer while this
+	 * server is overloaded.
+	 */
+	private boolean redirectEnabled = false;
+
+	/**
+	 * The CPU load above which clients are redirected.
+	 */
+	private double redirectLoadThreshold;
+
+	/**
+	 * The amount by which a peer's load must be lower than this server's
+	 * load for clients to be redirected to it.
+	 */
+	private double redirectLoadMargin;
+
+	/**
+	 * The number of client requests that have been answered with a redirect
+	 * by all server processing threads.
+	 */
+	private AtomicInteger totalRedirectsSent = new AtomicInteger(0);
+
+	/**
+	 * The maximum number of requests from a single connection that may be
+	 * processed at once. If 1, each connection's requests are processed in
+	 * turn by its {@link RunnableRequestProcessor}.
+	 */
+	private int maxConcurrentRequests = 1;
+
+	/**
+	 * The number of queued response bytes at which a
+	 * {@link RunnableRequestProcessor} writes its responses without waiting
+	 * for the end of the current read. If 0, each response is written as soon
+	 * as it is ready.
+	 */
+	private int writeBatchThreshold = 0;
+
+	/**
+	 * The pool of threads shared by all connections for processing requests
+	 * concurrently, or null if it has not been needed yet.
+	 */
+	private ExecutorService requestExecutor;
+
 	
 	/**
 	 * Creates a new ThreadPooledServer instance that will create and start a
@@ -82,6 +142,7 @@ public class ThreadPooledServer implements Runnable {
 
 		ServerSocketChannel serverSocketChannel = ConnectNIO.getServerSocketChannel(connectPort);
 		ExecutorService threadPoolExecutor = Executors.newCachedThreadPool();
+		Thread unixDomainAcceptThread = startUnixDomainAcceptThread(threadPoolExecutor);
 		while (!Thread.currentThread().isInterrupted()) {
 			SocketChannel connectRequestSocket = null;
 			try {
@@ -101,7 +162,58 @@ public class ThreadPooledServer implements Runnable {
 			serverSocketChannel.close();
 		} catch (IOException e) {
 		}
+		if (unixDomainAcceptThread != null) {
+			unixDomainAcceptThread.interrupt();
+		}
 		threadPoolExecutor.shutdown();
+		synchronized (this) {
+			if (requestExecutor != null) {
+				requestExecutor.shutdown();
+			}
+		}
+	}
+
+	
+	/**
+	 * Starts a thread that accepts connections from clients on the same host
+	 * on the UNIX domain socket for this server's port, if
+	 * {@link UnixDomainSockets} are enabled. Each connection is handled by a
+	 * {@link RunnableRequestProcessor} exactly as a TCP connection would be.
+	 * 
+	 * @param threadPoolExecutor
+	 *            the executor that runs the request processors
+	 * @return the accepting thread, or null if UNIX domain sockets are not
+	 *         being used.
+	 */
+	private Thread startUnixDomainAcceptThread(final ExecutorService threadPoolExecutor) {
+		final File socketFile = UnixDomainSockets.getSocketFile(connectPort);
+		final ServerSocketChannel unixServerSocketChannel = ConnectNIO.getUnixDomainServerSocketChannel(connectPort);
+		if (socketFile == null || unixServerSocketChannel == null) {
+			return null;
+		}
+		System.out.println("Also accepting connections on " + socketFile + "...");
+		Thread acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						SocketChannel connectRequestSocket = unixServerSocketChannel.accept();
+						threadPoolExecutor.execute(new RunnableRequestProcessor(connectRequestSocket, ThreadPooledServer.this));
+					} catch (IOException | RejectedExecutionException e) {
+						// Closed by the interrupt when the server shuts down
+						break;
+					}
+				}
+				try {
+					unixServerSocketChannel.close();
+				} catch (IOException e) {
+				}
+				socketFile.delete();
+			}
+		});
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		return acceptThread;
 	}
 
 	
@@ -140,6 +252,153 @@ public class ThreadPooledServer implements Runnable {
 		totalResponsesSent.incrementAndGet();
 	}
 	
+	/**
+	 * Enables redirecting clients to a less loaded peer, named in the hints
+	 * sent by the active load balancer, while this server is overloaded.
+	 * 
+	 * @param loadThreshold
+	 *            the CPU load above which clients are redirected
+	 * @param loadMargin
+	 *            the amount by which a peer's load must be lower than this
+	 *            server's load for clients to be redirected to it
+	 */
+	public void setRedirectPolicy(double loadThreshold, double loadMargin) {
+		this.redirectLoadThreshold = loadThreshold;
+		this.redirectLoadMargin = loadMargin;
+		redirectEnabled = true;
+	}
+
+	/**
+	 * Each {@link RunnableRequestProcessor} instance calls this method whenever
+	 * it retrieves the CPU load for the load balancer.
+	 * 
+	 * @param cpuLoad
+	 *            the CPU load of this machine
+	 */
+	public void setCPULoad(double cpuLoad) {
+		this.cpuLoad = cpuLoad;
+	}
+
+	/**
+	 * Each {@link RunnableRequestProcessor} instance calls this method whenever
+	 * it receives a <code>SERVER_PEER_HINTS</code> message.
+	 * 
+	 * @param peerHints
+	 *            the less loaded peers sent by the active load balancer
+	 */
+	public void setPeerHints(List<PeerHint> peerHints) {
+		this.peerHints = peerHints;
+	}
+
+	/**
+	 * @return the address of the least loaded peer that a client should be
+	 *         redirected to, or null if redirects are disabled, this server is
+	 *         not overloaded or no peer is sufficiently less loaded.
+	 */
+	public InetSocketAddress getRedirectAddress() {
+		double currentLoad = cpuLoad;
+		if (!redirectEnabled || currentLoad < 0 || currentLoad <= redirectLoadThreshold) {
+			return null;
+		}
+		PeerHint leastLoadedPeer = null;
+		for (PeerHint peerHint : peerHints) {
+			if (leastLoadedPeer == null || peerHint.getCPULoad() < leastLoadedPeer.getCPULoad()) {
+				leastLoadedPeer = peerHint;
+			}
+		}
+		if (leastLoadedPeer == null || currentLoad - leastLoadedPeer.getCPULoad() < redirectLoadMargin) {
+			return null;
+		}
+		return leastLoadedPeer.getAddress();
+	}
+
+	/**
+	 * @return The total number of client requests that have been answered
+	 *         with a redirect by all server threads.
+	 */
+	public int getTotalRedirectsSent() {
+		return totalRedirectsSent.get();
+	}
+
+	/**
+	 * Each {@link RunnableRequestProcessor} instance calls this method whenever
+	 * it redirects a client.
+	 */
+	public void incrementTotalRedirectsSent() {
+		totalRedirectsSent.incrementAndGet();
+	}
+
+	/**
+	 * Allows requests received on the same connection to be processed at the
+	 * same time, by a pool of threads shared by all connections, with each
+	 * response sent as soon as it is ready. Clients match responses to
+	 * requests by their request ID.
+	 * 
+	 * @param maxConcurrentRequests
+	 *            the maximum number of requests from a single connection that
+	 *            may be processed at once, or 1 to process each connection's
+	 *            requests in turn
+	 * @throws IllegalArgumentException
+	 *             if the value is less than 1.
+	 */
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1)
+			throw new IllegalArgumentException("Maximum concurrent requests must be at least 1.");
+
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * @return the maximum number of requests from a single connection that
+	 *         may be processed at once.
+	 */
+	public int getMaxConcurrentRequests() {
+		return maxConcurrentRequests;
+	}
+
+	/**
+	 * Lets each {@link RunnableRequestProcessor} collect the responses to all
+	 * of the requests found in one read and send them with a single gathering
+	 * write, rather than writing each response on its own.
+	 * 
+	 * @param writeBatchThreshold
+	 *            the number of queued response bytes at which the responses
+	 *            are written without waiting for the end of the read, or 0 to
+	 *            write each response as soon as it is ready
+	 * @throws IllegalArgumentException
+	 *             if the value is negative.
+	 */
+	public void setWriteBatchThreshold(int writeBatchThreshold) {
+		if (writeBatchThreshold < 0)
+			throw new IllegalArgumentException("Write batch threshold cannot be negative.");
+
+		this.writeBatchThreshold = writeBatchThreshold;
+	}
+
+	/**
+	 * @return the number of queued response bytes at which responses are
+	 *         written without waiting for the end of the read, or 0 if each
+	 *         response is written as soon as it is ready.
+	 */
+	public int getWriteBatchThreshold() {
+		return writeBatchThreshold;
+	}
+
+	/**
+	 * @return the pool of threads used to process requests concurrently,
+	 *         which is created on first use with one thread per available
+	 *         processor, or one per allowed concurrent request if that is
+	 *         more, so that a long request cannot hold up a short one sent
+	 *         after it.
+	 */
+	public synchronized ExecutorService getRequestExecutor() {
+		if (requestExecutor == null) {
+			requestExecutor = Executors.newFixedThreadPool(
+					Math.max(Runtime.getRuntime().availableProcessors(), maxConcurrentRequests));
+		}
+		return requestExecutor;
+	}
+
 	/**
 	 * @return the initialised MBeanServer used to access system properties.
 	 */
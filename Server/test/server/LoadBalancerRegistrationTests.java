@@ -0,0 +1,110 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import connectionUtils.AddressCodec;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
+import connectionUtils.MessageType;
+
+/**
+ * @author Joachim
+ * <p>Tests for the {@link LoadBalancerRegistration} class and its instance methods.</p>
+ */
+public class LoadBalancerRegistrationTests {
+
+	/**
+	 * Tests creating a {@link LoadBalancerRegistration} with a null name service address.
+	 * Should throw IllegalArgumentException.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateLoadBalancerRegistration_nullNameServiceAddress() {
+		new LoadBalancerRegistration(null, 8002, 1000);
+	}
+
+	/**
+	 * Tests that registering resolves the load balancer through a mock name service and
+	 * sends it a <code>SERVER_REGISTER</code> message containing the server's port.
+	 * @throws IOException
+	 */
+	@Test
+	public void testLoadBalancerRegistration_register() throws IOException {
+		testSendToLoadBalancer(MessageType.SERVER_REGISTER);
+	}
+
+	/**
+	 * Tests that deregistering sends a <code>SERVER_DEREGISTER</code> message containing the
+	 * server's port.
+	 * @throws IOException
+	 */
+	@Test
+	public void testLoadBalancerRegistration_deregister() throws IOException {
+		testSendToLoadBalancer(MessageType.SERVER_DEREGISTER);
+	}
+
+	/**
+	 * Tests that no message is sent if the name service cannot be contacted.
+	 */
+	@Test
+	public void testLoadBalancerRegistration_noNameService() {
+		LoadBalancerRegistration registration = new LoadBalancerRegistration(new InetSocketAddress("localhost", 8000),
+				8002, 1000);
+		assertFalse(registration.sendToLoadBalancer(MessageType.SERVER_REGISTER));
+	}
+
+	/**
+	 * Starts a mock name service on port 8000 that resolves to a mock load balancer on port
+	 * 8001, sends the given message type and checks what the load balancer receives.
+	 */
+	private void testSendToLoadBalancer(final MessageType messageType) throws IOException {
+		final ServerSocketChannel mockNameService = ServerSocketChannel.open();
+		mockNameService.bind(new InetSocketAddress("localhost", 8000));
+		final ServerSocketChannel mockLoadBalancer = ServerSocketChannel.open();
+		mockLoadBalancer.bind(new InetSocketAddress("localhost", 8001));
+
+		AsyncTester asyncTester = new AsyncTester(new Runnable() {
+
+			@Override
+			public void run() {
+				try (SocketChannel nameServiceChannel = mockNameService.accept()) {
+					ByteBuffer buffer = new FrameDecoder().readFrame(nameServiceChannel);
+					assertEquals(MessageType.HOST_ADDR_REQUEST, MessageType.values()[buffer.get()]);
+					buffer = ByteBuffer.allocate(50);
+					buffer.put((byte) MessageType.HOST_ADDR_RESPONSE.getValue());
+					AddressCodec.encode(buffer, new InetSocketAddress("localhost", 8001));
+					buffer.flip();
+					FrameEncoder.write(nameServiceChannel, buffer);
+
+					try (SocketChannel loadBalancerChannel = mockLoadBalancer.accept()) {
+						buffer = new FrameDecoder().readFrame(loadBalancerChannel);
+						assertEquals(messageType, MessageType.values()[buffer.get()]);
+						assertEquals(8002, buffer.getInt());
+					}
+				} catch (IOException e) {
+					fail(e.getMessage());
+				}
+			}
+		});
+		asyncTester.start();
+
+		LoadBalancerRegistration registration = new LoadBalancerRegistration(new InetSocketAddress("localhost", 8000),
+				8002, 1000);
+		assertTrue(registration.sendToLoadBalancer(messageType));
+		try {
+			asyncTester.test();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			mockNameService.close();
+			mockLoadBalancer.close();
+		}
+	}
+}
@@ -14,13 +14,18 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.concurrent.ThreadLocalRandom;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import connectionUtils.BufferPool;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
+import connectionUtils.ProtocolRegistry;
 import logging.ComponentLogger;
 
 /**
@@ -130,30 +135,28 @@ public class RunnableRequestProcessorTests {
 		new Thread(new RunnableRequestProcessor(acceptedSocketChannel, new ThreadPooledServer(8000))).start();
 		
 		// Send a request on the client's socket
-		ByteBuffer buffer = ByteBuffer.allocate(81);
+		ByteBuffer buffer = ByteBuffer.allocate(89);
 		buffer.clear();
 		buffer.put((byte)MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(1);
 		for (int i = 0; i < 10; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
 		}
 		buffer.flip();
-		while(buffer.hasRemaining()) {
-			mockClientSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(mockClientSocketChannel, buffer);
 		
-	    buffer.clear();
 	    Selector selector = Selector.open();
 	    mockClientSocketChannel.configureBlocking(false);
 	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
-	    if (selector.select(1000) == 0) {
+	    buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+	    if (buffer == null) {
 	    	throw new SocketTimeoutException();
 	    }
-	    int bytesRead = mockClientSocketChannel.read(buffer);
-	    assertEquals(81, bytesRead);
-		buffer.flip();
+	    assertEquals(89, buffer.remaining());
 		MessageType responseMessageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.SERVER_RESPONSE, responseMessageType);
+		assertEquals(1, buffer.getLong());
 		long[] responseValues = new long[10];
 		for (int i = 0; i < responseValues.length; i++) {
 			responseValues[i] = buffer.getLong();
@@ -178,7 +181,7 @@ public class RunnableRequestProcessorTests {
 		new Thread(new RunnableRequestProcessor(acceptedSocketChannel)).start();
 		
 		// Send a request on the client's socket
-		ByteBuffer buffer = ByteBuffer.allocate(81);
+		ByteBuffer buffer = ByteBuffer.allocate(89);
 		buffer.clear();
 		buffer.put((byte)MessageType.SERVER_RESPONSE.getValue());
 		for (int i = 0; i < 10; i++) {
@@ -215,6 +218,7 @@ public class RunnableRequestProcessorTests {
 		ByteBuffer buffer = ByteBuffer.allocate(41);
 		buffer.clear();
 		buffer.put((byte)MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(1);
 		for (int i = 0; i < 5; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
@@ -244,9 +248,10 @@ public class RunnableRequestProcessorTests {
 		requestProcessorExceptionTester.start();
 		
 		// Send a request on the client's socket
-		ByteBuffer buffer = ByteBuffer.allocate(81);
+		ByteBuffer buffer = ByteBuffer.allocate(89);
 		buffer.clear();
 		buffer.put((byte)MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(1);
 		for (int i = 0; i < 10; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
@@ -266,6 +271,142 @@ public class RunnableRequestProcessorTests {
 		requestProcessorExceptionTester.test();
 	}*/
 	
+	/**
+	 * Test that the {@link RunnableRequestProcessor} stores the peers sent in a
+	 * <code>SERVER_PEER_HINTS</code> message, and answers a client request
+	 * with a <code>CLIENT_REDIRECT</code> to the least loaded peer while the
+	 * server is overloaded.
+	 * @throws IOException 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testRunnableRequestProcessor_redirectWhenOverloaded() throws IOException, InterruptedException {
+		createAcceptedSocketChannel();
+		ThreadPooledServer threadManager = new ThreadPooledServer(8000);
+		threadManager.setRedirectPolicy(80, 20);
+		threadManager.setCPULoad(95);
+		new Thread(new RunnableRequestProcessor(acceptedSocketChannel, threadManager)).start();
+
+		// Send the peer hints from the load balancer
+		ByteBuffer buffer = ByteBuffer.allocate(89);
+		buffer.put((byte)MessageType.SERVER_PEER_HINTS.getValue());
+		buffer.put((byte)2);
+		byte[] peerIP = "127.0.0.1".getBytes("UTF-8");
+		buffer.putDouble(30);
+		buffer.putInt(8031);
+		buffer.put((byte)peerIP.length);
+		buffer.put(peerIP);
+		buffer.putDouble(10);
+		buffer.putInt(8032);
+		buffer.put((byte)peerIP.length);
+		buffer.put(peerIP);
+		buffer.flip();
+		FrameEncoder.write(mockClientSocketChannel, buffer);
+		Thread.sleep(100);
+		assertEquals(new InetSocketAddress("127.0.0.1", 8032), threadManager.getRedirectAddress());
+
+		// Send a client request, which should be redirected
+		buffer.clear();
+		buffer.put((byte)MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(1);
+		for (int i = 0; i < 10; i++) {
+			buffer.putLong(10000);
+		}
+		buffer.flip();
+		FrameEncoder.write(mockClientSocketChannel, buffer);
+
+	    Selector selector = Selector.open();
+	    mockClientSocketChannel.configureBlocking(false);
+	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
+	    buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+	    if (buffer == null) {
+	    	throw new SocketTimeoutException();
+	    }
+		assertEquals(MessageType.CLIENT_REDIRECT, MessageType.values()[buffer.get()]);
+		assertEquals(1, buffer.getLong());
+		assertEquals(8032, buffer.getInt());
+		assertEquals("127.0.0.1", Charset.forName("UTF-8").decode(buffer).toString());
+		Thread.sleep(50);
+		assertEquals(1, threadManager.getTotalRedirectsSent());
+		selector.close();
+	}
+	
+	/**
+	 * Test that the {@link RunnableRequestProcessor} answers every request
+	 * received in a single write, in order, when its responses are batched.
+	 * @throws IOException 
+	 */
+	@Test
+	public void testRunnableRequestProcessor_batchResponses() throws IOException {
+		createAcceptedSocketChannel();
+		ThreadPooledServer threadManager = new ThreadPooledServer(8000);
+		threadManager.setWriteBatchThreshold(16384);
+		new Thread(new RunnableRequestProcessor(acceptedSocketChannel, threadManager)).start();
+
+		ByteBuffer[] requests = new ByteBuffer[3];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = ByteBuffer.allocate(89);
+			requests[i].put((byte)MessageType.CLIENT_REQUEST.getValue());
+			requests[i].putLong(i + 1);
+			for (int j = 0; j < 10; j++) {
+				requests[i].putLong(100);
+			}
+			requests[i].flip();
+		}
+		FrameEncoder.write(mockClientSocketChannel, requests);
+
+	    Selector selector = Selector.open();
+	    mockClientSocketChannel.configureBlocking(false);
+	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
+	    FrameDecoder frameDecoder = new FrameDecoder();
+		for (int i = 0; i < requests.length; i++) {
+		    ByteBuffer buffer = frameDecoder.readFrame(mockClientSocketChannel, selector, 1000);
+		    if (buffer == null) {
+		    	throw new SocketTimeoutException();
+		    }
+			assertEquals(MessageType.SERVER_RESPONSE, MessageType.values()[buffer.get()]);
+			assertEquals(i + 1, buffer.getLong());
+		}
+		selector.close();
+	}
+	
+	/**
+	 * Test that the {@link RunnableRequestProcessor} drops a message with an
+	 * unknown type without closing the connection, and still answers the
+	 * request that follows it.
+	 * @throws IOException 
+	 */
+	@Test
+	public void testRunnableRequestProcessor_dropUnknownMessageType() throws IOException {
+		createAcceptedSocketChannel();
+		new Thread(new RunnableRequestProcessor(acceptedSocketChannel, new ThreadPooledServer(8000))).start();
+		long unknownMessageCount = ProtocolRegistry.getUnknownMessageCount();
+
+		ByteBuffer unknownMessage = ByteBuffer.allocate(1);
+		unknownMessage.put((byte)200);
+		unknownMessage.flip();
+		ByteBuffer request = ByteBuffer.allocate(89);
+		request.put((byte)MessageType.CLIENT_REQUEST.getValue());
+		request.putLong(7);
+		for (int i = 0; i < 10; i++) {
+			request.putLong(100);
+		}
+		request.flip();
+		FrameEncoder.write(mockClientSocketChannel, unknownMessage, request);
+
+	    Selector selector = Selector.open();
+	    mockClientSocketChannel.configureBlocking(false);
+	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
+	    ByteBuffer buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+	    if (buffer == null) {
+	    	throw new SocketTimeoutException();
+	    }
+		assertEquals(MessageType.SERVER_RESPONSE, MessageType.values()[buffer.get()]);
+		assertEquals(7, buffer.getLong());
+		assertEquals(unknownMessageCount + 1, ProtocolRegistry.getUnknownMessageCount());
+		selector.close();
+	}
+	
 	/**
 	 * Test that the {@link RunnableRequestProcessor}'s <code>getResponsesSent</code> method functions correctly
 	 * after starting a new instance thread.
@@ -290,27 +431,25 @@ public class RunnableRequestProcessorTests {
 		new Thread(requestProcessor).start();
 		
 		// Send a request on the client's socket
-		ByteBuffer buffer = ByteBuffer.allocate(81);
+		ByteBuffer buffer = ByteBuffer.allocate(89);
 		buffer.clear();
 		buffer.put((byte)MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(1);
 		for (int i = 0; i < 10; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
 		}
 		buffer.flip();
-		while(buffer.hasRemaining()) {
-			mockClientSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(mockClientSocketChannel, buffer);
 		
-	    buffer.clear();
 	    Selector selector = Selector.open();
 	    mockClientSocketChannel.configureBlocking(false);
 	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
-	    if (selector.select(1000) == 0) {
+	    buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+	    if (buffer == null) {
 	    	throw new SocketTimeoutException();
 	    }
-	    int bytesRead = mockClientSocketChannel.read(buffer);
-	    assertEquals(81, bytesRead);
+	    assertEquals(89, buffer.remaining());
 	    assertEquals(1, requestProcessor.getResponsesSent());
 	    selector.close();
 	}
@@ -329,31 +468,160 @@ public class RunnableRequestProcessorTests {
 		// Send a random number of requests on the client's socket
 		int iterations = ThreadLocalRandom.current().nextInt(5, 25);
 		for (int i = 0; i < iterations; i++) {
-			ByteBuffer buffer = ByteBuffer.allocate(81);
+			ByteBuffer buffer = ByteBuffer.allocate(89);
 			buffer.clear();
 			buffer.put((byte)MessageType.CLIENT_REQUEST.getValue());
+			buffer.putLong(1);
 			for (int j = 0; j < 10; j++) {
 				long random = (long) (10000 + Math.random() * 100000);
 				buffer.putLong(random);
 			}
 			buffer.flip();
-			while(buffer.hasRemaining()) {
-				mockClientSocketChannel.write(buffer);
-			}
-			buffer.clear();
+			FrameEncoder.write(mockClientSocketChannel, buffer);
 			// Set the socket to non blocking and instantiate a selector so we can set a read timeout
 		    Selector selector = Selector.open();
 		    mockClientSocketChannel.configureBlocking(false);
 		    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
-		    if (selector.select(1000) == 0) {
+		    buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+		    if (buffer == null) {
 		    	throw new SocketTimeoutException();
 		    }
-		    mockClientSocketChannel.read(buffer);
 		    selector.close();
 		}
 	    assertEquals(iterations, requestProcessor.getResponsesSent());
 	}
 	
+	/**
+	 * Test that the {@link RunnableRequestProcessor} answers every request when several are
+	 * framed and sent in a single write, as a pipelining client would, and that each response
+	 * carries the ID of the request it answers.
+	 * @throws IOException
+	 */
+	@Test
+	public void testRunnableRequestProcessor_pipelinedRequests() throws IOException {
+		createAcceptedSocketChannel();
+		RunnableRequestProcessor requestProcessor = new RunnableRequestProcessor(acceptedSocketChannel, new ThreadPooledServer(8000));
+		new Thread(requestProcessor).start();
+		
+		ByteBuffer[] requests = new ByteBuffer[3];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = ByteBuffer.allocate(89);
+			requests[i].put((byte)MessageType.CLIENT_REQUEST.getValue());
+			requests[i].putLong(i + 1);
+			for (int j = 0; j < 10; j++) {
+				requests[i].putLong(10000);
+			}
+			requests[i].flip();
+		}
+		FrameEncoder.write(mockClientSocketChannel, requests);
+		
+	    Selector selector = Selector.open();
+	    mockClientSocketChannel.configureBlocking(false);
+	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
+	    FrameDecoder frameDecoder = new FrameDecoder();
+	    for (int i = 0; i < requests.length; i++) {
+	    	ByteBuffer buffer = frameDecoder.readFrame(mockClientSocketChannel, selector, 1000);
+	    	if (buffer == null) {
+	    		throw new SocketTimeoutException();
+	    	}
+	    	assertEquals(89, buffer.remaining());
+	    	assertEquals(MessageType.SERVER_RESPONSE, MessageType.values()[buffer.get()]);
+	    	assertEquals(i + 1, buffer.getLong());
+	    }
+	    try {
+			Thread.sleep(50);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	    assertEquals(3, requestProcessor.getResponsesSent());
+	    selector.close();
+	}
+	
+	/**
+	 * Test that when the {@link ThreadPooledServer} allows concurrent requests, a slow request
+	 * does not hold up a quicker one sent after it on the same connection, and that each response
+	 * can be matched to its request by ID.
+	 * @throws IOException
+	 */
+	@Test
+	public void testRunnableRequestProcessor_concurrentRequestsAnsweredOutOfOrder() throws IOException {
+		createAcceptedSocketChannel();
+		ThreadPooledServer threadManager = new ThreadPooledServer(8000);
+		threadManager.setMaxConcurrentRequests(2);
+		RunnableRequestProcessor requestProcessor = new RunnableRequestProcessor(acceptedSocketChannel, threadManager);
+		new Thread(requestProcessor).start();
+		
+		ByteBuffer[] requests = new ByteBuffer[2];
+		long[] requestValues = { 3000000, 10 };
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = ByteBuffer.allocate(89);
+			requests[i].put((byte)MessageType.CLIENT_REQUEST.getValue());
+			requests[i].putLong(i + 1);
+			for (int j = 0; j < 10; j++) {
+				requests[i].putLong(requestValues[i]);
+			}
+			requests[i].flip();
+		}
+		FrameEncoder.write(mockClientSocketChannel, requests);
+		
+	    Selector selector = Selector.open();
+	    mockClientSocketChannel.configureBlocking(false);
+	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
+	    FrameDecoder frameDecoder = new FrameDecoder();
+	    long[] responseIDs = new long[requests.length];
+	    for (int i = 0; i < requests.length; i++) {
+	    	ByteBuffer buffer = frameDecoder.readFrame(mockClientSocketChannel, selector, 30000);
+	    	if (buffer == null) {
+	    		throw new SocketTimeoutException();
+	    	}
+	    	assertEquals(MessageType.SERVER_RESPONSE, MessageType.values()[buffer.get()]);
+	    	responseIDs[i] = buffer.getLong();
+	    	// The sum of the primes below 10 is 17
+	    	assertEquals(responseIDs[i] == 2, buffer.getLong() == 17);
+	    }
+	    assertEquals(2, responseIDs[0]);
+	    assertEquals(1, responseIDs[1]);
+	    threadManager.getRequestExecutor().shutdown();
+	    selector.close();
+	}
+	
+	/**
+	 * Test that the {@link RunnableRequestProcessor} hands every pooled buffer back to the 
+	 * {@link BufferPool} once its client disconnects.
+	 * @throws IOException
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testRunnableRequestProcessor_releasesPooledBuffers() throws IOException, InterruptedException {
+		BufferPool.setLeakDetectionEnabled(true);
+		try {
+			createAcceptedSocketChannel();
+			RunnableRequestProcessor requestProcessor = new RunnableRequestProcessor(acceptedSocketChannel, new ThreadPooledServer(8000));
+			Thread processorThread = new Thread(requestProcessor);
+			processorThread.start();
+			
+			ByteBuffer buffer = ByteBuffer.allocate(89);
+			buffer.put((byte)MessageType.CLIENT_REQUEST.getValue());
+			buffer.putLong(1);
+			for (int i = 0; i < 10; i++) {
+				buffer.putLong(10000);
+			}
+			buffer.flip();
+			FrameEncoder.write(mockClientSocketChannel, buffer);
+			
+			FrameDecoder frameDecoder = new FrameDecoder();
+			buffer = frameDecoder.readFrame(mockClientSocketChannel);
+			assertEquals(MessageType.SERVER_RESPONSE, MessageType.values()[buffer.get()]);
+			frameDecoder.release();
+			
+			mockClientSocketChannel.close();
+			processorThread.join(1000);
+			assertEquals(0, BufferPool.getOutstandingBufferCount());
+		} finally {
+			BufferPool.setLeakDetectionEnabled(false);
+		}
+	}
+	
 	/**
 	 * Test that the {@link RunnableRequestProcessor} returns the server's CPU load when sent a 
 	 * <code>SERVER_CPU_REQUEST</code>.
@@ -381,24 +649,66 @@ public class RunnableRequestProcessorTests {
 		buffer.clear();
 		buffer.put((byte)MessageType.SERVER_CPU_REQUEST.getValue());
 		buffer.flip();
-		while(buffer.hasRemaining()) {
-			mockClientSocketChannel.write(buffer);
-		}
+		FrameEncoder.write(mockClientSocketChannel, buffer);
 		
-	    buffer.clear();
 	    Selector selector = Selector.open();
 	    mockClientSocketChannel.configureBlocking(false);
 	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
-	    if (selector.select(1000) == 0) {
+	    buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+	    if (buffer == null) {
 	    	throw new SocketTimeoutException();
 	    }
-	    int bytesRead = mockClientSocketChannel.read(buffer);
-	    assertEquals(9, bytesRead);
-		buffer.flip();
+	    assertEquals(9, buffer.remaining());
 		MessageType responseMessageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.SERVER_CPU_NOTIFY, responseMessageType);
 		double serverLoad = buffer.getDouble();
 		assertTrue(serverLoad != Double.NaN);
 		selector.close();
 	}
+
+	/**
+	 * Test that the {@link RunnableRequestProcessor} echoes the time sent with
+	 * a <code>SERVER_CPU_REQUEST</code> and adds its own receive and send
+	 * times, so that the load balancer can estimate the server's clock offset.
+	 * @throws IOException
+	 * @throws NoSuchFieldException 
+	 * @throws IllegalAccessException 
+	 */
+	@Test
+	public void testRunnableRequestProcessor_getServerCPULoadWithTimestamps() throws IOException, NoSuchFieldException, IllegalAccessException {
+		ComponentLogger.setMonitorAddress(new InetSocketAddress("", 0));
+		
+		createAcceptedSocketChannel();
+		ThreadPooledServer threadManager = new ThreadPooledServer(8000); 
+		Field threadManagerMBSField = threadManager.getClass().getDeclaredField("mBeanServer");
+		threadManagerMBSField.setAccessible(true);
+		threadManagerMBSField.set(threadManager, ManagementFactory.getPlatformMBeanServer());
+		new Thread(new RunnableRequestProcessor(acceptedSocketChannel, threadManager)).start();
+		
+		long requestSentMillis = System.currentTimeMillis();
+		ByteBuffer buffer = ByteBuffer.allocate(9);
+		buffer.put((byte)MessageType.SERVER_CPU_REQUEST.getValue());
+		buffer.putLong(requestSentMillis);
+		buffer.flip();
+		FrameEncoder.write(mockClientSocketChannel, buffer);
+		
+	    Selector selector = Selector.open();
+	    mockClientSocketChannel.configureBlocking(false);
+	    mockClientSocketChannel.register(selector, SelectionKey.OP_READ);
+	    buffer = new FrameDecoder().readFrame(mockClientSocketChannel, selector, 1000);
+	    if (buffer == null) {
+	    	throw new SocketTimeoutException();
+	    }
+	    long responseReceivedMillis = System.currentTimeMillis();
+	    assertEquals(33, buffer.remaining());
+		assertEquals(MessageType.SERVER_CPU_NOTIFY, MessageType.values()[buffer.get()]);
+		buffer.getDouble();
+		assertEquals(requestSentMillis, buffer.getLong());
+		long requestReceivedMillis = buffer.getLong();
+		long responseSentMillis = buffer.getLong();
+		assertTrue(requestSentMillis <= requestReceivedMillis);
+		assertTrue(requestReceivedMillis <= responseSentMillis);
+		assertTrue(responseSentMillis <= responseReceivedMillis);
+		selector.close();
+	}
 }
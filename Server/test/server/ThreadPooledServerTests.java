@@ -2,6 +2,7 @@ package server;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
@@ -9,11 +10,18 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Collections;
 import java.util.Set;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import connectionUtils.ConnectNIO;
+import connectionUtils.FrameDecoder;
+import connectionUtils.FrameEncoder;
 import connectionUtils.MessageType;
+import connectionUtils.UnixDomainSockets;
 
 /**
  * @author Joachim
@@ -84,35 +92,33 @@ public class ThreadPooledServerTests {
 		serverThread.start();
 		SocketChannel mockClient = SocketChannel.open();
 		mockClient.connect(new InetSocketAddress("localhost", 8000));
-		ByteBuffer buffer = ByteBuffer.allocate(81);
+		ByteBuffer buffer = ByteBuffer.allocate(89);
 		buffer.clear();
 		buffer.put((byte) MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(1);
 		for (int i = 0; i < 10; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
 		}
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			try {
-				mockClient.write(buffer);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		try {
+			FrameEncoder.write(mockClient, buffer);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 		
-	    buffer.clear();
 		// Set the socket to non blocking and instantiate a selector so we can set a read timeout
 	    Selector selector = Selector.open();
 	    mockClient.configureBlocking(false);
 	    mockClient.register(selector, SelectionKey.OP_READ);
-	    if (selector.select(1000) == 0) {
+	    buffer = new FrameDecoder().readFrame(mockClient, selector, 1000);
+	    if (buffer == null) {
 	    	throw new SocketTimeoutException();
 	    }
-		int bytesRead = mockClient.read(buffer);
-		assertEquals(81, bytesRead);
-		buffer.flip();
+	    assertEquals(89, buffer.remaining());
 		MessageType responseMessageType = MessageType.values()[buffer.get()];
 		assertEquals(MessageType.SERVER_RESPONSE, responseMessageType);
+		assertEquals(1, buffer.getLong());
 		long[] responseValues = new long[10];
 		for (int i = 0; i < responseValues.length; i++) {
 			responseValues[i] = buffer.getLong();
@@ -156,31 +162,29 @@ public class ThreadPooledServerTests {
 		assertEquals(0, threadPooledServer.getTotalRequestsReceived());
 		SocketChannel mockClient = SocketChannel.open();
 		mockClient.connect(new InetSocketAddress("localhost", 8000));
-		ByteBuffer buffer = ByteBuffer.allocate(81);
+		ByteBuffer buffer = ByteBuffer.allocate(89);
 		buffer.clear();
 		buffer.put((byte) MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(1);
 		for (int i = 0; i < 10; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
 		}
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			try {
-				mockClient.write(buffer);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		try {
+			FrameEncoder.write(mockClient, buffer);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		buffer.clear();
 		// Set the socket to non blocking and instantiate a selector so we can set a read timeout
 	    Selector selector = Selector.open();
 	    mockClient.configureBlocking(false);
 	    mockClient.register(selector, SelectionKey.OP_READ);
-	    if (selector.select(1000) == 0) {
+	    buffer = new FrameDecoder().readFrame(mockClient, selector, 1000);
+	    if (buffer == null) {
 	    	throw new SocketTimeoutException();
 	    }
-		int bytesRead = mockClient.read(buffer);
-		assertEquals(81, bytesRead);
+	    assertEquals(89, buffer.remaining());
 		assertEquals(1, threadPooledServer.getTotalRequestsReceived());
 		serverThread.interrupt();
 		selector.close();
@@ -211,20 +215,19 @@ public class ThreadPooledServerTests {
 		assertEquals(0, threadPooledServer.getTotalResponsesSent());
 		SocketChannel mockClient = SocketChannel.open();
 		mockClient.connect(new InetSocketAddress("localhost", 8000));
-		ByteBuffer buffer = ByteBuffer.allocate(81);
+		ByteBuffer buffer = ByteBuffer.allocate(89);
 		buffer.clear();
 		buffer.put((byte) MessageType.CLIENT_REQUEST.getValue());
+		buffer.putLong(1);
 		for (int i = 0; i < 10; i++) {
 			long random = (long) (10000 + Math.random() * 100000);
 			buffer.putLong(random);
 		}
 		buffer.flip();
-		while (buffer.hasRemaining()) {
-			try {
-				mockClient.write(buffer);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+		try {
+			FrameEncoder.write(mockClient, buffer);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 		
 		try {
@@ -258,4 +261,82 @@ public class ThreadPooledServerTests {
 		
 		serverThread.interrupt();
 	}
+	
+	/**
+	 * Tests that the {@link ThreadPooledServer} only names a peer to redirect 
+	 * clients to when redirects are enabled, its CPU load is over the threshold 
+	 * and the peer is less loaded by at least the margin. 
+	 */
+	@Test
+	public void testThreadPooledServer_getRedirectAddress() {
+		ThreadPooledServer threadPooledServer = new ThreadPooledServer(8000);
+		InetSocketAddress peerAddress = new InetSocketAddress("127.0.0.1", 8031);
+		threadPooledServer.setCPULoad(95);
+		threadPooledServer.setPeerHints(Collections.singletonList(new PeerHint(peerAddress, 60)));
+		assertNull(threadPooledServer.getRedirectAddress());
+		
+		threadPooledServer.setRedirectPolicy(90, 20);
+		assertEquals(peerAddress, threadPooledServer.getRedirectAddress());
+		
+		threadPooledServer.setPeerHints(Collections.singletonList(new PeerHint(peerAddress, 80)));
+		assertNull(threadPooledServer.getRedirectAddress());
+		
+		threadPooledServer.setPeerHints(Collections.singletonList(new PeerHint(peerAddress, 60)));
+		threadPooledServer.setCPULoad(85);
+		assertNull(threadPooledServer.getRedirectAddress());
+	}
+	
+	/**
+	 * Tests that, with UNIX domain sockets enabled, the {@link ThreadPooledServer} 
+	 * also listens on the socket file for its port and that a client on the same 
+	 * host connecting to the server's TCP address through <code>ConnectNIO</code> 
+	 * is connected through that file and answered as usual. Skipped on runtimes 
+	 * without UNIX domain socket channels. 
+	 * @throws IOException
+	 */
+	@Test
+	public void testThreadPooledServer_acceptUnixDomainConnection() throws IOException {
+		Assume.assumeTrue(UnixDomainSockets.isSupported());
+		File socketDirectory = Files.createTempDirectory("sockets").toFile();
+		UnixDomainSockets.setSocketDirectory(socketDirectory.getPath());
+		Thread serverThread = new Thread(new ThreadPooledServer(8023));
+		try {
+			serverThread.start();
+			File socketFile = UnixDomainSockets.getSocketFile(8023);
+			for (int i = 0; i < 40 && !socketFile.exists(); i++) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+			}
+			assertTrue(socketFile.exists());
+			
+			SocketChannel mockClient = ConnectNIO.getNonBlockingSocketChannel(new InetSocketAddress("localhost", 8023), 1000);
+			assertTrue(mockClient.isConnected());
+			assertFalse(mockClient.getRemoteAddress() instanceof InetSocketAddress);
+			
+			ByteBuffer buffer = ByteBuffer.allocate(89);
+			buffer.put((byte) MessageType.CLIENT_REQUEST.getValue());
+			buffer.putLong(1);
+			for (int i = 0; i < 10; i++) {
+				buffer.putLong(10000);
+			}
+			buffer.flip();
+			FrameEncoder.write(mockClient, buffer);
+			
+			Selector selector = Selector.open();
+			mockClient.register(selector, SelectionKey.OP_READ);
+			buffer = new FrameDecoder().readFrame(mockClient, selector, 1000);
+			if (buffer == null) {
+				throw new SocketTimeoutException();
+			}
+			assertEquals(MessageType.SERVER_RESPONSE, MessageType.values()[buffer.get()]);
+			assertEquals(1, buffer.getLong());
+			selector.close();
+			mockClient.close();
+		} finally {
+			serverThread.interrupt();
+			UnixDomainSockets.setSocketDirectory(null);
+		}
+	}
 }